@@ -0,0 +1,89 @@
+package net.opentsdb.tsd;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.utils.JSON;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of writing the annotations of a series one object at a time
+ * with databind, as the query output used to, against
+ * {@link AnnotationWriter}. Both write to a reused output stream so only the
+ * serialization is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnnotationBenchmark {
+
+    @Param({"10", "500"})
+    int annotations;
+
+    @Param({"false", "true"})
+    boolean custom;
+
+    List<Annotation> notes;
+    final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup
+    public void setup() {
+        notes = new ArrayList<Annotation>(annotations);
+        for (int i = 0; i < annotations; i++) {
+            final Annotation note = new Annotation();
+            note.setTSUID("000001000001000001");
+            note.setStartTime(1356998400L + i * 300L);
+            note.setEndTime(1356998400L + i * 300L + 60L);
+            note.setDescription("Deployment " + i);
+            note.setNotes("Rolled out build " + i + " to the web tier");
+            if (custom) {
+                final HashMap<String, String> map = new HashMap<String, String>();
+                map.put("owner", "ops");
+                map.put("ticket", "OPS-" + i);
+                note.setCustom(map);
+            }
+            notes.add(note);
+        }
+    }
+
+    @Benchmark
+    public int databind() throws IOException {
+        output.reset();
+        final JsonGenerator json = JSON.getFactory().createGenerator(output);
+        json.writeStartArray();
+        for (Annotation note : notes) {
+            json.writeObject(note);
+        }
+        json.writeEndArray();
+        json.close();
+        return output.size();
+    }
+
+    @Benchmark
+    public int annotationWriter() throws IOException {
+        output.reset();
+        final JsonGenerator json = JSON.getFactory().createGenerator(output);
+        AnnotationWriter.writeAll(json, notes);
+        json.close();
+        return output.size();
+    }
+}
@@ -0,0 +1,34 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import org.powermock.reflect.Whitebox;
+
+import java.util.HashMap;
+
+/**
+ * Mocks for the benchmarks. JMH doesn't run under the PowerMock runner, so
+ * instead of mocking the final TSDB and Config classes like
+ * {@link NettyMocks#getMockedHTTPTSDB} does, they are instantiated without
+ * calling their constructors and the fields the serializers use are set.
+ */
+final class BenchmarkMocks {
+
+    private BenchmarkMocks() {
+    }
+
+    /**
+     * Returns a TSDB whose only state is a Config with the HTTP settings
+     *
+     * @return A TSDB without storage
+     */
+    static TSDB getTSDB() {
+        final Config config = Whitebox.newInstance(Config.class);
+        final HashMap<String, String> properties = new HashMap<String, String>();
+        properties.put("tsd.http.show_stack_trace", "true");
+        Whitebox.setInternalState(config, "properties", properties);
+        final TSDB tsdb = Whitebox.newInstance(TSDB.class);
+        Whitebox.setInternalState(tsdb, "config", config);
+        return tsdb;
+    }
+}
@@ -0,0 +1,108 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.meta.Annotation;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link HttpSampleSerializer#formatQueryV1} over synthetic
+ * series with a point every minute, in map or array mode, with or without
+ * JSONP and with or without annotations on every series.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatQueryBenchmark {
+
+    @Param({"10", "1000"})
+    int series;
+
+    @Param({"60", "1440"})
+    int points;
+
+    @Param({"false", "true"})
+    boolean arrays;
+
+    @Param({"false", "true"})
+    boolean jsonp;
+
+    /**
+     * Number of annotations on each series, also used for the globals
+     */
+    @Param({"0", "20"})
+    int annotations;
+
+    HttpQuery query;
+    TSQuery data_query;
+    List<DataPoints[]> results;
+    List<Annotation> globals;
+
+    @Setup
+    public void setup() {
+        String uri = "/api/query";
+        if (arrays) {
+            uri += "?arrays";
+        }
+        if (jsonp) {
+            uri += (arrays ? "&" : "?") + "jsonp=callback";
+        }
+        query = NettyMocks.getQuery(BenchmarkMocks.getTSDB(), uri);
+        data_query = TestQueryResponseWriter.getTSQuery("1356998400",
+                Long.toString(1356998400L + points * 60L));
+        results = TestQueryResponseWriter.getResults(series, points);
+        if (annotations > 0) {
+            for (DataPoints dps : results.get(0)) {
+                ((MockDataPoints) dps).setAnnotations(
+                        getAnnotations(dps.metricName(), annotations));
+            }
+            globals = getAnnotations(null, annotations);
+        }
+    }
+
+    @Benchmark
+    public ChannelBuffer formatQuery() {
+        return new HttpSampleSerializer(query).formatQueryV1(data_query,
+                results, globals);
+    }
+
+    /**
+     * Returns annotations spread over the query range with a custom map
+     */
+    private static List<Annotation> getAnnotations(final String tsuid,
+                                                   final int count) {
+        final List<Annotation> notes = new ArrayList<Annotation>(count);
+        for (int i = 0; i < count; i++) {
+            final Annotation note = new Annotation();
+            note.setTSUID(tsuid);
+            note.setStartTime(1356998400L + i * 300L);
+            note.setEndTime(1356998400L + i * 300L + 60L);
+            note.setDescription("Deployment " + i);
+            note.setNotes("Rolled out build " + i + " to the web tier");
+            final HashMap<String, String> custom = new HashMap<String, String>();
+            custom.put("owner", "ops");
+            note.setCustom(custom);
+            notes.add(note);
+        }
+        return notes;
+    }
+}
@@ -0,0 +1,97 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.IncomingDataPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link HttpSampleSerializer#parsePutV1} for a single data
+ * point object and for arrays of data points of different sizes, along with
+ * the columnar {@link HttpSampleSerializer#parsePutBatchV1}. The request
+ * bodies are built once, parsing doesn't consume them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsePutBenchmark {
+
+    /**
+     * A body with a single data point object
+     */
+    @State(Scope.Benchmark)
+    public static class ObjectBody {
+        HttpQuery query;
+
+        @Setup
+        public void setup() {
+            query = NettyMocks.postQuery(BenchmarkMocks.getTSDB(), "/api/put",
+                    dataPoint(0));
+        }
+    }
+
+    /**
+     * A body with an array of data points
+     */
+    @State(Scope.Benchmark)
+    public static class ArrayBody {
+        @Param({"1", "1000", "50000"})
+        int points;
+
+        HttpQuery query;
+
+        @Setup
+        public void setup() {
+            final StringBuilder body = new StringBuilder(points * 100);
+            body.append('[');
+            for (int i = 0; i < points; i++) {
+                if (i > 0) {
+                    body.append(',');
+                }
+                body.append(dataPoint(i));
+            }
+            body.append(']');
+            query = NettyMocks.postQuery(BenchmarkMocks.getTSDB(), "/api/put",
+                    body.toString());
+        }
+    }
+
+    @Benchmark
+    public List<IncomingDataPoint> parseObject(final ObjectBody body) {
+        return new HttpSampleSerializer(body.query).parsePutV1();
+    }
+
+    @Benchmark
+    public List<IncomingDataPoint> parseArray(final ArrayBody body) {
+        return new HttpSampleSerializer(body.query).parsePutV1();
+    }
+
+    @Benchmark
+    public PutBatch parseArrayBatch(final ArrayBody body) {
+        return new HttpSampleSerializer(body.query).parsePutBatchV1();
+    }
+
+    /**
+     * Returns a data point with a handful of hosts and alternating integer
+     * and floating point values
+     */
+    private static String dataPoint(final int i) {
+        return "{\"metric\":\"sys.cpu.user\",\"timestamp\":" + (1365465600 + i)
+                + ",\"value\":" + (i % 2 == 0 ? Integer.toString(i) : (i * 1.25 + 0.1))
+                + ",\"tags\":{\"host\":\"web" + (i % 16) + "\",\"cpu\":\""
+                + (i % 8) + "\"}}";
+    }
+}
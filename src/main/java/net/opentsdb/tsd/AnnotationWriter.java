@@ -0,0 +1,197 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.utils.JSON;
+import net.opentsdb.utils.JSONException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes {@link Annotation} objects straight to a generator, skipping the
+ * serializer lookup and reflective getter calls databind makes for every
+ * object. The fields are written in the order databind uses for the class:
+ * tsuid, description, notes and custom, followed by the two times. Those
+ * only have getters, which databind orders as the JVM lists the methods, so
+ * their order is taken from databind's output once.
+ * <p>
+ * The output is compared with databind's for a few sample annotations when
+ * the class loads. Should they ever differ, e.g. because the annotation
+ * class changed, a warning is logged and databind is used instead.
+ */
+final class AnnotationWriter {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(AnnotationWriter.class);
+
+  /** Whether databind writes the end time before the start time */
+  private static final boolean END_TIME_FIRST = endTimeFirst();
+
+  /** Whether the hand written output matches databind's */
+  private static final boolean MATCHES_DATABIND = matchesDatabind();
+
+  private AnnotationWriter() {
+  }
+
+  /**
+   * Writes a single annotation object
+   * @param json The generator to write to
+   * @param note The annotation, may be null
+   * @throws IOException if writing failed
+   */
+  static void write(final JsonGenerator json, final Annotation note)
+      throws IOException {
+    if (!MATCHES_DATABIND) {
+      json.writeObject(note);
+      return;
+    }
+    writeFields(json, note);
+  }
+
+  /**
+   * Writes an array of annotation objects
+   * @param json The generator to write to
+   * @param notes The annotations
+   * @throws IOException if writing failed
+   */
+  static void writeAll(final JsonGenerator json, final List<Annotation> notes)
+      throws IOException {
+    json.writeStartArray();
+    for (Annotation note : notes) {
+      write(json, note);
+    }
+    json.writeEndArray();
+  }
+
+  /**
+   * Serializes an array of annotation objects
+   * @param notes The annotations
+   * @return The JSON array
+   * @throws JSONException if serialization failed
+   */
+  static byte[] serialize(final List<Annotation> notes) {
+    final ByteArrayOutputStream output =
+      new ByteArrayOutputStream(64 + notes.size() * 128);
+    try {
+      final JsonGenerator json = JSON.getFactory().createGenerator(output);
+      writeAll(json, notes);
+      json.close();
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+    return output.toByteArray();
+  }
+
+  /** @return whether or not the hand written output is used */
+  static boolean matchesDatabind() {
+    try {
+      final List<Annotation> samples = samples();
+      final StringWriter output = new StringWriter();
+      final JsonGenerator json = JSON.getFactory().createGenerator(output);
+      json.writeStartArray();
+      for (Annotation note : samples) {
+        writeFields(json, note);
+      }
+      json.writeEndArray();
+      json.close();
+      final String expected = JSON.getMapper().writeValueAsString(samples);
+      if (expected.equals(output.toString())) {
+        return true;
+      }
+      LOG.warn("Annotations are serialized with databind as the output "
+          + "differs, expected " + expected + " but wrote " + output);
+    } catch (IOException e) {
+      LOG.warn("Annotations are serialized with databind", e);
+    }
+    return false;
+  }
+
+  /** @return whether databind writes the end time first, the default */
+  private static boolean endTimeFirst() {
+    try {
+      final String json = JSON.getMapper().writeValueAsString(new Annotation());
+      final int start = json.indexOf("\"startTime\"");
+      return start < 0 || json.indexOf("\"endTime\"") < start;
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  /** Writes the fields without checking they match databind */
+  private static void writeFields(final JsonGenerator json,
+      final Annotation note) throws IOException {
+    if (note == null) {
+      json.writeNull();
+      return;
+    }
+    json.writeStartObject();
+    json.writeStringField("tsuid", note.getTSUID());
+    json.writeStringField("description", note.getDescription());
+    json.writeStringField("notes", note.getNotes());
+    final Map<String, String> custom = note.getCustom();
+    if (custom == null) {
+      json.writeNullField("custom");
+    } else {
+      json.writeObjectFieldStart("custom");
+      for (Map.Entry<String, String> entry : custom.entrySet()) {
+        json.writeStringField(entry.getKey(), entry.getValue());
+      }
+      json.writeEndObject();
+    }
+    if (END_TIME_FIRST) {
+      json.writeNumberField("endTime", note.getEndTime());
+      json.writeNumberField("startTime", note.getStartTime());
+    } else {
+      json.writeNumberField("startTime", note.getStartTime());
+      json.writeNumberField("endTime", note.getEndTime());
+    }
+    json.writeEndObject();
+  }
+
+  /** @return annotations covering empty, null and escaped values */
+  private static List<Annotation> samples() {
+    final List<Annotation> samples = new ArrayList<Annotation>(3);
+    samples.add(new Annotation());
+
+    final Annotation full = new Annotation();
+    full.setTSUID("000001000001000001");
+    full.setStartTime(1356998400L);
+    full.setEndTime(1356998460L);
+    full.setDescription("Deploy \"web\"\n");
+    full.setNotes("\u00e9t\u00e9");
+    final HashMap<String, String> custom = new HashMap<String, String>();
+    custom.put("owner", "ops");
+    custom.put("ticket", null);
+    full.setCustom(custom);
+    samples.add(full);
+
+    final Annotation nulls = new Annotation();
+    nulls.setTSUID(null);
+    nulls.setDescription(null);
+    nulls.setNotes(null);
+    nulls.setCustom(new HashMap<String, String>());
+    samples.add(nulls);
+    return samples;
+  }
+}
@@ -0,0 +1,339 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.utils.JSON;
+
+import org.jboss.netty.buffer.BigEndianHeapChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downstream handler that fills in the body of HTTP responses once it has
+ * been serialized on a separate, bounded thread pool.
+ * <p>
+ * Serializers are called on the Netty worker thread that read the request,
+ * so a huge response stalls every other connection on that worker. To avoid
+ * that, the serializer hands the work to the pool via {@link #defer} and
+ * returns the {@link PendingBody} it gets back in place of the body. The
+ * handler sits at the tail of the pipeline, installed once per connection,
+ * and only touches responses whose content is a pending body. Such a
+ * response is held until its body is ready, then the body is set along with
+ * the content length and the response is passed on from whichever thread
+ * finished last. Anything written on the channel after a held response is
+ * queued behind it, so pipelined requests are answered in order and each
+ * response gets its own body. The status and headers set by the RPC are
+ * kept, unless serialization failed in which case a 500 is sent.
+ * <p>
+ * The pool is created by {@link #start} from {@link HttpSerializer#initialize}
+ * and stopped by {@link #stop} on shutdown. If it's not running or its queue
+ * is full, the caller serializes on its own thread as before.
+ */
+final class AsyncResponseHandler extends SimpleChannelDownstreamHandler {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(AsyncResponseHandler.class);
+
+  /** Name of this handler in the pipeline */
+  private static final String NAME = "serializer-async-response";
+
+  /** The pool, null unless started */
+  private static volatile ThreadPoolExecutor executor;
+
+  /** Messages waiting to be written behind a response that isn't ready */
+  private final ArrayDeque<MessageEvent> queued =
+    new ArrayDeque<MessageEvent>();
+
+  /** Our context, set on the first write */
+  private ChannelHandlerContext ctx;
+
+  /**
+   * Starts the pool, replacing any running one
+   * @param threads The number of serializer threads
+   * @param queue_size The maximum number of responses waiting for a thread
+   */
+  static synchronized void start(final int threads, final int queue_size) {
+    stop();
+    final AtomicInteger count = new AtomicInteger();
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+        0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queue_size), new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable,
+                "SerializerAsync-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor = pool;
+    LOG.info("Started " + threads + " async serializer threads");
+  }
+
+  /**
+   * Stops the pool without waiting. Responses already queued are still
+   * written, new ones are serialized on the caller's thread.
+   */
+  static void stop() {
+    stopPool();
+  }
+
+  /**
+   * Stops the pool and waits for the responses already queued to be written
+   * @param timeout_ms How long to wait in milliseconds
+   * @return True if the pool drained in time or wasn't running
+   * @throws InterruptedException if interrupted while waiting
+   */
+  static boolean stop(final long timeout_ms) throws InterruptedException {
+    final ThreadPoolExecutor pool = stopPool();
+    return pool == null ||
+      pool.awaitTermination(timeout_ms, TimeUnit.MILLISECONDS);
+  }
+
+  /** @return whether or not the pool is running */
+  static boolean running() {
+    return executor != null;
+  }
+
+  /** @return the pool that was shut down, null if it wasn't running */
+  private static synchronized ThreadPoolExecutor stopPool() {
+    final ThreadPoolExecutor pool = executor;
+    if (pool != null) {
+      executor = null;
+      pool.shutdown();
+    }
+    return pool;
+  }
+
+  /**
+   * Determines whether or not a query response should be serialized off the
+   * I/O thread
+   * @param results The data fetched from storage
+   * @return True if the pool is running and the response has enough series
+   * to make it worthwhile
+   */
+  static boolean wantsAsync(final List<DataPoints[]> results) {
+    if (executor == null) {
+      return false;
+    }
+    int series = 0;
+    for (DataPoints[] separate_dps : results) {
+      series += separate_dps.length;
+    }
+    return series >= SerializerConfig.asyncMinSeries();
+  }
+
+  /**
+   * Tries to serialize the body of a response for the query on the pool
+   * @param query The query that will be responded to
+   * @param task Produces the body of the response
+   * @return The buffer to reply with in place of the body, null if the
+   * caller has to serialize the body itself
+   */
+  static ChannelBuffer defer(final HttpQuery query,
+      final Callable<ChannelBuffer> task) {
+    final Channel chan = query.channel();
+    if (chan == null || chan.getPipeline() == null) {
+      return null;
+    }
+    return defer(chan.getPipeline(), task);
+  }
+
+  /**
+   * Tries to serialize the body of a response on the pool
+   * @param pipeline The pipeline of the connection to respond on
+   * @param task Produces the body of the response
+   * @return The buffer to reply with in place of the body, null if the
+   * caller has to serialize the body itself
+   */
+  static ChannelBuffer defer(final ChannelPipeline pipeline,
+      final Callable<ChannelBuffer> task) {
+    final ThreadPoolExecutor pool = executor;
+    if (pool == null) {
+      return null;
+    }
+    final PendingBody body = new PendingBody(task, install(pipeline));
+    try {
+      pool.execute(body);
+    } catch (RejectedExecutionException e) {
+      // queue is full or we're shutting down
+      return null;
+    }
+    return body;
+  }
+
+  /**
+   * Adds the handler at the tail of the pipeline unless it's there already
+   * @param pipeline The pipeline of the connection
+   * @return The handler of the connection
+   */
+  static AsyncResponseHandler install(final ChannelPipeline pipeline) {
+    synchronized (pipeline) {
+      AsyncResponseHandler handler =
+        (AsyncResponseHandler) pipeline.get(NAME);
+      if (handler == null) {
+        handler = new AsyncResponseHandler();
+        pipeline.addLast(NAME, handler);
+      }
+      return handler;
+    }
+  }
+
+  @Override
+  public void writeRequested(final ChannelHandlerContext ctx,
+      final MessageEvent e) {
+    synchronized (this) {
+      this.ctx = ctx;
+      queued.add(e);
+    }
+    flush();
+  }
+
+  /**
+   * Writes the queued messages up to the first response whose body is still
+   * being serialized
+   */
+  synchronized void flush() {
+    while (!queued.isEmpty()) {
+      final MessageEvent e = queued.peek();
+      final PendingBody body = pendingBody(e);
+      if (body != null && !body.done()) {
+        // the pool thread flushes again when it's done
+        return;
+      }
+      queued.poll();
+      if (body != null) {
+        body.fill((HttpResponse) e.getMessage());
+      }
+      ctx.sendDownstream(e);
+    }
+  }
+
+  /** @return the pending body of the response, null if it has none */
+  private static PendingBody pendingBody(final MessageEvent e) {
+    if (!(e.getMessage() instanceof HttpResponse)) {
+      return null;
+    }
+    final ChannelBuffer content = ((HttpResponse) e.getMessage()).getContent();
+    return content instanceof PendingBody ? (PendingBody) content : null;
+  }
+
+  /**
+   * Stands in for the body of a response while it's serialized on the pool.
+   * It's an empty buffer so the RPC can reply with it as usual, and unique to
+   * the response so the handler can tell which body belongs to which
+   * response.
+   */
+  static final class PendingBody extends BigEndianHeapChannelBuffer
+      implements Runnable {
+
+    /** Produces the body */
+    private final Callable<ChannelBuffer> task;
+
+    /** The handler writing the response */
+    private final AsyncResponseHandler handler;
+
+    /** The body, set once the task succeeded */
+    private ChannelBuffer body;
+
+    /** The error if the task failed */
+    private Throwable error;
+
+    /**
+     * Default constructor
+     * @param task Produces the body of the response
+     * @param handler The handler of the connection
+     */
+    PendingBody(final Callable<ChannelBuffer> task,
+        final AsyncResponseHandler handler) {
+      super(0);
+      this.task = task;
+      this.handler = handler;
+    }
+
+    /** Runs the task on a pool thread and writes the response if waiting */
+    @Override
+    public void run() {
+      ChannelBuffer result = null;
+      Throwable failure = null;
+      try {
+        result = task.call();
+        if (result == null) {
+          result = ChannelBuffers.EMPTY_BUFFER;
+        }
+      } catch (Throwable t) {
+        LOG.error("Failed to serialize the response asynchronously", t);
+        failure = t;
+      }
+      complete(result, failure);
+    }
+
+    /**
+     * Records the outcome of the task and writes the response if the RPC has
+     * already replied
+     * @param result The body, null if the task failed
+     * @param failure The error if the task failed
+     */
+    void complete(final ChannelBuffer result, final Throwable failure) {
+      synchronized (this) {
+        body = result;
+        error = failure;
+      }
+      handler.flush();
+    }
+
+    /** @return whether or not the task has finished */
+    synchronized boolean done() {
+      return body != null || error != null;
+    }
+
+    /** Sets the body, or the error, on the response */
+    synchronized void fill(final HttpResponse response) {
+      ChannelBuffer content = body;
+      if (error != null) {
+        final Map<String, Object> details = new HashMap<String, Object>(2);
+        details.put("code",
+            HttpResponseStatus.INTERNAL_SERVER_ERROR.getCode());
+        details.put("message", String.valueOf(error.getMessage()));
+        content = ChannelBuffers.wrappedBuffer(JSON.serializeToBytes(
+            Collections.singletonMap("error", details)));
+        response.setStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+      }
+      response.setContent(content);
+      HttpHeaders.setContentLength(response, content.readableBytes());
+    }
+  }
+}
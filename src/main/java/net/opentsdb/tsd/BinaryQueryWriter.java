@@ -0,0 +1,371 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.meta.Annotation;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Writes the results of a timeseries data query in a compact binary layout.
+ * The series headers carry the same information as the JSON output while the
+ * data points are packed Gorilla style: delta-of-delta timestamps and either
+ * XOR encoded doubles or zig-zag varint deltas for series that are all
+ * integers.
+ * <p>
+ * Layout, multi-byte integers are big endian, varints are unsigned LEB128 and
+ * strings are a varint byte length followed by UTF-8 bytes:
+ * <pre>
+ * response:
+ *   magic        4 bytes, "TSDB"
+ *   version      1 byte, currently 1
+ *   flags        1 byte, 0x01 millisecond timestamps, 0x02 tsuids present,
+ *                0x04 annotations present
+ *   globals      string, JSON array of global annotations (annotations only)
+ *   count        varint, number of series
+ *   series       count times
+ * series:
+ *   metric       string
+ *   tags         varint count, then count key and value strings
+ *   aggregated   varint count, then count strings
+ *   tsuids       varint count, then count sorted strings (tsuids only)
+ *   annotations  string, JSON array or empty (annotations only)
+ *   points       varint, number of data points
+ *   encoding     1 byte, 0 for integers, 1 for doubles
+ *   length       varint, number of bytes in the block
+ *   block        bit stream, most significant bit first, zero padded
+ * block, per point:
+ *   timestamp    first point: 64 bits, then the delta of deltas as
+ *                '0' for 0, '10' + 7 bits, '110' + 9 bits, '1110' + 12 bits
+ *                or '1111' + 64 bits, two's complement
+ *   value        integers: zig-zag varint of the delta to the previous value
+ *                (first point: to 0) written as 8 bit groups
+ *                doubles: first point 64 bits, then XOR with the previous
+ *                value as '0' if equal, '10' + meaningful bits when they fit
+ *                the previous window, else '11' + 5 bits leading zeros +
+ *                6 bits meaningful length (0 means 64) + meaningful bits
+ * </pre>
+ * Writers reuse their point arrays across series and are not thread safe.
+ */
+final class BinaryQueryWriter {
+
+  /** Marks the start of a response */
+  static final byte[] MAGIC = { 'T', 'S', 'D', 'B' };
+
+  /** Version of the layout */
+  static final byte VERSION = 1;
+
+  /** Flag set when timestamps are in milliseconds */
+  static final int FLAG_MS_RESOLUTION = 0x01;
+
+  /** Flag set when the series carry their TSUIDs */
+  static final int FLAG_TSUIDS = 0x02;
+
+  /** Flag set when annotations are included */
+  static final int FLAG_ANNOTATIONS = 0x04;
+
+  /** Block encoding for series with only integer values */
+  static final byte ENCODING_INTEGERS = 0;
+
+  /** Block encoding for series with at least one floating point value */
+  static final byte ENCODING_DOUBLES = 1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The TSQuery object used to fetch the results */
+  private final TSQuery data_query;
+
+  /** Bit stream for the point block of the current series */
+  private final BitWriter bits = new BitWriter();
+
+  /** Timestamps of the current series in the output resolution */
+  private long[] timestamps = new long[1024];
+
+  /** Integer values of the current series */
+  private long[] longs = new long[1024];
+
+  /** Floating point values of the current series */
+  private double[] doubles = new double[1024];
+
+  /** Number of points in the current series */
+  private int count;
+
+  /** Whether or not all points of the current series are integers */
+  private boolean integers;
+
+  /**
+   * Default constructor
+   * @param data_query The TSQuery object used to fetch the results
+   */
+  BinaryQueryWriter(final TSQuery data_query) {
+    this.data_query = data_query;
+  }
+
+  /**
+   * Writes the entire response
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A ChannelBuffer with the response
+   */
+  ChannelBuffer format(final List<DataPoints[]> results,
+      final List<Annotation> globals) {
+    final ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+    buf.writeBytes(MAGIC);
+    buf.writeByte(VERSION);
+    int flags = 0;
+    if (data_query.getMsResolution()) {
+      flags |= FLAG_MS_RESOLUTION;
+    }
+    if (data_query.getShowTSUIDs()) {
+      flags |= FLAG_TSUIDS;
+    }
+    if (!data_query.getNoAnnotations()) {
+      flags |= FLAG_ANNOTATIONS;
+    }
+    buf.writeByte(flags);
+
+    if (!data_query.getNoAnnotations()) {
+      if (globals != null && !globals.isEmpty()) {
+        Collections.sort(globals);
+        writeBytes(buf, AnnotationWriter.serialize(globals));
+      } else {
+        writeVarint(buf, 0);
+      }
+    }
+
+    int series = 0;
+    for (DataPoints[] separate_dps : results) {
+      series += separate_dps.length;
+    }
+    writeVarint(buf, series);
+
+    for (DataPoints[] separate_dps : results) {
+      for (DataPoints dps : separate_dps) {
+        writeSeries(buf, dps);
+      }
+    }
+    return buf;
+  }
+
+  /**
+   * Writes the header and point block of a single series
+   * @param buf The buffer to write to
+   * @param dps The series to write
+   */
+  private void writeSeries(final ChannelBuffer buf, final DataPoints dps) {
+    writeString(buf, dps.metricName());
+
+    final Map<String, String> tags = dps.getTags();
+    writeVarint(buf, tags == null ? 0 : tags.size());
+    if (tags != null) {
+      for (Map.Entry<String, String> tag : tags.entrySet()) {
+        writeString(buf, tag.getKey());
+        writeString(buf, tag.getValue());
+      }
+    }
+
+    final List<String> aggregated = dps.getAggregatedTags();
+    writeVarint(buf, aggregated == null ? 0 : aggregated.size());
+    if (aggregated != null) {
+      for (String atag : aggregated) {
+        writeString(buf, atag);
+      }
+    }
+
+    if (data_query.getShowTSUIDs()) {
+      final List<String> tsuids = dps.getTSUIDs();
+      Collections.sort(tsuids);
+      writeVarint(buf, tsuids.size());
+      for (String tsuid : tsuids) {
+        writeString(buf, tsuid);
+      }
+    }
+
+    if (!data_query.getNoAnnotations()) {
+      final List<Annotation> annotations = dps.getAnnotations();
+      if (annotations != null) {
+        Collections.sort(annotations);
+        writeBytes(buf, AnnotationWriter.serialize(annotations));
+      } else {
+        writeVarint(buf, 0);
+      }
+    }
+
+    collectPoints(dps);
+    encodePoints();
+    writeVarint(buf, count);
+    buf.writeByte(integers ? ENCODING_INTEGERS : ENCODING_DOUBLES);
+    writeVarint(buf, bits.byteLength());
+    bits.writeTo(buf);
+  }
+
+  /**
+   * Copies the points within the query range into the reusable arrays
+   * @param dps The series to read
+   */
+  private void collectPoints(final DataPoints dps) {
+    count = 0;
+    integers = true;
+    final SeekableView view = dps.iterator();
+    try {
+      view.seek(data_query.startTime());
+    } catch (UnsupportedOperationException e) {
+      // the start time check below skips them instead
+    }
+    while (view.hasNext()) {
+      final DataPoint dp = view.next();
+      if (dp.timestamp() > data_query.endTime()) {
+        break;
+      }
+      if (dp.timestamp() < data_query.startTime()) {
+        continue;
+      }
+      if (count == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, count * 2);
+        longs = Arrays.copyOf(longs, count * 2);
+        doubles = Arrays.copyOf(doubles, count * 2);
+      }
+      timestamps[count] = data_query.getMsResolution() ?
+          dp.timestamp() : dp.timestamp() / 1000;
+      if (dp.isInteger()) {
+        longs[count] = dp.longValue();
+        doubles[count] = dp.longValue();
+      } else {
+        integers = false;
+        doubles[count] = dp.doubleValue();
+      }
+      count++;
+    }
+  }
+
+  /** Encodes the collected points into the bit stream */
+  private void encodePoints() {
+    bits.reset();
+    long prev_timestamp = 0;
+    long prev_delta = 0;
+    long prev_long = 0;
+    long prev_bits = 0;
+    int prev_leading = -1;
+    int prev_trailing = 0;
+
+    for (int i = 0; i < count; i++) {
+      if (i == 0) {
+        bits.writeBits(timestamps[0], 64);
+      } else {
+        final long delta = timestamps[i] - prev_timestamp;
+        writeDeltaOfDelta(delta - prev_delta);
+        prev_delta = delta;
+      }
+      prev_timestamp = timestamps[i];
+
+      if (integers) {
+        final long delta = longs[i] - prev_long;
+        bits.writeVarint((delta << 1) ^ (delta >> 63));
+        prev_long = longs[i];
+        continue;
+      }
+
+      final long value_bits = Double.doubleToRawLongBits(doubles[i]);
+      if (i == 0) {
+        bits.writeBits(value_bits, 64);
+        prev_bits = value_bits;
+        continue;
+      }
+      final long xor = value_bits ^ prev_bits;
+      prev_bits = value_bits;
+      if (xor == 0) {
+        bits.writeBit(false);
+        continue;
+      }
+      bits.writeBit(true);
+      final int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+      final int trailing = Long.numberOfTrailingZeros(xor);
+      if (prev_leading >= 0 && leading >= prev_leading &&
+          trailing >= prev_trailing) {
+        bits.writeBit(false);
+        bits.writeBits(xor >>> prev_trailing,
+            64 - prev_leading - prev_trailing);
+      } else {
+        final int meaningful = 64 - leading - trailing;
+        bits.writeBit(true);
+        bits.writeBits(leading, 5);
+        bits.writeBits(meaningful == 64 ? 0 : meaningful, 6);
+        bits.writeBits(xor >>> trailing, meaningful);
+        prev_leading = leading;
+        prev_trailing = trailing;
+      }
+    }
+  }
+
+  /**
+   * Writes a timestamp delta of delta with the smallest bucket that fits
+   * @param dod The delta of delta
+   */
+  private void writeDeltaOfDelta(final long dod) {
+    if (dod == 0) {
+      bits.writeBits(0, 1);
+    } else if (dod >= -64 && dod <= 63) {
+      bits.writeBits(0x2, 2);
+      bits.writeBits(dod, 7);
+    } else if (dod >= -256 && dod <= 255) {
+      bits.writeBits(0x6, 3);
+      bits.writeBits(dod, 9);
+    } else if (dod >= -2048 && dod <= 2047) {
+      bits.writeBits(0xE, 4);
+      bits.writeBits(dod, 12);
+    } else {
+      bits.writeBits(0xF, 4);
+      bits.writeBits(dod, 64);
+    }
+  }
+
+  /**
+   * Writes an unsigned LEB128 varint
+   * @param buf The buffer to write to
+   * @param value The value, treated as unsigned
+   */
+  static void writeVarint(final ChannelBuffer buf, final long value) {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      buf.writeByte((int) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    buf.writeByte((int) remaining);
+  }
+
+  /** Writes a string as its varint length and UTF-8 bytes, null as empty */
+  private static void writeString(final ChannelBuffer buf, final String str) {
+    if (str == null) {
+      writeVarint(buf, 0);
+      return;
+    }
+    writeBytes(buf, str.getBytes(UTF8));
+  }
+
+  /** Writes a varint length followed by the bytes */
+  private static void writeBytes(final ChannelBuffer buf, final byte[] bytes) {
+    writeVarint(buf, bytes.length);
+    buf.writeBytes(bytes);
+  }
+}
@@ -0,0 +1,139 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Writes a stream of bits, most significant bit first, into a growable byte
+ * array. Bits are gathered in a 64 bit accumulator and spilled a word at a
+ * time. The writer can be {@link #reset} and reused to avoid reallocating the
+ * array for every series.
+ */
+final class BitWriter {
+
+  /** The bytes written so far, only the first {@code length} are valid */
+  private byte[] buffer;
+
+  /** Number of valid bytes in the buffer */
+  private int length;
+
+  /** Bits not yet spilled into the buffer, right aligned */
+  private long accumulator;
+
+  /** Number of bits held in the accumulator */
+  private int pending;
+
+  /**
+   * Default constructor
+   */
+  BitWriter() {
+    buffer = new byte[256];
+  }
+
+  /** Discards everything written so far, keeping the allocated array */
+  void reset() {
+    length = 0;
+    accumulator = 0;
+    pending = 0;
+  }
+
+  /**
+   * Writes a single bit
+   * @param bit The bit to write
+   */
+  void writeBit(final boolean bit) {
+    writeBits(bit ? 1 : 0, 1);
+  }
+
+  /**
+   * Writes the lowest {@code count} bits of the value
+   * @param value The value to take the bits from
+   * @param count Number of bits to write, from 0 to 64
+   */
+  void writeBits(final long value, final int count) {
+    int remaining = count;
+    while (remaining > 0) {
+      final int take = Math.min(64 - pending, remaining);
+      final long chunk = (value >>> (remaining - take)) & mask(take);
+      accumulator = take == 64 ? chunk : (accumulator << take) | chunk;
+      pending += take;
+      remaining -= take;
+      if (pending == 64) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          buffer[length++] = (byte) (accumulator >>> shift);
+        }
+        accumulator = 0;
+        pending = 0;
+      }
+    }
+  }
+
+  /**
+   * Writes an unsigned LEB128 varint as 8 bit groups
+   * @param value The value to write, treated as unsigned
+   */
+  void writeVarint(final long value) {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      writeBits((remaining & 0x7F) | 0x80, 8);
+      remaining >>>= 7;
+    }
+    writeBits(remaining, 8);
+  }
+
+  /**
+   * Pads the last partial byte with zeros and copies the bytes to the buffer
+   * @param out The buffer to write to
+   */
+  void writeTo(final ChannelBuffer out) {
+    flushPending();
+    out.writeBytes(buffer, 0, length);
+  }
+
+  /** @return The number of bytes the stream takes once padded */
+  int byteLength() {
+    return length + (pending + 7) / 8;
+  }
+
+  /** Spills the accumulator into the buffer, left aligned and zero padded */
+  private void flushPending() {
+    if (pending == 0) {
+      return;
+    }
+    final long aligned = accumulator << (64 - pending);
+    final int bytes = (pending + 7) / 8;
+    ensureCapacity(bytes);
+    for (int i = 0; i < bytes; i++) {
+      buffer[length++] = (byte) (aligned >>> (56 - (i * 8)));
+    }
+    accumulator = 0;
+    pending = 0;
+  }
+
+  /** Grows the array if it can't take {@code extra} more bytes */
+  private void ensureCapacity(final int extra) {
+    if (length + extra > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2,
+          length + extra));
+    }
+  }
+
+  /** @return A mask with the lowest {@code bits} bits set */
+  private static long mask(final int bits) {
+    return bits == 64 ? -1L : (1L << bits) - 1;
+  }
+}
@@ -0,0 +1,294 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.BigEndianHeapChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+
+/**
+ * A pool of response body arrays in power of two size classes from 1KB to
+ * 64KB. Serializers write into a per thread scratch buffer, see
+ * {@link ResponseScratch}, and {@link #copy} moves the result into an array
+ * of the smallest class that fits. A downstream handler installed once per
+ * connection returns the array to the pool once Netty has written the
+ * response, so typical responses don't allocate their body at all.
+ * <p>
+ * Bodies larger than the largest class, or for queries without a channel to
+ * watch, are copied into an exact size array as before. An array that is
+ * never returned, e.g. because the RPC failed before replying, is simply
+ * garbage collected.
+ */
+final class BufferPool {
+
+  /** Size of the smallest class as a power of two */
+  private static final int MIN_SHIFT = 10;
+
+  /** Size of the largest class as a power of two */
+  private static final int MAX_SHIFT = 16;
+
+  /** Name of the release handler in the pipeline */
+  private static final String NAME = "serializer-buffer-release";
+
+  /** The release handler, it's stateless so one serves all connections */
+  private static final ReleaseHandler RELEASE_HANDLER = new ReleaseHandler();
+
+  /** The shared pool, created on first use if enabled */
+  private static volatile BufferPool shared;
+
+  /** Free arrays by size class */
+  private final ArrayBlockingQueue<byte[]>[] classes;
+
+  /** Number of bodies served from the pool */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of pooled size bodies that had to be allocated */
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Number of arrays returned to the pool */
+  private final AtomicLong releases = new AtomicLong();
+
+  /**
+   * Default constructor
+   * @param buffers The maximum number of free arrays held per size class
+   * @throws IllegalArgumentException if buffers was less than one
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  BufferPool(final int buffers) {
+    if (buffers < 1) {
+      throw new IllegalArgumentException("Pool size must be greater than zero");
+    }
+    classes = new ArrayBlockingQueue[MAX_SHIFT - MIN_SHIFT + 1];
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = new ArrayBlockingQueue<byte[]>(buffers);
+    }
+  }
+
+  /**
+   * Returns the shared pool, creating it with the configured size if
+   * necessary
+   * @return The pool or null if pooling is disabled
+   */
+  static BufferPool shared() {
+    BufferPool current = shared;
+    if (current == null) {
+      if (SerializerConfig.bufferPoolBuffers() < 1) {
+        return null;
+      }
+      synchronized (BufferPool.class) {
+        current = shared;
+        if (current == null) {
+          current = new BufferPool(SerializerConfig.bufferPoolBuffers());
+          shared = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Copies a serialized body into a buffer to hand to Netty, taken from the
+   * shared pool if it's enabled, the body fits a size class and the response
+   * can be watched
+   * @param query The query the body responds to, null for a piece of one
+   * @param source The serialized body, its readable bytes are copied
+   * @return A pooled buffer with the body, null if pooling doesn't apply
+   */
+  static ChannelBuffer pooledCopy(final HttpQuery query,
+      final ChannelBuffer source) {
+    final BufferPool pool = query == null ? null : shared();
+    if (pool == null || source.readableBytes() > 1 << MAX_SHIFT
+        || !install(query)) {
+      return null;
+    }
+    final ChannelBuffer buffer = pool.acquire(source.readableBytes());
+    buffer.writeBytes(source, source.readerIndex(), source.readableBytes());
+    return buffer;
+  }
+
+  /**
+   * Returns the pooled memory of a body that won't be written after all,
+   * e.g. because it was compressed into another buffer
+   * @param body The body, left alone if it isn't pooled
+   */
+  static void release(final ChannelBuffer body) {
+    if (body instanceof PooledBuffer) {
+      ((PooledBuffer) body).release();
+    } else if (body instanceof DirectBufferPool.DirectResponse) {
+      ((DirectBufferPool.DirectResponse) body).release();
+    }
+  }
+
+  /**
+   * Takes an array of the smallest class that fits, allocating one if the
+   * class is empty
+   * @param size The number of bytes to hold, at most 64KB
+   * @return An empty buffer that returns its array to the pool once written
+   */
+  ChannelBuffer acquire(final int size) {
+    final int index = classOf(size);
+    byte[] array = classes[index].poll();
+    if (array == null) {
+      misses.incrementAndGet();
+      array = new byte[1 << (index + MIN_SHIFT)];
+    } else {
+      hits.incrementAndGet();
+    }
+    return new PooledBuffer(this, array);
+  }
+
+  /**
+   * Returns an array to its class, dropping it if the class is full
+   * @param array The array, its length must be a class size
+   */
+  void release(final byte[] array) {
+    if (classes[classOf(array.length)].offer(array)) {
+      releases.incrementAndGet();
+    }
+  }
+
+  /** @return the number of bodies served from the pool */
+  long hits() {
+    return hits.get();
+  }
+
+  /** @return the number of pooled size bodies that had to be allocated */
+  long misses() {
+    return misses.get();
+  }
+
+  /** @return the number of arrays returned to the pool */
+  long releases() {
+    return releases.get();
+  }
+
+  /** @return the number of free arrays in all classes */
+  int free() {
+    int free = 0;
+    for (ArrayBlockingQueue<byte[]> free_arrays : classes) {
+      free += free_arrays.size();
+    }
+    return free;
+  }
+
+  /** @return the index of the smallest class holding size bytes */
+  private static int classOf(final int size) {
+    if (size <= 1 << MIN_SHIFT) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  /**
+   * Makes sure the release handler sits in the query's pipeline, right
+   * after the response encoder so it sees the final body of every response
+   * @param query The query that will be responded to
+   * @return True if the handler is installed, false if there is no pipeline
+   */
+  static boolean install(final HttpQuery query) {
+    return install(query, NAME, RELEASE_HANDLER);
+  }
+
+  /**
+   * Makes sure a handler sits in the query's pipeline right after the
+   * response encoder, adding it if it isn't there yet
+   * @param query The query that will be responded to
+   * @param name The name of the handler in the pipeline
+   * @param handler The handler, shared by all connections
+   * @return True if the handler is installed, false if there is no pipeline
+   */
+  static boolean install(final HttpQuery query, final String name,
+      final ChannelHandler handler) {
+    final Channel chan = query.channel();
+    if (chan == null || chan.getPipeline() == null) {
+      return false;
+    }
+    final ChannelPipeline pipeline = chan.getPipeline();
+    synchronized (pipeline) {
+      if (pipeline.get(name) == null) {
+        final ChannelHandlerContext encoder =
+          pipeline.getContext(HttpResponseEncoder.class);
+        if (encoder == null) {
+          pipeline.addLast(name, handler);
+        } else {
+          pipeline.addAfter(encoder.getName(), name, handler);
+        }
+      }
+    }
+    return true;
+  }
+
+  /** A buffer over a pooled array that returns it once it's been written */
+  static final class PooledBuffer extends BigEndianHeapChannelBuffer
+      implements ChannelFutureListener {
+    private final BufferPool pool;
+    private boolean released;
+
+    PooledBuffer(final BufferPool pool, final byte[] array) {
+      super(array);
+      this.pool = pool;
+      // starts out empty, the body is written into it
+      clear();
+    }
+
+    /** Returns the array to the pool, at most once */
+    void release() {
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      pool.release(array);
+    }
+
+    @Override
+    public void operationComplete(final ChannelFuture future) {
+      release();
+    }
+  }
+
+  /**
+   * Returns the body of each response to its pool once the write completed,
+   * whether it succeeded or not. Pooled bodies, including the chunked ones of
+   * {@link DirectBufferPool}, release themselves as future listeners.
+   */
+  @ChannelHandler.Sharable
+  static final class ReleaseHandler extends SimpleChannelDownstreamHandler {
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+        final MessageEvent e) {
+      if (e.getMessage() instanceof HttpResponse) {
+        final ChannelBuffer content =
+          ((HttpResponse) e.getMessage()).getContent();
+        if (content instanceof ChannelFutureListener) {
+          e.getFuture().addListener((ChannelFutureListener) content);
+        }
+      }
+      ctx.sendDownstream(e);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.OutputStream;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * An output stream that appends to a ChannelBuffer which can be swapped out
+ * between writes. Unlike {@link org.jboss.netty.buffer.ChannelBufferOutputStream}
+ * this lets a single JsonGenerator span multiple buffers, e.g. one per HTTP
+ * chunk. Closing the sink is a no-op so that trailing bytes can be appended
+ * after the generator is closed.
+ */
+final class ChannelBufferSink extends OutputStream {
+
+  /** The buffer currently written to */
+  private ChannelBuffer buffer;
+
+  /**
+   * Default constructor, a buffer must be set before writing
+   */
+  ChannelBufferSink() {
+  }
+
+  /**
+   * Constructor that sets the initial buffer
+   * @param buffer The buffer to write to
+   */
+  ChannelBufferSink(final ChannelBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /** @param buffer The buffer to append subsequent writes to */
+  void setBuffer(final ChannelBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /** @return the buffer currently written to */
+  ChannelBuffer buffer() {
+    return buffer;
+  }
+
+  @Override
+  public void write(final int b) {
+    buffer.writeByte(b);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) {
+    if (len == 0) {
+      return;
+    }
+    buffer.writeBytes(b, off, len);
+  }
+
+  @Override
+  public void write(final byte[] b) {
+    write(b, 0, b.length);
+  }
+
+  /** Nothing to close, the buffer belongs to the caller */
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,242 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Writes the entries of a "dps" map or array as ASCII bytes straight into a
+ * ChannelBuffer. Timestamps are formatted into a reusable scratch array
+ * instead of going through {@code Long.toString()} for every field name, and
+ * doubles are formatted without {@code Double.toString()} for the values that
+ * dominate monitoring data.
+ * <p>
+ * The output is byte for byte what the JsonGenerator wrote before: a value
+ * within [0.001, 10^7) that is the closest double to a decimal with at most
+ * 15 significant digits is printed as that shortest decimal, which is what
+ * {@code Double.toString()} prints for it. Anything else, e.g. very large or
+ * small magnitudes that need scientific notation, falls back to
+ * {@code Double.toString()}. Non-finite values are quoted like Jackson does.
+ * <p>
+ * Not thread safe, use one instance per response.
+ */
+final class DataPointWriter {
+
+  /** Largest number of significant digits handled by the fast path */
+  private static final int MAX_DIGITS = 15;
+
+  /** Exclusive upper bound of the significand for the fast path */
+  private static final long MAX_SIGNIFICAND = 1000000000000000L;
+
+  /** Powers of ten that are exact as doubles */
+  private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + 1];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private static final byte[] NAN = { '"', 'N', 'a', 'N', '"' };
+  private static final byte[] POSITIVE_INFINITY =
+    { '"', 'I', 'n', 'f', 'i', 'n', 'i', 't', 'y', '"' };
+  private static final byte[] NEGATIVE_INFINITY =
+    { '"', '-', 'I', 'n', 'f', 'i', 'n', 'i', 't', 'y', '"' };
+  private static final byte[] ZERO = { '0', '.', '0' };
+  private static final byte[] NEGATIVE_ZERO = { '-', '0', '.', '0' };
+  private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+  private static final byte[] LONG_MIN_VALUE =
+    Long.toString(Long.MIN_VALUE).getBytes();
+
+  /** Scratch space for formatting a number back to front */
+  private final byte[] scratch = new byte[32];
+
+  /**
+   * Writes a {@code "timestamp":value} map entry
+   * @param out The buffer to write to
+   * @param first Whether or not this is the first entry of the map
+   * @param timestamp The timestamp to use as the field name
+   * @param value The value
+   */
+  void writeMapEntry(final ChannelBuffer out, final boolean first,
+      final long timestamp, final double value) {
+    if (!first) {
+      out.writeByte(',');
+    }
+    out.writeByte('"');
+    writeLong(out, timestamp);
+    out.writeByte('"');
+    out.writeByte(':');
+    writeDouble(out, value);
+  }
+
+  /**
+   * Writes a {@code [timestamp,value]} array entry
+   * @param out The buffer to write to
+   * @param first Whether or not this is the first entry of the array
+   * @param timestamp The timestamp
+   * @param value The value
+   */
+  void writeArrayEntry(final ChannelBuffer out, final boolean first,
+      final long timestamp, final double value) {
+    if (!first) {
+      out.writeByte(',');
+    }
+    out.writeByte('[');
+    writeLong(out, timestamp);
+    out.writeByte(',');
+    writeDouble(out, value);
+    out.writeByte(']');
+  }
+
+  /**
+   * Writes a bare value entry of a dense values array
+   * @param out The buffer to write to
+   * @param first Whether or not this is the first entry of the array
+   * @param value The value
+   */
+  void writeValue(final ChannelBuffer out, final boolean first,
+      final double value) {
+    if (!first) {
+      out.writeByte(',');
+    }
+    writeDouble(out, value);
+  }
+
+  /**
+   * Writes a null entry of a dense values array for a missing point
+   * @param out The buffer to write to
+   * @param first Whether or not this is the first entry of the array
+   */
+  void writeNull(final ChannelBuffer out, final boolean first) {
+    if (!first) {
+      out.writeByte(',');
+    }
+    out.writeBytes(NULL);
+  }
+
+  /**
+   * Writes the decimal form of a long
+   * @param out The buffer to write to
+   * @param value The value to write
+   */
+  void writeLong(final ChannelBuffer out, final long value) {
+    if (value == Long.MIN_VALUE) {
+      out.writeBytes(LONG_MIN_VALUE);
+      return;
+    }
+    int pos = scratch.length;
+    long remaining = value < 0 ? -value : value;
+    do {
+      scratch[--pos] = (byte) ('0' + (remaining % 10));
+      remaining /= 10;
+    } while (remaining != 0);
+    if (value < 0) {
+      scratch[--pos] = '-';
+    }
+    out.writeBytes(scratch, pos, scratch.length - pos);
+  }
+
+  /**
+   * Writes a double the way {@code JsonGenerator.writeNumber(double)} does
+   * @param out The buffer to write to
+   * @param value The value to write
+   */
+  void writeDouble(final ChannelBuffer out, final double value) {
+    if (value != value) {
+      out.writeBytes(NAN);
+      return;
+    }
+    if (value == Double.POSITIVE_INFINITY) {
+      out.writeBytes(POSITIVE_INFINITY);
+      return;
+    }
+    if (value == Double.NEGATIVE_INFINITY) {
+      out.writeBytes(NEGATIVE_INFINITY);
+      return;
+    }
+    if (value == 0) {
+      out.writeBytes(
+          Double.doubleToRawLongBits(value) < 0 ? NEGATIVE_ZERO : ZERO);
+      return;
+    }
+    if (!writeShortDecimal(out, value)) {
+      writeAscii(out, Double.toString(value));
+    }
+  }
+
+  /**
+   * Tries to write the value as the shortest plain decimal that parses back
+   * to the same double
+   * @return True if the value was written, false if the caller has to fall
+   * back to {@code Double.toString()}
+   */
+  private boolean writeShortDecimal(final ChannelBuffer out,
+      final double value) {
+    final double abs = Math.abs(value);
+    if (abs < 1e-3 || abs >= 1e7) {
+      return false;
+    }
+    for (int fraction = 1; fraction <= MAX_DIGITS; fraction++) {
+      final long power = POWERS_OF_TEN[fraction];
+      final long significand = Math.round(abs * power);
+      if (significand >= MAX_SIGNIFICAND) {
+        return false;
+      }
+      // both operands are exact so the division is correctly rounded, i.e.
+      // this is the double the decimal string would parse to
+      if ((double) significand / power == abs) {
+        writeDecimal(out, value < 0, significand, fraction);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes {@code significand / 10^fraction} in plain notation with at least
+   * one digit on either side of the decimal point
+   */
+  private void writeDecimal(final ChannelBuffer out, final boolean negative,
+      final long significand, final int fraction) {
+    int pos = scratch.length;
+    long remaining = significand;
+    int digits = 0;
+    // strip trailing zeros of the fraction, keeping at least one digit
+    while (digits < fraction - 1 && remaining % 10 == 0) {
+      remaining /= 10;
+      digits++;
+    }
+    final int fraction_digits = fraction - digits;
+    for (int i = 0; i < fraction_digits; i++) {
+      scratch[--pos] = (byte) ('0' + (remaining % 10));
+      remaining /= 10;
+    }
+    scratch[--pos] = '.';
+    do {
+      scratch[--pos] = (byte) ('0' + (remaining % 10));
+      remaining /= 10;
+    } while (remaining != 0);
+    if (negative) {
+      scratch[--pos] = '-';
+    }
+    out.writeBytes(scratch, pos, scratch.length - pos);
+  }
+
+  /** Writes an ASCII only string without encoding it */
+  private static void writeAscii(final ChannelBuffer out, final String str) {
+    for (int i = 0; i < str.length(); i++) {
+      out.writeByte(str.charAt(i));
+    }
+  }
+}
@@ -0,0 +1,137 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+/**
+ * Parses the common forms of integers and decimals straight from a character
+ * range without creating a String. Only forms that can be parsed exactly are
+ * handled, everything else is reported as not parsed so the caller can fall
+ * back to {@link Long#parseLong} or {@link Double#parseDouble}.
+ * <p>
+ * A decimal with at most 15 digits and no exponent is parsed by dividing its
+ * digits by a power of ten. Both are exact as doubles, so the correctly
+ * rounded division gives the same result as {@code Double.parseDouble()}.
+ */
+final class DecimalParser {
+
+  /** Most digits of a decimal handled exactly */
+  private static final int MAX_DECIMAL_DIGITS = 15;
+
+  /** Most digits of an integer that can't overflow a long */
+  private static final int MAX_LONG_DIGITS = 18;
+
+  /** Powers of ten that are exact as doubles */
+  private static final double[] POWERS_OF_TEN = new double[MAX_DECIMAL_DIGITS + 1];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  /** Not instantiable */
+  private DecimalParser() {
+  }
+
+  /**
+   * @param buf The character buffer
+   * @param offset Offset of the first character
+   * @param length Number of characters
+   * @return True if the range is an optional minus sign followed by at most
+   * 18 digits, i.e. {@link #parseLong} will handle it
+   */
+  static boolean isSimpleLong(final char[] buf, final int offset,
+      final int length) {
+    final int start = length > 0 && buf[offset] == '-' ? 1 : 0;
+    final int digits = length - start;
+    if (digits < 1 || digits > MAX_LONG_DIGITS) {
+      return false;
+    }
+    for (int i = offset + start; i < offset + length; i++) {
+      if (buf[i] < '0' || buf[i] > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses a range that passed {@link #isSimpleLong}
+   * @param buf The character buffer
+   * @param offset Offset of the first character
+   * @param length Number of characters
+   * @return The value
+   */
+  static long parseLong(final char[] buf, final int offset, final int length) {
+    final boolean negative = buf[offset] == '-';
+    long value = 0;
+    for (int i = offset + (negative ? 1 : 0); i < offset + length; i++) {
+      value = value * 10 + (buf[i] - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * @param buf The character buffer
+   * @param offset Offset of the first character
+   * @param length Number of characters
+   * @return True if the range is an optional minus sign, digits and at most
+   * one decimal point with at least one digit and at most 15 in total, i.e.
+   * {@link #parseDouble} will handle it
+   */
+  static boolean isSimpleDecimal(final char[] buf, final int offset,
+      final int length) {
+    final int start = length > 0 && buf[offset] == '-' ? 1 : 0;
+    int digits = 0;
+    boolean point = false;
+    for (int i = offset + start; i < offset + length; i++) {
+      final char c = buf[i];
+      if (c == '.' && !point) {
+        point = true;
+      } else if (c >= '0' && c <= '9') {
+        digits++;
+      } else {
+        return false;
+      }
+    }
+    return digits > 0 && digits <= MAX_DECIMAL_DIGITS;
+  }
+
+  /**
+   * Parses a range that passed {@link #isSimpleDecimal}
+   * @param buf The character buffer
+   * @param offset Offset of the first character
+   * @param length Number of characters
+   * @return The value, exactly what {@code Double.parseDouble()} returns
+   */
+  static double parseDouble(final char[] buf, final int offset,
+      final int length) {
+    final boolean negative = buf[offset] == '-';
+    long significand = 0;
+    int fraction = -1;
+    for (int i = offset + (negative ? 1 : 0); i < offset + length; i++) {
+      final char c = buf[i];
+      if (c == '.') {
+        fraction = 0;
+      } else {
+        significand = significand * 10 + (c - '0');
+        if (fraction >= 0) {
+          fraction++;
+        }
+      }
+    }
+    final double value = fraction > 0 ?
+        significand / POWERS_OF_TEN[fraction] : significand;
+    return negative ? -value : value;
+  }
+}
@@ -0,0 +1,315 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.CompositeChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+
+/**
+ * A bounded pool of 64KB direct buffers that large query responses are
+ * moved into as they're written, so the heap doesn't have to be sized for
+ * the largest query. The writer fills its per thread scratch buffer one
+ * chunk at a time and each piece is copied into pooled chunks that are
+ * joined in a gathering composite buffer, which Netty writes to the socket
+ * straight from the direct memory. The chunks return to the pool once the
+ * response has been written.
+ * <p>
+ * At most the configured number of direct chunks is ever allocated. When
+ * they're all in use, heap chunks are used instead and counted, so a burst
+ * of large responses degrades to the old behavior instead of failing.
+ */
+final class DirectBufferPool {
+
+  /** Size of each chunk */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  /** Name of the gathering handler in the pipeline */
+  private static final String NAME = "serializer-gathering-write";
+
+  /** The gathering handler, it's stateless so one serves all connections */
+  private static final GatheringHandler GATHERING_HANDLER =
+    new GatheringHandler();
+
+  /** The shared pool, created on first use if enabled */
+  private static volatile DirectBufferPool shared;
+
+  /** The maximum number of direct chunks to allocate */
+  private final int max_chunks;
+
+  /** Free direct chunks */
+  private final ArrayBlockingQueue<ChannelBuffer> free;
+
+  /** Number of direct chunks allocated */
+  private final AtomicInteger allocated = new AtomicInteger();
+
+  /** Number of direct chunks handed out and not yet returned */
+  private final AtomicInteger in_use = new AtomicInteger();
+
+  /** Number of heap chunks used because all direct ones were in use */
+  private final AtomicLong heap_chunks = new AtomicLong();
+
+  /** Number of responses written to chunks */
+  private final AtomicLong responses = new AtomicLong();
+
+  /**
+   * Default constructor
+   * @param max_chunks The maximum number of direct chunks to allocate
+   * @throws IllegalArgumentException if max_chunks was less than one
+   */
+  DirectBufferPool(final int max_chunks) {
+    if (max_chunks < 1) {
+      throw new IllegalArgumentException("Pool size must be greater than zero");
+    }
+    this.max_chunks = max_chunks;
+    free = new ArrayBlockingQueue<ChannelBuffer>(max_chunks);
+  }
+
+  /**
+   * Returns the shared pool, creating it with the configured size if
+   * necessary
+   * @return The pool or null if direct buffers are disabled
+   */
+  static DirectBufferPool shared() {
+    DirectBufferPool current = shared;
+    if (current == null) {
+      if (SerializerConfig.directBuffers() < 1) {
+        return null;
+      }
+      synchronized (DirectBufferPool.class) {
+        current = shared;
+        if (current == null) {
+          current = new DirectBufferPool(SerializerConfig.directBuffers());
+          shared = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Makes sure the query's pipeline returns the chunks of a response once
+   * written and writes them with a gathering write. The latter is needed as
+   * the HTTP encoder joins the headers and the body in a plain composite
+   * buffer which Netty would copy into a single heap buffer.
+   * @param query The query that will be responded to
+   * @return True if the handlers are installed, false if there is no
+   * pipeline in which case chunks must not be used
+   */
+  static boolean watch(final HttpQuery query) {
+    if (!BufferPool.install(query)) {
+      return false;
+    }
+    final ChannelPipeline pipeline = query.channel().getPipeline();
+    synchronized (pipeline) {
+      if (pipeline.get(NAME) == null) {
+        // first in line, so it sees the encoded response
+        pipeline.addFirst(NAME, GATHERING_HANDLER);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Finishes writing a response into chunks, a piece at a time through the
+   * scratch buffer
+   * @param writer The writer of the response
+   * @param scratch The scratch buffer holding what was written so far
+   * @return The response, its chunks return to the pool once it's written
+   */
+  ChannelBuffer write(final QueryResponseWriter writer,
+      final ChannelBuffer scratch) {
+    final List<ChannelBuffer> chunks = new ArrayList<ChannelBuffer>();
+    try {
+      boolean done;
+      do {
+        append(chunks, scratch);
+        scratch.clear();
+        done = writer.writeTo(scratch, CHUNK_SIZE);
+      } while (!done);
+      append(chunks, scratch);
+      scratch.clear();
+    } catch (RuntimeException e) {
+      for (ChannelBuffer chunk : chunks) {
+        release(chunk);
+      }
+      throw e;
+    }
+    responses.incrementAndGet();
+    return new DirectResponse(this, chunks);
+  }
+
+  /**
+   * Takes a chunk from the pool, allocating a direct one if the limit allows
+   * and a heap one otherwise
+   * @return An empty chunk
+   */
+  ChannelBuffer acquire() {
+    ChannelBuffer chunk = free.poll();
+    if (chunk == null) {
+      while (true) {
+        final int count = allocated.get();
+        if (count >= max_chunks) {
+          heap_chunks.incrementAndGet();
+          return ChannelBuffers.buffer(CHUNK_SIZE);
+        }
+        if (allocated.compareAndSet(count, count + 1)) {
+          chunk = ChannelBuffers.directBuffer(CHUNK_SIZE);
+          break;
+        }
+      }
+    }
+    in_use.incrementAndGet();
+    return chunk;
+  }
+
+  /**
+   * Returns a chunk to the pool, heap chunks are left to the GC
+   * @param chunk The chunk
+   */
+  void release(final ChannelBuffer chunk) {
+    if (!chunk.isDirect()) {
+      return;
+    }
+    chunk.clear();
+    in_use.decrementAndGet();
+    free.offer(chunk);
+  }
+
+  /** @return the number of direct chunks allocated */
+  int allocated() {
+    return allocated.get();
+  }
+
+  /** @return the number of direct chunks held by responses */
+  int inUse() {
+    return in_use.get();
+  }
+
+  /** @return the number of free direct chunks */
+  int free() {
+    return free.size();
+  }
+
+  /** @return the number of heap chunks used as all direct ones were busy */
+  long heapChunks() {
+    return heap_chunks.get();
+  }
+
+  /** @return the number of responses written to chunks */
+  long responses() {
+    return responses.get();
+  }
+
+  /** Copies the readable bytes of the source to the chunks, adding more */
+  private void append(final List<ChannelBuffer> chunks,
+      final ChannelBuffer source) {
+    while (source.readable()) {
+      ChannelBuffer chunk = chunks.isEmpty() ? null :
+        chunks.get(chunks.size() - 1);
+      if (chunk == null || !chunk.writable()) {
+        chunk = acquire();
+        chunks.add(chunk);
+      }
+      chunk.writeBytes(source,
+          Math.min(source.readableBytes(), chunk.writableBytes()));
+    }
+  }
+
+  /** A response in chunks that returns them to the pool once written */
+  static final class DirectResponse extends CompositeChannelBuffer
+      implements ChannelFutureListener {
+    private final DirectBufferPool pool;
+    private final List<ChannelBuffer> chunks;
+    private boolean released;
+
+    DirectResponse(final DirectBufferPool pool,
+        final List<ChannelBuffer> chunks) {
+      super(ByteOrder.BIG_ENDIAN, readable(chunks), true);
+      this.pool = pool;
+      this.chunks = chunks;
+    }
+
+    /** @return slices of the written part of each chunk */
+    private static List<ChannelBuffer> readable(
+        final List<ChannelBuffer> chunks) {
+      final List<ChannelBuffer> slices =
+        new ArrayList<ChannelBuffer>(chunks.size());
+      for (ChannelBuffer chunk : chunks) {
+        slices.add(chunk.slice());
+      }
+      return slices;
+    }
+
+    /** Returns the chunks to the pool, at most once */
+    void release() {
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      for (ChannelBuffer chunk : chunks) {
+        pool.release(chunk);
+      }
+    }
+
+    @Override
+    public void operationComplete(final ChannelFuture future) {
+      release();
+    }
+  }
+
+  /**
+   * Turns encoded messages holding direct buffers into gathering composites
+   * so they're written without copying them to the heap first
+   */
+  @ChannelHandler.Sharable
+  static final class GatheringHandler extends SimpleChannelDownstreamHandler {
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+        final MessageEvent e) {
+      if (e.getMessage() instanceof CompositeChannelBuffer) {
+        final CompositeChannelBuffer message =
+          (CompositeChannelBuffer) e.getMessage();
+        if (!message.useGathering()) {
+          final List<ChannelBuffer> components = message.decompose(
+              message.readerIndex(), message.readableBytes());
+          for (ChannelBuffer component : components) {
+            if (component.isDirect()) {
+              Channels.write(ctx, e.getFuture(), new CompositeChannelBuffer(
+                  message.order(), components, true), e.getRemoteAddress());
+              return;
+            }
+          }
+        }
+      }
+      ctx.sendDownstream(e);
+    }
+  }
+}
@@ -1,6 +1,5 @@
 package net.opentsdb.tsd;
 
-import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.stumbleupon.async.Deferred;
 import net.opentsdb.core.*;
@@ -14,14 +13,10 @@ import net.opentsdb.tree.TreeRule;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.JSON;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.*;
 
 public class FakeHttpSerialize extends HttpSerializer {
@@ -33,10 +28,6 @@ public class FakeHttpSerialize extends HttpSerializer {
     private static final Logger LOG =
             LoggerFactory.getLogger(FakeHttpSerialize.class);
 
-    private static TypeReference<ArrayList<IncomingDataPoint>> TR_INCOMING =
-            new TypeReference<ArrayList<IncomingDataPoint>>() {
-            };
-
     private static TypeReference<HashMap<String, List<String>>> UID_ASSIGN =
             new TypeReference<HashMap<String, List<String>>>() {
             };
@@ -54,6 +45,9 @@ public class FakeHttpSerialize extends HttpSerializer {
             new TypeReference<HashMap<String, Object>>() {
             };
 
+    /** Lines of a line delimited put body that could not be parsed */
+    private List<HashMap<String, Object>> put_errors;
+
     public FakeHttpSerialize() {
         super();
     }
@@ -64,11 +58,11 @@ public class FakeHttpSerialize extends HttpSerializer {
 
     @Override
     public void initialize(final TSDB tsdb) {
-        // nothing to see here
+        SerializerLifecycle.initialize(tsdb);
     }
 
     public Deferred<Object> shutdown() {
-        return new Deferred<Object>();
+        return SerializerLifecycle.shutdown();
     }
 
     @Override
@@ -81,29 +75,18 @@ public class FakeHttpSerialize extends HttpSerializer {
         return "fake";
     }
 
+    /**
+     * Parses the data points of a put, as JSON or a line per data point
+     * depending on the content type, see {@link LinePutParser}
+     */
     @Override
     public List<IncomingDataPoint> parsePutV1() {
-        if (!query.hasContent()) {
-            throw new BadRequestException("Missing request content");
-        }
-
-        // convert to a string so we can handle character encoding properly
-        final String content = query.getContent().trim();
-        final int firstbyte = content.charAt(0);
-        try {
-            if (firstbyte == '{') {
-                final IncomingDataPoint dp =
-                        JSON.parseToObject(content, IncomingDataPoint.class);
-                final ArrayList<IncomingDataPoint> dps =
-                        new ArrayList<IncomingDataPoint>(1);
-                dps.add(dp);
-                return dps;
-            } else {
-                return JSON.parseToObject(content, TR_INCOMING);
-            }
-        } catch (IllegalArgumentException iae) {
-            throw new BadRequestException("Unable to parse the given JSON", iae);
+        final LinePutParser lines = LinePutParser.forQuery(query);
+        if (lines == null) {
+            return IncomingDataPointParser.parse(query);
         }
+        put_errors = lines.errors();
+        return lines.parsePut(query);
     }
 
     @Override
@@ -145,7 +128,8 @@ public class FakeHttpSerialize extends HttpSerializer {
                     "Supply valid JSON formatted data in the body of your request");
         }
         try {
-            return JSON.parseToObject(json, TSQuery.class);
+            return JSON.parseToObject(QueryCursor.withoutCursor(json),
+                    TSQuery.class);
         } catch (IllegalArgumentException iae) {
             throw new BadRequestException("Unable to parse the given JSON", iae);
         }
@@ -283,6 +267,7 @@ public class FakeHttpSerialize extends HttpSerializer {
     }
 
     public ChannelBuffer formatPutV1(final Map<String, Object> results) {
+        LinePutParser.mergeErrors(results, put_errors);
         return this.serializeJSON(results);
     }
 
@@ -314,129 +299,7 @@ public class FakeHttpSerialize extends HttpSerializer {
 
     public ChannelBuffer formatQueryV1(final TSQuery data_query,
                                        final List<DataPoints[]> results, final List<Annotation> globals) {
-
-        final boolean as_arrays = this.query.hasQueryStringParam("arrays");
-        final String jsonp = this.query.getQueryStringParam("jsonp");
-
-        // todo - this should be streamed at some point since it could be HUGE
-        final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
-        final OutputStream output = new ChannelBufferOutputStream(response);
-        try {
-            // don't forget jsonp
-            if (jsonp != null && !jsonp.isEmpty()) {
-                output.write((jsonp + "(").getBytes(query.getCharset()));
-            }
-            JsonGenerator json = JSON.getFactory().createGenerator(output);
-            json.writeStartArray();
-
-            for (DataPoints[] separate_dps : results) {
-                for (DataPoints dps : separate_dps) {
-                    json.writeStartObject();
-
-                    json.writeStringField("metric", dps.metricName());
-
-                    json.writeFieldName("tags");
-                    json.writeStartObject();
-                    if (dps.getTags() != null) {
-                        for (Map.Entry<String, String> tag : dps.getTags().entrySet()) {
-                            json.writeStringField(tag.getKey(), tag.getValue());
-                        }
-                    }
-                    json.writeEndObject();
-
-                    json.writeFieldName("aggregateTags");
-                    json.writeStartArray();
-                    if (dps.getAggregatedTags() != null) {
-                        for (String atag : dps.getAggregatedTags()) {
-                            json.writeString(atag);
-                        }
-                    }
-                    json.writeEndArray();
-
-                    if (data_query.getShowTSUIDs()) {
-                        json.writeFieldName("tsuids");
-                        json.writeStartArray();
-                        final List<String> tsuids = dps.getTSUIDs();
-                        Collections.sort(tsuids);
-                        for (String tsuid : tsuids) {
-                            json.writeString(tsuid);
-                        }
-                        json.writeEndArray();
-                    }
-
-                    if (!data_query.getNoAnnotations()) {
-                        final List<Annotation> annotations = dps.getAnnotations();
-                        if (annotations != null) {
-                            Collections.sort(annotations);
-                            json.writeArrayFieldStart("annotations");
-                            for (Annotation note : annotations) {
-                                json.writeObject(note);
-                            }
-                            json.writeEndArray();
-                        }
-
-                        if (globals != null && !globals.isEmpty()) {
-                            Collections.sort(globals);
-                            json.writeArrayFieldStart("globalAnnotations");
-                            for (Annotation note : globals) {
-                                json.writeObject(note);
-                            }
-                            json.writeEndArray();
-                        }
-                    }
-
-                    // now the fun stuff, dump the data
-                    json.writeFieldName("dps");
-
-                    // default is to write a map, otherwise write arrays
-                    if (as_arrays) {
-                        json.writeStartArray();
-                        for (final DataPoint dp : dps) {
-                            if (dp.timestamp() < data_query.startTime() ||
-                                    dp.timestamp() > data_query.endTime()) {
-                                continue;
-                            }
-                            final long timestamp = data_query.getMsResolution() ?
-                                    dp.timestamp() : dp.timestamp() / 1000;
-                            json.writeStartArray();
-                            json.writeNumber(timestamp);
-                            json.writeNumber(
-                                    dp.isInteger() ? dp.longValue() : dp.doubleValue());
-                            json.writeEndArray();
-                        }
-                        json.writeEndArray();
-                    } else {
-                        json.writeStartObject();
-                        for (final DataPoint dp : dps) {
-                            if (dp.timestamp() < (data_query.startTime()) ||
-                                    dp.timestamp() > (data_query.endTime())) {
-                                continue;
-                            }
-                            final long timestamp = data_query.getMsResolution() ?
-                                    dp.timestamp() : dp.timestamp() / 1000;
-                            json.writeNumberField(Long.toString(timestamp),
-                                    dp.isInteger() ? dp.longValue() : dp.doubleValue());
-                        }
-                        json.writeEndObject();
-                    }
-
-                    // close the results for this particular query
-                    json.writeEndObject();
-                }
-            }
-
-            // close
-            json.writeEndArray();
-            json.close();
-
-            if (jsonp != null && !jsonp.isEmpty()) {
-                output.write(")".getBytes());
-            }
-            return response;
-        } catch (IOException e) {
-            LOG.error("Unexpected exception", e);
-            throw new RuntimeException(e);
-        }
+        return QueryResponseWriter.formatQuery(query, data_query, results, globals);
     }
 
     public ChannelBuffer formatUidMetaV1(final UIDMeta meta) {
@@ -478,7 +341,7 @@ public class FakeHttpSerialize extends HttpSerializer {
     }
 
     public ChannelBuffer formatStatsV1(final List<IncomingDataPoint> stats) {
-        return serializeJSON(stats);
+        return serializeJSON(SerializerStats.append(stats));
     }
 
     public ChannelBuffer formatSearchResultsV1(final SearchQuery results) {
@@ -496,12 +359,7 @@ public class FakeHttpSerialize extends HttpSerializer {
     }
 
     private ChannelBuffer serializeJSON(final Object obj) {
-        if (query.hasQueryStringParam("jsonp")) {
-            return ChannelBuffers.wrappedBuffer(
-                    JSON.serializeToJSONPBytes(query.getQueryStringParam("jsonp"),
-                            obj));
-        }
-        return ChannelBuffers.wrappedBuffer(JSON.serializeToBytes(obj));
+        return ResponseScratch.serialize(query, obj);
     }
 
     @Override
@@ -0,0 +1,73 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.List;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.meta.Annotation;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Serializer that returns query results in the compact binary layout
+ * described in {@link BinaryQueryWriter}. Requests are still parsed as JSON
+ * so a query can be POSTed as usual with {@code ?serializer=binary}. Only
+ * query results are binary, the other endpoints should keep using the JSON
+ * serializer.
+ */
+public class HttpBinarySerializer extends HttpSampleSerializer {
+
+  /**
+   * Default constructor necessary for plugin implementation
+   */
+  public HttpBinarySerializer() {
+    super();
+    this.response_content_type = "application/x-tsdb-binary";
+  }
+
+  /**
+   * Constructor that sets the query object
+   * @param query Request/resposne object
+   */
+  public HttpBinarySerializer(final HttpQuery query) {
+    super(query);
+    this.response_content_type = "application/x-tsdb-binary";
+  }
+
+  /** @return the version */
+  @Override
+  public String version() {
+    return "1.0.0";
+  }
+
+  /** @return the shortname */
+  @Override
+  public String shortName() {
+    return "binary";
+  }
+
+  /**
+   * Format the results from a timeseries data query in the binary layout
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A ChannelBuffer object to pass on to the caller
+   */
+  @Override
+  public ChannelBuffer formatQueryV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals) {
+    return new BinaryQueryWriter(data_query).format(results, globals);
+  }
+}
@@ -12,7 +12,6 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
-import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.stumbleupon.async.Deferred;
 import net.opentsdb.core.*;
@@ -26,24 +25,16 @@ import net.opentsdb.tree.TreeRule;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.JSON;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.*;
 
 class HttpSampleSerializer extends HttpSerializer {
   private static final Logger LOG =
     LoggerFactory.getLogger(HttpSampleSerializer.class);
   
-  /** Type reference for incoming data points */
-  private static TypeReference<ArrayList<IncomingDataPoint>> TR_INCOMING =
-    new TypeReference<ArrayList<IncomingDataPoint>>() {};
-  
   /** Type reference for uid assignments */
   private static TypeReference<HashMap<String, List<String>>> UID_ASSIGN =
     new TypeReference<HashMap<String, List<String>>>() {};
@@ -54,6 +45,9 @@ class HttpSampleSerializer extends HttpSerializer {
     new TypeReference<ArrayList<TreeRule>>() {};
   private static TypeReference<HashMap<String, Object>> TR_HASH_MAP_OBJ =
     new TypeReference<HashMap<String, Object>>() {};
+
+  /** Lines of a line delimited put body that could not be parsed */
+  private List<HashMap<String, Object>> put_errors;
     
   /**
    * Default constructor necessary for plugin implementation
@@ -70,15 +64,21 @@ class HttpSampleSerializer extends HttpSerializer {
     super(query);
   }
   
-  /** Initializer, nothing to do for the JSON serializer */
+  /**
+   * Initializer, loads the plugin settings from the TSD config and starts
+   * the async serializer threads if enabled
+   */
   @Override
   public void initialize(final TSDB tsdb) {
-    // nothing to see here
+    SerializerLifecycle.initialize(tsdb);
   }
   
-  /** Nothing to do on shutdown */
+  /**
+   * Stops the async serializer threads once the responses already queued
+   * have been written
+   */
   public Deferred<Object> shutdown() {
-    return new Deferred<Object>();
+    return SerializerLifecycle.shutdown();
   }
   
   /** @return the version */
@@ -94,34 +94,35 @@ class HttpSampleSerializer extends HttpSerializer {
   }
   
   /**
-   * Parses one or more data points for storage
+   * Parses one or more data points for storage. The body is parsed straight
+   * from the request bytes without decoding it to a string first. Depending
+   * on the content type it may also be a line per data point, either in the
+   * telnet put syntax or as NDJSON, see {@link LinePutParser}. Lines that
+   * fail to parse are reported by {@link #formatPutV1}, the request is
+   * rejected if they can't be, see {@link LinePutParser#parsePut}.
    * @return an array of data points to process for storage
    * @throws JSONException if parsing failed
    * @throws BadRequestException if the content was missing or parsing failed
    */
   @Override
   public List<IncomingDataPoint> parsePutV1() {
-    if (!query.hasContent()) {
-      throw new BadRequestException("Missing request content");
+    final LinePutParser lines = LinePutParser.forQuery(query);
+    if (lines == null) {
+      return IncomingDataPointParser.parse(query);
     }
+    put_errors = lines.errors();
+    return lines.parsePut(query);
+  }
 
-    // convert to a string so we can handle character encoding properly
-    final String content = query.getContent().trim();
-    final int firstbyte = content.charAt(0);
-    try {
-      if (firstbyte == '{') {
-        final IncomingDataPoint dp =
-          JSON.parseToObject(content, IncomingDataPoint.class);
-        final ArrayList<IncomingDataPoint> dps =
-          new ArrayList<IncomingDataPoint>(1);
-        dps.add(dp);
-        return dps;
-      } else {
-        return JSON.parseToObject(content, TR_INCOMING);
-      }
-    } catch (IllegalArgumentException iae) {
-      throw new BadRequestException("Unable to parse the given JSON", iae);
-    }
+  /**
+   * Parses one or more data points for storage into a columnar batch. This
+   * is an alternative to {@link #parsePutV1} for callers that can work with
+   * primitive columns, {@link PutBatch#toDataPoints} gives the same list.
+   * @return a batch of data points to process for storage
+   * @throws BadRequestException if the content was missing or parsing failed
+   */
+  public PutBatch parsePutBatchV1() {
+    return IncomingDataPointParser.parseBatch(query);
   }
 
   /**
@@ -181,7 +182,8 @@ class HttpSampleSerializer extends HttpSerializer {
           "Supply valid JSON formatted data in the body of your request");
     }
     try {
-      return JSON.parseToObject(json, TSQuery.class);
+      return JSON.parseToObject(QueryCursor.withoutCursor(json),
+          TSQuery.class);
     } catch (IllegalArgumentException iae) {
       throw new BadRequestException("Unable to parse the given JSON", iae);
     }
@@ -383,6 +385,7 @@ class HttpSampleSerializer extends HttpSerializer {
    * @throws JSONException if serialization failed
    */
   public ChannelBuffer formatPutV1(final Map<String, Object> results) {
+    LinePutParser.mergeErrors(results, put_errors);
     return this.serializeJSON(results);
   }
   
@@ -449,7 +452,10 @@ class HttpSampleSerializer extends HttpSerializer {
   }
   
   /**
-   * Format the results from a timeseries data query
+   * Format the results from a timeseries data query. When streaming is
+   * enabled via the "stream" query string parameter or the
+   * "tsd.http.serializer.stream.enable" setting, the results are sent as HTTP
+   * chunks and the returned buffer is empty.
    * @param data_query The TSQuery object used to fetch the results
    * @param results The data fetched from storage
    * @param globals An optional list of global annotation objects
@@ -457,129 +463,8 @@ class HttpSampleSerializer extends HttpSerializer {
    */
   public ChannelBuffer formatQueryV1(final TSQuery data_query,
       final List<DataPoints[]> results, final List<Annotation> globals) {
-    
-    final boolean as_arrays = this.query.hasQueryStringParam("arrays");
-    final String jsonp = this.query.getQueryStringParam("jsonp");
-    
-    // todo - this should be streamed at some point since it could be HUGE
-    final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
-    final OutputStream output = new ChannelBufferOutputStream(response);
-    try {
-      // don't forget jsonp
-      if (jsonp != null && !jsonp.isEmpty()) {
-        output.write((jsonp + "(").getBytes(query.getCharset()));
-      }
-      JsonGenerator json = JSON.getFactory().createGenerator(output);
-      json.writeStartArray();
-      
-      for (DataPoints[] separate_dps : results) {
-        for (DataPoints dps : separate_dps) {
-          json.writeStartObject();
-          
-          json.writeStringField("metric", dps.metricName());
-          
-          json.writeFieldName("tags");
-          json.writeStartObject();
-          if (dps.getTags() != null) {
-            for (Map.Entry<String, String> tag : dps.getTags().entrySet()) {
-              json.writeStringField(tag.getKey(), tag.getValue());
-            }
-          }
-          json.writeEndObject();
-          
-          json.writeFieldName("aggregateTags");
-          json.writeStartArray();
-          if (dps.getAggregatedTags() != null) {
-            for (String atag : dps.getAggregatedTags()) {
-              json.writeString(atag);
-            }
-          }
-          json.writeEndArray();
-          
-          if (data_query.getShowTSUIDs()) {
-            json.writeFieldName("tsuids");
-            json.writeStartArray();
-            final List<String> tsuids = dps.getTSUIDs();
-            Collections.sort(tsuids);
-            for (String tsuid : tsuids) {
-              json.writeString(tsuid);
-            }
-            json.writeEndArray();
-          }
-          
-          if (!data_query.getNoAnnotations()) {
-            final List<Annotation> annotations = dps.getAnnotations();
-            if (annotations != null) {
-              Collections.sort(annotations);
-              json.writeArrayFieldStart("annotations");
-              for (Annotation note : annotations) {
-                json.writeObject(note);
-              }
-              json.writeEndArray();
-            }
-            
-            if (globals != null && !globals.isEmpty()) {
-              Collections.sort(globals);
-              json.writeArrayFieldStart("globalAnnotations");
-              for (Annotation note : globals) {
-                json.writeObject(note);
-              }
-              json.writeEndArray();
-            }
-          }
-          
-          // now the fun stuff, dump the data
-          json.writeFieldName("dps");
-          
-          // default is to write a map, otherwise write arrays
-          if (as_arrays) {
-            json.writeStartArray();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < data_query.startTime() || 
-                  dp.timestamp() > data_query.endTime()) {
-                continue;
-              }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
-              json.writeStartArray();
-              json.writeNumber(timestamp);
-              json.writeNumber(
-                  dp.isInteger() ? dp.longValue() : dp.doubleValue());
-              json.writeEndArray();
-            }
-            json.writeEndArray();
-          } else {
-            json.writeStartObject();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < (data_query.startTime()) || 
-                  dp.timestamp() > (data_query.endTime())) {
-                continue;
-              }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
-              json.writeNumberField(Long.toString(timestamp), 
-                  dp.isInteger() ? dp.longValue() : dp.doubleValue());
-            }
-            json.writeEndObject();
-          }
-
-          // close the results for this particular query
-          json.writeEndObject();
-        }
-      }
-    
-      // close
-      json.writeEndArray();
-      json.close();
-      
-      if (jsonp != null && !jsonp.isEmpty()) {
-        output.write(")".getBytes());
-      }
-      return response;
-    } catch (IOException e) {
-      LOG.error("Unexpected exception", e);
-      throw new RuntimeException(e);
-    }
+    return QueryResponseWriter.formatQuery(query, data_query, results, 
+        globals);
   }
   
   /**
@@ -689,7 +574,7 @@ class HttpSampleSerializer extends HttpSerializer {
    * @throws JSONException if serialization failed
    */
   public ChannelBuffer formatStatsV1(final List<IncomingDataPoint> stats) {
-    return serializeJSON(stats);
+    return serializeJSON(SerializerStats.append(stats));
   }
   
   /**
@@ -720,17 +605,14 @@ class HttpSampleSerializer extends HttpSerializer {
   
   /**
    * Helper object for the format calls to wrap the JSON response in a JSONP
-   * function if requested. Used for code dedupe.
+   * function if requested. Used for code dedupe. The object is written with
+   * the thread's reusable generator and the body is taken from the buffer
+   * pool if enabled.
    * @param obj The object to serialize
    * @return A ChannelBuffer to pass on to the query
    * @throws JSONException if serialization failed
    */
   private ChannelBuffer serializeJSON(final Object obj) {
-    if (query.hasQueryStringParam("jsonp")) {
-      return ChannelBuffers.wrappedBuffer(
-              JSON.serializeToJSONPBytes(query.getQueryStringParam("jsonp"),
-                      obj));
-    }
-    return ChannelBuffers.wrappedBuffer(JSON.serializeToBytes(obj));
+    return ResponseScratch.serialize(query, obj);
   }
 }
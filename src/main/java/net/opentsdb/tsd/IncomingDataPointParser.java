@@ -0,0 +1,546 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.Tags;
+import net.opentsdb.utils.JSON;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Parses one or more data points for storage straight from the bytes of the
+ * request body with a streaming JSON parser. This skips decoding the body
+ * into a String, trimming it and running it through the databind layer.
+ * Field names such as tag keys are canonicalized by the parser and repeated
+ * metric names and tag values are deduplicated through a {@link StringCache},
+ * so most points in a large batch only allocate the value string, the tag map
+ * and the data point itself.
+ * <p>
+ * The result matches what Jackson databind produces for
+ * {@link IncomingDataPoint}: unknown fields are ignored, numeric values are
+ * kept in their textual form and timestamps may be numbers or strings.
+ * Alternatively {@link #parseBatch} fills a columnar {@link PutBatch} that
+ * doesn't allocate anything per point.
+ */
+final class IncomingDataPointParser {
+
+  /** Charsets Jackson detects on its own from the raw bytes */
+  private static final String[] DETECTED_CHARSETS = {
+    "UTF-8", "US-ASCII", "UTF-16", "UTF-16BE", "UTF-16LE", "UTF-32",
+    "UTF-32BE", "UTF-32LE"
+  };
+
+  /** Cache for metric names and tag values repeated across points */
+  private final StringCache strings = new StringCache();
+
+  /** Tag keys and values of the current point when parsing a batch */
+  private String[] tag_pairs = new String[16];
+
+  /** Number of strings used in tag_pairs */
+  private int tag_count;
+
+  /** Type of the value of the current point, one of the PutBatch types */
+  private byte value_type;
+
+  /** Integer value of the current point */
+  private long long_value;
+
+  /** Floating point value of the current point */
+  private double double_value;
+
+  /** Textual value of the current point if it wasn't numeric */
+  private String raw_value;
+
+  /**
+   * Parses the content of the given HTTP query. Very large arrays are split
+   * and parsed in parallel by {@link ParallelPutParser}.
+   * @param query The query with a JSON object or array in its body
+   * @return A list of one or more data points
+   * @throws BadRequestException if the content was missing or parsing failed
+   */
+  static List<IncomingDataPoint> parse(final HttpQuery query) {
+    final List<IncomingDataPoint> dps = ParallelPutParser.parse(query);
+    if (dps != null) {
+      return dps;
+    }
+    final RequestInflater inflated = RequestInflater.forQuery(query);
+    try {
+      final List<IncomingDataPoint> parsed =
+        new IncomingDataPointParser().parse(createParser(query, inflated));
+      if (inflated != null) {
+        // reads past the end of the JSON so the checksum is verified
+        inflated.verify();
+      }
+      return parsed;
+    } catch (IOException e) {
+      throw new BadRequestException("Unable to parse the given JSON", e);
+    } finally {
+      if (inflated != null) {
+        inflated.close();
+      }
+    }
+  }
+
+  /**
+   * Parses the content of the given HTTP query into a columnar batch.
+   * @param query The query with a JSON object or array in its body
+   * @return A batch with one or more data points
+   * @throws BadRequestException if the content was missing or parsing failed
+   */
+  static PutBatch parseBatch(final HttpQuery query) {
+    final RequestInflater inflated = RequestInflater.forQuery(query);
+    try {
+      final PutBatch batch =
+        new IncomingDataPointParser().parseBatch(createParser(query, inflated));
+      if (inflated != null) {
+        // reads past the end of the JSON so the checksum is verified
+        inflated.verify();
+      }
+      return batch;
+    } catch (IOException e) {
+      throw new BadRequestException("Unable to parse the given JSON", e);
+    } finally {
+      if (inflated != null) {
+        inflated.close();
+      }
+    }
+  }
+
+  /**
+   * Parses data points from the given stream. The stream is not closed.
+   * @param stream A stream with a JSON object or array
+   * @return A list of one or more data points
+   * @throws BadRequestException if the content was missing or parsing failed
+   */
+  static List<IncomingDataPoint> parse(final InputStream stream) {
+    try {
+      final JsonParser parser = JSON.getFactory().createParser(stream);
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      return new IncomingDataPointParser().parse(parser);
+    } catch (IOException e) {
+      throw new BadRequestException("Unable to parse the given JSON", e);
+    }
+  }
+
+  /**
+   * Parses a single data point object or an array of them
+   * @param parser The parser positioned before the first token
+   * @return A list of data points
+   * @throws IOException if the content could not be read or parsed
+   * @throws BadRequestException if the content was empty or malformed
+   */
+  List<IncomingDataPoint> parse(final JsonParser parser) throws IOException {
+    try {
+      final JsonToken first = parser.nextToken();
+      if (first == null) {
+        throw new BadRequestException("Missing request content");
+      }
+      if (first == JsonToken.START_OBJECT) {
+        final ArrayList<IncomingDataPoint> dps =
+          new ArrayList<IncomingDataPoint>(1);
+        dps.add(parseDataPoint(parser));
+        return dps;
+      }
+      if (first != JsonToken.START_ARRAY) {
+        throw new JsonParseException("Expected an object or array but found "
+            + first, parser.getCurrentLocation());
+      }
+
+      final ArrayList<IncomingDataPoint> dps =
+        new ArrayList<IncomingDataPoint>();
+      JsonToken token;
+      while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+        if (token == JsonToken.VALUE_NULL) {
+          dps.add(null);
+        } else if (token == JsonToken.START_OBJECT) {
+          dps.add(parseDataPoint(parser));
+        } else {
+          throw new JsonParseException("Expected a data point object but found "
+              + token, parser.getCurrentLocation());
+        }
+      }
+      return dps;
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * Parses the fields of a data point object
+   * @param parser The parser positioned on the START_OBJECT token
+   * @return The data point
+   * @throws IOException if the content could not be read or parsed
+   */
+  IncomingDataPoint parseDataPoint(final JsonParser parser)
+      throws IOException {
+    final IncomingDataPoint dp = new IncomingDataPoint();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      final JsonToken token = parser.nextToken();
+      if ("metric".equals(field)) {
+        dp.setMetric(readString(parser, token));
+      } else if ("timestamp".equals(field)) {
+        dp.setTimestamp(readLong(parser, token));
+      } else if ("value".equals(field)) {
+        dp.setValue(readValueText(parser, token));
+      } else if ("tags".equals(field)) {
+        dp.setTags(readTags(parser, token));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return dp;
+  }
+
+  /**
+   * Parses a single data point object or an array of them into a columnar
+   * batch. Null elements of an array are skipped.
+   * @param parser The parser positioned before the first token
+   * @return A batch of data points
+   * @throws IOException if the content could not be read or parsed
+   * @throws BadRequestException if the content was empty or malformed
+   */
+  PutBatch parseBatch(final JsonParser parser) throws IOException {
+    try {
+      final JsonToken first = parser.nextToken();
+      if (first == null) {
+        throw new BadRequestException("Missing request content");
+      }
+      final PutBatch batch = new PutBatch();
+      if (first == JsonToken.START_OBJECT) {
+        parseBatchPoint(parser, batch);
+        return batch;
+      }
+      if (first != JsonToken.START_ARRAY) {
+        throw new JsonParseException("Expected an object or array but found "
+            + first, parser.getCurrentLocation());
+      }
+
+      JsonToken token;
+      while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+        if (token == JsonToken.START_OBJECT) {
+          parseBatchPoint(parser, batch);
+        } else if (token != JsonToken.VALUE_NULL) {
+          throw new JsonParseException("Expected a data point object but found "
+              + token, parser.getCurrentLocation());
+        }
+      }
+      return batch;
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * Parses the fields of a data point object and adds it to the batch
+   * without creating any per point objects
+   * @param parser The parser positioned on the START_OBJECT token
+   * @param batch The batch to add to
+   * @throws IOException if the content could not be read or parsed
+   */
+  private void parseBatchPoint(final JsonParser parser, final PutBatch batch)
+      throws IOException {
+    String metric = null;
+    long timestamp = 0;
+    boolean has_tags = false;
+    tag_count = 0;
+    value_type = PutBatch.TYPE_RAW;
+    raw_value = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      final JsonToken token = parser.nextToken();
+      if ("metric".equals(field)) {
+        metric = readString(parser, token);
+      } else if ("timestamp".equals(field)) {
+        timestamp = readLong(parser, token);
+      } else if ("value".equals(field)) {
+        readValue(parser, token);
+      } else if ("tags".equals(field)) {
+        has_tags = readTagPairs(parser, token);
+      } else {
+        parser.skipChildren();
+      }
+    }
+
+    final int series = batch.addSeries(metric, has_tags ? tag_pairs : null,
+        tag_count);
+    switch (value_type) {
+      case PutBatch.TYPE_LONG:
+        batch.addLong(series, timestamp, long_value);
+        break;
+      case PutBatch.TYPE_DOUBLE:
+        batch.addDouble(series, timestamp, double_value);
+        break;
+      default:
+        batch.addRaw(series, timestamp, raw_value);
+    }
+  }
+
+  /**
+   * Reads a data point value as text. Objects and arrays are rejected like
+   * databind does when binding them to the string value field.
+   * @throws JsonParseException if the value is an object or array
+   */
+  private static String readValueText(final JsonParser parser,
+      final JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (!token.isScalarValue()) {
+      throw new JsonParseException("Expected a value but found " + token,
+          parser.getCurrentLocation());
+    }
+    return parser.getText();
+  }
+
+  /**
+   * Reads a data point value into the value fields. Numbers and numeric
+   * strings are kept as primitives, following the integer check of the put
+   * RPC, anything else is kept as text. The common forms are parsed from the
+   * parser's characters without creating a String.
+   */
+  private void readValue(final JsonParser parser, final JsonToken token)
+      throws IOException {
+    value_type = PutBatch.TYPE_RAW;
+    raw_value = null;
+    if (token == JsonToken.VALUE_NULL) {
+      return;
+    }
+    if (token == JsonToken.VALUE_NUMBER_INT) {
+      final JsonParser.NumberType type = parser.getNumberType();
+      if (type == JsonParser.NumberType.INT
+          || type == JsonParser.NumberType.LONG) {
+        value_type = PutBatch.TYPE_LONG;
+        long_value = parser.getLongValue();
+      } else {
+        raw_value = parser.getText();
+      }
+      return;
+    }
+    if (!token.isScalarValue()) {
+      throw new JsonParseException("Expected a value but found " + token,
+          parser.getCurrentLocation());
+    }
+
+    final char[] buf = parser.getTextCharacters();
+    final int offset = parser.getTextOffset();
+    final int length = parser.getTextLength();
+    if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+      value_type = PutBatch.TYPE_DOUBLE;
+      double_value = DecimalParser.isSimpleDecimal(buf, offset, length) ?
+          DecimalParser.parseDouble(buf, offset, length) :
+          parser.getDoubleValue();
+      return;
+    }
+    if (DecimalParser.isSimpleLong(buf, offset, length)) {
+      value_type = PutBatch.TYPE_LONG;
+      long_value = DecimalParser.parseLong(buf, offset, length);
+      return;
+    }
+    if (DecimalParser.isSimpleDecimal(buf, offset, length)) {
+      // passing the long check above means there is a decimal point
+      value_type = PutBatch.TYPE_DOUBLE;
+      double_value = DecimalParser.parseDouble(buf, offset, length);
+      return;
+    }
+    final String text = parser.getText();
+    try {
+      if (Tags.looksLikeInteger(text)) {
+        long_value = Long.parseLong(text);
+        value_type = PutBatch.TYPE_LONG;
+      } else {
+        double_value = Double.parseDouble(text);
+        value_type = PutBatch.TYPE_DOUBLE;
+      }
+    } catch (NumberFormatException nfe) {
+      // leave it to the put RPC to reject it
+      raw_value = text;
+    }
+  }
+
+  /**
+   * Reads the tag map of a data point into the tag pairs, sorted by key
+   * @return False if the token was a null, true otherwise
+   */
+  private boolean readTagPairs(final JsonParser parser, final JsonToken token)
+      throws IOException {
+    tag_count = 0;
+    if (token == JsonToken.VALUE_NULL) {
+      return false;
+    }
+    if (token != JsonToken.START_OBJECT) {
+      throw new JsonParseException("Expected a tag map but found " + token,
+          parser.getCurrentLocation());
+    }
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String tagk = parser.getCurrentName();
+      final String tagv = readString(parser, parser.nextToken());
+      int i = 0;
+      while (i < tag_count && !tag_pairs[i].equals(tagk)) {
+        i += 2;
+      }
+      if (i == tag_count) {
+        if (tag_count == tag_pairs.length) {
+          tag_pairs = Arrays.copyOf(tag_pairs, tag_count * 2);
+        }
+        // insertion sort, there are only a handful of tags
+        while (i > 0 && tag_pairs[i - 2].compareTo(tagk) > 0) {
+          tag_pairs[i] = tag_pairs[i - 2];
+          tag_pairs[i + 1] = tag_pairs[i - 1];
+          i -= 2;
+        }
+        tag_pairs[i] = tagk;
+        tag_count += 2;
+      }
+      // a repeated key replaces the value like the tag map would
+      tag_pairs[i + 1] = tagv;
+    }
+    return true;
+  }
+
+  /**
+   * Reads a scalar as a string, deduplicating repeated values
+   * @return The string or null if the token was a null
+   */
+  private String readString(final JsonParser parser, final JsonToken token)
+      throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token == JsonToken.VALUE_STRING) {
+      return strings.get(parser.getTextCharacters(), parser.getTextOffset(),
+          parser.getTextLength());
+    }
+    if (token.isScalarValue()) {
+      return parser.getText();
+    }
+    throw new JsonParseException("Expected a string but found " + token,
+        parser.getCurrentLocation());
+  }
+
+  /**
+   * Reads a number or numeric string as a long
+   * @return The value, 0 if the token was a null
+   */
+  private static long readLong(final JsonParser parser, final JsonToken token)
+      throws IOException {
+    if (token == JsonToken.VALUE_NUMBER_INT
+        || token == JsonToken.VALUE_NUMBER_FLOAT) {
+      return parser.getLongValue();
+    }
+    if (token == JsonToken.VALUE_NULL) {
+      return 0;
+    }
+    if (token == JsonToken.VALUE_STRING) {
+      final String text = parser.getText().trim();
+      if (text.isEmpty()) {
+        return 0;
+      }
+      try {
+        return Long.parseLong(text);
+      } catch (NumberFormatException nfe) {
+        throw new JsonParseException("Invalid timestamp: " + text,
+            parser.getCurrentLocation(), nfe);
+      }
+    }
+    throw new JsonParseException("Expected a timestamp but found " + token,
+        parser.getCurrentLocation());
+  }
+
+  /**
+   * Reads the tag map of a data point
+   * @return The tags or null if the token was a null
+   */
+  private HashMap<String, String> readTags(final JsonParser parser,
+      final JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token != JsonToken.START_OBJECT) {
+      throw new JsonParseException("Expected a tag map but found " + token,
+          parser.getCurrentLocation());
+    }
+    final HashMap<String, String> tags = new HashMap<String, String>(4);
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String tagk = parser.getCurrentName();
+      tags.put(tagk, readString(parser, parser.nextToken()));
+    }
+    return tags;
+  }
+
+  /**
+   * Creates a parser over the request body, reading straight from the bytes
+   * when Jackson can decode the charset and decompressing it on the fly if
+   * it was sent compressed
+   * @param query The query with the body to parse
+   * @param inflated A stream decompressing the body, null if it's plain
+   * @return A parser positioned before the first token
+   * @throws BadRequestException if the content was missing
+   * @throws IOException if the parser could not be created
+   */
+  private static JsonParser createParser(final HttpQuery query,
+      final RequestInflater inflated) throws IOException {
+    if (!query.hasContent()) {
+      throw new BadRequestException("Missing request content");
+    }
+    if (inflated != null) {
+      // decompressed as it's parsed, the caller closes the stream
+      final JsonParser parser = isDetectedCharset(query.getCharset()) ?
+          JSON.getFactory().createParser(inflated) :
+          JSON.getFactory().createParser(
+              new InputStreamReader(inflated, query.getCharset()));
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      return parser;
+    }
+    if (!isDetectedCharset(query.getCharset())) {
+      // jackson can't decode these, fall back to the decoded string
+      return JSON.getFactory().createParser(query.getContent());
+    }
+    final ChannelBuffer content = query.request().getContent();
+    if (content.hasArray()) {
+      return JSON.getFactory().createParser(content.array(),
+          content.arrayOffset() + content.readerIndex(),
+          content.readableBytes());
+    }
+    return JSON.getFactory().createParser(
+        new ChannelBufferInputStream(content.duplicate()));
+  }
+
+  /**
+   * @param charset The charset of the request
+   * @return True if Jackson can decode the raw bytes on its own
+   */
+  private static boolean isDetectedCharset(final Charset charset) {
+    for (final String name : DETECTED_CHARSETS) {
+      if (name.equals(charset.name())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
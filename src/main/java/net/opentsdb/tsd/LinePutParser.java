@@ -0,0 +1,672 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.utils.JSON;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Parses put bodies with one data point per line, picked by the content type
+ * of the request:
+ * <ul><li>{@code text/x-opentsdb-put} or {@code text/plain} - the telnet put
+ * syntax, {@code [put] <metric> <timestamp> <value> <tagk=tagv> ...}, where
+ * the timestamp may be given as {@code seconds.milliseconds}. Some clients
+ * post regular JSON as {@code text/plain}, so such a body starting with
+ * {@code [} or <code>{</code> is left to the JSON parser.</li>
+ * <li>{@code application/x-ndjson} - one JSON data point object per line</li>
+ * </ul>
+ * Blank lines and lines starting with {@code #} are skipped. A line that fails
+ * to parse doesn't fail the others, its error is recorded in the shape the
+ * put RPC uses for its details, i.e. a map with the {@code error} and the
+ * offending line as the {@code datapoint}.
+ * <p>
+ * Lines are tokenized by hand from the request bytes. Bodies in an ASCII
+ * compatible charset are split on the raw bytes, others are decoded first.
+ * Compressed bodies are split as they're decompressed, see
+ * {@link RequestInflater}. Not thread safe, use one instance per request.
+ */
+final class LinePutParser {
+
+  /** Content type of the telnet style line protocol */
+  static final String LINE_PROTOCOL = "text/x-opentsdb-put";
+
+  /** Plain text, parsed as the line protocol unless it looks like JSON */
+  static final String PLAIN_TEXT = "text/plain";
+
+  /** Most leading bytes read to find out whether plain text is JSON */
+  private static final int MAX_SNIFF = 1024;
+
+  /** Content types of newline delimited JSON */
+  static final String[] NDJSON = {
+    "application/x-ndjson", "application/ndjson", "application/jsonl",
+    "application/x-jsonlines"
+  };
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Initial size of the window compressed bodies are read through */
+  private static final int WINDOW_SIZE = 64 * 1024;
+
+  /** Most line errors returned when no line of a put body parsed */
+  private static final int MAX_REPORTED_ERRORS = 100;
+
+  /** Longest part of a bad line echoed back in its error */
+  private static final int MAX_ECHO = 256;
+
+  /** Whether the lines are JSON objects instead of the telnet syntax */
+  private final boolean json;
+
+  /** The data points of the lines that parsed */
+  private final ArrayList<IncomingDataPoint> dps =
+    new ArrayList<IncomingDataPoint>();
+
+  /** The errors of the lines that didn't */
+  private final ArrayList<HashMap<String, Object>> errors =
+    new ArrayList<HashMap<String, Object>>(0);
+
+  /** Cache for metric names, tag keys and tag values repeated across lines */
+  private final StringCache strings = new StringCache();
+
+  /** Parses the NDJSON objects */
+  private final IncomingDataPointParser object_parser =
+    new IncomingDataPointParser();
+
+  /** Characters of the current line */
+  private char[] line = new char[256];
+
+  /** Start offsets of the words of the current line */
+  private int[] word_starts = new int[16];
+
+  /** End offsets of the words of the current line */
+  private int[] word_ends = new int[16];
+
+  /** Number of lines seen so far */
+  private int line_number;
+
+  /**
+   * Default constructor
+   * @param json Whether the lines are JSON objects instead of the telnet
+   * syntax
+   */
+  LinePutParser(final boolean json) {
+    this.json = json;
+  }
+
+  /**
+   * Returns a parser for the content type of the request
+   * @param query The put request
+   * @return A parser if the body is line delimited, null if it's regular JSON
+   */
+  static LinePutParser forQuery(final HttpQuery query) {
+    String type =
+      query.request().headers().get(HttpHeaders.Names.CONTENT_TYPE);
+    if (type == null) {
+      return null;
+    }
+    final int params = type.indexOf(';');
+    if (params >= 0) {
+      type = type.substring(0, params);
+    }
+    type = type.trim().toLowerCase(Locale.ENGLISH);
+    if (type.equals(LINE_PROTOCOL)) {
+      return new LinePutParser(false);
+    }
+    if (type.equals(PLAIN_TEXT)) {
+      return looksLikeJson(query) ? null : new LinePutParser(false);
+    }
+    for (final String ndjson : NDJSON) {
+      if (type.equals(ndjson)) {
+        return new LinePutParser(true);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Determines whether a body starts with a JSON object or array, ignoring
+   * leading whitespace. Compressed bodies are decompressed just far enough.
+   * @param query The put request
+   * @return True if the first character that isn't whitespace is a
+   * <code>[</code> or <code>{</code>
+   */
+  static boolean looksLikeJson(final HttpQuery query) {
+    if (!query.hasContent()) {
+      return false;
+    }
+    final byte[] head;
+    final int length;
+    final RequestInflater inflated = RequestInflater.forQuery(query);
+    if (inflated != null) {
+      head = new byte[MAX_SNIFF];
+      int read = 0;
+      try {
+        int count;
+        while (read < head.length
+            && (count = inflated.read(head, read, head.length - read)) >= 0) {
+          read += count;
+        }
+      } catch (IOException e) {
+        throw new BadRequestException("Unable to decompress the request", e);
+      } finally {
+        inflated.close();
+      }
+      length = read;
+    } else {
+      final ChannelBuffer content = query.request().getContent();
+      length = Math.min(content.readableBytes(), MAX_SNIFF);
+      head = new byte[length];
+      content.getBytes(content.readerIndex(), head);
+    }
+    // a character cut off at the end decodes to a replacement character
+    final String text = new String(head, 0, length, query.getCharset());
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (c == '[' || c == '{') {
+        return true;
+      }
+      if (!Character.isWhitespace(c) && c != '\uFEFF') {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses the body of the request
+   * @param query The put request
+   * @return The data points of the lines that parsed, possibly empty
+   * @throws BadRequestException if the content was missing
+   */
+  List<IncomingDataPoint> parse(final HttpQuery query) {
+    if (!query.hasContent()) {
+      throw new BadRequestException("Missing request content");
+    }
+    final Charset charset = query.getCharset();
+    final RequestInflater inflated = RequestInflater.forQuery(query);
+    if (inflated != null) {
+      try {
+        return parse(inflated, charset);
+      } catch (IOException e) {
+        throw new BadRequestException("Unable to decompress the request", e);
+      }
+    }
+    final ChannelBuffer content = query.request().getContent();
+    // JSON lines are handed to Jackson as bytes, so it has to detect them
+    final boolean raw = json ? isUTF8(charset) : isAsciiCompatible(charset);
+    if (raw && content.hasArray()) {
+      parse(content.array(), content.arrayOffset() + content.readerIndex(),
+          content.readableBytes(), charset);
+    } else {
+      final char[] chars = query.getContent().toCharArray();
+      parse(chars, 0, chars.length);
+    }
+    return dps;
+  }
+
+  /**
+   * Parses lines from a stream a window at a time, so a compressed body is
+   * never decompressed in full. Only bodies in a charset that would be split
+   * on the raw bytes are read that way, others are read and decoded first.
+   * The stream is closed.
+   * @param stream The stream with the body
+   * @param charset The charset of the body
+   * @return The data points of the lines that parsed, possibly empty
+   * @throws IOException if the stream could not be read
+   */
+  List<IncomingDataPoint> parse(final InputStream stream,
+      final Charset charset) throws IOException {
+    try {
+      final boolean raw = json ? isUTF8(charset) : isAsciiCompatible(charset);
+      byte[] window = new byte[WINDOW_SIZE];
+      int length = 0;
+      int read;
+      while ((read = stream.read(window, length, window.length - length))
+          >= 0) {
+        length += read;
+        if (!raw) {
+          if (length == window.length) {
+            window = Arrays.copyOf(window, window.length * 2);
+          }
+          continue;
+        }
+        int eol = length - 1;
+        while (eol >= 0 && window[eol] != '\n') {
+          eol--;
+        }
+        if (eol >= 0) {
+          // complete lines only, the rest moves to the front
+          parse(window, 0, eol + 1, charset);
+          length -= eol + 1;
+          System.arraycopy(window, eol + 1, window, 0, length);
+        } else if (length == window.length) {
+          // a line longer than the window
+          window = Arrays.copyOf(window, window.length * 2);
+        }
+      }
+      if (!raw) {
+        final char[] chars = new String(window, 0, length, charset)
+          .toCharArray();
+        return parse(chars, 0, chars.length);
+      }
+      if (length > 0) {
+        parse(window, 0, length, charset);
+      }
+      return dps;
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Parses lines from bytes in an ASCII compatible charset, for JSON lines
+   * it has to be UTF-8 or plain ASCII
+   * @param buf The bytes
+   * @param offset Offset of the first byte
+   * @param length Number of bytes
+   * @param charset The charset to decode non-ASCII lines with
+   * @return The data points of the lines that parsed, possibly empty
+   */
+  List<IncomingDataPoint> parse(final byte[] buf, final int offset,
+      final int length, final Charset charset) {
+    final int end = offset + length;
+    int start = offset;
+    while (start < end) {
+      int eol = start;
+      boolean ascii = true;
+      while (eol < end && buf[eol] != '\n') {
+        ascii &= buf[eol] >= 0;
+        eol++;
+      }
+      line_number++;
+      if (json) {
+        parseJsonLine(buf, start, eol - start);
+      } else if (ascii) {
+        ensureLineCapacity(eol - start);
+        for (int i = start; i < eol; i++) {
+          line[i - start] = (char) buf[i];
+        }
+        parseTelnetLine(eol - start);
+      } else {
+        final String decoded = new String(buf, start, eol - start, charset);
+        ensureLineCapacity(decoded.length());
+        decoded.getChars(0, decoded.length(), line, 0);
+        parseTelnetLine(decoded.length());
+      }
+      start = eol + 1;
+    }
+    return dps;
+  }
+
+  /**
+   * Parses lines from already decoded characters
+   * @param buf The characters
+   * @param offset Offset of the first character
+   * @param length Number of characters
+   * @return The data points of the lines that parsed, possibly empty
+   */
+  List<IncomingDataPoint> parse(final char[] buf, final int offset,
+      final int length) {
+    final int end = offset + length;
+    int start = offset;
+    while (start < end) {
+      int eol = start;
+      while (eol < end && buf[eol] != '\n') {
+        eol++;
+      }
+      line_number++;
+      ensureLineCapacity(eol - start);
+      System.arraycopy(buf, start, line, 0, eol - start);
+      if (json) {
+        parseJsonLine(eol - start);
+      } else {
+        parseTelnetLine(eol - start);
+      }
+      start = eol + 1;
+    }
+    return dps;
+  }
+
+  /**
+   * Parses the body of a put request the way the serializers accept it.
+   * Lines that fail to parse are reported with the put results, see
+   * {@link #mergeErrors}. If the caller didn't ask for the summary or details
+   * of the put, there is nowhere to report them and the request is rejected.
+   * It's also rejected if no line parsed, as the put RPC would only answer
+   * that there were no data points, with the errors of the first lines as
+   * the details.
+   * @param query The put request
+   * @return The data points of the lines that parsed
+   * @throws BadRequestException if the content was missing or lines failed
+   * to parse and can't be reported
+   */
+  List<IncomingDataPoint> parsePut(final HttpQuery query) {
+    parse(query);
+    if (!errors.isEmpty() && !query.hasQueryStringParam("summary")
+        && !query.hasQueryStringParam("details")) {
+      throw new BadRequestException(HttpResponseStatus.BAD_REQUEST,
+          errors.size() + " line(s) could not be parsed, the first was: "
+          + errors.get(0).get("error"),
+          "Please append \"details\" to the put request");
+    }
+    if (dps.isEmpty() && !errors.isEmpty()) {
+      throw new BadRequestException(HttpResponseStatus.BAD_REQUEST,
+          "None of the " + errors.size() + " line(s) could be parsed",
+          JSON.serializeToString(errors.subList(0,
+              Math.min(errors.size(), MAX_REPORTED_ERRORS))));
+    }
+    return dps;
+  }
+
+  /**
+   * Adds the lines that failed to parse to the put results, counting them as
+   * failed and listing them with the other errors if details were requested
+   * @param results The put results from the RPC
+   * @param errors The errors of the lines, may be null or empty
+   */
+  @SuppressWarnings("unchecked")
+  static void mergeErrors(final Map<String, Object> results,
+      final List<HashMap<String, Object>> errors) {
+    if (errors == null || errors.isEmpty()) {
+      return;
+    }
+    final Object failed = results.get("failed");
+    final long parsed = failed instanceof Number ?
+        ((Number) failed).longValue() : 0;
+    results.put("failed", parsed + errors.size());
+    final Object details = results.get("errors");
+    if (details instanceof List) {
+      final List<Object> merged = new ArrayList<Object>(
+          errors.size() + ((List<Object>) details).size());
+      merged.addAll(errors);
+      merged.addAll((List<Object>) details);
+      results.put("errors", merged);
+    }
+  }
+
+  /** @return the errors of the lines that failed to parse, possibly empty */
+  List<HashMap<String, Object>> errors() {
+    return errors;
+  }
+
+  /**
+   * Tokenizes a line of the telnet put syntax held in the line buffer
+   * @param length Number of characters in the line
+   */
+  private void parseTelnetLine(final int length) {
+    final int words = split(length);
+    if (words == 0 || line[word_starts[0]] == '#') {
+      return;
+    }
+    int word = 0;
+    if (wordEquals(0, "put")) {
+      word++;
+    }
+    if (words - word < 3) {
+      addError("Expected at least a metric, timestamp and value", length);
+      return;
+    }
+
+    final IncomingDataPoint dp = new IncomingDataPoint();
+    dp.setMetric(cachedWord(word++));
+
+    final int ts_start = word_starts[word];
+    final int ts_end = word_ends[word++];
+    final long timestamp = parseTimestamp(ts_start, ts_end);
+    if (timestamp < 0) {
+      addError("Invalid timestamp: "
+          + new String(line, ts_start, ts_end - ts_start), length);
+      return;
+    }
+    dp.setTimestamp(timestamp);
+    dp.setValue(new String(line, word_starts[word],
+        word_ends[word] - word_starts[word]));
+    word++;
+
+    final HashMap<String, String> tags =
+      new HashMap<String, String>(words - word);
+    for (; word < words; word++) {
+      final int start = word_starts[word];
+      final int end = word_ends[word];
+      int equals = start;
+      while (equals < end && line[equals] != '=') {
+        equals++;
+      }
+      if (equals == start || equals >= end - 1) {
+        addError("Invalid tag: " + new String(line, start, end - start),
+            length);
+        return;
+      }
+      final String tagk = strings.get(line, start, equals - start);
+      final String tagv = strings.get(line, equals + 1, end - equals - 1);
+      if (tags.put(tagk, tagv) != null) {
+        addError("Duplicate tag: " + tagk, length);
+        return;
+      }
+    }
+    dp.setTags(tags);
+    dps.add(dp);
+  }
+
+  /**
+   * Parses a timestamp of digits, optionally followed by a decimal point and
+   * three digits of milliseconds
+   * @return The timestamp in seconds, or milliseconds if they were given, or
+   * -1 if the timestamp was invalid
+   */
+  private long parseTimestamp(final int start, final int end) {
+    int point = -1;
+    for (int i = start; i < end; i++) {
+      if (line[i] == '.') {
+        if (point >= 0) {
+          return -1;
+        }
+        point = i;
+      }
+    }
+    if (point < 0) {
+      return DecimalParser.isSimpleLong(line, start, end - start)
+          && line[start] != '-' ?
+          DecimalParser.parseLong(line, start, end - start) : -1;
+    }
+    if (end - point != 4 || point == start || line[start] == '-'
+        || !DecimalParser.isSimpleLong(line, start, point - start)
+        || !DecimalParser.isSimpleLong(line, point + 1, 3)) {
+      return -1;
+    }
+    return DecimalParser.parseLong(line, start, point - start) * 1000
+        + DecimalParser.parseLong(line, point + 1, 3);
+  }
+
+  /**
+   * Parses a JSON object line straight from the request bytes
+   * @param buf The request bytes
+   * @param start Offset of the first byte of the line
+   * @param length Number of bytes in the line
+   */
+  private void parseJsonLine(final byte[] buf, final int start,
+      final int length) {
+    int first = start;
+    while (first < start + length && (buf[first] == ' '
+        || buf[first] == '\t' || buf[first] == '\r')) {
+      first++;
+    }
+    if (first == start + length || buf[first] == '#') {
+      return;
+    }
+    try {
+      parseJsonLine(JSON.getFactory().createParser(buf, start, length));
+    } catch (IOException e) {
+      addJsonError(e, new String(buf, start, Math.min(length, MAX_ECHO),
+          UTF8));
+    }
+  }
+
+  /**
+   * Parses a JSON object line held in the line buffer
+   * @param length Number of characters in the line
+   */
+  private void parseJsonLine(final int length) {
+    final int words = split(length);
+    if (words == 0 || line[word_starts[0]] == '#') {
+      return;
+    }
+    try {
+      parseJsonLine(JSON.getFactory().createParser(
+          new CharArrayReader(line, 0, length)));
+    } catch (IOException e) {
+      addJsonError(e, new String(line, 0, Math.min(length, MAX_ECHO)));
+    }
+  }
+
+  /**
+   * Parses the single data point object of a line
+   * @param parser A parser over the line
+   * @throws IOException if the line wasn't a single valid object
+   */
+  private void parseJsonLine(final JsonParser parser) throws IOException {
+    try {
+      final JsonToken first = parser.nextToken();
+      if (first != JsonToken.START_OBJECT) {
+        throw new IOException("Expected a data point object but found "
+            + first);
+      }
+      final IncomingDataPoint dp = object_parser.parseDataPoint(parser);
+      final JsonToken trailing = parser.nextToken();
+      if (trailing != null) {
+        throw new IOException("Unexpected " + trailing
+            + " after the data point");
+      }
+      dps.add(dp);
+    } finally {
+      parser.close();
+    }
+  }
+
+  /** Records the error of a JSON line */
+  private void addJsonError(final IOException e, final String echo) {
+    final String message = e instanceof JsonProcessingException ?
+        ((JsonProcessingException) e).getOriginalMessage() : e.getMessage();
+    addError(message, echo);
+  }
+
+  /** Records an error for the current line held in the line buffer */
+  private void addError(final String message, final int length) {
+    addError(message, new String(line, 0, Math.min(length, MAX_ECHO)));
+  }
+
+  /**
+   * Records an error in the shape of the put RPC details
+   * @param message The error
+   * @param echo The offending line
+   */
+  private void addError(final String message, final String echo) {
+    final HashMap<String, Object> error = new HashMap<String, Object>(2);
+    error.put("error", "Line " + line_number + ": " + message);
+    error.put("datapoint", echo.trim());
+    errors.add(error);
+  }
+
+  /**
+   * Splits the line buffer into words separated by whitespace
+   * @return The number of words
+   */
+  private int split(final int length) {
+    int words = 0;
+    int i = 0;
+    while (i < length) {
+      while (i < length && Character.isWhitespace(line[i])) {
+        i++;
+      }
+      if (i == length) {
+        break;
+      }
+      if (words == word_starts.length) {
+        word_starts = Arrays.copyOf(word_starts, words * 2);
+        word_ends = Arrays.copyOf(word_ends, words * 2);
+      }
+      word_starts[words] = i;
+      while (i < length && !Character.isWhitespace(line[i])) {
+        i++;
+      }
+      word_ends[words++] = i;
+    }
+    return words;
+  }
+
+  /** @return the given word, deduplicated through the cache */
+  private String cachedWord(final int word) {
+    return strings.get(line, word_starts[word],
+        word_ends[word] - word_starts[word]);
+  }
+
+  /** @return True if the word holds exactly the given string */
+  private boolean wordEquals(final int word, final String str) {
+    final int start = word_starts[word];
+    if (word_ends[word] - start != str.length()) {
+      return false;
+    }
+    for (int i = 0; i < str.length(); i++) {
+      if (line[start + i] != str.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Grows the line buffer to hold at least the given number of characters */
+  private void ensureLineCapacity(final int length) {
+    if (line.length < length) {
+      line = new char[Math.max(length, line.length * 2)];
+    }
+  }
+
+  /**
+   * @param charset The charset of the request
+   * @return True if Jackson reads the raw bytes the same way
+   */
+  private static boolean isUTF8(final Charset charset) {
+    final String name = charset.name();
+    return name.equals("UTF-8") || name.equals("US-ASCII");
+  }
+
+  /**
+   * @param charset The charset of the request
+   * @return True if every ASCII character is encoded as the same single byte
+   * and no other character uses bytes in the ASCII range, so lines can be
+   * split on the raw bytes
+   */
+  private static boolean isAsciiCompatible(final Charset charset) {
+    final String name = charset.name();
+    return name.equals("UTF-8") || name.equals("US-ASCII")
+        || name.equals("ISO-8859-1");
+  }
+}
@@ -0,0 +1,386 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.utils.JSON;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Parses very large arrays of data points on a shared fork-join pool. A
+ * quick pass over the raw bytes finds where each element of the array
+ * starts and ends, tracking only nesting and strings, then ranges of
+ * elements are parsed in parallel by {@link IncomingDataPointParser} and
+ * written into their slots of the result so it keeps the original order.
+ * <p>
+ * Only uncompressed bodies of at least
+ * {@code tsd.http.serializer.parse.parallel_threshold} bytes in UTF-8 or
+ * ASCII are split. Anything the scan doesn't recognize as a plain array is
+ * left to the sequential parser, which reports the error exactly as before.
+ * A data point that fails to parse is reported with its index in the array,
+ * the lowest one if several ranges fail.
+ * <p>
+ * Parsing runs on the pool of {@link ParallelQueryWriter} so the TSD keeps
+ * a single set of {@code tsd.http.serializer.parallel.threads} threads.
+ */
+final class ParallelPutParser {
+
+  /** Number of leaf tasks per pool thread to even out uneven ranges */
+  private static final int TASKS_PER_THREAD = 4;
+
+  /** Fewest data points parsed by a leaf task */
+  private static final int MIN_LEAF_SIZE = 1024;
+
+  /** The body bytes */
+  private final byte[] array;
+
+  /** Start and end offset of each element, in pairs */
+  private final int[] bounds;
+
+  /** The parsed data points by element index */
+  private final IncomingDataPoint[] dps;
+
+  /** Index of the first element that failed to parse, -1 if none did */
+  private volatile int failed_index = -1;
+
+  /** Why the first failed element failed */
+  private IOException failure;
+
+  /**
+   * Default constructor
+   * @param array The body bytes
+   * @param bounds Start and end offset of each element, in pairs
+   */
+  ParallelPutParser(final byte[] array, final int[] bounds) {
+    this.array = array;
+    this.bounds = bounds;
+    dps = new IncomingDataPoint[bounds.length / 2];
+  }
+
+  /**
+   * Parses the content of the given HTTP query in parallel if it's a large
+   * enough array
+   * @param query The query with a JSON object or array in its body
+   * @return A list of data points or null if the body should be parsed
+   * sequentially
+   * @throws BadRequestException if a data point failed to parse
+   */
+  static List<IncomingDataPoint> parse(final HttpQuery query) {
+    final int threshold = SerializerConfig.parseParallelThreshold();
+    if (threshold < 1 || !query.hasContent()
+        || !isByteCharset(query.getCharset())
+        || RequestInflater.encoding(query) != null) {
+      return null;
+    }
+    final ChannelBuffer content = query.request().getContent();
+    if (content.readableBytes() < threshold || !content.hasArray()) {
+      return null;
+    }
+    final int offset = content.arrayOffset() + content.readerIndex();
+    final int[] bounds = scan(content.array(), offset,
+        offset + content.readableBytes());
+    if (bounds == null) {
+      return null;
+    }
+    return new ParallelPutParser(content.array(), bounds).parse();
+  }
+
+  /**
+   * Parses all elements on the pool, blocking until they're done
+   * @return The data points in their original order
+   * @throws BadRequestException if a data point failed to parse
+   */
+  List<IncomingDataPoint> parse() {
+    final ForkJoinPool pool = ParallelQueryWriter.pool();
+    final int leaf_size = Math.max(MIN_LEAF_SIZE,
+        dps.length / (pool.getParallelism() * TASKS_PER_THREAD));
+    pool.invoke(new RangeTask(this, 0, dps.length, leaf_size));
+    if (failure != null) {
+      throw new BadRequestException("Unable to parse the given JSON at "
+          + "data point " + failed_index, failure);
+    }
+    return new ArrayList<IncomingDataPoint>(Arrays.asList(dps));
+  }
+
+  /**
+   * Finds the start and end of each element of a top level array. Only
+   * nesting and strings are tracked, the elements themselves are checked
+   * when they're parsed.
+   * @param buf The bytes to scan
+   * @param offset Index of the first byte
+   * @param end Index after the last byte
+   * @return Start and end offset of each element, in pairs, or null if the
+   * bytes are not a non-empty array
+   */
+  static int[] scan(final byte[] buf, final int offset, final int end) {
+    int i = offset;
+    if (end - i >= 3 && buf[i] == (byte) 0xEF && buf[i + 1] == (byte) 0xBB
+        && buf[i + 2] == (byte) 0xBF) {
+      // byte order mark
+      i += 3;
+    }
+    i = skipWhitespace(buf, i, end);
+    if (i >= end || buf[i] != '[') {
+      return null;
+    }
+    i = skipWhitespace(buf, i + 1, end);
+    if (i >= end || buf[i] == ']') {
+      return null;
+    }
+
+    int[] bounds = new int[1024];
+    int count = 0;
+    while (true) {
+      final int start = i;
+      i = skipValue(buf, i, end);
+      if (i < 0) {
+        return null;
+      }
+      if (count == bounds.length) {
+        bounds = Arrays.copyOf(bounds, count * 2);
+      }
+      bounds[count++] = start;
+      bounds[count++] = i;
+
+      i = skipWhitespace(buf, i, end);
+      if (i >= end) {
+        return null;
+      }
+      if (buf[i] == ']') {
+        return skipWhitespace(buf, i + 1, end) == end ?
+            Arrays.copyOf(bounds, count) : null;
+      }
+      if (buf[i] != ',') {
+        return null;
+      }
+      i = skipWhitespace(buf, i + 1, end);
+      if (i >= end) {
+        return null;
+      }
+    }
+  }
+
+  /** @return the index after the value starting at i, -1 if it's cut off */
+  private static int skipValue(final byte[] buf, int i, final int end) {
+    final byte first = buf[i];
+    if (first == '"') {
+      return skipString(buf, i + 1, end);
+    }
+    if (first != '{' && first != '[') {
+      // a scalar, a null or garbage for the parser to report
+      while (i < end && buf[i] != ',' && buf[i] != ']'
+          && !isWhitespace(buf[i])) {
+        i++;
+      }
+      return i;
+    }
+    int depth = 0;
+    while (i < end) {
+      final byte b = buf[i++];
+      if (b == '"') {
+        i = skipString(buf, i, end);
+        if (i < 0) {
+          return -1;
+        }
+      } else if (b == '{' || b == '[') {
+        depth++;
+      } else if ((b == '}' || b == ']') && --depth == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return the index after the closing quote, -1 if there is none */
+  private static int skipString(final byte[] buf, int i, final int end) {
+    while (i < end) {
+      final byte b = buf[i++];
+      if (b == '\\') {
+        i++;
+      } else if (b == '"') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return the index of the first non whitespace byte from i */
+  private static int skipWhitespace(final byte[] buf, int i, final int end) {
+    while (i < end && isWhitespace(buf[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isWhitespace(final byte b) {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+
+  /**
+   * @param charset The charset of the request
+   * @return True if structural characters are single bytes that can't
+   * appear inside multi-byte characters
+   */
+  private static boolean isByteCharset(final Charset charset) {
+    return "UTF-8".equals(charset.name())
+        || "US-ASCII".equals(charset.name());
+  }
+
+  /**
+   * Parses a range of elements into their slots
+   * @param start Index of the first element
+   * @param end Index after the last element
+   */
+  private void parseRange(final int start, final int end) {
+    final IncomingDataPointParser parser = new IncomingDataPointParser();
+    int index = start;
+    try {
+      final JsonParser json = JSON.getFactory().createParser(new RangeStream(
+          array, bounds[start * 2], bounds[end * 2 - 1]));
+      try {
+        // the opening bracket of the range stream
+        json.nextToken();
+        for (; index < end; index++) {
+          final JsonToken token = json.nextToken();
+          if (token == JsonToken.VALUE_NULL) {
+            dps[index] = null;
+          } else if (token == JsonToken.START_OBJECT) {
+            dps[index] = parser.parseDataPoint(json);
+          } else {
+            throw new JsonParseException("Expected a data point object but "
+                + "found " + token, json.getCurrentLocation());
+          }
+        }
+        if (json.nextToken() != JsonToken.END_ARRAY) {
+          index = end - 1;
+          throw new JsonParseException("Unexpected content after the data "
+              + "point", json.getCurrentLocation());
+        }
+      } finally {
+        json.close();
+      }
+    } catch (IOException e) {
+      fail(index, e);
+    }
+  }
+
+  /** Records a failed element, keeping the one with the lowest index */
+  private synchronized void fail(final int index, final IOException e) {
+    if (failure == null || index < failed_index) {
+      failed_index = index;
+      failure = e;
+    }
+  }
+
+  /**
+   * Splits a range of elements in half until it's small enough, then parses
+   * it unless an earlier range already failed
+   */
+  private static final class RangeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ParallelPutParser parser;
+    private final int start;
+    private final int end;
+    private final int leaf_size;
+
+    RangeTask(final ParallelPutParser parser, final int start, final int end,
+        final int leaf_size) {
+      this.parser = parser;
+      this.start = start;
+      this.end = end;
+      this.leaf_size = leaf_size;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= leaf_size) {
+        final int failed_index = parser.failed_index;
+        if (failed_index < 0 || failed_index > start) {
+          parser.parseRange(start, end);
+        }
+        return;
+      }
+      final int middle = (start + end) >>> 1;
+      invokeAll(new RangeTask(parser, start, middle, leaf_size),
+          new RangeTask(parser, middle, end, leaf_size));
+    }
+  }
+
+  /**
+   * Reads a range of the body wrapped in brackets, so the elements in it
+   * parse as an array without copying them
+   */
+  private static final class RangeStream extends InputStream {
+    private final byte[] buf;
+    private final int end;
+    private int position;
+    private boolean opened;
+    private boolean closed;
+
+    RangeStream(final byte[] buf, final int start, final int end) {
+      this.buf = buf;
+      this.end = end;
+      position = start;
+    }
+
+    @Override
+    public int read() {
+      if (!opened) {
+        opened = true;
+        return '[';
+      }
+      if (position < end) {
+        return buf[position++] & 0xFF;
+      }
+      if (!closed) {
+        closed = true;
+        return ']';
+      }
+      return -1;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!opened || position >= end) {
+        final int next = read();
+        if (next < 0) {
+          return -1;
+        }
+        b[off] = (byte) next;
+        return 1;
+      }
+      final int length = Math.min(len, end - position);
+      System.arraycopy(buf, position, b, off, length);
+      position += length;
+      return length;
+    }
+  }
+}
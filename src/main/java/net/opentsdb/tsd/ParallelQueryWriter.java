@@ -0,0 +1,308 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.opentsdb.core.DataPoints;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Serializes the series of a query response in parallel on a shared, bounded
+ * fork-join pool. Every series is written into its own buffer by
+ * {@link QueryResponseWriter#seriesWriter} and the pieces are joined in order
+ * with a composite buffer, so nothing is copied and the output is identical
+ * to the sequential path. If the response is to be compressed, the pieces
+ * are fed to the compressor in order instead of being joined.
+ */
+final class ParallelQueryWriter {
+
+  private static final ChannelBuffer COMMA =
+    ChannelBuffers.wrappedBuffer(new byte[] { ',' });
+  private static final ChannelBuffer OPEN_ARRAY =
+    ChannelBuffers.wrappedBuffer(new byte[] { '[' });
+  private static final ChannelBuffer CLOSE_ARRAY =
+    ChannelBuffers.wrappedBuffer(new byte[] { ']' });
+  private static final ChannelBuffer CLOSE_OBJECT =
+    ChannelBuffers.wrappedBuffer(new byte[] { '}' });
+
+  /** Number of leaf tasks per pool thread to even out uneven series */
+  private static final int TASKS_PER_THREAD = 4;
+
+  /**
+   * The pool, created on first use with the configured number of threads and
+   * shared with {@link ParallelPutParser}
+   */
+  private static volatile ForkJoinPool pool;
+
+  /** Not instantiable */
+  private ParallelQueryWriter() {
+  }
+
+  /**
+   * Determines whether or not a response should be serialized in parallel
+   * @param results The data fetched from storage
+   * @return True if parallel serialization is enabled and the response has
+   * enough series to make it worthwhile
+   */
+  static boolean wantsParallel(final List<DataPoints[]> results) {
+    if (!SerializerConfig.parallelEnabled()) {
+      return false;
+    }
+    int series = 0;
+    for (DataPoints[] separate_dps : results) {
+      series += separate_dps.length;
+    }
+    return series >= SerializerConfig.parallelMinSeries();
+  }
+
+  /**
+   * Formats the results of a timeseries data query, serializing the series
+   * in parallel. The calling thread blocks until all series are written.
+   * @param query The HTTP query we're responding to
+   * @param writer The writer for the response, each series is written with
+   * its settings
+   * @param results The data fetched from storage
+   * @return A composite ChannelBuffer with the response
+   */
+  static ChannelBuffer format(final HttpQuery query,
+      final QueryResponseWriter writer, final List<DataPoints[]> results) {
+    return format(query, writer, results, null);
+  }
+
+  /**
+   * Formats the results of a timeseries data query, serializing the series
+   * in parallel and compressing the pieces as they are joined if the
+   * response is at least the compression threshold. The calling thread
+   * blocks until all series are written.
+   * @param query The HTTP query we're responding to
+   * @param writer The writer for the response, each series is written with
+   * its settings
+   * @param results The data fetched from storage
+   * @param encoding The encoding to compress with, null to never compress
+   * @return A composite ChannelBuffer with the response, or the compressed
+   * response
+   */
+  static ChannelBuffer format(final HttpQuery query,
+      final QueryResponseWriter writer, final List<DataPoints[]> results,
+      final String encoding) {
+    // read everything shared up front so the tasks only touch their series
+    final boolean wrapped = writer.wrapped();
+    final String jsonp = query.getQueryStringParam("jsonp");
+    final byte[] globals = writer.globals();
+    final StringDictionary dictionary = writer.dictionary();
+    final SerializationBudget budget = writer.budget();
+
+    final List<DataPoints> series = new ArrayList<DataPoints>();
+    for (DataPoints[] separate_dps : results) {
+      for (DataPoints dps : separate_dps) {
+        series.add(dps);
+      }
+    }
+
+    final ChannelBuffer[] pieces = new ChannelBuffer[series.size()];
+    final boolean[] cut_short = new boolean[series.size()];
+    final ForkJoinPool pool = pool();
+    final int leaf_size = Math.max(1,
+        series.size() / (pool.getParallelism() * TASKS_PER_THREAD));
+    pool.invoke(new SeriesTask(writer, series, pieces, cut_short, 0,
+        pieces.length, leaf_size));
+    if (budget != null) {
+      dropAfterBudget(pieces, cut_short);
+    }
+
+    final boolean has_jsonp = jsonp != null && !jsonp.isEmpty();
+    // series the tasks skipped once the budget ran out are left out
+    int written = 0;
+    for (ChannelBuffer piece : pieces) {
+      if (piece != null) {
+        written++;
+      }
+    }
+    final byte[] marker = writer.truncated() ?
+        budget.marker(written, pieces.length - written) : null;
+
+    final List<ChannelBuffer> response =
+      new ArrayList<ChannelBuffer>(pieces.length * 2 + 6);
+    if (has_jsonp) {
+      response.add(ChannelBuffers.wrappedBuffer(
+          (jsonp + "(").getBytes(query.getCharset())));
+    }
+    if (wrapped) {
+      // the same object the sequential writer opens, strings and globals
+      // first
+      response.add(ChannelBuffers.wrappedBuffer(new byte[] { '{' }));
+      if (dictionary != null) {
+        response.add(ChannelBuffers.wrappedBuffer("\"strings\":".getBytes()));
+        response.add(ChannelBuffers.wrappedBuffer(dictionary.table()));
+        response.add(COMMA.duplicate());
+      }
+      if (globals != null) {
+        response.add(ChannelBuffers.wrappedBuffer(
+            "\"globalAnnotations\":".getBytes()));
+        response.add(ChannelBuffers.wrappedBuffer(globals));
+        response.add(COMMA.duplicate());
+      }
+      response.add(ChannelBuffers.wrappedBuffer("\"results\":".getBytes()));
+    }
+    response.add(OPEN_ARRAY.duplicate());
+    boolean first = true;
+    for (ChannelBuffer piece : pieces) {
+      if (piece == null) {
+        continue;
+      }
+      if (!first) {
+        response.add(COMMA.duplicate());
+      }
+      response.add(piece);
+      first = false;
+    }
+    response.add(CLOSE_ARRAY.duplicate());
+    if (wrapped) {
+      if (marker != null) {
+        response.add(ChannelBuffers.wrappedBuffer(
+            ",\"truncated\":".getBytes()));
+        response.add(ChannelBuffers.wrappedBuffer(marker));
+      }
+      // all series have been recorded by now, the token is URL safe base64
+      // so it doesn't need escaping
+      final String token = writer.cursorToken();
+      if (token != null) {
+        response.add(ChannelBuffers.wrappedBuffer(
+            (",\"cursor\":\"" + token + "\"").getBytes()));
+      }
+      response.add(CLOSE_OBJECT.duplicate());
+    }
+    if (has_jsonp) {
+      response.add(ChannelBuffers.wrappedBuffer(")".getBytes()));
+    }
+    if (encoding != null) {
+      int size = 0;
+      for (ChannelBuffer piece : response) {
+        size += piece.readableBytes();
+      }
+      if (size >= SerializerConfig.compressionThreshold()) {
+        return ResponseCompressor.compress(response, size, encoding);
+      }
+    }
+    return ChannelBuffers.wrappedBuffer(
+        response.toArray(new ChannelBuffer[response.size()]));
+  }
+
+  /**
+   * Leaves out every series after the first one that was skipped or cut
+   * short, as each task stops on its own once the budget runs out. This way
+   * the series left out are always a tail, like in the sequential path.
+   * @param pieces The written series, null if skipped
+   * @param cut_short Whether each series was cut short
+   */
+  static void dropAfterBudget(final ChannelBuffer[] pieces,
+      final boolean[] cut_short) {
+    boolean dropping = false;
+    for (int i = 0; i < pieces.length; i++) {
+      if (dropping) {
+        pieces[i] = null;
+      } else if (pieces[i] == null || cut_short[i]) {
+        dropping = true;
+      }
+    }
+  }
+
+  /** @return the shared pool, creating it if necessary */
+  static ForkJoinPool pool() {
+    ForkJoinPool current = pool;
+    if (current == null) {
+      synchronized (ParallelQueryWriter.class) {
+        current = pool;
+        if (current == null) {
+          current = new ForkJoinPool(SerializerConfig.parallelThreads());
+          pool = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Shuts the pool down if it was created. Work already submitted still
+   * completes, a later call to {@link #pool} creates a new one.
+   */
+  static void shutdown() {
+    final ForkJoinPool current;
+    synchronized (ParallelQueryWriter.class) {
+      current = pool;
+      pool = null;
+    }
+    if (current != null) {
+      current.shutdown();
+    }
+  }
+
+  /**
+   * Splits a range of series in half until it's small enough, then writes
+   * each series of the range into its slot of the pieces array
+   */
+  private static final class SeriesTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final QueryResponseWriter writer;
+    private final List<DataPoints> series;
+    private final ChannelBuffer[] pieces;
+    private final boolean[] cut_short;
+    private final int start;
+    private final int end;
+    private final int leaf_size;
+
+    SeriesTask(final QueryResponseWriter writer, final List<DataPoints> series,
+        final ChannelBuffer[] pieces, final boolean[] cut_short,
+        final int start, final int end, final int leaf_size) {
+      this.writer = writer;
+      this.series = series;
+      this.pieces = pieces;
+      this.cut_short = cut_short;
+      this.start = start;
+      this.end = end;
+      this.leaf_size = leaf_size;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= leaf_size) {
+        final SerializationBudget budget = writer.budget();
+        for (int i = start; i < end; i++) {
+          if (budget != null && budget.exceeded()) {
+            return;
+          }
+          final QueryResponseWriter series_writer =
+            writer.seriesWriter(series.get(i));
+          final ChannelBuffer piece = series_writer.format();
+          // empty if the budget ran out before the series was started
+          pieces[i] = piece.readable() ? piece : null;
+          cut_short[i] = series_writer.stoppedEarly();
+        }
+        return;
+      }
+      final int middle = (start + end) >>> 1;
+      invokeAll(
+          new SeriesTask(writer, series, pieces, cut_short, start, middle,
+              leaf_size),
+          new SeriesTask(writer, series, pieces, cut_short, middle, end,
+              leaf_size));
+    }
+  }
+}
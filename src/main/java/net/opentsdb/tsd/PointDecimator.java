@@ -0,0 +1,348 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.TSQuery;
+
+/**
+ * Reduces a series to roughly a maximum number of points while it's being
+ * written, for clients that can't draw more than a point per pixel anyway.
+ * The query range is split into buckets of equal width and each bucket is
+ * reduced as the points stream through:
+ * <ul><li>{@link Mode#LTTB} keeps the first and last points as buckets of
+ * their own and splits the range into {@code maxPoints - 2} buckets for the
+ * points in between. Of each of those it keeps the point forming the largest
+ * triangle with the point kept before it and the average of the next
+ * bucket, or the last point for the final bucket. Only the bucket waiting
+ * for the next one's average is held.</li>
+ * <li>{@link Mode#MINMAX} keeps the smallest and largest value of each bucket
+ * in time order, holding nothing but the two candidates.</li></ul>
+ * Points are fed with {@link #add} and {@link #finish}, after each call the
+ * points ready to be written are available through {@link #ready}. An
+ * instance handles one series at a time and isn't thread safe.
+ */
+final class PointDecimator {
+
+  /** The reduction to apply */
+  enum Mode {
+    /** Largest triangle three buckets */
+    LTTB,
+    /** Minimum and maximum per bucket */
+    MINMAX
+  }
+
+  /** Points a single call can make ready */
+  private static final int MAX_READY = 4;
+
+  private final Mode mode;
+  private final int max_points;
+  private final long start;
+  private final long end;
+  private final double span;
+  private final int buckets;
+
+  /** Points ready to be written */
+  private final long[] ready_ts = new long[MAX_READY];
+  private final double[] ready_values = new double[MAX_READY];
+  private int ready;
+
+  /** Index of the bucket being filled, -1 before the first point */
+  private int bucket;
+
+  /** The points of the bucket being filled (LTTB only) */
+  private long[] current_ts = new long[16];
+  private double[] current_values = new double[16];
+  private int current_count;
+
+  /** The bucket waiting for the average of the next one (LTTB only) */
+  private long[] pending_ts = new long[16];
+  private double[] pending_values = new double[16];
+  private int pending_count;
+
+  /**
+   * The point kept from the previous bucket, the first point of the series
+   * to start with (LTTB only)
+   */
+  private boolean has_anchor;
+  private long anchor_ts;
+  private double anchor_value;
+
+  /** Extremes of the bucket being filled (MINMAX only) */
+  private long min_ts;
+  private double min_value;
+  private long max_ts;
+  private double max_value;
+
+  /**
+   * Default constructor
+   * @param mode The reduction to apply
+   * @param max_points The maximum number of points per series, at least 2
+   * @param start Start of the query range in milliseconds
+   * @param end End of the query range in milliseconds
+   * @throws IllegalArgumentException if max_points was less than 2
+   */
+  PointDecimator(final Mode mode, final int max_points, final long start,
+      final long end) {
+    if (max_points < 2) {
+      throw new IllegalArgumentException("max_points must be at least 2");
+    }
+    this.mode = mode;
+    this.max_points = max_points;
+    this.start = start;
+    this.end = end;
+    span = Math.max(1, end - start + 1);
+    buckets = mode == Mode.MINMAX ? max_points / 2 : max_points - 2;
+    reset();
+  }
+
+  /**
+   * Returns a decimator for the query if the caller asked for one with the
+   * {@code maxPoints} and optional {@code decimate} query string parameters
+   * @param query The HTTP query to check
+   * @param data_query The TSQuery object used to fetch the results
+   * @return A decimator or null if the points shouldn't be reduced
+   * @throws BadRequestException if a parameter was invalid
+   */
+  static PointDecimator forQuery(final HttpQuery query,
+      final TSQuery data_query) {
+    final String max = query.getQueryStringParam("maxPoints");
+    if (max == null || max.isEmpty()) {
+      return null;
+    }
+    final int max_points;
+    try {
+      max_points = Integer.parseInt(max);
+    } catch (NumberFormatException nfe) {
+      throw new BadRequestException("Invalid maxPoints: " + max);
+    }
+    if (max_points < 2) {
+      throw new BadRequestException("maxPoints must be at least 2: " + max);
+    }
+
+    final String decimate = query.getQueryStringParam("decimate");
+    final Mode mode;
+    if (decimate == null || decimate.isEmpty()
+        || decimate.equalsIgnoreCase("lttb")) {
+      mode = Mode.LTTB;
+    } else if (decimate.equalsIgnoreCase("minmax")) {
+      mode = Mode.MINMAX;
+    } else {
+      throw new BadRequestException("Invalid decimate mode: " + decimate);
+    }
+    return new PointDecimator(mode, max_points, data_query.startTime(),
+        data_query.endTime());
+  }
+
+  /** @return a new decimator with the same settings, for another thread */
+  PointDecimator copy() {
+    return new PointDecimator(mode, max_points, start, end);
+  }
+
+  /** Clears all state to start on the next series */
+  void reset() {
+    ready = 0;
+    bucket = -1;
+    current_count = 0;
+    pending_count = 0;
+    has_anchor = false;
+  }
+
+  /**
+   * Feeds the next point of the series, points have to be in time order
+   * @param timestamp The timestamp in milliseconds
+   * @param value The value
+   */
+  void add(final long timestamp, final double value) {
+    ready = 0;
+    if (mode == Mode.LTTB) {
+      if (!has_anchor) {
+        // the first point is a bucket of its own
+        has_anchor = true;
+        anchor_ts = timestamp;
+        anchor_value = value;
+        markReady(timestamp, value);
+        return;
+      }
+      if (buckets == 0) {
+        // nothing in between is kept, only hold on to the last point
+        current_ts[0] = timestamp;
+        current_values[0] = value;
+        current_count = 1;
+        return;
+      }
+    }
+    final int index = bucketOf(timestamp);
+    if (bucket >= 0 && index != bucket) {
+      closeBucket();
+    }
+    bucket = index;
+    if (mode == Mode.MINMAX) {
+      if (current_count == 0 || value < min_value) {
+        min_ts = timestamp;
+        min_value = value;
+      }
+      if (current_count == 0 || value > max_value) {
+        max_ts = timestamp;
+        max_value = value;
+      }
+      current_count++;
+      return;
+    }
+    if (current_count == current_ts.length) {
+      current_ts = grow(current_ts);
+      current_values = grow(current_values);
+    }
+    current_ts[current_count] = timestamp;
+    current_values[current_count] = value;
+    current_count++;
+  }
+
+  /** Flushes the remaining points once the series is exhausted */
+  void finish() {
+    ready = 0;
+    if (current_count == 0) {
+      return;
+    }
+    if (mode == Mode.MINMAX) {
+      closeBucket();
+      return;
+    }
+    // the last point is a bucket of its own, the final bucket is selected
+    // against it
+    current_count--;
+    final long last_ts = current_ts[current_count];
+    final double last_value = current_values[current_count];
+    if (current_count > 0) {
+      closeBucket();
+    }
+    if (pending_count > 0) {
+      selectPending(last_ts - start, last_value);
+    }
+    markReady(last_ts, last_value);
+    current_count = 0;
+  }
+
+  /** @return the number of points ready after the last call */
+  int ready() {
+    return ready;
+  }
+
+  /** @return the timestamp of a ready point in milliseconds */
+  long readyTimestamp(final int i) {
+    return ready_ts[i];
+  }
+
+  /** @return the value of a ready point */
+  double readyValue(final int i) {
+    return ready_values[i];
+  }
+
+  /** Completes the bucket being filled once a point past it arrives */
+  private void closeBucket() {
+    if (mode == Mode.MINMAX) {
+      if (min_ts <= max_ts) {
+        markReady(min_ts, min_value);
+        if (max_ts != min_ts) {
+          markReady(max_ts, max_value);
+        }
+      } else {
+        markReady(max_ts, max_value);
+        markReady(min_ts, min_value);
+      }
+      current_count = 0;
+      return;
+    }
+
+    if (pending_count > 0) {
+      selectPending(averageOffset(current_ts, current_count),
+          average(current_values, current_count));
+    }
+
+    // the current bucket now waits for the next one, swap the buffers
+    final long[] ts = pending_ts;
+    final double[] values = pending_values;
+    pending_ts = current_ts;
+    pending_values = current_values;
+    pending_count = current_count;
+    current_ts = ts;
+    current_values = values;
+    current_count = 0;
+  }
+
+  /**
+   * Keeps the pending point forming the largest triangle with the anchor and
+   * the average of the following bucket, which becomes the new anchor. Times
+   * are relative to the start of the range to keep the precision.
+   * @param cx Average offset of the next bucket's timestamps
+   * @param next_value Average value of the next bucket
+   */
+  private void selectPending(final double cx, final double next_value) {
+    final double ax = anchor_ts - start;
+    int best = 0;
+    double best_area = -1;
+    for (int i = 0; i < pending_count; i++) {
+      final double area = Math.abs((ax - cx) * (pending_values[i] - anchor_value)
+          - (ax - (pending_ts[i] - start)) * (next_value - anchor_value));
+      if (area > best_area) {
+        best_area = area;
+        best = i;
+      }
+    }
+    anchor_ts = pending_ts[best];
+    anchor_value = pending_values[best];
+    markReady(anchor_ts, anchor_value);
+    pending_count = 0;
+  }
+
+  /** Appends a point to the ready list */
+  private void markReady(final long timestamp, final double value) {
+    ready_ts[ready] = timestamp;
+    ready_values[ready] = value;
+    ready++;
+  }
+
+  /** @return the bucket of the timestamp, clamped to the range */
+  private int bucketOf(final long timestamp) {
+    final int index = (int) ((timestamp - start) / span * buckets);
+    return index < 0 ? 0 : index >= buckets ? buckets - 1 : index;
+  }
+
+  /** @return the average offset of the timestamps from the range start */
+  private double averageOffset(final long[] timestamps, final int count) {
+    double sum = 0;
+    for (int i = 0; i < count; i++) {
+      sum += timestamps[i] - start;
+    }
+    return sum / count;
+  }
+
+  private static double average(final double[] values, final int count) {
+    double sum = 0;
+    for (int i = 0; i < count; i++) {
+      sum += values[i];
+    }
+    return sum / count;
+  }
+
+  private static long[] grow(final long[] array) {
+    final long[] grown = new long[array.length * 2];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  private static double[] grow(final double[] array) {
+    final double[] grown = new double[array.length * 2];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+}
@@ -0,0 +1,363 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.IncomingDataPoint;
+
+/**
+ * A batch of data points for storage kept in columns of primitives instead of
+ * one {@link IncomingDataPoint} per point. Each point holds a timestamp, a
+ * value and the index of its series in a table of distinct metric and tag
+ * combinations, so a large batch costs a few arrays plus one entry per series
+ * rather than several objects per point.
+ * <p>
+ * Values are stored as a long when their text looks like an integer, as a
+ * double when it's a decimal number and otherwise in their textual form so
+ * that validation downstream still sees exactly what was sent, e.g. a null
+ * or a malformed value.
+ * <p>
+ * Not thread safe.
+ */
+public final class PutBatch {
+
+  /** The value is held in the longs column */
+  public static final byte TYPE_LONG = 0;
+
+  /** The value is held in the doubles column */
+  public static final byte TYPE_DOUBLE = 1;
+
+  /** The value is a string that wasn't numeric, indexed in the raw column */
+  public static final byte TYPE_RAW = 2;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  /** Timestamps as sent, in seconds or milliseconds */
+  private long[] timestamps = new long[INITIAL_CAPACITY];
+
+  /** Integer values, or the index of the raw value for TYPE_RAW */
+  private long[] longs = new long[INITIAL_CAPACITY];
+
+  /** Floating point values */
+  private double[] doubles = new double[INITIAL_CAPACITY];
+
+  /** The type of each value */
+  private byte[] types = new byte[INITIAL_CAPACITY];
+
+  /** Index of the series of each point */
+  private int[] series = new int[INITIAL_CAPACITY];
+
+  /** Number of points */
+  private int size;
+
+  /** Values that weren't numeric, usually empty */
+  private final List<String> raw_values = new ArrayList<String>(0);
+
+  /** Metric of each series */
+  private final List<String> metrics = new ArrayList<String>();
+
+  /** Tags of each series as tag key/value pairs sorted by key, may be null */
+  private final List<String[]> tag_pairs = new ArrayList<String[]>();
+
+  /** Tags of each series as a read-only map, may be null */
+  private final List<Map<String, String>> tag_maps =
+    new ArrayList<Map<String, String>>();
+
+  /** Open addressed hash table of series index + 1, 0 marks a free slot */
+  private int[] series_table = new int[64];
+
+  /**
+   * Returns the index of the series with the given metric and tags, adding
+   * it if it's new. The pairs are copied only when the series is added.
+   * @param metric The metric name, may be null
+   * @param pairs Tag keys and values alternating, sorted by key, or null if
+   * the point had no tag map
+   * @param pair_count Number of strings used in the pairs array
+   * @return The index of the series
+   */
+  public int addSeries(final String metric, final String[] pairs,
+      final int pair_count) {
+    final int mask = series_table.length - 1;
+    int slot = hash(metric, pairs, pair_count) & mask;
+    while (series_table[slot] != 0) {
+      final int idx = series_table[slot] - 1;
+      if (sameSeries(idx, metric, pairs, pair_count)) {
+        return idx;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    final int idx = metrics.size();
+    metrics.add(metric);
+    if (pairs == null) {
+      tag_pairs.add(null);
+      tag_maps.add(null);
+    } else {
+      final String[] copy = Arrays.copyOf(pairs, pair_count);
+      final HashMap<String, String> tags =
+        new HashMap<String, String>(pair_count);
+      for (int i = 0; i < pair_count; i += 2) {
+        tags.put(copy[i], copy[i + 1]);
+      }
+      tag_pairs.add(copy);
+      tag_maps.add(Collections.unmodifiableMap(tags));
+    }
+    series_table[slot] = idx + 1;
+    if (metrics.size() * 2 > series_table.length) {
+      rehash();
+    }
+    return idx;
+  }
+
+  /**
+   * Adds a point with an integer value
+   * @param series_idx Index of the series from {@link #addSeries}
+   * @param timestamp The timestamp
+   * @param value The value
+   */
+  public void addLong(final int series_idx, final long timestamp,
+      final long value) {
+    final int i = nextIndex(series_idx, timestamp, TYPE_LONG);
+    longs[i] = value;
+  }
+
+  /**
+   * Adds a point with a floating point value
+   * @param series_idx Index of the series from {@link #addSeries}
+   * @param timestamp The timestamp
+   * @param value The value
+   */
+  public void addDouble(final int series_idx, final long timestamp,
+      final double value) {
+    final int i = nextIndex(series_idx, timestamp, TYPE_DOUBLE);
+    doubles[i] = value;
+  }
+
+  /**
+   * Adds a point with a value that isn't numeric
+   * @param series_idx Index of the series from {@link #addSeries}
+   * @param timestamp The timestamp
+   * @param value The value as sent, may be null
+   */
+  public void addRaw(final int series_idx, final long timestamp,
+      final String value) {
+    final int i = nextIndex(series_idx, timestamp, TYPE_RAW);
+    longs[i] = raw_values.size();
+    raw_values.add(value);
+  }
+
+  /** @return the number of points in the batch */
+  public int size() {
+    return size;
+  }
+
+  /** @return the number of distinct series in the batch */
+  public int seriesCount() {
+    return metrics.size();
+  }
+
+  /**
+   * @param i Index of the point
+   * @return the index of the series of the point
+   */
+  public int series(final int i) {
+    checkIndex(i);
+    return series[i];
+  }
+
+  /**
+   * @param i Index of the point
+   * @return the timestamp of the point
+   */
+  public long timestamp(final int i) {
+    checkIndex(i);
+    return timestamps[i];
+  }
+
+  /**
+   * @param i Index of the point
+   * @return one of the TYPE constants
+   */
+  public byte valueType(final int i) {
+    checkIndex(i);
+    return types[i];
+  }
+
+  /**
+   * @param i Index of the point
+   * @return the integer value of the point
+   * @throws ClassCastException if the value is not an integer
+   */
+  public long longValue(final int i) {
+    if (valueType(i) != TYPE_LONG) {
+      throw new ClassCastException("Value at " + i + " is not an integer");
+    }
+    return longs[i];
+  }
+
+  /**
+   * @param i Index of the point
+   * @return the floating point value of the point
+   * @throws ClassCastException if the value is not a floating point number
+   */
+  public double doubleValue(final int i) {
+    if (valueType(i) != TYPE_DOUBLE) {
+      throw new ClassCastException("Value at " + i + " is not a double");
+    }
+    return doubles[i];
+  }
+
+  /**
+   * @param i Index of the point
+   * @return the value of the point in textual form, the way it would be
+   * handed to the put RPC
+   */
+  public String valueText(final int i) {
+    switch (valueType(i)) {
+      case TYPE_LONG:
+        return Long.toString(longs[i]);
+      case TYPE_DOUBLE:
+        return Double.toString(doubles[i]);
+      default:
+        return raw_values.get((int) longs[i]);
+    }
+  }
+
+  /**
+   * @param series_idx Index of the series
+   * @return the metric of the series, may be null
+   */
+  public String metric(final int series_idx) {
+    return metrics.get(series_idx);
+  }
+
+  /**
+   * @param series_idx Index of the series
+   * @return a read-only map of the tags of the series, may be null
+   */
+  public Map<String, String> tags(final int series_idx) {
+    return tag_maps.get(series_idx);
+  }
+
+  /**
+   * Converts the batch to the list the put RPC works with. Every data point
+   * gets its own tag map so the callers are free to modify them.
+   * @return A list with one data point per point in the batch
+   */
+  public List<IncomingDataPoint> toDataPoints() {
+    final ArrayList<IncomingDataPoint> dps =
+      new ArrayList<IncomingDataPoint>(size);
+    for (int i = 0; i < size; i++) {
+      final IncomingDataPoint dp = new IncomingDataPoint();
+      dp.setMetric(metrics.get(series[i]));
+      dp.setTimestamp(timestamps[i]);
+      dp.setValue(valueText(i));
+      final Map<String, String> tags = tag_maps.get(series[i]);
+      if (tags != null) {
+        dp.setTags(new HashMap<String, String>(tags));
+      }
+      dps.add(dp);
+    }
+    return dps;
+  }
+
+  /**
+   * Appends the common columns of a point, growing them if necessary
+   * @return The index of the new point
+   */
+  private int nextIndex(final int series_idx, final long timestamp,
+      final byte type) {
+    if (series_idx < 0 || series_idx >= metrics.size()) {
+      throw new IllegalArgumentException("Unknown series: " + series_idx);
+    }
+    if (size == timestamps.length) {
+      final int capacity = size * 2;
+      timestamps = Arrays.copyOf(timestamps, capacity);
+      longs = Arrays.copyOf(longs, capacity);
+      doubles = Arrays.copyOf(doubles, capacity);
+      types = Arrays.copyOf(types, capacity);
+      series = Arrays.copyOf(series, capacity);
+    }
+    timestamps[size] = timestamp;
+    types[size] = type;
+    series[size] = series_idx;
+    return size++;
+  }
+
+  /** @throws IndexOutOfBoundsException if the point doesn't exist */
+  private void checkIndex(final int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+    }
+  }
+
+  /** @return True if the series has exactly the given metric and tags */
+  private boolean sameSeries(final int idx, final String metric,
+      final String[] pairs, final int pair_count) {
+    final String existing = metrics.get(idx);
+    if (existing == null ? metric != null : !existing.equals(metric)) {
+      return false;
+    }
+    final String[] existing_pairs = tag_pairs.get(idx);
+    if (existing_pairs == null || pairs == null) {
+      return existing_pairs == pairs;
+    }
+    if (existing_pairs.length != pair_count) {
+      return false;
+    }
+    for (int i = 0; i < pair_count; i++) {
+      final String a = existing_pairs[i];
+      final String b = pairs[i];
+      if (a == null ? b != null : !a.equals(b)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Doubles the series table and reinserts every series */
+  private void rehash() {
+    series_table = new int[series_table.length * 2];
+    final int mask = series_table.length - 1;
+    for (int idx = 0; idx < metrics.size(); idx++) {
+      final String[] pairs = tag_pairs.get(idx);
+      int slot = hash(metrics.get(idx), pairs,
+          pairs == null ? 0 : pairs.length) & mask;
+      while (series_table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      series_table[slot] = idx + 1;
+    }
+  }
+
+  /** @return the hash of a series, spread for the power of two table */
+  private static int hash(final String metric, final String[] pairs,
+      final int pair_count) {
+    int hash = metric == null ? 0 : metric.hashCode();
+    if (pairs == null) {
+      // tell a missing tag map apart from an empty one
+      hash = ~hash;
+    } else {
+      for (int i = 0; i < pair_count; i++) {
+        hash = 31 * hash + (pairs[i] == null ? 0 : pairs[i].hashCode());
+      }
+    }
+    return hash ^ (hash >>> 16);
+  }
+}
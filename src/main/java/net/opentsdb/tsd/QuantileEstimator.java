@@ -0,0 +1,163 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a single quantile of a stream of values in constant memory with
+ * the P-square algorithm of Jain and Chlamtac. Five markers track the
+ * minimum, the maximum, the quantile and the points half way to it and are
+ * moved along a parabola as values arrive. The first five values are kept
+ * as they are, so short streams get the exact, interpolated quantile.
+ */
+final class QuantileEstimator {
+
+  /** The quantile to estimate, between 0 and 1 */
+  private final double quantile;
+
+  /** Marker heights */
+  private final double[] heights = new double[5];
+
+  /** Actual marker positions, 1 based */
+  private final int[] positions = new int[5];
+
+  /** Desired marker positions */
+  private final double[] desired = new double[5];
+
+  /** Increments of the desired positions per value */
+  private final double[] increments = new double[5];
+
+  /** Number of values seen */
+  private long count;
+
+  /**
+   * Default constructor
+   * @param quantile The quantile to estimate, between 0 and 1
+   * @throws IllegalArgumentException if the quantile was out of range
+   */
+  QuantileEstimator(final double quantile) {
+    if (!(quantile > 0 && quantile < 1)) {
+      throw new IllegalArgumentException(
+          "Quantile must be between 0 and 1: " + quantile);
+    }
+    this.quantile = quantile;
+    increments[0] = 0;
+    increments[1] = quantile / 2;
+    increments[2] = quantile;
+    increments[3] = (1 + quantile) / 2;
+    increments[4] = 1;
+  }
+
+  /** @return the quantile being estimated */
+  double quantile() {
+    return quantile;
+  }
+
+  /** Clears all state to start on a new stream */
+  void reset() {
+    count = 0;
+  }
+
+  /**
+   * Adds a value to the stream
+   * @param value The value, must not be NaN
+   */
+  void add(final double value) {
+    if (count < 5) {
+      heights[(int) count++] = value;
+      if (count == 5) {
+        Arrays.sort(heights);
+        for (int i = 0; i < 5; i++) {
+          positions[i] = i + 1;
+        }
+        desired[0] = 1;
+        desired[1] = 1 + 2 * quantile;
+        desired[2] = 1 + 4 * quantile;
+        desired[3] = 3 + 2 * quantile;
+        desired[4] = 5;
+      }
+      return;
+    }
+    count++;
+
+    // find the cell the value falls in, stretching the ends if needed
+    final int cell;
+    if (value < heights[0]) {
+      heights[0] = value;
+      cell = 0;
+    } else if (value >= heights[4]) {
+      heights[4] = value;
+      cell = 3;
+    } else {
+      int i = 1;
+      while (value >= heights[i]) {
+        i++;
+      }
+      cell = i - 1;
+    }
+    for (int i = cell + 1; i < 5; i++) {
+      positions[i]++;
+    }
+    for (int i = 0; i < 5; i++) {
+      desired[i] += increments[i];
+    }
+
+    // move the middle markers that are off by a position or more
+    for (int i = 1; i < 4; i++) {
+      final double offset = desired[i] - positions[i];
+      if ((offset >= 1 && positions[i + 1] - positions[i] > 1)
+          || (offset <= -1 && positions[i - 1] - positions[i] < -1)) {
+        final int step = offset > 0 ? 1 : -1;
+        final double height = parabolic(i, step);
+        if (heights[i - 1] < height && height < heights[i + 1]) {
+          heights[i] = height;
+        } else {
+          heights[i] = heights[i] + step * (heights[i + step] - heights[i])
+              / (positions[i + step] - positions[i]);
+        }
+        positions[i] += step;
+      }
+    }
+  }
+
+  /**
+   * @return the estimated quantile or NaN if no values were added
+   */
+  double estimate() {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (count >= 5) {
+      return heights[2];
+    }
+    // interpolate between the closest of the few values seen
+    final double[] sorted = Arrays.copyOf(heights, (int) count);
+    Arrays.sort(sorted);
+    final double rank = quantile * (count - 1);
+    final int lower = (int) rank;
+    if (lower + 1 >= sorted.length) {
+      return sorted[lower];
+    }
+    return sorted[lower] + (rank - lower) * (sorted[lower + 1] - sorted[lower]);
+  }
+
+  /** @return the parabolic prediction for moving marker i by step */
+  private double parabolic(final int i, final int step) {
+    final double left = positions[i] - positions[i - 1];
+    final double right = positions[i + 1] - positions[i];
+    return heights[i] + step / (double) (positions[i + 1] - positions[i - 1])
+        * ((left + step) * (heights[i + 1] - heights[i]) / right
+        + (right - step) * (heights[i] - heights[i - 1]) / left);
+  }
+}
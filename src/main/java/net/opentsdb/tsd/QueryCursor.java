@@ -0,0 +1,376 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.utils.JSON;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.jboss.netty.handler.codec.base64.Base64Dialect;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Lets polling clients fetch only the points they haven't seen yet. A query
+ * can pass a {@code since} timestamp that applies to every series and/or the
+ * {@code cursor} token returned with the previous response, which holds the
+ * last timestamp written for each series. Every series is still written with
+ * its identity, just without the points the client already has.
+ * <p>
+ * Series are identified by a 32 bit hash of their sorted TSUIDs, or of the
+ * metric and tags if they have none. The token is a URL safe base64 string
+ * of the hashes in order and the timestamps relative to the latest one, all
+ * as varints, so it takes a few bytes per series. Should two series share a
+ * hash, the older timestamp wins so no points are skipped.
+ * <p>
+ * The token grows with the number of series and the request line of a GET
+ * is limited to a few KB, so a query POSTed as JSON may instead carry the
+ * token in a top level {@code "cursor"} field of its body. The field is
+ * removed before the body is bound to a {@code TSQuery}, see
+ * {@link #withoutCursor}.
+ * <p>
+ * One instance is shared by all writers of a response and is thread safe.
+ */
+final class QueryCursor {
+
+  /** Field of a POSTed query body that may hold the token */
+  static final String BODY_FIELD = "cursor";
+  private static final String BODY_FIELD_QUOTED = "\"" + BODY_FIELD + "\"";
+
+  /** Version of the token format */
+  private static final int VERSION = 1;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /** Timestamps up to this are in seconds, like everywhere else in the TSD */
+  private static final long MAX_SECONDS = 9999999999L;
+
+  /** Start of the points to write for series not in the cursor, in ms */
+  private final long since;
+
+  /** Last timestamps from the previous response by series hash, in ms */
+  private final Map<Long, Long> previous;
+
+  /** Whether or not to return a cursor with the response */
+  private final boolean wants_cursor;
+
+  /** Last timestamps written in this response by series hash */
+  private final TreeMap<Long, Long> latest = new TreeMap<Long, Long>();
+
+  /**
+   * Default constructor
+   * @param since Points at or before this ms timestamp are skipped, use
+   * Long.MIN_VALUE to write all of them
+   * @param previous Last timestamps by series hash from a previous response
+   * @param wants_cursor Whether or not to return a cursor with the response
+   */
+  QueryCursor(final long since, final Map<Long, Long> previous,
+      final boolean wants_cursor) {
+    this.since = since;
+    this.previous = previous;
+    this.wants_cursor = wants_cursor;
+  }
+
+  /**
+   * Returns a cursor for the query if the caller passed a {@code since}
+   * timestamp in seconds or milliseconds or a {@code cursor}, which may be
+   * empty on the first poll. The cursor is taken from the query string or
+   * else from the {@code cursor} field of a POSTed JSON body.
+   * @param query The HTTP query to check
+   * @return A cursor or null if all points should be written
+   * @throws BadRequestException if a parameter was invalid
+   */
+  static QueryCursor forQuery(final HttpQuery query) {
+    final String since_param = query.getQueryStringParam("since");
+    String token = query.getQueryStringParam("cursor");
+    boolean wants_cursor = query.hasQueryStringParam("cursor");
+    if (!wants_cursor) {
+      token = bodyToken(query);
+      wants_cursor = token != null;
+    }
+    if ((since_param == null || since_param.isEmpty()) && !wants_cursor) {
+      return null;
+    }
+
+    long since = Long.MIN_VALUE;
+    if (since_param != null && !since_param.isEmpty()) {
+      try {
+        since = Long.parseLong(since_param);
+      } catch (NumberFormatException nfe) {
+        throw new BadRequestException("Invalid since timestamp: " + since_param);
+      }
+      if (since <= MAX_SECONDS) {
+        // anything within the second has been seen
+        since = since * 1000 + 999;
+      }
+    }
+
+    Map<Long, Long> previous = Collections.emptyMap();
+    if (token != null && !token.isEmpty()) {
+      try {
+        previous = decode(token);
+      } catch (IllegalArgumentException iae) {
+        throw new BadRequestException("Invalid cursor: " + token, iae);
+      }
+    }
+    return new QueryCursor(since, previous, wants_cursor);
+  }
+
+  /**
+   * Reads the cursor from the top level {@code cursor} field of a POSTed
+   * JSON body
+   * @param query The HTTP query to check
+   * @return The token, empty on the first poll, or null if the body doesn't
+   * have the field
+   * @throws BadRequestException if the field isn't a string or null
+   */
+  static String bodyToken(final HttpQuery query) {
+    if (query.method() != HttpMethod.POST || !query.hasContent()) {
+      return null;
+    }
+    final String body = query.getContent();
+    if (body.indexOf(BODY_FIELD_QUOTED) < 0) {
+      return null;
+    }
+    try {
+      final JsonParser parser = JSON.getFactory().createParser(body);
+      try {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+          return null;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          final String field = parser.getCurrentName();
+          final JsonToken token = parser.nextToken();
+          if (!BODY_FIELD.equals(field)) {
+            parser.skipChildren();
+          } else if (token == JsonToken.VALUE_STRING) {
+            return parser.getText();
+          } else if (token == JsonToken.VALUE_NULL) {
+            return "";
+          } else {
+            throw new BadRequestException("Invalid cursor: " + token);
+          }
+        }
+        return null;
+      } finally {
+        parser.close();
+      }
+    } catch (IOException e) {
+      // parsing the query itself reports the error
+      return null;
+    }
+  }
+
+  /**
+   * Removes the top level {@code cursor} field from a JSON query body so it
+   * can be bound to a {@code TSQuery}
+   * @param body The body of the request
+   * @return The body without the field, the same string if it had none
+   * @throws IllegalArgumentException if the body had the field but could
+   * not be parsed
+   */
+  static String withoutCursor(final String body) {
+    if (body == null || body.indexOf(BODY_FIELD_QUOTED) < 0) {
+      return body;
+    }
+    try {
+      final JsonNode root = JSON.getMapper().readTree(body);
+      if (!(root instanceof ObjectNode) || !root.has(BODY_FIELD)) {
+        return body;
+      }
+      ((ObjectNode) root).remove(BODY_FIELD);
+      return JSON.getMapper().writeValueAsString(root);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Computes the identity of a series, sorting its TSUIDs in place
+   * @param dps The series
+   * @return The unsigned 32 bit hash identifying the series in the cursor
+   */
+  static long identity(final DataPoints dps) {
+    int hash = 0x811c9dc5;
+    final List<String> tsuids = dps.getTSUIDs();
+    if (tsuids != null && !tsuids.isEmpty()) {
+      Collections.sort(tsuids);
+      for (String tsuid : tsuids) {
+        hash = hash(hash, tsuid);
+      }
+      return hash & 0xFFFFFFFFL;
+    }
+    hash = hash(hash, dps.metricName());
+    if (dps.getTags() != null) {
+      for (Map.Entry<String, String> tag :
+          new TreeMap<String, String>(dps.getTags()).entrySet()) {
+        hash = hash(hash, tag.getKey());
+        hash = hash(hash, tag.getValue());
+      }
+    }
+    return hash & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Returns where to start writing the points of a series
+   * @param identity The identity of the series
+   * @param start Start of the query range in milliseconds
+   * @return The first timestamp to write in milliseconds
+   */
+  long startFor(final long identity, final long start) {
+    final Long last = previous.get(identity);
+    final long seen = last != null ? last : since;
+    return seen == Long.MIN_VALUE ? start : Math.max(start, seen + 1);
+  }
+
+  /**
+   * Records the last point written for a series. If nothing new was
+   * written, the timestamp from the previous cursor is kept.
+   * @param identity The identity of the series
+   * @param last The timestamp of the last point written in milliseconds or
+   * Long.MIN_VALUE if none was written
+   */
+  synchronized void record(final long identity, final long last) {
+    long timestamp = last;
+    if (timestamp == Long.MIN_VALUE) {
+      final Long seen = previous.get(identity);
+      if (seen == null) {
+        return;
+      }
+      timestamp = seen;
+    }
+    final Long existing = latest.get(identity);
+    if (existing == null || timestamp < existing) {
+      latest.put(identity, timestamp);
+    }
+  }
+
+  /** @return whether or not to return a cursor with the response */
+  boolean wantsCursor() {
+    return wants_cursor;
+  }
+
+  /** @return the token for the next poll */
+  synchronized String token() {
+    final BitWriter out = new BitWriter();
+    out.writeVarint(VERSION);
+    out.writeVarint(latest.size());
+    if (!latest.isEmpty()) {
+      final long base = Collections.max(latest.values());
+      out.writeVarint(zigzag(base));
+      long previous_hash = 0;
+      for (Map.Entry<Long, Long> entry : latest.entrySet()) {
+        final long hash = entry.getKey();
+        out.writeVarint(hash - previous_hash);
+        out.writeVarint(base - entry.getValue());
+        previous_hash = hash;
+      }
+    }
+    final ChannelBuffer bytes = ChannelBuffers.buffer(out.byteLength());
+    out.writeTo(bytes);
+    // the padding isn't needed to decode and would have to be escaped
+    return Base64.encode(bytes, false, Base64Dialect.URL_SAFE).toString(ASCII)
+        .replace("=", "");
+  }
+
+  /**
+   * Decodes a token
+   * @param token The token from a previous response
+   * @return The last timestamps by series hash
+   * @throws IllegalArgumentException if the token was malformed
+   */
+  static Map<Long, Long> decode(final String token) {
+    final StringBuilder padded = new StringBuilder(token);
+    while (padded.length() % 4 != 0) {
+      padded.append('=');
+    }
+    final ChannelBuffer bytes = Base64.decode(ChannelBuffers.copiedBuffer(
+        padded, ASCII), Base64Dialect.URL_SAFE);
+    if (readVarint(bytes) != VERSION) {
+      throw new IllegalArgumentException("Unknown cursor version");
+    }
+    final long count = readVarint(bytes);
+    if (count > bytes.readableBytes()) {
+      throw new IllegalArgumentException("Truncated cursor");
+    }
+    final Map<Long, Long> entries = new HashMap<Long, Long>((int) count * 2);
+    if (count > 0) {
+      final long base = unzigzag(readVarint(bytes));
+      long hash = 0;
+      for (int i = 0; i < count; i++) {
+        hash += readVarint(bytes);
+        if (hash > 0xFFFFFFFFL) {
+          throw new IllegalArgumentException("Malformed hash in cursor");
+        }
+        entries.put(hash, base - readVarint(bytes));
+      }
+    }
+    if (bytes.readable()) {
+      throw new IllegalArgumentException("Trailing bytes in cursor");
+    }
+    return entries;
+  }
+
+  /** Folds a string into an FNV-1a hash, with a separator after it */
+  private static int hash(int hash, final String str) {
+    if (str != null) {
+      for (int i = 0; i < str.length(); i++) {
+        hash ^= str.charAt(i);
+        hash *= 0x01000193;
+      }
+    }
+    hash ^= 0xFFFF;
+    return hash * 0x01000193;
+  }
+
+  private static long zigzag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * Reads an unsigned varint
+   * @throws IllegalArgumentException if the bytes ran out or it's too long
+   */
+  private static long readVarint(final ChannelBuffer bytes) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!bytes.readable()) {
+        throw new IllegalArgumentException("Truncated cursor");
+      }
+      final byte b = bytes.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint in cursor");
+  }
+}
@@ -0,0 +1,125 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+/**
+ * Adapts a {@link QueryResponseWriter} to Netty's {@link ChunkedInput} so
+ * that the {@link org.jboss.netty.handler.stream.ChunkedWriteHandler} pulls
+ * the response one HTTP chunk at a time, only when the channel is writable.
+ * That keeps the amount of buffered output bounded by roughly the chunk size
+ * plus the channel's write buffer high water mark.
+ */
+final class QueryResponseStream implements ChunkedInput {
+
+  /** The writer producing the response */
+  private final QueryResponseWriter writer;
+
+  /** Approximate size of each chunk in bytes */
+  private final int chunk_size;
+
+  /** Compresses the chunks, null to send them as is */
+  private final ResponseCompressor compressor;
+
+  /** Set once the last chunk has been handed out */
+  private boolean end_of_input;
+
+  /**
+   * Default constructor
+   * @param writer The writer producing the response
+   * @param chunk_size Approximate size of each chunk in bytes
+   */
+  QueryResponseStream(final QueryResponseWriter writer, final int chunk_size) {
+    this(writer, chunk_size, null);
+  }
+
+  /**
+   * Constructor compressing the chunks. Each chunk is flushed so the client
+   * can decompress it as soon as it arrives.
+   * @param writer The writer producing the response
+   * @param chunk_size Approximate size of each uncompressed chunk in bytes
+   * @param compressor The compressor for the chunks, null to send them as is
+   */
+  QueryResponseStream(final QueryResponseWriter writer, final int chunk_size,
+      final ResponseCompressor compressor) {
+    this.writer = writer;
+    this.chunk_size = chunk_size;
+    this.compressor = compressor;
+  }
+
+  @Override
+  public boolean hasNextChunk() {
+    return !end_of_input;
+  }
+
+  /**
+   * Writes the next piece of the response into a fresh chunk. Once the writer
+   * is out of data the terminating chunk is returned.
+   * @return The next chunk or null if the input has been exhausted
+   */
+  @Override
+  public Object nextChunk() {
+    if (end_of_input) {
+      return null;
+    }
+    if (!writer.isFinished()) {
+      final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(chunk_size);
+      writer.writeTo(buffer, chunk_size);
+      if (compressor != null) {
+        return new DefaultHttpChunk(compress(buffer));
+      }
+      // an empty chunk would terminate the stream early so only hand out
+      // chunks with data
+      if (buffer.readable()) {
+        return new DefaultHttpChunk(buffer);
+      }
+    }
+    end_of_input = true;
+    return HttpChunk.LAST_CHUNK;
+  }
+
+  @Override
+  public boolean isEndOfInput() {
+    return end_of_input;
+  }
+
+  /** Returns the compressor's deflater, the writer only holds references */
+  @Override
+  public void close() {
+    if (compressor != null) {
+      compressor.release();
+    }
+  }
+
+  /**
+   * Compresses a piece of the response, finishing the compressed stream with
+   * the last one. Never empty as the compressor writes a header first and
+   * flushing always produces output.
+   */
+  private ChannelBuffer compress(final ChannelBuffer buffer) {
+    final ChannelBuffer output =
+      ChannelBuffers.dynamicBuffer(Math.max(64, buffer.readableBytes() / 2));
+    compressor.write(output, buffer);
+    if (writer.isFinished()) {
+      compressor.finish(output);
+    } else {
+      compressor.flush(output);
+    }
+    return output;
+  }
+}
@@ -0,0 +1,1100 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.utils.JSON;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes the results of a timeseries data query as JSON. The writer keeps a
+ * cursor into the results so the response can either be built in one go via
+ * {@link #format} or produced piece by piece via {@link #writeTo}, e.g. when
+ * streaming the response as HTTP chunks. In the latter case only the piece
+ * being written is held in memory, regardless of the number of data points.
+ * <p>
+ * Writers are single use and not thread safe.
+ */
+final class QueryResponseWriter {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(QueryResponseWriter.class);
+
+  /** Number of points written between checks of the budget */
+  private static final int BUDGET_CHECK_INTERVAL = 64;
+
+  /** Length of the object start and field name ahead of a cached header */
+  private static final int METRIC_PREFIX_LENGTH = "{\"metric\":".length();
+
+  /** The query we're responding to, null when writing bare series */
+  private final HttpQuery query;
+
+  /** The TSQuery object used to fetch the results */
+  private final TSQuery data_query;
+
+  /** The global annotations serialized once as a JSON array, may be null */
+  private final byte[] globals;
+
+  /** Whether or not to write data points as arrays instead of a map */
+  private final boolean as_arrays;
+
+  /**
+   * Whether or not to wrap the series in an object with the global
+   * annotations written once at the top instead of in each series
+   */
+  private final boolean wrapped;
+
+  /** An optional JSONP callback function name */
+  private final String jsonp;
+
+  /** Optional cache of encoded series headers */
+  private final SeriesHeaderCache header_cache;
+
+  /** Optional string table the series headers refer to */
+  private final StringDictionary dictionary;
+
+  /** Optionally reduces the points of each series */
+  private final PointDecimator decimator;
+
+  /** Optionally summarizes each series instead of writing the points */
+  private final SeriesSummary summary;
+
+  /** Whether or not to write series on a regular grid as dense arrays */
+  private final boolean dense;
+
+  /** Optionally skips the points the client has already seen */
+  private final QueryCursor cursor;
+
+  /** Optionally limits the time and bytes spent on the response */
+  private final SerializationBudget budget;
+
+  /** Number of series in the results */
+  private final int total_series;
+
+  /** Output stream the generator writes to, re-pointed for each piece */
+  private final ChannelBufferSink sink = new ChannelBufferSink();
+
+  /** Writes the data points straight into the buffer, bypassing the generator */
+  private final DataPointWriter dp_writer = new DataPointWriter();
+
+  /** Iterator over the results, one array of series per sub query */
+  private final Iterator<DataPoints[]> results;
+
+  /** The array of series currently being written */
+  private DataPoints[] group;
+
+  /** Index of the next series to write from the current group */
+  private int group_idx;
+
+  /** Iterator over the points of the series currently being written */
+  private SeekableView points;
+
+  /** Whether or not no point of the current series has been written yet */
+  private boolean first_point;
+
+  /** Step between the values of the current series, zero if it isn't dense */
+  private long dense_step;
+
+  /** Timestamp of the next value of the current dense series */
+  private long dense_next;
+
+  /** Whether the current series is buffered until we know if it's dense */
+  private boolean probing;
+
+  /** The series being probed, to check the rest of a long one */
+  private DataPoints probe_series;
+
+  /** Timestamps in milliseconds and values of the probed points */
+  private long[] probe_timestamps;
+  private double[] probe_values;
+
+  /** Number of probed points */
+  private int probe_count;
+
+  /** First timestamp to write for the current series in milliseconds */
+  private long series_start;
+
+  /** Last timestamp written for the current series, for the cursor */
+  private long series_last;
+
+  /** Identity of the current series in the cursor */
+  private long series_identity;
+
+  /** Number of series started so far */
+  private int series_written;
+
+  /** Whether or not the current series was cut short by the budget */
+  private boolean series_truncated;
+
+  /** Whether or not the response was cut short by the budget */
+  private boolean truncated;
+
+  /** Points left to write until the next budget check */
+  private int budget_countdown = BUDGET_CHECK_INTERVAL;
+
+  /** Writer index of the buffer up to which bytes were charged */
+  private int charged_index;
+
+  /** The generator, null until the response has been started */
+  private JsonGenerator json;
+
+  /** Whether or not the response has been completely written */
+  private boolean finished;
+
+  /**
+   * Default constructor
+   * @param query The HTTP query we're responding to
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   */
+  QueryResponseWriter(final HttpQuery query, final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals) {
+    this(query, data_query, results, globals, SeriesHeaderCache.shared());
+  }
+
+  /**
+   * Constructor with an explicit header cache
+   * @param query The HTTP query we're responding to
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param header_cache An optional cache of encoded series headers
+   */
+  QueryResponseWriter(final HttpQuery query, final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals,
+      final SeriesHeaderCache header_cache) {
+    this(query, data_query, results, serializeGlobals(data_query, globals),
+        query.hasQueryStringParam("arrays"),
+        query.hasQueryStringParam("wrapped"),
+        query.getQueryStringParam("jsonp"), header_cache,
+        query.hasQueryStringParam("dictionary") ?
+            StringDictionary.build(results) : null,
+        PointDecimator.forQuery(query, data_query),
+        SeriesSummary.forQuery(query), query.hasQueryStringParam("dense"),
+        QueryCursor.forQuery(query), SerializationBudget.forQuery(query));
+  }
+
+  /**
+   * Constructor taking the already parsed query string parameters
+   * @param query The HTTP query we're responding to or null to write the
+   * series objects without the enclosing array
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals The serialized global annotations, may be null
+   * @param as_arrays Whether or not to write data points as arrays
+   * @param wrapped Whether or not to write the wrapped response object
+   * @param jsonp An optional JSONP callback function name
+   * @param header_cache An optional cache of encoded series headers
+   * @param dictionary An optional string table for the series headers, it
+   * implies the wrapped response
+   * @param decimator An optional decimator to reduce the points with
+   * @param summary An optional summary to write instead of the points
+   * @param dense Whether or not to write regular series as dense arrays
+   * @param cursor An optional cursor to skip the points already seen, it
+   * implies the wrapped response if a new cursor is requested
+   * @param budget An optional limit on the time and bytes spent writing, it
+   * implies the wrapped response
+   */
+  private QueryResponseWriter(final HttpQuery query, final TSQuery data_query,
+      final List<DataPoints[]> results, final byte[] globals,
+      final boolean as_arrays, final boolean wrapped, final String jsonp,
+      final SeriesHeaderCache header_cache, final StringDictionary dictionary,
+      final PointDecimator decimator, final SeriesSummary summary,
+      final boolean dense,
+      final QueryCursor cursor, final SerializationBudget budget) {
+    this.query = query;
+    this.data_query = data_query;
+    this.results = results.iterator();
+    this.globals = globals;
+    this.as_arrays = as_arrays;
+    // the cursor for the next poll, the string table and the truncation
+    // marker are written in the wrapping object. A budget always wraps the
+    // results so the shape doesn't depend on whether it ran out.
+    this.wrapped = wrapped || dictionary != null
+        || (cursor != null && cursor.wantsCursor()) || budget != null;
+    this.jsonp = jsonp;
+    // cached headers hold the strings themselves
+    this.header_cache = dictionary == null ? header_cache : null;
+    this.dictionary = dictionary;
+    this.decimator = decimator;
+    this.summary = summary;
+    this.dense = dense;
+    this.cursor = cursor;
+    this.budget = budget;
+    int series = 0;
+    for (DataPoints[] separate_dps : results) {
+      series += separate_dps.length;
+    }
+    total_series = series;
+  }
+
+  /**
+   * Formats the results of a timeseries data query for the given HTTP query.
+   * If streaming was requested and the connection supports it, the response
+   * body is sent as HTTP chunks once the query replies and an empty buffer is
+   * returned. Otherwise the entire response is returned in a single buffer.
+   * @param query The HTTP query we're responding to
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A ChannelBuffer object to pass on to the caller
+   */
+  static ChannelBuffer formatQuery(final HttpQuery query,
+      final TSQuery data_query, final List<DataPoints[]> results,
+      final List<Annotation> globals) {
+    return formatQuery(query, data_query, results, globals,
+        ResponseCache.shared());
+  }
+
+  /**
+   * Formats the results of a timeseries data query, serving and storing the
+   * response in the given cache. A cached response is always returned in a
+   * single buffer and streamed responses aren't cached. Large responses may
+   * be serialized on the async pool, in which case the returned buffer is
+   * empty and the body is filled in once the RPC replies.
+   * @param query The HTTP query we're responding to
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param response_cache An optional cache of complete responses
+   * @return A ChannelBuffer object to pass on to the caller
+   */
+  static ChannelBuffer formatQuery(final HttpQuery query,
+      final TSQuery data_query, final List<DataPoints[]> results,
+      final List<Annotation> globals, final ResponseCache response_cache) {
+    final String key = response_cache == null ? null :
+      ResponseCache.key(query, data_query, SerializerConfig.responseCacheBucket());
+    if (key != null) {
+      final byte[] cached = response_cache.get(key);
+      if (cached != null) {
+        // stored uncompressed so it can be served to any client
+        final String encoding =
+          ResponseCompressor.encodingFor(query, cached.length);
+        return encoding == null ? ChannelBuffers.wrappedBuffer(cached) :
+          ResponseCompressor.compress(ChannelBuffers.wrappedBuffer(cached),
+              encoding);
+      }
+    }
+
+    final QueryResponseWriter writer =
+      new QueryResponseWriter(query, data_query, results, globals);
+    if (wantsStreaming(query) && StreamingResponseHandler.canStream(query)) {
+      final String encoding = ResponseCompressor.encoding(query);
+      return StreamingResponseHandler.stream(query,
+          new QueryResponseStream(writer, SerializerConfig.streamChunkSize(),
+              encoding == null ? null : new ResponseCompressor(encoding)),
+          encoding);
+    }
+    if (AsyncResponseHandler.wantsAsync(results)) {
+      final ChannelBuffer pending = AsyncResponseHandler.defer(query,
+          new Callable<ChannelBuffer>() {
+            @Override
+            public ChannelBuffer call() {
+              return format(query, writer, results, key, response_cache);
+            }
+          });
+      if (pending != null) {
+        return pending;
+      }
+    }
+    return format(query, writer, results, key, response_cache);
+  }
+
+  /**
+   * Serializes a complete response, in parallel if it's large enough, and
+   * stores it in the cache. The response is compressed if the client accepts
+   * it, as it's written or joined unless it has to be cached uncompressed
+   * first, in which case the cached copy is compressed after the fact.
+   * @param query The HTTP query we're responding to
+   * @param writer The writer for the response
+   * @param results The data fetched from storage
+   * @param key The key of the response in the cache, null if not caching
+   * @param response_cache An optional cache of complete responses
+   * @return The response
+   */
+  private static ChannelBuffer format(final HttpQuery query,
+      final QueryResponseWriter writer, final List<DataPoints[]> results,
+      final String key, final ResponseCache response_cache) {
+    final String encoding = key == null && query != null ?
+        ResponseCompressor.encoding(query) : null;
+    final ChannelBuffer response;
+    if (ParallelQueryWriter.wantsParallel(results)) {
+      response = ParallelQueryWriter.format(query, writer, results, encoding);
+    } else {
+      response = writer.format(encoding);
+    }
+    if (response instanceof ResponseCompressor.CompressedResponse) {
+      return response;
+    }
+
+    // a truncated response would be served to queries that could have
+    // completed
+    if (key != null && !writer.truncated()) {
+      final byte[] bytes = new byte[response.readableBytes()];
+      response.getBytes(response.readerIndex(), bytes);
+      response_cache.put(key, bytes);
+    }
+    final String cached_encoding =
+      ResponseCompressor.encodingFor(query, response.readableBytes());
+    if (cached_encoding == null) {
+      return response;
+    }
+    final ChannelBuffer compressed =
+      ResponseCompressor.compress(response, cached_encoding);
+    BufferPool.release(response);
+    return compressed;
+  }
+
+  /**
+   * Returns a writer for a single series object on its own, whose
+   * {@link #format} writes it exactly as it appears within the results array
+   * of this writer's response. Safe to call from multiple threads at once as
+   * long as each call gets a different series.
+   * @param dps The series to write
+   * @return A writer sharing this writer's settings and budget
+   */
+  QueryResponseWriter seriesWriter(final DataPoints dps) {
+    final List<DataPoints[]> series =
+      Collections.singletonList(new DataPoints[] { dps });
+    return new QueryResponseWriter(null, data_query, series,
+        wrapped ? null : globals, as_arrays, false, null, header_cache,
+        dictionary, decimator == null ? null : decimator.copy(),
+        summary == null ? null : summary.copy(), dense, cursor, budget);
+  }
+
+  /** @return the serialized global annotations, may be null */
+  byte[] globals() {
+    return globals;
+  }
+
+  /** @return the budget shared by the writers of the response, may be null */
+  SerializationBudget budget() {
+    return budget;
+  }
+
+  /** @return whether or not the response was cut short by the budget */
+  boolean truncated() {
+    return budget != null && budget.reason() != null;
+  }
+
+  /**
+   * @return whether or not this writer stopped before writing all of its
+   * series because the budget ran out
+   */
+  boolean stoppedEarly() {
+    return truncated;
+  }
+
+  /** @return whether or not the response is wrapped in an object */
+  boolean wrapped() {
+    return wrapped;
+  }
+
+  /** @return the string table of the series headers, may be null */
+  StringDictionary dictionary() {
+    return dictionary;
+  }
+
+  /**
+   * Returns the cursor for the next poll. Only complete once all series have
+   * been written.
+   * @return The cursor token or null if the query didn't ask for one
+   */
+  String cursorToken() {
+    return cursor != null && cursor.wantsCursor() ? cursor.token() : null;
+  }
+
+  /**
+   * Sorts and serializes the global annotations once per response so each
+   * series can copy the bytes instead of serializing the objects again
+   * @param data_query The TSQuery object used to fetch the results
+   * @param globals An optional list of global annotation objects
+   * @return The JSON array of annotations or null if there are none or the
+   * query doesn't want annotations
+   */
+  static byte[] serializeGlobals(final TSQuery data_query,
+      final List<Annotation> globals) {
+    if (data_query.getNoAnnotations() || globals == null || globals.isEmpty()) {
+      return null;
+    }
+    Collections.sort(globals);
+    return AnnotationWriter.serialize(globals);
+  }
+
+  /**
+   * Determines whether or not the caller wants the response streamed. The
+   * {@code stream} query string parameter overrides the configured default.
+   * @param query The HTTP query to check
+   * @return True if the response should be streamed
+   */
+  static boolean wantsStreaming(final HttpQuery query) {
+    final String stream = query.getQueryStringParam("stream");
+    if (stream == null) {
+      return SerializerConfig.streamEnabled();
+    }
+    return !stream.equalsIgnoreCase("false") && !stream.equals("0");
+  }
+
+  /**
+   * Writes the entire response into a single buffer, or into pooled direct
+   * chunks once it grows past the direct threshold
+   * @return A ChannelBuffer with the complete response
+   */
+  ChannelBuffer format() {
+    return format(query == null ? null : ResponseCompressor.encoding(query));
+  }
+
+  /**
+   * Writes the entire response into a single buffer, compressing it as it's
+   * written if it grows past the compression threshold
+   * @param encoding The encoding to compress with, null to never compress
+   * @return A ChannelBuffer with the complete response
+   */
+  ChannelBuffer format(final String encoding) {
+    // write into the thread's scratch buffer so it only grows once, then
+    // take the response out in one go
+    final ResponseScratch scratch = ResponseScratch.acquire();
+    try {
+      if (encoding != null) {
+        if (writeTo(scratch.buffer(), SerializerConfig.compressionThreshold())) {
+          return scratch.response(query);
+        }
+        return ResponseCompressor.compress(this, scratch.buffer(), encoding);
+      }
+      final DirectBufferPool direct =
+        query == null ? null : DirectBufferPool.shared();
+      if (direct == null) {
+        writeTo(scratch.buffer(), Integer.MAX_VALUE);
+        return scratch.response(query);
+      }
+      if (writeTo(scratch.buffer(), SerializerConfig.directThreshold())) {
+        return scratch.response(query);
+      }
+      // large response, move it off the heap a chunk at a time
+      if (!DirectBufferPool.watch(query)) {
+        writeTo(scratch.buffer(), Integer.MAX_VALUE);
+        return scratch.response(query);
+      }
+      return direct.write(this, scratch.buffer());
+    } finally {
+      scratch.release();
+    }
+  }
+
+  /**
+   * Writes the next piece of the response to the given buffer. Writing stops
+   * at the first series or data point boundary after the buffer holds at
+   * least {@code limit} bytes, so a piece may overshoot the limit slightly.
+   * @param buffer The buffer to append to
+   * @param limit The number of bytes after which to stop writing
+   * @return True if the response has been completely written, false if there
+   * is more to come
+   */
+  boolean writeTo(final ChannelBuffer buffer, final int limit) {
+    if (finished) {
+      return true;
+    }
+    sink.setBuffer(buffer);
+    charged_index = buffer.writerIndex();
+    try {
+      if (json == null) {
+        writeStart();
+      }
+
+      while (true) {
+        if (points == null) {
+          final DataPoints dps = nextSeries();
+          if (dps == null || (budget != null && overBudget(buffer))) {
+            truncated = dps != null;
+            writeEnd();
+            finished = true;
+            return true;
+          }
+          series_written++;
+          writeSeriesStart(dps, buffer);
+        }
+
+        if (!writePoints(buffer, limit)) {
+          return false;
+        }
+        writeSeriesEnd(buffer);
+        json.flush();
+        if (series_truncated) {
+          truncated = true;
+          writeEnd();
+          finished = true;
+          return true;
+        }
+        if (buffer.writerIndex() >= limit) {
+          return false;
+        }
+      }
+    } catch (IOException e) {
+      LOG.error("Unexpected exception", e);
+      throw new RuntimeException(e);
+    } finally {
+      if (budget != null) {
+        budget.charge(buffer.writerIndex() - charged_index);
+      }
+    }
+  }
+
+  /**
+   * Charges the bytes written since the last check to the budget and checks
+   * it
+   * @param buffer The buffer being written to
+   * @return True if the budget has been exceeded
+   */
+  private boolean overBudget(final ChannelBuffer buffer) {
+    budget.charge(buffer.writerIndex() - charged_index);
+    charged_index = buffer.writerIndex();
+    return budget.exceeded();
+  }
+
+  /** @return whether or not the response has been completely written */
+  boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Writes the JSONP prefix if requested and opens the results array
+   * @throws IOException if writing failed
+   */
+  private void writeStart() throws IOException {
+    // don't forget jsonp
+    if (jsonp != null && !jsonp.isEmpty()) {
+      sink.write((jsonp + "(").getBytes(query.getCharset()));
+    }
+    json = JSON.getFactory().createGenerator(sink);
+    if (query == null) {
+      return;
+    }
+    if (wrapped) {
+      json.writeStartObject();
+      if (dictionary != null) {
+        writeRawField("strings", dictionary.table());
+      }
+      if (globals != null) {
+        writeRawField("globalAnnotations", globals);
+      }
+      json.writeFieldName("results");
+    }
+    json.writeStartArray();
+  }
+
+  /**
+   * Closes the results array and writes the JSONP suffix if requested
+   * @throws IOException if writing failed
+   */
+  private void writeEnd() throws IOException {
+    if (query != null) {
+      final byte[] marker = truncated ?
+          budget.marker(series_written, total_series - series_written) : null;
+      json.writeEndArray();
+      if (wrapped) {
+        if (marker != null) {
+          writeRawField("truncated", marker);
+        }
+        final String token = cursorToken();
+        if (token != null) {
+          json.writeStringField("cursor", token);
+        }
+        json.writeEndObject();
+      }
+    }
+    json.close();
+
+    if (jsonp != null && !jsonp.isEmpty()) {
+      sink.write(")".getBytes());
+    }
+  }
+
+  /**
+   * Writes the header fields of a series, i.e. the metric, tags, aggregated
+   * tags and optionally the TSUIDs, into an object that has been started
+   * @param json The generator to write to
+   * @param dps The series to write
+   * @param show_tsuids Whether or not to write the TSUIDs
+   * @throws IOException if writing failed
+   */
+  private static void writeHeader(final JsonGenerator json,
+      final DataPoints dps, final boolean show_tsuids) throws IOException {
+    json.writeStringField("metric", dps.metricName());
+
+    json.writeFieldName("tags");
+    json.writeStartObject();
+    if (dps.getTags() != null) {
+      for (Map.Entry<String, String> tag : dps.getTags().entrySet()) {
+        json.writeStringField(tag.getKey(), tag.getValue());
+      }
+    }
+    json.writeEndObject();
+
+    json.writeFieldName("aggregateTags");
+    json.writeStartArray();
+    if (dps.getAggregatedTags() != null) {
+      for (String atag : dps.getAggregatedTags()) {
+        json.writeString(atag);
+      }
+    }
+    json.writeEndArray();
+
+    if (show_tsuids) {
+      writeTSUIDs(json, dps);
+    }
+  }
+
+  /**
+   * Writes the sorted TSUIDs of a series as a field
+   * @param json The generator to write to
+   * @param dps The series to write
+   * @throws IOException if writing failed
+   */
+  private static void writeTSUIDs(final JsonGenerator json,
+      final DataPoints dps) throws IOException {
+    json.writeFieldName("tsuids");
+    json.writeStartArray();
+    final List<String> tsuids = dps.getTSUIDs();
+    Collections.sort(tsuids);
+    for (String tsuid : tsuids) {
+      json.writeString(tsuid);
+    }
+    json.writeEndArray();
+  }
+
+  /**
+   * Encodes the header fields of a series for the cache. The bytes start
+   * with the value of the metric field and end after the last header field.
+   * @param dps The series to encode
+   * @param show_tsuids Whether or not to include the TSUIDs
+   * @return The encoded header
+   * @throws IOException if writing failed
+   */
+  private static byte[] encodeHeader(final DataPoints dps,
+      final boolean show_tsuids) throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream(128);
+    final JsonGenerator header = JSON.getFactory().createGenerator(output);
+    header.writeStartObject();
+    writeHeader(header, dps, show_tsuids);
+    header.writeEndObject();
+    header.close();
+    final byte[] encoded = output.toByteArray();
+    // drop the {"metric": prefix and the closing brace
+    return Arrays.copyOfRange(encoded, METRIC_PREFIX_LENGTH,
+        encoded.length - 1);
+  }
+
+  /**
+   * Writes a field whose value is already serialized JSON, copying the bytes
+   * past the generator
+   * @param name The name of the field
+   * @param value The serialized value
+   * @throws IOException if writing failed
+   */
+  private void writeRawField(final String name, final byte[] value)
+      throws IOException {
+    json.writeFieldName(name);
+    json.writeRawValue("");
+    json.flush();
+    sink.write(value);
+  }
+
+  /** @return the next series to write or null if we're out of results */
+  private DataPoints nextSeries() {
+    while (group == null || group_idx >= group.length) {
+      if (!results.hasNext()) {
+        return null;
+      }
+      group = results.next();
+      group_idx = 0;
+    }
+    return group[group_idx++];
+  }
+
+  /**
+   * Writes the series header, annotations and opens the data point map or
+   * array, then sets up the point iterator. The generator is flushed
+   * afterwards as the points are written straight to the buffer.
+   * @param dps The series to write
+   * @param buffer The buffer being written to
+   * @throws IOException if writing failed
+   */
+  private void writeSeriesStart(final DataPoints dps,
+      final ChannelBuffer buffer) throws IOException {
+    json.writeStartObject();
+    final String key = header_cache == null ? null :
+      SeriesHeaderCache.key(dps.getTSUIDs(), data_query.getShowTSUIDs());
+    if (dictionary != null) {
+      dictionary.writeHeader(json, dps);
+      if (data_query.getShowTSUIDs()) {
+        writeTSUIDs(json, dps);
+      }
+    } else if (key == null) {
+      writeHeader(json, dps, data_query.getShowTSUIDs());
+    } else {
+      byte[] header = header_cache.get(key);
+      if (header == null) {
+        header = encodeHeader(dps, data_query.getShowTSUIDs());
+        header_cache.put(key, header);
+      }
+      // the cached bytes start with the metric value, the generator writes
+      // the field name so it knows the object isn't empty
+      json.writeFieldName("metric");
+      json.writeRawValue("");
+      json.flush();
+      sink.write(header);
+    }
+
+    if (!data_query.getNoAnnotations()) {
+      final List<Annotation> annotations = dps.getAnnotations();
+      if (annotations != null) {
+        Collections.sort(annotations);
+        json.writeFieldName("annotations");
+        AnnotationWriter.writeAll(json, annotations);
+      }
+
+      if (globals != null && !wrapped) {
+        writeRawField("globalAnnotations", globals);
+      }
+    }
+
+    dense_step = 0;
+    series_last = Long.MIN_VALUE;
+    series_truncated = false;
+    if (cursor == null) {
+      series_start = data_query.startTime();
+    } else {
+      series_identity = QueryCursor.identity(dps);
+      series_start = cursor.startFor(series_identity, data_query.startTime());
+    }
+    if (summary != null) {
+      summary.reset();
+    } else if (dense && decimator == null) {
+      // the points are buffered as they're read until we know whether the
+      // series is regular, see decideDense()
+      probing = true;
+      probe_series = dps;
+      probe_count = 0;
+      if (probe_timestamps == null) {
+        probe_timestamps = new long[SerializerConfig.denseProbePoints()];
+        probe_values = new double[probe_timestamps.length];
+      }
+    } else {
+      writePointsStart(buffer);
+      if (decimator != null) {
+        decimator.reset();
+      }
+    }
+    points = dps.iterator();
+    try {
+      // jump straight to the start of the range instead of walking the points
+      // fetched from the rows before it
+      points.seek(series_start);
+    } catch (UnsupportedOperationException e) {
+      // the per point check in writePoints() skips them instead
+    }
+  }
+
+  /**
+   * Writes data points from the current series, or adds them to the summary,
+   * until it's exhausted, it has moved past the end of the query range, the
+   * budget has run out or the buffer has reached the limit.
+   * @param buffer The buffer being written to
+   * @param limit The number of bytes after which to stop writing
+   * @return True if the series is done, false if we stopped due to the limit
+   * @throws IOException if writing failed
+   */
+  private boolean writePoints(final ChannelBuffer buffer, final int limit)
+      throws IOException {
+    while (points.hasNext()) {
+      if (budget != null && --budget_countdown <= 0) {
+        budget_countdown = BUDGET_CHECK_INTERVAL;
+        if (overBudget(buffer)) {
+          series_truncated = true;
+          break;
+        }
+      }
+      final DataPoint dp = points.next();
+      if (dp.timestamp() > data_query.endTime()) {
+        // points are in time order so nothing else will be in range
+        break;
+      }
+      if (dp.timestamp() < series_start) {
+        continue;
+      }
+      series_last = dp.timestamp();
+      // integers have always been written as doubles, keep it that way
+      final double value = dp.isInteger() ? dp.longValue() : dp.doubleValue();
+      if (summary != null) {
+        summary.add(data_query.getMsResolution() ?
+            dp.timestamp() : dp.timestamp() / 1000, value);
+        continue;
+      }
+      if (probing) {
+        probe_timestamps[probe_count] = dp.timestamp();
+        probe_values[probe_count++] = value;
+        if (probe_count == probe_timestamps.length) {
+          decideDense(buffer, true);
+          if (buffer.writerIndex() >= limit) {
+            return false;
+          }
+        }
+        continue;
+      }
+      if (dense_step > 0) {
+        writeDenseValue(buffer, dp.timestamp(), value);
+        if (buffer.writerIndex() >= limit) {
+          return false;
+        }
+        continue;
+      }
+      if (decimator == null) {
+        writePoint(buffer, dp.timestamp(), value);
+      } else {
+        decimator.add(dp.timestamp(), value);
+        writeDecimated(buffer);
+      }
+
+      if (buffer.writerIndex() >= limit) {
+        return false;
+      }
+    }
+    if (probing) {
+      decideDense(buffer, false);
+    }
+    if (decimator != null && summary == null) {
+      decimator.finish();
+      writeDecimated(buffer);
+    }
+    return true;
+  }
+
+  /**
+   * Opens the data point map or array. An empty raw value makes the
+   * generator write the separator and treat the field as done, the map or
+   * array itself is written around it by hand.
+   * @param buffer The buffer being written to
+   * @throws IOException if writing failed
+   */
+  private void writePointsStart(final ChannelBuffer buffer)
+      throws IOException {
+    json.writeFieldName("dps");
+    json.writeRawValue("");
+    json.flush();
+    // default is to write a map, otherwise write arrays
+    buffer.writeByte(as_arrays ? '[' : '{');
+    first_point = true;
+  }
+
+  /**
+   * Decides whether the probed series is written as a dense array or as
+   * regular points, opens it and writes the buffered points. The decision is
+   * made on the buffered points alone when they're the whole series, so
+   * most series are only read once. When the buffer filled up, the rest of
+   * the series is iterated an extra time to check it, which costs decoding
+   * the points past the buffer twice.
+   * @param buffer The buffer being written to
+   * @param more Whether the series may have points past the buffered ones
+   * @throws IOException if writing failed
+   */
+  private void decideDense(final ChannelBuffer buffer, final boolean more)
+      throws IOException {
+    probing = false;
+    if (findDenseStep(more)) {
+      // a regular series only needs the first timestamp and the step
+      json.writeNumberField("start", dense_next);
+      json.writeNumberField("step", dense_step);
+      json.writeFieldName("values");
+      json.writeRawValue("");
+      json.flush();
+      buffer.writeByte('[');
+      first_point = true;
+      for (int i = 0; i < probe_count; i++) {
+        writeDenseValue(buffer, probe_timestamps[i], probe_values[i]);
+      }
+    } else {
+      writePointsStart(buffer);
+      for (int i = 0; i < probe_count; i++) {
+        writePoint(buffer, probe_timestamps[i], probe_values[i]);
+      }
+    }
+    probe_series = null;
+  }
+
+  /**
+   * Finds out whether the probed series is on a regular grid, i.e. all
+   * timestamps are a multiple of a common step apart and gaps don't make up
+   * more than half of the slots. Sets {@link #dense_step} and
+   * {@link #dense_next} if it is.
+   * @param more Whether to check the points of the series past the probed
+   * ones as well
+   * @return True if the series can be written as a dense array
+   */
+  private boolean findDenseStep(final boolean more) {
+    if (probe_count == 0) {
+      return false;
+    }
+    final boolean ms = data_query.getMsResolution();
+    final long first = ms ? probe_timestamps[0] : probe_timestamps[0] / 1000;
+    long previous = first;
+    long step = 0;
+    long count = 1;
+    for (int i = 1; i < probe_count; i++) {
+      final long timestamp =
+        ms ? probe_timestamps[i] : probe_timestamps[i] / 1000;
+      final long delta = timestamp - previous;
+      if (delta <= 0) {
+        return false;
+      }
+      step = gcd(step, delta);
+      previous = timestamp;
+      count++;
+    }
+    if (more) {
+      final long last_probed = probe_timestamps[probe_count - 1];
+      final SeekableView view = probe_series.iterator();
+      try {
+        view.seek(last_probed + 1);
+      } catch (UnsupportedOperationException e) {
+        // skipped below
+      }
+      while (view.hasNext()) {
+        final DataPoint dp = view.next();
+        if (dp.timestamp() > data_query.endTime()) {
+          break;
+        }
+        if (dp.timestamp() <= last_probed) {
+          continue;
+        }
+        final long timestamp = ms ? dp.timestamp() : dp.timestamp() / 1000;
+        final long delta = timestamp - previous;
+        if (delta <= 0) {
+          return false;
+        }
+        step = gcd(step, delta);
+        previous = timestamp;
+        count++;
+      }
+    }
+    if (count < 2 || (previous - first) / step + 1 > count * 2) {
+      return false;
+    }
+    dense_step = step;
+    dense_next = first;
+    return true;
+  }
+
+  /**
+   * Writes a value of a dense series, preceded by nulls for any slots the
+   * series skipped
+   * @param buffer The buffer being written to
+   * @param timestamp The timestamp in milliseconds
+   * @param value The value
+   */
+  private void writeDenseValue(final ChannelBuffer buffer,
+      final long timestamp, final double value) {
+    final long ts = data_query.getMsResolution() ? timestamp : timestamp / 1000;
+    while (dense_next < ts) {
+      dp_writer.writeNull(buffer, first_point);
+      first_point = false;
+      dense_next += dense_step;
+    }
+    dp_writer.writeValue(buffer, first_point, value);
+    first_point = false;
+    dense_next += dense_step;
+  }
+
+  /** @return the greatest common divisor, b if a is zero */
+  private static long gcd(long a, long b) {
+    while (a != 0) {
+      final long t = b % a;
+      b = a;
+      a = t;
+    }
+    return b;
+  }
+
+  /**
+   * Writes the points the decimator has made ready
+   * @param buffer The buffer being written to
+   */
+  private void writeDecimated(final ChannelBuffer buffer) {
+    for (int i = 0; i < decimator.ready(); i++) {
+      writePoint(buffer, decimator.readyTimestamp(i), decimator.readyValue(i));
+    }
+  }
+
+  /**
+   * Writes a single map or array entry
+   * @param buffer The buffer being written to
+   * @param timestamp The timestamp in milliseconds
+   * @param value The value
+   */
+  private void writePoint(final ChannelBuffer buffer, final long timestamp,
+      final double value) {
+    final long ts = data_query.getMsResolution() ? timestamp : timestamp / 1000;
+    if (as_arrays) {
+      dp_writer.writeArrayEntry(buffer, first_point, ts, value);
+    } else {
+      dp_writer.writeMapEntry(buffer, first_point, ts, value);
+    }
+    first_point = false;
+  }
+
+  /**
+   * Closes the data point map or array or writes the summary, then closes
+   * the series object
+   * @param buffer The buffer being written to
+   * @throws IOException if writing failed
+   */
+  private void writeSeriesEnd(final ChannelBuffer buffer) throws IOException {
+    if (summary != null) {
+      json.writeFieldName("summary");
+      summary.write(json);
+    } else if (dense_step > 0) {
+      buffer.writeByte(']');
+    } else {
+      buffer.writeByte(as_arrays ? ']' : '}');
+    }
+
+    if (series_truncated) {
+      json.writeBooleanField("truncated", true);
+    }
+    if (cursor != null) {
+      cursor.record(series_identity, series_last);
+    }
+
+    // close the results for this particular query
+    json.writeEndObject();
+    points = null;
+  }
+}
@@ -0,0 +1,400 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * Decompresses a request body sent with {@code Content-Encoding: gzip} or
+ * {@code deflate} as it's read, so the parsers can work on the data points
+ * without the whole decompressed body being built first. The compressed
+ * bytes are handed to the inflater straight from the request buffer.
+ * <p>
+ * The gzip and zlib framing is handled here so every stream uses a raw
+ * inflater from a shared pool of {@code tsd.http.serializer.inflate.pool_size}
+ * instances, returned when the stream is closed. Checksums are verified and
+ * concatenated gzip members are read one after the other. A {@code deflate}
+ * body without the zlib header is accepted as raw deflate data as some
+ * clients send it that way. Reading past
+ * {@code tsd.http.serializer.inflate.max_size} decompressed bytes fails the
+ * request with a 413.
+ */
+final class RequestInflater extends InputStream {
+
+  /** Content encodings, as normalized by {@link #encoding} */
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  /** The pool of raw inflaters, created on first use if enabled */
+  private static volatile ArrayBlockingQueue<Inflater> pool;
+
+  /** The compressed body */
+  private final byte[] input;
+
+  /** Index after the last compressed byte */
+  private final int end;
+
+  /** Whether the body is gzip instead of deflate */
+  private final boolean gzip;
+
+  /** Maximum number of bytes to decompress, zero for no limit */
+  private final long max_size;
+
+  /** Index of the next compressed byte not handed to the inflater */
+  private int position;
+
+  /** The inflater, null once released */
+  private Inflater inflater;
+
+  /** Checksum of the current member, null for raw deflate data */
+  private Checksum checksum;
+
+  /** Bytes decompressed from the current gzip member */
+  private long member_size;
+
+  /** Bytes decompressed in total */
+  private long total;
+
+  /** Whether the end of the body was reached */
+  private boolean finished;
+
+  /**
+   * Default constructor, reads the header
+   * @param input The compressed body
+   * @param offset Index of the first compressed byte
+   * @param length Number of compressed bytes
+   * @param gzip Whether the body is gzip instead of deflate
+   * @param max_size Maximum number of bytes to decompress, zero for no limit
+   * @throws IOException if the header was invalid
+   */
+  RequestInflater(final byte[] input, final int offset, final int length,
+      final boolean gzip, final long max_size) throws IOException {
+    this.input = input;
+    this.end = offset + length;
+    this.gzip = gzip;
+    this.max_size = max_size;
+    position = offset;
+    inflater = acquire();
+    try {
+      startMember();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a stream decompressing the body of the request if it's encoded
+   * @param query The request
+   * @return A stream or null if the body isn't compressed
+   * @throws BadRequestException if the encoding isn't supported or the
+   * header was invalid
+   */
+  static RequestInflater forQuery(final HttpQuery query) {
+    final String encoding = encoding(query);
+    if (encoding == null || !query.hasContent()) {
+      return null;
+    }
+    final ChannelBuffer content = query.request().getContent();
+    final byte[] input;
+    final int offset;
+    if (content.hasArray()) {
+      input = content.array();
+      offset = content.arrayOffset() + content.readerIndex();
+    } else {
+      input = new byte[content.readableBytes()];
+      content.getBytes(content.readerIndex(), input);
+      offset = 0;
+    }
+    try {
+      return new RequestInflater(input, offset, content.readableBytes(),
+          encoding == GZIP, SerializerConfig.inflateMaxSize());
+    } catch (IOException e) {
+      throw new BadRequestException("Unable to decompress the request", e);
+    }
+  }
+
+  /**
+   * Returns the content encoding of the request
+   * @param query The request
+   * @return {@link #GZIP}, {@link #DEFLATE} or null if the body isn't
+   * compressed
+   * @throws BadRequestException if the encoding isn't supported
+   */
+  static String encoding(final HttpQuery query) {
+    String encoding =
+      query.request().headers().get(HttpHeaders.Names.CONTENT_ENCODING);
+    if (encoding == null) {
+      return null;
+    }
+    encoding = encoding.trim().toLowerCase(Locale.ENGLISH);
+    if (encoding.isEmpty() || encoding.equals("identity")) {
+      return null;
+    }
+    if (encoding.equals(GZIP) || encoding.equals("x-gzip")) {
+      return GZIP;
+    }
+    if (encoding.equals(DEFLATE)) {
+      return DEFLATE;
+    }
+    throw new BadRequestException(HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE,
+        "Unsupported content encoding: " + encoding,
+        "Send the request uncompressed or with gzip or deflate");
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] b = new byte[1];
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+    if (inflater == null) {
+      throw new IOException("Stream closed");
+    }
+    if (len == 0) {
+      return 0;
+    }
+    int read = 0;
+    try {
+      while (!finished && (read = inflater.inflate(b, off, len)) == 0) {
+        if (inflater.finished()) {
+          endMember();
+        } else if (inflater.needsDictionary()) {
+          throw new ZipException("Preset dictionaries are not supported");
+        } else if (inflater.needsInput()) {
+          throw new EOFException("Unexpected end of the compressed content");
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new ZipException("Invalid compressed content: " + e.getMessage());
+    }
+    if (finished) {
+      return -1;
+    }
+    if (checksum != null) {
+      checksum.update(b, off, read);
+    }
+    member_size += read;
+    total += read;
+    if (max_size > 0 && total > max_size) {
+      throw new BadRequestException(
+          HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+          "The decompressed request is larger than " + max_size + " bytes",
+          "Split the data points over several requests");
+    }
+    return read;
+  }
+
+  /**
+   * Reads and drops the rest of the body, so the checksum at the end is
+   * verified even if the parser stopped before it
+   * @throws IOException if the rest could not be decompressed or the
+   * checksum didn't match
+   */
+  void verify() throws IOException {
+    final byte[] rest = new byte[512];
+    while (read(rest, 0, rest.length) >= 0) {
+      // dropped
+    }
+  }
+
+  /** Returns the inflater to the pool, at most once */
+  @Override
+  public void close() {
+    if (inflater == null) {
+      return;
+    }
+    final ArrayBlockingQueue<Inflater> free = pool();
+    inflater.reset();
+    if (free == null || !free.offer(inflater)) {
+      // releases the native memory right away instead of on finalization
+      inflater.end();
+    }
+    inflater = null;
+  }
+
+  /** @return the number of bytes decompressed so far */
+  long total() {
+    return total;
+  }
+
+  /**
+   * Returns the shared pool, creating it with the configured size if
+   * necessary
+   * @return The pool or null if pooling is disabled
+   */
+  private static ArrayBlockingQueue<Inflater> pool() {
+    ArrayBlockingQueue<Inflater> current = pool;
+    if (current == null) {
+      if (SerializerConfig.inflatePoolSize() < 1) {
+        return null;
+      }
+      synchronized (RequestInflater.class) {
+        current = pool;
+        if (current == null) {
+          current = new ArrayBlockingQueue<Inflater>(
+              SerializerConfig.inflatePoolSize());
+          pool = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /** @return a raw inflater from the pool or a new one */
+  private static Inflater acquire() {
+    final ArrayBlockingQueue<Inflater> free = pool();
+    final Inflater inflater = free == null ? null : free.poll();
+    return inflater == null ? new Inflater(true) : inflater;
+  }
+
+  /**
+   * Reads the header of the next member and feeds the inflater the rest of
+   * the body
+   */
+  private void startMember() throws IOException {
+    if (gzip) {
+      readGzipHeader();
+      checksum = new CRC32();
+    } else if (end - position >= 2 && (input[position] & 0x0F) == 8
+        && (((input[position] & 0xFF) << 8) | (input[position + 1] & 0xFF))
+          % 31 == 0) {
+      if ((input[position + 1] & 0x20) != 0) {
+        throw new ZipException("Preset dictionaries are not supported");
+      }
+      position += 2;
+      checksum = new Adler32();
+    } else {
+      // raw deflate data without the zlib wrapper
+      checksum = null;
+    }
+    member_size = 0;
+    inflater.setInput(input, position, end - position);
+  }
+
+  /**
+   * Checks the trailer of the member the inflater finished and moves on to
+   * the next gzip member if there is one
+   */
+  private void endMember() throws IOException {
+    position = end - inflater.getRemaining();
+    if (checksum == null) {
+      finished = true;
+      return;
+    }
+    if (gzip) {
+      if (end - position < 8) {
+        throw new EOFException("Unexpected end of the compressed content");
+      }
+      if (readIntLE() != (int) checksum.getValue()
+          || readIntLE() != (int) member_size) {
+        throw new ZipException("Corrupt gzip content, checksum mismatch");
+      }
+      if (end - position >= 2 && (input[position] & 0xFF) == 0x1F
+          && (input[position + 1] & 0xFF) == 0x8B) {
+        inflater.reset();
+        startMember();
+      } else {
+        // trailing bytes are ignored like GZIPInputStream does
+        finished = true;
+      }
+      return;
+    }
+    if (end - position < 4) {
+      throw new EOFException("Unexpected end of the compressed content");
+    }
+    final int adler = ((input[position] & 0xFF) << 24)
+        | ((input[position + 1] & 0xFF) << 16)
+        | ((input[position + 2] & 0xFF) << 8) | (input[position + 3] & 0xFF);
+    position += 4;
+    if (adler != (int) checksum.getValue()) {
+      throw new ZipException("Corrupt deflate content, checksum mismatch");
+    }
+    finished = true;
+  }
+
+  /** Skips the gzip header, validating the magic and method */
+  private void readGzipHeader() throws IOException {
+    if (end - position < 10 || (input[position] & 0xFF) != 0x1F
+        || (input[position + 1] & 0xFF) != 0x8B) {
+      throw new ZipException("Not in gzip format");
+    }
+    if (input[position + 2] != 8) {
+      throw new ZipException("Unsupported gzip compression method");
+    }
+    final int flags = input[position + 3] & 0xFF;
+    // magic, method, flags, modification time, extra flags and OS
+    position += 10;
+    if ((flags & 4) != 0) {
+      require(2);
+      final int length = (input[position] & 0xFF)
+          | ((input[position + 1] & 0xFF) << 8);
+      position += 2;
+      require(length);
+      position += length;
+    }
+    if ((flags & 8) != 0) {
+      skipZeroTerminated();
+    }
+    if ((flags & 16) != 0) {
+      skipZeroTerminated();
+    }
+    if ((flags & 2) != 0) {
+      require(2);
+      position += 2;
+    }
+  }
+
+  /** Skips a zero terminated file name or comment */
+  private void skipZeroTerminated() throws IOException {
+    while (position < end && input[position] != 0) {
+      position++;
+    }
+    require(1);
+    position++;
+  }
+
+  /** @throws EOFException if fewer than length bytes are left */
+  private void require(final int length) throws EOFException {
+    if (end - position < length) {
+      throw new EOFException("Unexpected end of the gzip header");
+    }
+  }
+
+  /** @return the little endian int at the position, moving past it */
+  private int readIntLE() {
+    final int value = (input[position] & 0xFF)
+        | ((input[position + 1] & 0xFF) << 8)
+        | ((input[position + 2] & 0xFF) << 16)
+        | ((input[position + 3] & 0xFF) << 24);
+    position += 4;
+    return value;
+  }
+}
@@ -0,0 +1,326 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.opentsdb.core.RateOptions;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+
+/**
+ * A cache of complete query responses for dashboards that many users have
+ * open at once, all sending the same queries within seconds of each other.
+ * Entries are keyed on a normalized form of the query with the start and end
+ * times aligned to buckets, so relative queries issued a moment apart share
+ * a response. Each entry is served until its TTL expires and the least
+ * recently used entries are evicted once the cache holds too many bytes.
+ * <p>
+ * Note that the data has already been fetched by the time a serializer
+ * formats a response, a hit only saves the serialization.
+ */
+final class ResponseCache {
+
+  /** Rough per entry overhead of the map, the entry and the arrays */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  /** The shared cache, created on first use if enabled */
+  private static volatile ResponseCache shared;
+
+  /** The maximum number of bytes held by the cache */
+  private final long max_bytes;
+
+  /** Milliseconds an entry is served for */
+  private final long ttl;
+
+  /** Entries in access order, the eldest is evicted first */
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /** Bytes currently held */
+  private long bytes;
+
+  /** Number of lookups that found a live entry */
+  private long hits;
+
+  /** Number of lookups that didn't find a live entry */
+  private long misses;
+
+  /** Number of entries evicted to make room */
+  private long evictions;
+
+  /** Number of entries dropped because their TTL expired */
+  private long expirations;
+
+  /**
+   * Default constructor
+   * @param max_bytes The maximum number of bytes to hold
+   * @param ttl Milliseconds an entry is served for
+   * @throws IllegalArgumentException if the size or TTL was less than one
+   */
+  ResponseCache(final long max_bytes, final long ttl) {
+    if (max_bytes < 1) {
+      throw new IllegalArgumentException("Cache size must be greater than zero");
+    }
+    if (ttl < 1) {
+      throw new IllegalArgumentException("TTL must be greater than zero");
+    }
+    this.max_bytes = max_bytes;
+    this.ttl = ttl;
+  }
+
+  /**
+   * Returns the shared cache, creating it with the configured size and TTL
+   * if necessary
+   * @return The cache or null if response caching is disabled
+   */
+  static ResponseCache shared() {
+    ResponseCache current = shared;
+    if (current == null) {
+      if (SerializerConfig.responseCacheSize() < 1) {
+        return null;
+      }
+      synchronized (ResponseCache.class) {
+        current = shared;
+        if (current == null) {
+          current = new ResponseCache(SerializerConfig.responseCacheSize(),
+              SerializerConfig.responseCacheTTL());
+          shared = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Builds the normalized key of a query. It covers the aligned time range,
+   * the query flags, each sub query and the query string parameters that
+   * shape the response, i.e. all of them except the time range and the
+   * streaming flag, as well as a cursor POSTed in the body. Tags and TSUIDs are sorted and every string is prefixed
+   * with its length so the key can't be ambiguous.
+   * @param query The HTTP query we're responding to
+   * @param data_query The parsed and validated TSQuery
+   * @param bucket Width in milliseconds of the buckets to align the range to
+   * @return The key
+   */
+  static String key(final HttpQuery query, final TSQuery data_query,
+      final long bucket) {
+    final StringBuilder key = new StringBuilder(256);
+    key.append(data_query.startTime() / bucket).append(',')
+       .append(data_query.endTime() / bucket).append(',');
+    appendString(key, data_query.getTimezone());
+    key.append(data_query.getMsResolution() ? 'M' : '-')
+       .append(data_query.getPadding() ? 'P' : '-')
+       .append(data_query.getNoAnnotations() ? 'N' : '-')
+       .append(data_query.getGlobalAnnotations() ? 'G' : '-')
+       .append(data_query.getShowTSUIDs() ? 'T' : '-');
+
+    if (data_query.getQueries() != null) {
+      for (TSSubQuery sub : data_query.getQueries()) {
+        key.append('|');
+        appendString(key, sub.getAggregator());
+        appendString(key, sub.getMetric());
+        appendString(key, sub.getDownsample());
+        key.append(sub.getRate() ? 'R' : '-');
+        final RateOptions rate_options = sub.getRateOptions();
+        if (rate_options != null) {
+          key.append(rate_options.isCounter() ? 'C' : '-')
+             .append(rate_options.getCounterMax()).append(',')
+             .append(rate_options.getResetValue()).append(',');
+        }
+        if (sub.getTsuids() != null) {
+          final List<String> tsuids = new ArrayList<String>(sub.getTsuids());
+          Collections.sort(tsuids);
+          key.append(tsuids.size()).append('[');
+          for (String tsuid : tsuids) {
+            appendString(key, tsuid);
+          }
+        }
+        if (sub.getTags() != null) {
+          key.append(sub.getTags().size()).append('{');
+          for (Map.Entry<String, String> tag :
+              new TreeMap<String, String>(sub.getTags()).entrySet()) {
+            appendString(key, tag.getKey());
+            appendString(key, tag.getValue());
+          }
+        }
+      }
+    }
+
+    key.append('?');
+    for (Map.Entry<String, List<String>> param :
+        new TreeMap<String, List<String>>(query.getQueryString()).entrySet()) {
+      final String name = param.getKey();
+      if (name.equals("start") || name.equals("end") || name.equals("stream")) {
+        continue;
+      }
+      appendString(key, name);
+      key.append(param.getValue().size()).append('=');
+      for (String value : param.getValue()) {
+        appendString(key, value);
+      }
+    }
+    // a cursor POSTed in the body was stripped from the TSQuery but shapes
+    // the response all the same
+    final String body_cursor = QueryCursor.bodyToken(query);
+    if (body_cursor != null) {
+      key.append('#');
+      appendString(key, body_cursor);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Looks up a response, marking it as most recently used
+   * @param key The key of the query
+   * @return The response or null if it's not cached or has expired
+   */
+  byte[] get(final String key) {
+    return get(key, System.currentTimeMillis());
+  }
+
+  /**
+   * Looks up a response as of the given time
+   * @param key The key of the query
+   * @param now The current time in milliseconds
+   * @return The response or null if it's not cached or has expired
+   */
+  synchronized byte[] get(final String key, final long now) {
+    final Entry entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    if (now >= entry.expires) {
+      entries.remove(key);
+      bytes -= weigh(key, entry.response);
+      expirations++;
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.response;
+  }
+
+  /**
+   * Stores a response, evicting the least recently used entries until the
+   * cache is back within its size. Responses larger than the cache are
+   * dropped.
+   * @param key The key of the query
+   * @param response The complete response, the caller must not modify it
+   */
+  void put(final String key, final byte[] response) {
+    put(key, response, System.currentTimeMillis());
+  }
+
+  /**
+   * Stores a response as of the given time
+   * @param key The key of the query
+   * @param response The complete response, the caller must not modify it
+   * @param now The current time in milliseconds
+   */
+  synchronized void put(final String key, final byte[] response,
+      final long now) {
+    final long weight = weigh(key, response);
+    if (weight > max_bytes) {
+      return;
+    }
+    final Entry previous = entries.put(key, new Entry(response, now + ttl));
+    if (previous != null) {
+      bytes -= weigh(key, previous.response);
+    }
+    bytes += weight;
+
+    final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (bytes > max_bytes && it.hasNext()) {
+      final Map.Entry<String, Entry> eldest = it.next();
+      bytes -= weigh(eldest.getKey(), eldest.getValue().response);
+      it.remove();
+      if (now >= eldest.getValue().expires) {
+        expirations++;
+      } else {
+        evictions++;
+      }
+    }
+  }
+
+  /** @return the number of lookups that found a live entry */
+  synchronized long hits() {
+    return hits;
+  }
+
+  /** @return the number of lookups that didn't find a live entry */
+  synchronized long misses() {
+    return misses;
+  }
+
+  /** @return the fraction of lookups that found a live entry */
+  synchronized double hitRatio() {
+    final long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  /** @return the number of entries evicted to make room */
+  synchronized long evictions() {
+    return evictions;
+  }
+
+  /** @return the number of entries dropped because their TTL expired */
+  synchronized long expirations() {
+    return expirations;
+  }
+
+  /** @return the number of cached responses */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /** @return the approximate number of bytes held */
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  /** @return the approximate memory used by an entry */
+  private static long weigh(final String key, final byte[] response) {
+    return ENTRY_OVERHEAD + (key.length() * 2L) + response.length;
+  }
+
+  /**
+   * Appends a string prefixed with its length, a null string is written as a
+   * single dash
+   */
+  private static void appendString(final StringBuilder key, final String str) {
+    if (str == null) {
+      key.append('-');
+    } else {
+      key.append(str.length()).append(':').append(str);
+    }
+  }
+
+  /** A cached response and when it expires */
+  private static final class Entry {
+    final byte[] response;
+    final long expires;
+
+    Entry(final byte[] response, final long expires) {
+      this.response = response;
+      this.expires = expires;
+    }
+  }
+}
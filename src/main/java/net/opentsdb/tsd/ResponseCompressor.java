@@ -0,0 +1,451 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.DynamicChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Compresses response bodies with gzip or deflate when the client accepts it
+ * and the body is at least {@code tsd.http.serializer.compression.threshold}
+ * bytes. Query responses are compressed a piece at a time as the writer
+ * produces them, so the uncompressed response is never held in full, and
+ * streamed responses are flushed at the end of every chunk. Series
+ * serialized in parallel are compressed as they are joined. Only responses
+ * going through the response cache are compressed after the fact, since the
+ * cache keeps them uncompressed to serve any client. Deflaters come
+ * from a shared pool of {@code tsd.http.serializer.compression.pool_size}
+ * and compress at {@code tsd.http.serializer.compression.level}, 1 for the
+ * least CPU to 9 for the smallest responses.
+ * <p>
+ * Complete bodies are returned as a {@link CompressedResponse}, a handler
+ * installed once per connection sets the {@code Content-Encoding} of the
+ * response carrying one. A compressor writes the gzip or zlib framing itself
+ * around a raw deflater and is not thread safe.
+ */
+final class ResponseCompressor {
+
+  /** Content encodings, as returned by {@link #encoding} */
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  /** Name of the encoding handler in the pipeline */
+  private static final String NAME = "serializer-content-encoding";
+
+  /** The encoding handler, it's stateless so one serves all connections */
+  private static final EncodingHandler ENCODING_HANDLER =
+    new EncodingHandler();
+
+  /** gzip header without a file name or modification time, from Unix */
+  private static final byte[] GZIP_HEADER = {
+    0x1F, (byte) 0x8B, 8, 0, 0, 0, 0, 0, 0, 3
+  };
+
+  /** zlib header for a 32KB window at the default compression level */
+  private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9C };
+
+  /** Input bytes copied at a time from buffers without an array */
+  private static final int COPY_SIZE = 8192;
+
+  /** The pool of raw deflaters, created on first use if enabled */
+  private static volatile ArrayBlockingQueue<Deflater> pool;
+
+  /** Whether the output is gzip instead of zlib */
+  private final boolean gzip;
+
+  /** Checksum of the uncompressed bytes */
+  private final Checksum checksum;
+
+  /** The deflater, null once released */
+  private Deflater deflater;
+
+  /** Number of uncompressed bytes */
+  private long size;
+
+  /** Whether the header has been written */
+  private boolean started;
+
+  /**
+   * Default constructor
+   * @param encoding {@link #GZIP} or {@link #DEFLATE}
+   */
+  ResponseCompressor(final String encoding) {
+    gzip = GZIP.equals(encoding);
+    checksum = gzip ? new CRC32() : new Adler32();
+    deflater = acquire();
+  }
+
+  /**
+   * Returns the encoding to compress the response to the query with
+   * @param query The query to respond to
+   * @return {@link #GZIP}, {@link #DEFLATE} or null if compression is
+   * disabled, the client doesn't accept it or the response can't be marked
+   * as compressed
+   */
+  static String encoding(final HttpQuery query) {
+    if (query == null || !SerializerConfig.compressionEnabled()) {
+      return null;
+    }
+    final String encoding = accepted(
+        query.request().headers().get(HttpHeaders.Names.ACCEPT_ENCODING));
+    if (encoding == null
+        || !BufferPool.install(query, NAME, ENCODING_HANDLER)) {
+      return null;
+    }
+    return encoding;
+  }
+
+  /**
+   * Returns the encoding to compress a complete body with
+   * @param query The query to respond to
+   * @param size The size of the body in bytes
+   * @return The encoding or null if the body should be sent as is
+   */
+  static String encodingFor(final HttpQuery query, final int size) {
+    return size < SerializerConfig.compressionThreshold() ? null :
+      encoding(query);
+  }
+
+  /**
+   * Picks the encoding with the highest quality from an
+   * {@code Accept-Encoding} header, gzip on a tie
+   * @param header The header value, may be null
+   * @return {@link #GZIP}, {@link #DEFLATE} or null if neither is accepted
+   */
+  static String accepted(final String header) {
+    if (header == null) {
+      return null;
+    }
+    float gzip = -1;
+    float deflate = -1;
+    float any = -1;
+    for (final String part : header.split(",")) {
+      final String[] params = part.split(";");
+      final String coding = params[0].trim().toLowerCase(Locale.ENGLISH);
+      float quality = 1;
+      for (int i = 1; i < params.length; i++) {
+        final String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            quality = Float.parseFloat(param.substring(2).trim());
+          } catch (NumberFormatException nfe) {
+            quality = 0;
+          }
+        }
+      }
+      if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+        gzip = Math.max(gzip, quality);
+      } else if (coding.equals(DEFLATE)) {
+        deflate = Math.max(deflate, quality);
+      } else if (coding.equals("*")) {
+        any = quality;
+      }
+    }
+    // the wildcard covers codings that aren't listed
+    if (gzip < 0) {
+      gzip = any;
+    }
+    if (deflate < 0) {
+      deflate = any;
+    }
+    if (gzip <= 0 && deflate <= 0) {
+      return null;
+    }
+    return gzip >= deflate ? GZIP : DEFLATE;
+  }
+
+  /**
+   * Compresses a complete body
+   * @param body The body, its readable bytes are compressed and it's left
+   * untouched
+   * @param encoding {@link #GZIP} or {@link #DEFLATE}
+   * @return The compressed body
+   */
+  static CompressedResponse compress(final ChannelBuffer body,
+      final String encoding) {
+    final CompressedResponse output = new CompressedResponse(encoding,
+        Math.max(64, body.readableBytes() / 4));
+    final ResponseCompressor compressor = new ResponseCompressor(encoding);
+    try {
+      compressor.write(output, body.duplicate());
+      compressor.finish(output);
+    } finally {
+      compressor.release();
+    }
+    return output;
+  }
+
+  /**
+   * Compresses a body made of pieces, dropping each piece from the list once
+   * it has been compressed so it can be collected before the rest are done
+   * @param pieces The pieces of the body, in order
+   * @param size The total size of the pieces in bytes
+   * @param encoding {@link #GZIP} or {@link #DEFLATE}
+   * @return The compressed body
+   */
+  static CompressedResponse compress(final List<ChannelBuffer> pieces,
+      final int size, final String encoding) {
+    final CompressedResponse output = new CompressedResponse(encoding,
+        Math.max(64, size / 4));
+    final ResponseCompressor compressor = new ResponseCompressor(encoding);
+    try {
+      for (int i = 0; i < pieces.size(); i++) {
+        compressor.write(output, pieces.get(i));
+        pieces.set(i, null);
+      }
+      compressor.finish(output);
+    } finally {
+      compressor.release();
+    }
+    return output;
+  }
+
+  /**
+   * Finishes writing a query response, compressing it a piece at a time
+   * through the scratch buffer
+   * @param writer The writer of the response
+   * @param scratch The scratch buffer holding what was written so far
+   * @param encoding {@link #GZIP} or {@link #DEFLATE}
+   * @return The compressed response
+   */
+  static CompressedResponse compress(final QueryResponseWriter writer,
+      final ChannelBuffer scratch, final String encoding) {
+    final CompressedResponse output = new CompressedResponse(encoding,
+        Math.max(64, scratch.readableBytes() / 4));
+    final ResponseCompressor compressor = new ResponseCompressor(encoding);
+    try {
+      boolean done;
+      do {
+        compressor.write(output, scratch);
+        scratch.clear();
+        done = writer.writeTo(scratch, DirectBufferPool.CHUNK_SIZE);
+      } while (!done);
+      compressor.write(output, scratch);
+      scratch.clear();
+      compressor.finish(output);
+    } finally {
+      compressor.release();
+    }
+    return output;
+  }
+
+  /**
+   * Compresses the readable bytes of the input into the output, consuming
+   * them. Output may be held back by the deflater until the next flush.
+   * @param output The buffer to append compressed bytes to
+   * @param input The bytes to compress
+   */
+  void write(final ChannelBuffer output, final ChannelBuffer input) {
+    start(output);
+    if (!input.readable()) {
+      return;
+    }
+    if (input.hasArray()) {
+      deflate(output, input.array(), input.arrayOffset() + input.readerIndex(),
+          input.readableBytes());
+    } else {
+      byte[] copy = null;
+      for (final ByteBuffer piece : input.toByteBuffers()) {
+        if (piece.hasArray()) {
+          deflate(output, piece.array(),
+              piece.arrayOffset() + piece.position(), piece.remaining());
+          continue;
+        }
+        if (copy == null) {
+          copy = new byte[COPY_SIZE];
+        }
+        while (piece.hasRemaining()) {
+          final int length = Math.min(copy.length, piece.remaining());
+          piece.get(copy, 0, length);
+          deflate(output, copy, 0, length);
+        }
+      }
+    }
+    input.readerIndex(input.writerIndex());
+  }
+
+  /**
+   * Writes out everything compressed so far so the client can decompress it
+   * without waiting for the rest
+   * @param output The buffer to append compressed bytes to
+   */
+  void flush(final ChannelBuffer output) {
+    drain(output, Deflater.SYNC_FLUSH);
+  }
+
+  /**
+   * Writes out the rest of the compressed data and the trailer, then returns
+   * the deflater to the pool
+   * @param output The buffer to append compressed bytes to
+   */
+  void finish(final ChannelBuffer output) {
+    start(output);
+    deflater.finish();
+    while (!deflater.finished()) {
+      deflateInto(output, Deflater.NO_FLUSH);
+    }
+    final int value = (int) checksum.getValue();
+    if (gzip) {
+      writeIntLE(output, value);
+      writeIntLE(output, (int) size);
+    } else {
+      output.writeInt(value);
+    }
+    release();
+  }
+
+  /** Returns the deflater to the pool, at most once */
+  void release() {
+    if (deflater == null) {
+      return;
+    }
+    final ArrayBlockingQueue<Deflater> free = pool();
+    deflater.reset();
+    if (free == null || !free.offer(deflater)) {
+      // releases the native memory right away instead of on finalization
+      deflater.end();
+    }
+    deflater = null;
+  }
+
+  /** Writes the header before the first compressed bytes */
+  private void start(final ChannelBuffer output) {
+    if (!started) {
+      output.writeBytes(gzip ? GZIP_HEADER : ZLIB_HEADER);
+      started = true;
+    }
+  }
+
+  /** Feeds bytes to the deflater and collects its output */
+  private void deflate(final ChannelBuffer output, final byte[] buf,
+      final int offset, final int length) {
+    checksum.update(buf, offset, length);
+    size += length;
+    deflater.setInput(buf, offset, length);
+    while (!deflater.needsInput()) {
+      deflateInto(output, Deflater.NO_FLUSH);
+    }
+  }
+
+  /** Flushes the deflater until it has nothing more to write */
+  private void drain(final ChannelBuffer output, final int flush) {
+    while (deflateInto(output, flush)) {
+      // the output filled up, there may be more
+    }
+  }
+
+  /** @return true if the deflater filled all the space it was given */
+  private boolean deflateInto(final ChannelBuffer output, final int flush) {
+    output.ensureWritableBytes(COPY_SIZE);
+    final int space = output.writableBytes();
+    final int written = deflater.deflate(output.array(),
+        output.arrayOffset() + output.writerIndex(), space, flush);
+    output.writerIndex(output.writerIndex() + written);
+    return written == space;
+  }
+
+  private static void writeIntLE(final ChannelBuffer output, final int value) {
+    output.writeByte(value);
+    output.writeByte(value >>> 8);
+    output.writeByte(value >>> 16);
+    output.writeByte(value >>> 24);
+  }
+
+  /**
+   * Returns the shared pool, creating it with the configured size if
+   * necessary
+   * @return The pool or null if pooling is disabled
+   */
+  private static ArrayBlockingQueue<Deflater> pool() {
+    ArrayBlockingQueue<Deflater> current = pool;
+    if (current == null) {
+      if (SerializerConfig.compressionPoolSize() < 1) {
+        return null;
+      }
+      synchronized (ResponseCompressor.class) {
+        current = pool;
+        if (current == null) {
+          current = new ArrayBlockingQueue<Deflater>(
+              SerializerConfig.compressionPoolSize());
+          pool = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /** @return a raw deflater at the configured level */
+  private static Deflater acquire() {
+    final ArrayBlockingQueue<Deflater> free = pool();
+    Deflater deflater = free == null ? null : free.poll();
+    if (deflater == null) {
+      deflater = new Deflater(SerializerConfig.compressionLevel(), true);
+    } else {
+      deflater.setLevel(SerializerConfig.compressionLevel());
+    }
+    return deflater;
+  }
+
+  /** A complete compressed body, marked with its encoding */
+  static final class CompressedResponse extends DynamicChannelBuffer {
+    private final String encoding;
+
+    CompressedResponse(final String encoding, final int estimated_length) {
+      super(estimated_length);
+      this.encoding = encoding;
+    }
+
+    /** @return the content encoding of the body */
+    String encoding() {
+      return encoding;
+    }
+  }
+
+  /**
+   * Sets the content encoding of responses with a compressed body. Sits
+   * right after the response encoder so it sees the final body of every
+   * response, including those filled in later by other handlers.
+   */
+  @ChannelHandler.Sharable
+  static final class EncodingHandler extends SimpleChannelDownstreamHandler {
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+        final MessageEvent e) {
+      if (e.getMessage() instanceof HttpResponse) {
+        final HttpResponse response = (HttpResponse) e.getMessage();
+        if (response.getContent() instanceof CompressedResponse) {
+          response.headers().set(HttpHeaders.Names.CONTENT_ENCODING,
+              ((CompressedResponse) response.getContent()).encoding());
+          response.headers().add(HttpHeaders.Names.VARY,
+              HttpHeaders.Names.ACCEPT_ENCODING);
+        }
+      }
+      ctx.sendDownstream(e);
+    }
+  }
+}
@@ -0,0 +1,188 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+
+import net.opentsdb.utils.JSON;
+import net.opentsdb.utils.JSONException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Per thread scratch space for serializing responses: a growable buffer and
+ * a JSON generator writing to it that are reused from one response to the
+ * next. The generator is never closed, values are written one after the
+ * other without a separator and the buffer is cleared in between. Once a
+ * response is complete it's taken out with {@link #response}, or compressed
+ * out by {@link ResponseCompressor}, as the scratch space is overwritten by
+ * the next one.
+ * <p>
+ * A scratch buffer that grew past 1MB is dropped after use so one huge
+ * response doesn't pin the memory, as is the generator after a failure as
+ * it may be left in the middle of an object.
+ */
+final class ResponseScratch {
+
+  /** Largest buffer kept for the next response */
+  private static final int MAX_RETAINED = 1024 * 1024;
+
+  /** Initial size of the buffer */
+  private static final int INITIAL_SIZE = 4096;
+
+  private static final ThreadLocal<ResponseScratch> LOCAL =
+    new ThreadLocal<ResponseScratch>() {
+      @Override
+      protected ResponseScratch initialValue() {
+        return new ResponseScratch(true);
+      }
+    };
+
+  /** Whether or not this is the thread's instance */
+  private final boolean local;
+
+  /** The buffer responses are written to */
+  private ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(INITIAL_SIZE);
+
+  /** Output stream over the buffer for the generator */
+  private final ChannelBufferSink sink = new ChannelBufferSink(buffer);
+
+  /** The generator, created on first use */
+  private JsonGenerator json;
+
+  /** Whether or not the scratch space is currently being written to */
+  private boolean in_use;
+
+  /**
+   * Default constructor
+   * @param local Whether or not this is the thread's instance
+   */
+  private ResponseScratch(final boolean local) {
+    this.local = local;
+  }
+
+  /**
+   * Returns the calling thread's scratch space, cleared, or a new one if it's
+   * already in use further up the stack. Must be released when done.
+   * @return The scratch space
+   */
+  static ResponseScratch acquire() {
+    ResponseScratch scratch = LOCAL.get();
+    if (scratch.in_use) {
+      scratch = new ResponseScratch(false);
+    }
+    scratch.in_use = true;
+    scratch.buffer.clear();
+    return scratch;
+  }
+
+  /**
+   * Serializes an object, wrapped in the query's JSONP function if one was
+   * requested
+   * @param query The query the object responds to
+   * @param obj The object to serialize
+   * @return A buffer with the JSON
+   * @throws IllegalArgumentException if the object was null
+   * @throws JSONException if serialization failed
+   */
+  static ChannelBuffer serialize(final HttpQuery query, final Object obj) {
+    if (obj == null) {
+      throw new IllegalArgumentException("Object was null");
+    }
+    final ResponseScratch scratch = acquire();
+    try {
+      final String jsonp = query.getQueryStringParam("jsonp");
+      final boolean has_jsonp = jsonp != null && !jsonp.isEmpty();
+      if (has_jsonp) {
+        scratch.sink.write((jsonp + "(").getBytes(query.getCharset()));
+      }
+      final JsonGenerator json = scratch.generator();
+      JSON.getMapper().writeValue(json, obj);
+      json.flush();
+      if (has_jsonp) {
+        scratch.buffer.writeByte(')');
+      }
+      final String encoding = ResponseCompressor.encodingFor(query,
+          scratch.buffer.readableBytes());
+      final ChannelBuffer response = encoding == null ?
+          scratch.response(query) :
+          ResponseCompressor.compress(scratch.buffer, encoding);
+      scratch.release();
+      return response;
+    } catch (IOException e) {
+      scratch.discard();
+      throw new JSONException(e);
+    } catch (RuntimeException e) {
+      scratch.discard();
+      throw e;
+    }
+  }
+
+  /** @return the buffer to write to */
+  ChannelBuffer buffer() {
+    return buffer;
+  }
+
+  /**
+   * Returns the response written to the buffer, to hand to Netty. It's
+   * copied into a pooled buffer if pooling applies. Otherwise the buffer
+   * itself is handed over and replaced with a new one, as copying it out
+   * would cost more than reusing it saves.
+   * @param query The query the response is for, null for a piece of one
+   * @return A buffer with the response
+   */
+  ChannelBuffer response(final HttpQuery query) {
+    final ChannelBuffer pooled = BufferPool.pooledCopy(query, buffer);
+    if (pooled != null) {
+      return pooled;
+    }
+    final ChannelBuffer response = buffer;
+    buffer = ChannelBuffers.dynamicBuffer(INITIAL_SIZE);
+    sink.setBuffer(buffer);
+    return response;
+  }
+
+  /**
+   * Returns the generator writing to the buffer. It must not be closed and
+   * anything written has to be flushed before reading the buffer.
+   * @return The generator
+   * @throws IOException if it couldn't be created
+   */
+  JsonGenerator generator() throws IOException {
+    if (json == null) {
+      json = JSON.getFactory().createGenerator(sink);
+      // values are separated by clearing the buffer, not with a space
+      json.setRootValueSeparator(null);
+    }
+    return json;
+  }
+
+  /** Marks the scratch space as free for the next response */
+  void release() {
+    in_use = false;
+    if (local && buffer.capacity() > MAX_RETAINED) {
+      LOCAL.remove();
+    }
+  }
+
+  /** Drops the scratch space after a failure */
+  void discard() {
+    in_use = false;
+    if (local) {
+      LOCAL.remove();
+    }
+  }
+}
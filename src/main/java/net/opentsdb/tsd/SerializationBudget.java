@@ -0,0 +1,162 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.utils.JSON;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Limits the time and bytes spent serializing a query response so a slow
+ * query can't tie up a thread for minutes. The limits default to the
+ * {@code tsd.http.serializer.budget.*} settings and a query can lower them
+ * with the {@code maxTime} (milliseconds) and {@code maxBytes} query string
+ * parameters.
+ * <p>
+ * Writers charge the bytes they write and check the budget as they go. Once
+ * it's exceeded it stays exceeded, the writers stop at the next point, flag
+ * the series they cut short with {@code "truncated":true} and close the
+ * response with a marker saying why and how many series were left out. The
+ * marker is a {@code truncated} field next to the {@code results}, so a
+ * response with a budget is always in the wrapped shape. One instance is
+ * shared by all writers of a response and is thread safe.
+ */
+final class SerializationBudget {
+
+  /** Reasons for running out of budget, as written in the marker */
+  static final String TIME = "time";
+  static final String BYTES = "bytes";
+
+  /** System.nanoTime() after which the budget is exceeded */
+  private final long deadline;
+
+  /** Bytes after which the budget is exceeded */
+  private final long max_bytes;
+
+  /** Bytes charged so far */
+  private final AtomicLong used = new AtomicLong();
+
+  /** Why the budget was exceeded, null while it isn't */
+  private volatile String reason;
+
+  /**
+   * Default constructor
+   * @param max_time Milliseconds from now to stop after, zero for no limit
+   * @param max_bytes Bytes to stop after, zero for no limit
+   */
+  SerializationBudget(final long max_time, final long max_bytes) {
+    deadline = max_time > 0 ?
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(max_time) :
+        Long.MAX_VALUE;
+    this.max_bytes = max_bytes > 0 ? max_bytes : Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns a budget for the query if either limit is configured or set by
+   * the caller. The query can lower the configured limits but not raise them.
+   * @param query The HTTP query to check
+   * @return A budget or null if serialization is unlimited
+   * @throws BadRequestException if a parameter was invalid
+   */
+  static SerializationBudget forQuery(final HttpQuery query) {
+    final long max_time = limit(query, "maxTime",
+        SerializerConfig.budgetTime());
+    final long max_bytes = limit(query, "maxBytes",
+        SerializerConfig.budgetBytes());
+    if (max_time == 0 && max_bytes == 0) {
+      return null;
+    }
+    return new SerializationBudget(max_time, max_bytes);
+  }
+
+  /**
+   * Adds bytes written to the total
+   * @param bytes The number of bytes written since the last charge
+   */
+  void charge(final long bytes) {
+    used.addAndGet(bytes);
+  }
+
+  /**
+   * Checks the budget, reading the clock
+   * @return True if the time or bytes have run out
+   */
+  boolean exceeded() {
+    if (reason != null) {
+      return true;
+    }
+    if (used.get() > max_bytes) {
+      reason = BYTES;
+    } else if (System.nanoTime() - deadline > 0) {
+      reason = TIME;
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  /** @return why the budget was exceeded or null if it wasn't */
+  String reason() {
+    return reason;
+  }
+
+  /**
+   * Serializes the truncation marker
+   * @param written The number of series written in full or in part
+   * @param omitted The number of series left out entirely
+   * @return The JSON object
+   */
+  byte[] marker(final int written, final int omitted) {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream(64);
+    try {
+      final JsonGenerator json = JSON.getFactory().createGenerator(output);
+      json.writeStartObject();
+      json.writeStringField("reason", reason);
+      json.writeNumberField("writtenSeries", written);
+      json.writeNumberField("omittedSeries", omitted);
+      json.writeEndObject();
+      json.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Unexpected exception", e);
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * Reads a limit from the query string, capped by the configured one
+   * @return The limit or zero if there is none
+   */
+  private static long limit(final HttpQuery query, final String param,
+      final long configured) {
+    final String value = query.getQueryStringParam(param);
+    if (value == null || value.isEmpty()) {
+      return configured;
+    }
+    final long requested;
+    try {
+      requested = Long.parseLong(value);
+    } catch (NumberFormatException nfe) {
+      throw new BadRequestException("Invalid " + param + ": " + value);
+    }
+    if (requested < 1) {
+      throw new BadRequestException(param + " must be greater than zero: "
+          + value);
+    }
+    return configured > 0 ? Math.min(requested, configured) : requested;
+  }
+}
@@ -0,0 +1,398 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import net.opentsdb.utils.Config;
+
+/**
+ * Plugin wide settings for the serializers in this package. Serializers are
+ * instantiated once per HTTP query, so anything configured in
+ * {@link HttpSerializer#initialize} has to live in a shared, static spot. The
+ * defaults apply until a TSD calls {@link #load} with its running config.
+ */
+final class SerializerConfig {
+
+  /** Whether or not query responses are streamed as HTTP chunks by default */
+  private static volatile boolean stream_enabled = false;
+
+  /** Approximate size of each chunk when streaming query responses */
+  private static volatile int stream_chunk_size = 64 * 1024;
+
+  /** Whether or not large query responses are serialized in parallel */
+  private static volatile boolean parallel_enabled = false;
+
+  /** Number of threads serializing series and parsing puts in parallel */
+  private static volatile int parallel_threads =
+    Runtime.getRuntime().availableProcessors();
+
+  /** Minimum number of series in a response to serialize it in parallel */
+  private static volatile int parallel_min_series = 64;
+
+  /** Put bodies of at least this many bytes are parsed in parallel */
+  private static volatile int parse_parallel_threshold = 0;
+
+  /** Maximum bytes of a decompressed request, zero for no limit */
+  private static volatile int inflate_max_size = 64 * 1024 * 1024;
+
+  /** Free inflaters kept for compressed requests, zero disables the pool */
+  private static volatile int inflate_pool_size = 16;
+
+  /** Whether or not responses are compressed for clients accepting it */
+  private static volatile boolean compression_enabled = false;
+
+  /** Smallest response body in bytes to compress */
+  private static volatile int compression_threshold = 4096;
+
+  /** Deflate level from 1, fastest, to 9, smallest */
+  private static volatile int compression_level = 6;
+
+  /** Free deflaters kept for responses, zero disables the pool */
+  private static volatile int compression_pool_size = 16;
+
+  /** Number of threads serializing large responses, zero disables them */
+  private static volatile int async_threads = 0;
+
+  /** Maximum number of responses waiting for an async serializer thread */
+  private static volatile int async_queue_size = 64;
+
+  /** Minimum number of series in a query response to serialize it async */
+  private static volatile int async_min_series = 16;
+
+  /** Milliseconds to wait for queued async responses on shutdown */
+  private static volatile int async_shutdown_timeout = 10000;
+
+  /**
+   * Milliseconds to serialize a query response for, zero for no limit. Like
+   * the byte limit, it makes query responses use the wrapped shape.
+   */
+  private static volatile int budget_time = 0;
+
+  /** Bytes of a query response to serialize, zero for no limit */
+  private static volatile int budget_bytes = 0;
+
+  /** Free response buffers pooled per size class, zero disables the pool */
+  private static volatile int buffer_pool_buffers = 0;
+
+  /** Response size after which it moves to direct buffers */
+  private static volatile int direct_threshold = 256 * 1024;
+
+  /** Maximum number of 64KB direct buffers, zero disables them */
+  private static volatile int direct_buffers = 0;
+
+  /** Maximum bytes of cached series headers, zero disables the cache */
+  private static volatile int header_cache_size = 0;
+
+  /** Maximum bytes of cached query responses, zero disables the cache */
+  private static volatile int response_cache_size = 0;
+
+  /** Milliseconds a cached query response is served for */
+  private static volatile int response_cache_ttl = 10000;
+
+  /** Width in milliseconds of the buckets query ranges are aligned to */
+  private static volatile int response_cache_bucket = 10000;
+
+  /**
+   * Points of a series buffered to decide whether to write it dense. Longer
+   * series are checked by iterating the rest of them once more.
+   */
+  private static volatile int dense_probe_points = 4096;
+
+  /** Not instantiable */
+  private SerializerConfig() {
+  }
+
+  /**
+   * Loads the plugin settings from the TSD config. Properties that are missing
+   * or empty leave the defaults in place.
+   * @param config The TSD config to read from
+   * @throws NumberFormatException if a numeric setting could not be parsed
+   * @throws IllegalArgumentException if a setting was out of range
+   */
+  static void load(final Config config) {
+    if (config == null) {
+      return;
+    }
+    if (config.hasProperty("tsd.http.serializer.stream.enable")) {
+      stream_enabled = config.getBoolean("tsd.http.serializer.stream.enable");
+    }
+    if (config.hasProperty("tsd.http.serializer.stream.chunk_size")) {
+      stream_chunk_size = getPositiveInt(config,
+          "tsd.http.serializer.stream.chunk_size");
+    }
+    if (config.hasProperty("tsd.http.serializer.parallel.enable")) {
+      parallel_enabled =
+        config.getBoolean("tsd.http.serializer.parallel.enable");
+    }
+    if (config.hasProperty("tsd.http.serializer.parallel.threads")) {
+      parallel_threads = getPositiveInt(config,
+          "tsd.http.serializer.parallel.threads");
+    }
+    if (config.hasProperty("tsd.http.serializer.parallel.min_series")) {
+      parallel_min_series = getPositiveInt(config,
+          "tsd.http.serializer.parallel.min_series");
+    }
+    if (config.hasProperty("tsd.http.serializer.parse.parallel_threshold")) {
+      parse_parallel_threshold = getNonNegativeInt(config,
+          "tsd.http.serializer.parse.parallel_threshold");
+    }
+    if (config.hasProperty("tsd.http.serializer.inflate.max_size")) {
+      inflate_max_size = getNonNegativeInt(config,
+          "tsd.http.serializer.inflate.max_size");
+    }
+    if (config.hasProperty("tsd.http.serializer.inflate.pool_size")) {
+      inflate_pool_size = getNonNegativeInt(config,
+          "tsd.http.serializer.inflate.pool_size");
+    }
+    if (config.hasProperty("tsd.http.serializer.compression.enable")) {
+      compression_enabled =
+        config.getBoolean("tsd.http.serializer.compression.enable");
+    }
+    if (config.hasProperty("tsd.http.serializer.compression.threshold")) {
+      compression_threshold = getNonNegativeInt(config,
+          "tsd.http.serializer.compression.threshold");
+    }
+    if (config.hasProperty("tsd.http.serializer.compression.level")) {
+      compression_level = getPositiveInt(config,
+          "tsd.http.serializer.compression.level");
+      if (compression_level > 9) {
+        throw new IllegalArgumentException(
+            "tsd.http.serializer.compression.level must be from 1 to 9: "
+            + compression_level);
+      }
+    }
+    if (config.hasProperty("tsd.http.serializer.compression.pool_size")) {
+      compression_pool_size = getNonNegativeInt(config,
+          "tsd.http.serializer.compression.pool_size");
+    }
+    if (config.hasProperty("tsd.http.serializer.async.threads")) {
+      async_threads = getNonNegativeInt(config,
+          "tsd.http.serializer.async.threads");
+    }
+    if (config.hasProperty("tsd.http.serializer.async.queue_size")) {
+      async_queue_size = getPositiveInt(config,
+          "tsd.http.serializer.async.queue_size");
+    }
+    if (config.hasProperty("tsd.http.serializer.async.min_series")) {
+      async_min_series = getPositiveInt(config,
+          "tsd.http.serializer.async.min_series");
+    }
+    if (config.hasProperty("tsd.http.serializer.async.shutdown_timeout")) {
+      async_shutdown_timeout = getNonNegativeInt(config,
+          "tsd.http.serializer.async.shutdown_timeout");
+    }
+    if (config.hasProperty("tsd.http.serializer.budget.time")) {
+      budget_time = getNonNegativeInt(config,
+          "tsd.http.serializer.budget.time");
+    }
+    if (config.hasProperty("tsd.http.serializer.budget.bytes")) {
+      budget_bytes = getNonNegativeInt(config,
+          "tsd.http.serializer.budget.bytes");
+    }
+    if (config.hasProperty("tsd.http.serializer.buffer_pool.buffers")) {
+      buffer_pool_buffers = getNonNegativeInt(config,
+          "tsd.http.serializer.buffer_pool.buffers");
+    }
+    if (config.hasProperty("tsd.http.serializer.direct.threshold")) {
+      direct_threshold = getPositiveInt(config,
+          "tsd.http.serializer.direct.threshold");
+    }
+    if (config.hasProperty("tsd.http.serializer.direct.buffers")) {
+      direct_buffers = getNonNegativeInt(config,
+          "tsd.http.serializer.direct.buffers");
+    }
+    if (config.hasProperty("tsd.http.serializer.header_cache.size")) {
+      header_cache_size = getNonNegativeInt(config,
+          "tsd.http.serializer.header_cache.size");
+    }
+    if (config.hasProperty("tsd.http.serializer.response_cache.size")) {
+      response_cache_size = getNonNegativeInt(config,
+          "tsd.http.serializer.response_cache.size");
+    }
+    if (config.hasProperty("tsd.http.serializer.response_cache.ttl")) {
+      response_cache_ttl = getPositiveInt(config,
+          "tsd.http.serializer.response_cache.ttl");
+    }
+    if (config.hasProperty("tsd.http.serializer.response_cache.bucket")) {
+      response_cache_bucket = getPositiveInt(config,
+          "tsd.http.serializer.response_cache.bucket");
+    }
+    if (config.hasProperty("tsd.http.serializer.dense.probe_points")) {
+      dense_probe_points = getPositiveInt(config,
+          "tsd.http.serializer.dense.probe_points");
+    }
+  }
+
+  /** @return whether or not query responses are streamed by default */
+  static boolean streamEnabled() {
+    return stream_enabled;
+  }
+
+  /** @return the approximate size of each streamed chunk in bytes */
+  static int streamChunkSize() {
+    return stream_chunk_size;
+  }
+
+  /** @return whether or not large responses are serialized in parallel */
+  static boolean parallelEnabled() {
+    return parallel_enabled;
+  }
+
+  /** @return the number of threads serializing and parsing in parallel */
+  static int parallelThreads() {
+    return parallel_threads;
+  }
+
+  /** @return the minimum number of series to serialize in parallel */
+  static int parallelMinSeries() {
+    return parallel_min_series;
+  }
+
+  /** @return the put body size to parse in parallel from, zero if disabled */
+  static int parseParallelThreshold() {
+    return parse_parallel_threshold;
+  }
+
+  /** @return the maximum bytes of a decompressed request, zero if unlimited */
+  static int inflateMaxSize() {
+    return inflate_max_size;
+  }
+
+  /** @return the free inflaters kept for requests, zero if not pooled */
+  static int inflatePoolSize() {
+    return inflate_pool_size;
+  }
+
+  /** @return whether or not responses are compressed if accepted */
+  static boolean compressionEnabled() {
+    return compression_enabled;
+  }
+
+  /** @return the smallest response body in bytes to compress */
+  static int compressionThreshold() {
+    return compression_threshold;
+  }
+
+  /** @return the deflate level for responses */
+  static int compressionLevel() {
+    return compression_level;
+  }
+
+  /** @return the free deflaters kept for responses, zero if not pooled */
+  static int compressionPoolSize() {
+    return compression_pool_size;
+  }
+
+  /** @return the number of async serializer threads, zero if disabled */
+  static int asyncThreads() {
+    return async_threads;
+  }
+
+  /** @return the maximum number of responses waiting for an async thread */
+  static int asyncQueueSize() {
+    return async_queue_size;
+  }
+
+  /** @return the minimum number of series to serialize a response async */
+  static int asyncMinSeries() {
+    return async_min_series;
+  }
+
+  /** @return the milliseconds to wait for queued responses on shutdown */
+  static int asyncShutdownTimeout() {
+    return async_shutdown_timeout;
+  }
+
+  /** @return the milliseconds to serialize a response for, zero if unlimited */
+  static int budgetTime() {
+    return budget_time;
+  }
+
+  /** @return the bytes of a response to serialize, zero if unlimited */
+  static int budgetBytes() {
+    return budget_bytes;
+  }
+
+  /** @return the free buffers pooled per size class, zero if disabled */
+  static int bufferPoolBuffers() {
+    return buffer_pool_buffers;
+  }
+
+  /** @return the response size after which it moves to direct buffers */
+  static int directThreshold() {
+    return direct_threshold;
+  }
+
+  /** @return the maximum number of direct buffers, zero if disabled */
+  static int directBuffers() {
+    return direct_buffers;
+  }
+
+  /** @return the maximum bytes of cached series headers, zero if disabled */
+  static int headerCacheSize() {
+    return header_cache_size;
+  }
+
+  /** @return the maximum bytes of cached responses, zero if disabled */
+  static int responseCacheSize() {
+    return response_cache_size;
+  }
+
+  /** @return the milliseconds a cached response is served for */
+  static int responseCacheTTL() {
+    return response_cache_ttl;
+  }
+
+  /** @return the width of the buckets query ranges are aligned to in ms */
+  static int responseCacheBucket() {
+    return response_cache_bucket;
+  }
+
+  /** @return the points buffered to decide whether a series is dense */
+  static int denseProbePoints() {
+    return dense_probe_points;
+  }
+
+  /**
+   * Reads an integer setting that has to be greater than zero
+   * @param config The TSD config to read from
+   * @param property The name of the property
+   * @return The value
+   * @throws IllegalArgumentException if the value was less than one
+   */
+  private static int getPositiveInt(final Config config,
+      final String property) {
+    final int value = config.getInt(property);
+    if (value < 1) {
+      throw new IllegalArgumentException(
+          property + " must be greater than zero: " + value);
+    }
+    return value;
+  }
+
+  /**
+   * Reads an integer setting that can't be negative
+   * @param config The TSD config to read from
+   * @param property The name of the property
+   * @return The value
+   * @throws IllegalArgumentException if the value was less than zero
+   */
+  private static int getNonNegativeInt(final Config config,
+      final String property) {
+    final int value = config.getInt(property);
+    if (value < 0) {
+      throw new IllegalArgumentException(
+          property + " must not be negative: " + value);
+    }
+    return value;
+  }
+}
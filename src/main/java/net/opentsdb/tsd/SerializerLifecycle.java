@@ -0,0 +1,81 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.TSDB;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Starts and stops the threads shared by the serializers in this package.
+ * Every registered serializer plugin calls {@link #initialize} and
+ * {@link #shutdown} from its own, so the threads are started once no matter
+ * which plugins a TSD loads and are only stopped once they have drained.
+ */
+final class SerializerLifecycle {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(SerializerLifecycle.class);
+
+  private SerializerLifecycle() {
+  }
+
+  /**
+   * Loads the plugin settings from the TSD config and starts the async
+   * serializer threads if enabled and not already running
+   * @param tsdb The TSDB the plugin was loaded by
+   */
+  static synchronized void initialize(final TSDB tsdb) {
+    SerializerConfig.load(tsdb.getConfig());
+    if (SerializerConfig.asyncThreads() > 0 &&
+        !AsyncResponseHandler.running()) {
+      AsyncResponseHandler.start(SerializerConfig.asyncThreads(),
+          SerializerConfig.asyncQueueSize());
+    }
+  }
+
+  /**
+   * Stops the parallel and async serializer threads. Responses already queued
+   * are still written and the deferred fires once they have been, or once the
+   * shutdown timeout expired.
+   * @return A deferred called with null when the threads have stopped
+   */
+  static synchronized Deferred<Object> shutdown() {
+    ParallelQueryWriter.shutdown();
+    if (!AsyncResponseHandler.running()) {
+      return Deferred.fromResult(null);
+    }
+    final Deferred<Object> deferred = new Deferred<Object>();
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (!AsyncResponseHandler.stop(
+              SerializerConfig.asyncShutdownTimeout())) {
+            LOG.warn("Async serializer threads did not finish within "
+                + SerializerConfig.asyncShutdownTimeout() + "ms");
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          deferred.callback(null);
+        }
+      }
+    }, "SerializerShutdown");
+    thread.setDaemon(true);
+    thread.start();
+    return deferred;
+  }
+}
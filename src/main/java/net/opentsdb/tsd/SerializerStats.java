@@ -0,0 +1,111 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import net.opentsdb.core.IncomingDataPoint;
+
+/**
+ * Adds gauges for the serializer's pools and caches to the TSD's own stats
+ * so they show up in {@code /api/stats}. Only the enabled ones are reported,
+ * under {@code tsd.http.serializer.*} with the host tag of the other stats.
+ * The caches report their lifetime hit ratio next to the raw counters.
+ */
+final class SerializerStats {
+
+  private SerializerStats() {
+    // static helpers only
+  }
+
+  /**
+   * Returns the stats with the serializer's gauges appended
+   * @param stats The TSD's stats, left untouched
+   * @return A new list with the stats and the gauges
+   */
+  static List<IncomingDataPoint> append(final List<IncomingDataPoint> stats) {
+    final List<IncomingDataPoint> all =
+      new ArrayList<IncomingDataPoint>(stats.size() + 20);
+    all.addAll(stats);
+    final Collector collector = new Collector(all,
+        stats.isEmpty() ? null : stats.get(0).getTags());
+
+    final DirectBufferPool direct = DirectBufferPool.shared();
+    if (direct != null) {
+      collector.record("direct.allocated", direct.allocated());
+      collector.record("direct.in_use", direct.inUse());
+      collector.record("direct.free", direct.free());
+      collector.record("direct.heap_fallbacks", direct.heapChunks());
+      collector.record("direct.responses", direct.responses());
+    }
+    final BufferPool pool = BufferPool.shared();
+    if (pool != null) {
+      collector.record("buffer_pool.hits", pool.hits());
+      collector.record("buffer_pool.misses", pool.misses());
+      collector.record("buffer_pool.releases", pool.releases());
+      collector.record("buffer_pool.free", pool.free());
+    }
+    final SeriesHeaderCache headers = SeriesHeaderCache.shared();
+    if (headers != null) {
+      collector.record("header_cache.hits", headers.hits());
+      collector.record("header_cache.misses", headers.misses());
+      collector.record("header_cache.hit_ratio", headers.hitRatio());
+      collector.record("header_cache.evictions", headers.evictions());
+      collector.record("header_cache.size", headers.size());
+      collector.record("header_cache.bytes", headers.bytes());
+    }
+    final ResponseCache responses = ResponseCache.shared();
+    if (responses != null) {
+      collector.record("response_cache.hits", responses.hits());
+      collector.record("response_cache.misses", responses.misses());
+      collector.record("response_cache.hit_ratio", responses.hitRatio());
+      collector.record("response_cache.evictions", responses.evictions());
+      collector.record("response_cache.expirations",
+          responses.expirations());
+      collector.record("response_cache.size", responses.size());
+      collector.record("response_cache.bytes", responses.bytes());
+    }
+    return all;
+  }
+
+  /** Builds the data points with a common timestamp and tags */
+  private static final class Collector {
+    private final List<IncomingDataPoint> stats;
+    private final long timestamp = System.currentTimeMillis() / 1000;
+    private final HashMap<String, String> tags =
+      new HashMap<String, String>(1);
+
+    Collector(final List<IncomingDataPoint> stats,
+        final HashMap<String, String> template) {
+      this.stats = stats;
+      if (template != null && template.get("host") != null) {
+        tags.put("host", template.get("host"));
+      }
+    }
+
+    void record(final String name, final long value) {
+      record(name, Long.toString(value));
+    }
+
+    void record(final String name, final double value) {
+      record(name, Double.toString(value));
+    }
+
+    private void record(final String name, final String value) {
+      stats.add(new IncomingDataPoint("tsd.http.serializer." + name,
+          timestamp, value, tags));
+    }
+  }
+}
@@ -0,0 +1,198 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A least recently used cache of encoded series headers, i.e. the metric,
+ * tags, aggregated tags and TSUIDs of a series as written in a query
+ * response. Dashboards re-run the same queries over and over so the headers
+ * rarely change between responses. Entries are keyed by the sorted set of
+ * TSUIDs making up the series, which determines all of the header fields.
+ * <p>
+ * The cache is bounded by the bytes held in keys and values rather than the
+ * number of entries. It's shared by all serializer instances and safe to use
+ * from multiple threads.
+ * <p>
+ * Note that a cached header keeps the metric and tag names it was written
+ * with, so renamed UIDs show up once the entry has been evicted.
+ */
+final class SeriesHeaderCache {
+
+  /** Rough per entry overhead of the map, the entry and the arrays */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  /** The shared cache, created on first use if enabled */
+  private static volatile SeriesHeaderCache shared;
+
+  /** The maximum number of bytes held by the cache */
+  private final long max_bytes;
+
+  /** Entries in access order, the eldest is evicted first */
+  private final LinkedHashMap<String, byte[]> entries =
+    new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+  /** Bytes currently held */
+  private long bytes;
+
+  /** Number of lookups that found an entry */
+  private long hits;
+
+  /** Number of lookups that didn't find an entry */
+  private long misses;
+
+  /** Number of entries evicted to make room */
+  private long evictions;
+
+  /**
+   * Default constructor
+   * @param max_bytes The maximum number of bytes to hold
+   * @throws IllegalArgumentException if the size was less than one
+   */
+  SeriesHeaderCache(final long max_bytes) {
+    if (max_bytes < 1) {
+      throw new IllegalArgumentException("Cache size must be greater than zero");
+    }
+    this.max_bytes = max_bytes;
+  }
+
+  /**
+   * Returns the shared cache, creating it with the configured size if
+   * necessary
+   * @return The cache or null if header caching is disabled
+   */
+  static SeriesHeaderCache shared() {
+    SeriesHeaderCache current = shared;
+    if (current == null) {
+      if (SerializerConfig.headerCacheSize() < 1) {
+        return null;
+      }
+      synchronized (SeriesHeaderCache.class) {
+        current = shared;
+        if (current == null) {
+          current = new SeriesHeaderCache(SerializerConfig.headerCacheSize());
+          shared = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Builds the cache key for a series, sorting the TSUIDs in place the same
+   * way they're written in the response
+   * @param tsuids The TSUIDs of the series, may be null
+   * @param show_tsuids Whether or not the header includes the TSUIDs
+   * @return The key or null if the series doesn't have any TSUIDs and can't
+   * be cached
+   */
+  static String key(final List<String> tsuids, final boolean show_tsuids) {
+    if (tsuids == null || tsuids.isEmpty()) {
+      return null;
+    }
+    Collections.sort(tsuids);
+    int length = 1;
+    for (String tsuid : tsuids) {
+      length += tsuid.length() + 1;
+    }
+    final StringBuilder key = new StringBuilder(length);
+    key.append(show_tsuids ? 'T' : 'F');
+    for (String tsuid : tsuids) {
+      key.append(tsuid).append(',');
+    }
+    return key.toString();
+  }
+
+  /**
+   * Looks up a header, marking it as most recently used
+   * @param key The key of the series
+   * @return The encoded header or null if it's not cached
+   */
+  synchronized byte[] get(final String key) {
+    final byte[] header = entries.get(key);
+    if (header == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return header;
+  }
+
+  /**
+   * Stores a header, evicting the least recently used entries until the cache
+   * is back within its size. Headers larger than the cache are dropped.
+   * @param key The key of the series
+   * @param header The encoded header, the caller must not modify it
+   */
+  synchronized void put(final String key, final byte[] header) {
+    final long weight = weigh(key, header);
+    if (weight > max_bytes) {
+      return;
+    }
+    final byte[] previous = entries.put(key, header);
+    if (previous != null) {
+      bytes -= weigh(key, previous);
+    }
+    bytes += weight;
+
+    final Iterator<Map.Entry<String, byte[]>> it =
+      entries.entrySet().iterator();
+    while (bytes > max_bytes && it.hasNext()) {
+      final Map.Entry<String, byte[]> eldest = it.next();
+      bytes -= weigh(eldest.getKey(), eldest.getValue());
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /** @return the number of lookups that found an entry */
+  synchronized long hits() {
+    return hits;
+  }
+
+  /** @return the number of lookups that didn't find an entry */
+  synchronized long misses() {
+    return misses;
+  }
+
+  /** @return the fraction of lookups that found an entry */
+  synchronized double hitRatio() {
+    final long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  /** @return the number of entries evicted to make room */
+  synchronized long evictions() {
+    return evictions;
+  }
+
+  /** @return the number of cached headers */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /** @return the approximate number of bytes held */
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  /** @return the approximate memory used by an entry */
+  private static long weigh(final String key, final byte[] header) {
+    return ENTRY_OVERHEAD + (key.length() * 2L) + header.length;
+  }
+}
@@ -0,0 +1,174 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Summarizes a series in a single pass and constant memory: count, sum, min,
+ * max, average, the first and last points and estimated percentiles. Written
+ * in place of the data points when a query asks for a {@code summary}.
+ * NaN values are skipped. An instance handles one series at a time and
+ * isn't thread safe.
+ */
+final class SeriesSummary {
+
+  /** Percentiles reported when the query doesn't ask for any */
+  private static final String[] DEFAULT_PERCENTILES = { "50", "90", "95", "99" };
+
+  /** The percentiles as given in the query, used as field names */
+  private final String[] labels;
+
+  /** One estimator per percentile */
+  private final QuantileEstimator[] estimators;
+
+  private long count;
+  private double sum;
+  private double min;
+  private double max;
+  private long first_timestamp;
+  private double first_value;
+  private long last_timestamp;
+  private double last_value;
+
+  /**
+   * Default constructor
+   * @param percentiles The percentiles to estimate, between 0 and 100
+   * exclusive
+   * @throws IllegalArgumentException if a percentile was out of range or not
+   * a number
+   */
+  SeriesSummary(final String[] percentiles) {
+    labels = new String[percentiles.length];
+    estimators = new QuantileEstimator[percentiles.length];
+    for (int i = 0; i < percentiles.length; i++) {
+      labels[i] = percentiles[i].trim();
+      estimators[i] = new QuantileEstimator(Double.parseDouble(labels[i]) / 100);
+    }
+  }
+
+  /**
+   * Returns a summary for the query if the caller asked for one with the
+   * {@code summary} and optional {@code percentiles} query string parameters,
+   * the latter a comma separated list such as {@code 50,99,99.9}
+   * @param query The HTTP query to check
+   * @return A summary or null if the points should be written
+   * @throws BadRequestException if the percentiles were invalid
+   */
+  static SeriesSummary forQuery(final HttpQuery query) {
+    if (!query.hasQueryStringParam("summary")) {
+      return null;
+    }
+    final String percentiles = query.getQueryStringParam("percentiles");
+    if (percentiles == null || percentiles.isEmpty()) {
+      return new SeriesSummary(DEFAULT_PERCENTILES);
+    }
+    try {
+      return new SeriesSummary(percentiles.split(","));
+    } catch (IllegalArgumentException iae) {
+      throw new BadRequestException("Invalid percentiles: " + percentiles, iae);
+    }
+  }
+
+  /** @return a new summary with the same percentiles, for another thread */
+  SeriesSummary copy() {
+    return new SeriesSummary(labels);
+  }
+
+  /** Clears all state to start on the next series */
+  void reset() {
+    count = 0;
+    sum = 0;
+    for (QuantileEstimator estimator : estimators) {
+      estimator.reset();
+    }
+  }
+
+  /**
+   * Adds the next point of the series, points have to be in time order
+   * @param timestamp The timestamp as it should be written
+   * @param value The value
+   */
+  void add(final long timestamp, final double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    if (count == 0) {
+      min = value;
+      max = value;
+      first_timestamp = timestamp;
+      first_value = value;
+    } else if (value < min) {
+      min = value;
+    } else if (value > max) {
+      max = value;
+    }
+    last_timestamp = timestamp;
+    last_value = value;
+    count++;
+    sum += value;
+    for (QuantileEstimator estimator : estimators) {
+      estimator.add(value);
+    }
+  }
+
+  /** @return the number of values added */
+  long count() {
+    return count;
+  }
+
+  /**
+   * Writes the summary object. Everything but the count and sum is null for
+   * a series without points.
+   * @param json The generator to write to
+   * @throws IOException if writing failed
+   */
+  void write(final JsonGenerator json) throws IOException {
+    json.writeStartObject();
+    json.writeNumberField("count", count);
+    json.writeNumberField("sum", sum);
+    if (count == 0) {
+      json.writeNullField("min");
+      json.writeNullField("max");
+      json.writeNullField("avg");
+      json.writeNullField("first");
+      json.writeNullField("last");
+    } else {
+      json.writeNumberField("min", min);
+      json.writeNumberField("max", max);
+      json.writeNumberField("avg", sum / count);
+      writePoint(json, "first", first_timestamp, first_value);
+      writePoint(json, "last", last_timestamp, last_value);
+    }
+    json.writeObjectFieldStart("percentiles");
+    for (int i = 0; i < estimators.length; i++) {
+      if (count == 0) {
+        json.writeNullField(labels[i]);
+      } else {
+        json.writeNumberField(labels[i], estimators[i].estimate());
+      }
+    }
+    json.writeEndObject();
+    json.writeEndObject();
+  }
+
+  private static void writePoint(final JsonGenerator json, final String name,
+      final long timestamp, final double value) throws IOException {
+    json.writeObjectFieldStart(name);
+    json.writeNumberField("timestamp", timestamp);
+    json.writeNumberField("value", value);
+    json.writeEndObject();
+  }
+}
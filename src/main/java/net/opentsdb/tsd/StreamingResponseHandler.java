@@ -0,0 +1,166 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import org.jboss.netty.buffer.BigEndianHeapChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+
+/**
+ * Downstream handler that turns HTTP responses into chunked responses whose
+ * body is pulled from a {@link ChunkedInput}.
+ * <p>
+ * Serializers have to hand a complete buffer back to the RPC that called
+ * them. To stream instead, the serializer calls {@link #stream} and returns
+ * the {@link StreamingBody} it gets back in place of the body. The handler
+ * sits at the tail of the pipeline, installed once per connection, and only
+ * touches responses whose content is a streaming body, so other responses on
+ * the same keep-alive connection are left alone. For those it strips the
+ * content length, marks the response as chunked and queues the body behind
+ * it on a {@link ChunkedWriteHandler}. The status and headers set by the RPC
+ * are left untouched and the original write future completes once the last
+ * chunk has been written, so keep-alive and connection close work as usual.
+ */
+@ChannelHandler.Sharable
+final class StreamingResponseHandler extends SimpleChannelDownstreamHandler {
+
+  /** Name of the chunked writer we add to the pipeline if missing */
+  private static final String CHUNKED_WRITER = "serializer-chunked-writer";
+
+  /** Name of this handler in the pipeline */
+  private static final String NAME = "serializer-streaming-response";
+
+  /** The handler shared by all connections, it holds no state */
+  private static final StreamingResponseHandler INSTANCE =
+    new StreamingResponseHandler();
+
+  /**
+   * Determines whether or not the response for the given query can be sent
+   * in chunks. Chunked transfer encoding requires HTTP/1.1 and a live
+   * channel to install the handler on.
+   * @param query The query to check
+   * @return True if the response can be streamed
+   */
+  static boolean canStream(final HttpQuery query) {
+    final Channel chan = query.channel();
+    return chan != null && chan.getPipeline() != null &&
+      HttpVersion.HTTP_1_1.equals(query.request().getProtocolVersion());
+  }
+
+  /**
+   * Arranges for the body of a response for the query to be streamed from
+   * the given input.
+   * @param query The query that will be responded to
+   * @param body The body to stream
+   * @return The buffer to reply with in place of the body
+   */
+  static ChannelBuffer stream(final HttpQuery query, final ChunkedInput body) {
+    return stream(query, body, null);
+  }
+
+  /**
+   * Arranges for the body of a response for the query to be streamed from
+   * the given compressed input.
+   * @param query The query that will be responded to
+   * @param body The body to stream
+   * @param encoding Content encoding of the body, null if it isn't
+   * compressed
+   * @return The buffer to reply with in place of the body
+   */
+  static ChannelBuffer stream(final HttpQuery query, final ChunkedInput body,
+      final String encoding) {
+    install(query.channel().getPipeline());
+    return new StreamingBody(body, encoding);
+  }
+
+  /**
+   * Adds the chunked writer and this handler at the tail of the pipeline
+   * unless they're there already
+   * @param pipeline The pipeline of the connection
+   */
+  static void install(final ChannelPipeline pipeline) {
+    synchronized (pipeline) {
+      if (pipeline.get(ChunkedWriteHandler.class) == null) {
+        pipeline.addLast(CHUNKED_WRITER, new ChunkedWriteHandler());
+      }
+      // after the chunked writer so the body we write goes through it
+      if (pipeline.get(NAME) == null) {
+        pipeline.addLast(NAME, INSTANCE);
+      }
+    }
+  }
+
+  @Override
+  public void writeRequested(final ChannelHandlerContext ctx,
+      final MessageEvent e) {
+    if (!(e.getMessage() instanceof HttpResponse) ||
+        !(((HttpResponse) e.getMessage()).getContent()
+            instanceof StreamingBody)) {
+      ctx.sendDownstream(e);
+      return;
+    }
+
+    final HttpResponse response = (HttpResponse) e.getMessage();
+    final StreamingBody body = (StreamingBody) response.getContent();
+    response.headers().remove(HttpHeaders.Names.CONTENT_LENGTH);
+    response.setContent(ChannelBuffers.EMPTY_BUFFER);
+    response.setChunked(true);
+    if (body.encoding != null) {
+      response.headers().set(HttpHeaders.Names.CONTENT_ENCODING,
+          body.encoding);
+      response.headers().add(HttpHeaders.Names.VARY,
+          HttpHeaders.Names.ACCEPT_ENCODING);
+    }
+    Channels.write(ctx, Channels.future(ctx.getChannel()), response,
+        e.getRemoteAddress());
+    Channels.write(ctx, e.getFuture(), body.input, e.getRemoteAddress());
+  }
+
+  /**
+   * Stands in for the body of a response that will be streamed. It's an
+   * empty buffer so the RPC can reply with it as usual, and unique to the
+   * response so the handler knows which responses to stream and from where.
+   */
+  static final class StreamingBody extends BigEndianHeapChannelBuffer {
+
+    /** The body to stream */
+    private final ChunkedInput input;
+
+    /** Content encoding of the body, null if it isn't compressed */
+    private final String encoding;
+
+    /**
+     * Default constructor
+     * @param input The body to stream after the response headers
+     * @param encoding Content encoding of the body, null if it isn't
+     * compressed
+     */
+    StreamingBody(final ChunkedInput input, final String encoding) {
+      super(0);
+      this.input = input;
+      this.encoding = encoding;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+/**
+ * A small direct-mapped cache that turns character ranges into Strings,
+ * handing back the same String instance when the same characters are seen
+ * again. Lookups compare the characters in place so a hit doesn't allocate.
+ * A colliding entry simply replaces the previous one, which keeps the cache
+ * bounded without any bookkeeping.
+ * <p>
+ * Not thread safe, use one instance per parse.
+ */
+final class StringCache {
+
+  /** Default number of slots, must be a power of two */
+  private static final int DEFAULT_SIZE = 1024;
+
+  /** Strings longer than this are not worth caching */
+  private static final int MAX_LENGTH = 256;
+
+  /** The cached strings */
+  private final String[] entries;
+
+  /** Mask to turn a hash into a slot index */
+  private final int mask;
+
+  /**
+   * Default constructor
+   */
+  StringCache() {
+    this(DEFAULT_SIZE);
+  }
+
+  /**
+   * Constructor with a given number of slots
+   * @param size Number of slots, must be a power of two
+   * @throws IllegalArgumentException if the size was not a power of two
+   */
+  StringCache(final int size) {
+    if (size < 1 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Size must be a power of two: "
+          + size);
+    }
+    entries = new String[size];
+    mask = size - 1;
+  }
+
+  /**
+   * Returns a String with the given characters, from the cache if present
+   * @param buf The character buffer
+   * @param offset Offset of the first character
+   * @param length Number of characters
+   * @return A String with the characters
+   */
+  String get(final char[] buf, final int offset, final int length) {
+    if (length > MAX_LENGTH) {
+      return new String(buf, offset, length);
+    }
+    int hash = 0;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + buf[i];
+    }
+    final int slot = (hash ^ (hash >>> 16)) & mask;
+    final String cached = entries[slot];
+    if (cached != null && matches(cached, buf, offset, length)) {
+      return cached;
+    }
+    final String str = new String(buf, offset, length);
+    entries[slot] = str;
+    return str;
+  }
+
+  /** @return True if the string holds exactly the given characters */
+  private static boolean matches(final String str, final char[] buf,
+      final int offset, final int length) {
+    if (str.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (str.charAt(i) != buf[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,259 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.utils.JSON;
+import net.opentsdb.utils.JSONException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The string table of a dictionary encoded query response. Metric names,
+ * tag keys, tag values and aggregated tags are written once in a
+ * {@code strings} array at the top of the response and the series headers
+ * refer to them by index:
+ * <pre>
+ * {"strings":["sys.cpu.user","host","web01","dc"],"results":[
+ *   {"metric":0,"tags":[1,2],"aggregateTags":[3],"dps":{...}}, ...]}
+ * </pre>
+ * Tags are flattened into key and value index pairs. Wide group by queries
+ * repeat the same few keys and values in every series, so the table is much
+ * smaller than the strings it replaces.
+ * <p>
+ * The table is built in a single pass over the series headers before the
+ * response is written. Strings are interned in an open addressing table
+ * keyed by their hash code, so a lookup is a probe over an int array and an
+ * equals check, and the indexes of each series header are kept so it doesn't
+ * have to be read twice. Once built the dictionary is read only and may be
+ * shared by threads writing series in parallel.
+ */
+final class StringDictionary {
+
+  /** Initial number of slots, a power of two */
+  private static final int INITIAL_SLOTS = 64;
+
+  /** The strings in order of their index */
+  private final List<String> strings = new ArrayList<String>();
+
+  /** Index plus one of the string in each slot, zero for an empty slot */
+  private int[] slots = new int[INITIAL_SLOTS];
+
+  /** Hash code of the string in each slot */
+  private int[] hashes = new int[INITIAL_SLOTS];
+
+  /** The encoded header of each series */
+  private final Map<DataPoints, int[]> headers =
+    new IdentityHashMap<DataPoints, int[]>();
+
+  /** The table serialized as a JSON array, set once built */
+  private byte[] table;
+
+  /**
+   * Builds the dictionary of the given results
+   * @param results The data fetched from storage
+   * @return The dictionary
+   */
+  static StringDictionary build(final List<DataPoints[]> results) {
+    final StringDictionary dictionary = new StringDictionary();
+    for (DataPoints[] separate_dps : results) {
+      for (DataPoints dps : separate_dps) {
+        dictionary.add(dps);
+      }
+    }
+    dictionary.table = dictionary.serialize();
+    return dictionary;
+  }
+
+  /**
+   * Interns the strings of a series header and records their indexes
+   * @param dps The series
+   */
+  void add(final DataPoints dps) {
+    final Map<String, String> tags = dps.getTags();
+    final List<String> aggregated_tags = dps.getAggregatedTags();
+    final int tag_count = tags == null ? 0 : tags.size();
+    final int aggregated_count =
+      aggregated_tags == null ? 0 : aggregated_tags.size();
+    final int[] header = new int[3 + tag_count * 2 + aggregated_count];
+    int i = 0;
+    header[i++] = intern(dps.metricName());
+    header[i++] = tag_count;
+    if (tags != null) {
+      for (Map.Entry<String, String> tag : tags.entrySet()) {
+        header[i++] = intern(tag.getKey());
+        header[i++] = intern(tag.getValue());
+      }
+    }
+    header[i++] = aggregated_count;
+    if (aggregated_tags != null) {
+      for (String atag : aggregated_tags) {
+        header[i++] = intern(atag);
+      }
+    }
+    headers.put(dps, header);
+  }
+
+  /**
+   * Returns the index of a string, adding it to the table if it's new
+   * @param value The string
+   * @return The index in the table
+   */
+  int intern(final String value) {
+    final String key = value == null ? "" : value;
+    final int hash = key.hashCode();
+    int slot = find(key, hash);
+    if (slots[slot] != 0) {
+      return slots[slot] - 1;
+    }
+    strings.add(key);
+    slots[slot] = strings.size();
+    hashes[slot] = hash;
+    if (strings.size() * 2 > slots.length) {
+      grow();
+    }
+    return strings.size() - 1;
+  }
+
+  /**
+   * @param value The string
+   * @return the index of the string or -1 if it's not in the table
+   */
+  int indexOf(final String value) {
+    final String key = value == null ? "" : value;
+    final int slot = find(key, key.hashCode());
+    return slots[slot] - 1;
+  }
+
+  /** @return the number of strings in the table */
+  int size() {
+    return strings.size();
+  }
+
+  /**
+   * @param index An index in the table
+   * @return the string at the index
+   */
+  String get(final int index) {
+    return strings.get(index);
+  }
+
+  /** @return the table as a JSON array of strings */
+  byte[] table() {
+    return table;
+  }
+
+  /**
+   * Writes the header fields of a series, i.e. the metric, tags and
+   * aggregated tags, as indexes into an object that has been started
+   * @param json The generator to write to
+   * @param dps The series, added when the dictionary was built
+   * @throws IOException if writing failed
+   * @throws IllegalArgumentException if the series isn't in the dictionary
+   */
+  void writeHeader(final JsonGenerator json, final DataPoints dps)
+      throws IOException {
+    final int[] header = headers.get(dps);
+    if (header == null) {
+      throw new IllegalArgumentException("Series was not in the dictionary: "
+          + dps.metricName());
+    }
+    json.writeNumberField("metric", header[0]);
+    int i = 1;
+    final int tag_end = i + 1 + header[i] * 2;
+    i++;
+    json.writeFieldName("tags");
+    json.writeStartArray();
+    for (; i < tag_end; i++) {
+      json.writeNumber(header[i]);
+    }
+    json.writeEndArray();
+    final int aggregated_end = i + 1 + header[i];
+    i++;
+    json.writeFieldName("aggregateTags");
+    json.writeStartArray();
+    for (; i < aggregated_end; i++) {
+      json.writeNumber(header[i]);
+    }
+    json.writeEndArray();
+  }
+
+  /**
+   * Returns the slot holding the string or the empty slot it belongs in
+   * @param key The string
+   * @param hash Its hash code
+   * @return The slot
+   */
+  private int find(final String key, final int hash) {
+    final int mask = slots.length - 1;
+    int slot = spread(hash) & mask;
+    while (slots[slot] != 0) {
+      if (hashes[slot] == hash && strings.get(slots[slot] - 1).equals(key)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /** Doubles the number of slots, rehashing from the stored hash codes */
+  private void grow() {
+    final int[] old_slots = slots;
+    final int[] old_hashes = hashes;
+    slots = new int[old_slots.length * 2];
+    hashes = new int[old_slots.length * 2];
+    final int mask = slots.length - 1;
+    for (int i = 0; i < old_slots.length; i++) {
+      if (old_slots[i] == 0) {
+        continue;
+      }
+      int slot = spread(old_hashes[i]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = old_slots[i];
+      hashes[slot] = old_hashes[i];
+    }
+  }
+
+  /** @return the hash with the high bits mixed in, as the table is masked */
+  private static int spread(final int hash) {
+    final int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /** @return the strings as a JSON array */
+  private byte[] serialize() {
+    final ByteArrayOutputStream output =
+      new ByteArrayOutputStream(64 + strings.size() * 16);
+    try {
+      final JsonGenerator json = JSON.getFactory().createGenerator(output);
+      json.writeStartArray();
+      for (String value : strings) {
+        json.writeString(value);
+      }
+      json.writeEndArray();
+      json.close();
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+    return output.toByteArray();
+  }
+}
@@ -0,0 +1,213 @@
+package net.opentsdb.tsd;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.meta.Annotation;
+import org.junit.Ignore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Simple in-memory series for testing the query serialization paths without
+ * storage. Points are kept in parallel arrays and handed out through a
+ * flyweight {@link DataPoint} the same way the real iterators do.
+ */
+@Ignore
+public final class MockDataPoints implements DataPoints {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final List<String> aggregated_tags = new ArrayList<String>();
+    private final List<String> tsuids = new ArrayList<String>();
+    private List<Annotation> annotations;
+    private final long[] timestamps;
+    private final long[] longs;
+    private final double[] doubles;
+    private final boolean[] integers;
+    private int next_calls;
+
+    /**
+     * Creates a series with the given points
+     *
+     * @param metric     The metric name
+     * @param tags       The tags for the series
+     * @param timestamps Timestamps in milliseconds, ascending
+     * @param longs      Integer values, used where integers[i] is true
+     * @param doubles    Floating point values, used where integers[i] is false
+     * @param integers   Whether or not each point is an integer
+     */
+    public MockDataPoints(final String metric, final Map<String, String> tags,
+                          final long[] timestamps, final long[] longs, final double[] doubles,
+                          final boolean[] integers) {
+        this.metric = metric;
+        this.tags = tags;
+        this.timestamps = timestamps;
+        this.longs = longs;
+        this.doubles = doubles;
+        this.integers = integers;
+    }
+
+    /**
+     * Generates a series with a point every interval, alternating between
+     * integer and floating point values
+     *
+     * @param metric   The metric name
+     * @param host     Value for the "host" tag
+     * @param start    Timestamp of the first point in milliseconds
+     * @param interval Interval between points in milliseconds
+     * @param count    Number of points
+     * @return The series
+     */
+    public static MockDataPoints generate(final String metric, final String host,
+                                          final long start, final long interval, final int count) {
+        final long[] timestamps = new long[count];
+        final long[] longs = new long[count];
+        final double[] doubles = new double[count];
+        final boolean[] integers = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = start + (i * interval);
+            longs[i] = i * 3;
+            doubles[i] = i * 1.25 + 0.1;
+            integers[i] = i % 2 == 0;
+        }
+        final HashMap<String, String> tags = new HashMap<String, String>();
+        tags.put("host", host);
+        final MockDataPoints dps = new MockDataPoints(metric, tags, timestamps,
+                longs, doubles, integers);
+        dps.tsuids.add("000001000001" + host.hashCode());
+        return dps;
+    }
+
+    public MockDataPoints setAnnotations(final List<Annotation> annotations) {
+        this.annotations = annotations;
+        return this;
+    }
+
+    public MockDataPoints addAggregatedTag(final String tagk) {
+        aggregated_tags.add(tagk);
+        return this;
+    }
+
+    public String metricName() {
+        return metric;
+    }
+
+    public Deferred<String> metricNameAsync() {
+        return Deferred.fromResult(metric);
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    public Deferred<Map<String, String>> getTagsAsync() {
+        return Deferred.fromResult(tags);
+    }
+
+    public List<String> getAggregatedTags() {
+        return aggregated_tags;
+    }
+
+    public Deferred<List<String>> getAggregatedTagsAsync() {
+        return Deferred.fromResult(aggregated_tags);
+    }
+
+    public List<String> getTSUIDs() {
+        return tsuids;
+    }
+
+    /**
+     * @return the number of points handed out by all iterators so far
+     */
+    public int nextCalls() {
+        return next_calls;
+    }
+
+    public List<Annotation> getAnnotations() {
+        return annotations;
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+
+    public int aggregatedSize() {
+        return 0;
+    }
+
+    public SeekableView iterator() {
+        return new Iter();
+    }
+
+    public long timestamp(final int i) {
+        return timestamps[i];
+    }
+
+    public boolean isInteger(final int i) {
+        return integers[i];
+    }
+
+    public long longValue(final int i) {
+        return longs[i];
+    }
+
+    public double doubleValue(final int i) {
+        return doubles[i];
+    }
+
+    /**
+     * Iterator handing out the same data point object for every position
+     */
+    private final class Iter implements SeekableView, DataPoint {
+        private int next = 0;
+        private int current = -1;
+
+        public boolean hasNext() {
+            return next < timestamps.length;
+        }
+
+        public DataPoint next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next++;
+            next_calls++;
+            return this;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void seek(final long timestamp) {
+            while (next < timestamps.length && timestamps[next] < timestamp) {
+                next++;
+            }
+        }
+
+        public long timestamp() {
+            return timestamps[current];
+        }
+
+        public boolean isInteger() {
+            return integers[current];
+        }
+
+        public long longValue() {
+            return longs[current];
+        }
+
+        public double doubleValue() {
+            return doubles[current];
+        }
+
+        public double toDouble() {
+            return integers[current] ? longs[current] : doubles[current];
+        }
+    }
+}
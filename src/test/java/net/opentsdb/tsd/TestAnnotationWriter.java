@@ -0,0 +1,127 @@
+package net.opentsdb.tsd;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.utils.JSON;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the hand written annotation output, which has to match
+ * databind's exactly
+ */
+public final class TestAnnotationWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void matchesDatabind() throws Exception {
+        assertTrue(AnnotationWriter.matchesDatabind());
+    }
+
+    @Test
+    public void defaults() throws Exception {
+        assertSame(new Annotation());
+    }
+
+    @Test
+    public void full() throws Exception {
+        final Annotation note = annotation("000001000001000001", 1356998400L,
+                1356998460L);
+        final HashMap<String, String> custom = new HashMap<String, String>();
+        custom.put("owner", "ops");
+        custom.put("dept", "web");
+        custom.put("ticket", null);
+        note.setCustom(custom);
+        assertSame(note);
+    }
+
+    @Test
+    public void escaped() throws Exception {
+        final Annotation note = annotation("000001000001000001", 0, 0);
+        note.setDescription("\"quoted\"\t\\ \u0001 \u00e9\u4e2d");
+        note.setNotes("line\nbreak </script>");
+        final HashMap<String, String> custom = new HashMap<String, String>();
+        custom.put("k\"ey", "v\u00e9");
+        note.setCustom(custom);
+        assertSame(note);
+    }
+
+    @Test
+    public void nulls() throws Exception {
+        final Annotation note = new Annotation();
+        note.setTSUID(null);
+        note.setDescription(null);
+        note.setNotes(null);
+        note.setCustom(new HashMap<String, String>());
+        assertSame(note);
+    }
+
+    @Test
+    public void negativeTimes() throws Exception {
+        assertSame(annotation("", Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void serialize() throws Exception {
+        final List<Annotation> notes = Arrays.asList(
+                annotation("000001000001000001", 1356998400L, 0),
+                null,
+                annotation("000001000001000002", 1356998500L, 1356998600L));
+        assertEquals(JSON.serializeToString(notes),
+                new String(AnnotationWriter.serialize(notes), UTF8));
+    }
+
+    @Test
+    public void serializeEmpty() throws Exception {
+        assertEquals("[]", new String(AnnotationWriter.serialize(
+                new ArrayList<Annotation>()), UTF8));
+    }
+
+    @Test
+    public void writeAllInObject() throws Exception {
+        final List<Annotation> notes = Arrays.asList(
+                annotation("000001000001000001", 1356998400L, 0),
+                annotation("000001000001000002", 1356998500L, 0));
+        final StringWriter output = new StringWriter();
+        final JsonGenerator json = JSON.getFactory().createGenerator(output);
+        json.writeStartObject();
+        json.writeStringField("metric", "sys.cpu.user");
+        json.writeFieldName("annotations");
+        AnnotationWriter.writeAll(json, notes);
+        json.writeNumberField("after", 1);
+        json.writeEndObject();
+        json.close();
+        assertEquals("{\"metric\":\"sys.cpu.user\",\"annotations\":"
+                + JSON.serializeToString(notes) + ",\"after\":1}",
+                output.toString());
+    }
+
+    /** Asserts the annotation is written exactly as databind writes it */
+    private static void assertSame(final Annotation note) throws Exception {
+        final StringWriter output = new StringWriter();
+        final JsonGenerator json = JSON.getFactory().createGenerator(output);
+        AnnotationWriter.write(json, note);
+        json.close();
+        assertEquals(JSON.serializeToString(note), output.toString());
+    }
+
+    private static Annotation annotation(final String tsuid, final long start,
+                                         final long end) {
+        final Annotation note = new Annotation();
+        note.setTSUID(tsuid);
+        note.setStartTime(start);
+        note.setEndTime(end);
+        note.setDescription("Deployment");
+        note.setNotes("Rolled out a new build");
+        return note;
+    }
+}
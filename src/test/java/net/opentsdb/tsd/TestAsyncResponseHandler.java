@@ -0,0 +1,260 @@
+package net.opentsdb.tsd;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the handler writing responses serialized off the I/O thread
+ */
+public final class TestAsyncResponseHandler {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @After
+    public void after() {
+        AsyncResponseHandler.stop();
+    }
+
+    @Test
+    public void bodyReadyBeforeReply() throws Exception {
+        final AsyncResponseHandler handler = new AsyncResponseHandler();
+        final EncoderEmbedder<Object> embedder =
+                new EncoderEmbedder<Object>(handler);
+        final AsyncResponseHandler.PendingBody body = body(handler, "[1,2,3]");
+        body.run();
+        final HttpResponse response = reply(body);
+        embedder.offer(response);
+
+        assertSame(response, embedder.poll());
+        assertEquals("[1,2,3]", response.getContent().toString(UTF8));
+        assertEquals(7, HttpHeaders.getContentLength(response));
+        assertEquals(HttpResponseStatus.OK, response.getStatus());
+        assertEquals("application/json",
+                response.headers().get(HttpHeaders.Names.CONTENT_TYPE));
+    }
+
+    @Test
+    public void replyBeforeBody() throws Exception {
+        final AsyncResponseHandler handler = new AsyncResponseHandler();
+        final EncoderEmbedder<Object> embedder =
+                new EncoderEmbedder<Object>(handler);
+        final AsyncResponseHandler.PendingBody body = body(handler, "[1,2,3]");
+        final HttpResponse response = reply(body);
+        embedder.offer(response);
+        // held until the body is ready
+        assertNull(embedder.poll());
+
+        body.run();
+        assertSame(response, embedder.poll());
+        assertEquals("[1,2,3]", response.getContent().toString(UTF8));
+        assertEquals(7, HttpHeaders.getContentLength(response));
+    }
+
+    @Test
+    public void twoInFlight() throws Exception {
+        final AsyncResponseHandler handler = new AsyncResponseHandler();
+        final EncoderEmbedder<Object> embedder =
+                new EncoderEmbedder<Object>(handler);
+        final AsyncResponseHandler.PendingBody first = body(handler, "[1]");
+        final AsyncResponseHandler.PendingBody second = body(handler, "[2,2]");
+        final HttpResponse first_response = reply(first);
+        final HttpResponse second_response = reply(second);
+        embedder.offer(first_response);
+        embedder.offer(second_response);
+        assertNull(embedder.poll());
+
+        // the second body finishing first doesn't overtake the first reply
+        second.run();
+        assertNull(embedder.poll());
+        first.run();
+        assertSame(first_response, embedder.poll());
+        assertSame(second_response, embedder.poll());
+        assertEquals("[1]", first_response.getContent().toString(UTF8));
+        assertEquals(3, HttpHeaders.getContentLength(first_response));
+        assertEquals("[2,2]", second_response.getContent().toString(UTF8));
+        assertEquals(5, HttpHeaders.getContentLength(second_response));
+    }
+
+    @Test
+    public void otherResponseQueuedBehindPending() throws Exception {
+        final AsyncResponseHandler handler = new AsyncResponseHandler();
+        final EncoderEmbedder<Object> embedder =
+                new EncoderEmbedder<Object>(handler);
+        final AsyncResponseHandler.PendingBody body = body(handler, "[1,2,3]");
+        final HttpResponse pending = reply(body);
+        final HttpResponse other = reply(
+                ChannelBuffers.copiedBuffer("{}", UTF8));
+        embedder.offer(pending);
+        embedder.offer(other);
+        assertNull(embedder.poll());
+
+        body.run();
+        assertSame(pending, embedder.poll());
+        assertSame(other, embedder.poll());
+        // an unrelated response keeps its own body
+        assertEquals("{}", other.getContent().toString(UTF8));
+        assertEquals("[1,2,3]", pending.getContent().toString(UTF8));
+    }
+
+    @Test
+    public void failure() throws Exception {
+        final AsyncResponseHandler handler = new AsyncResponseHandler();
+        final AsyncResponseHandler.PendingBody body =
+                new AsyncResponseHandler.PendingBody(
+                        new Callable<ChannelBuffer>() {
+                            @Override
+                            public ChannelBuffer call() {
+                                throw new IllegalStateException("Boom");
+                            }
+                        }, handler);
+        final EncoderEmbedder<Object> embedder =
+                new EncoderEmbedder<Object>(handler);
+        final HttpResponse response = reply(body);
+        embedder.offer(response);
+        body.run();
+
+        assertSame(response, embedder.poll());
+        assertEquals(HttpResponseStatus.INTERNAL_SERVER_ERROR,
+                response.getStatus());
+        final String json = response.getContent().toString(UTF8);
+        assertTrue(json.startsWith("{\"error\":{"));
+        assertTrue(json.contains("\"code\":500"));
+        assertTrue(json.contains("\"message\":\"Boom\""));
+        assertEquals(json.length(), HttpHeaders.getContentLength(response));
+    }
+
+    @Test
+    public void otherMessagesPassThrough() throws Exception {
+        final EncoderEmbedder<Object> embedder =
+                new EncoderEmbedder<Object>(new AsyncResponseHandler());
+        final ChannelBuffer chunk = ChannelBuffers.wrappedBuffer(new byte[1]);
+        embedder.offer(chunk);
+        assertSame(chunk, embedder.poll());
+        final HttpResponse response = reply(ChannelBuffers.EMPTY_BUFFER);
+        embedder.offer(response);
+        assertSame(response, embedder.poll());
+        assertEquals(0, HttpHeaders.getContentLength(response));
+    }
+
+    @Test
+    public void defer() throws Exception {
+        final ChannelPipeline pipeline = Channels.pipeline();
+        assertNull(AsyncResponseHandler.defer(pipeline, task("[]")));
+        AsyncResponseHandler.start(1, 4);
+        final ChannelBuffer first =
+                AsyncResponseHandler.defer(pipeline, task("[1]"));
+        final ChannelBuffer second =
+                AsyncResponseHandler.defer(pipeline, task("[2]"));
+        assertTrue(first instanceof AsyncResponseHandler.PendingBody);
+        assertTrue(second instanceof AsyncResponseHandler.PendingBody);
+        assertNotSame(first, second);
+        assertEquals(0, first.readableBytes());
+        // installed once and shared by both responses
+        assertEquals(1, pipeline.getNames().size());
+        assertTrue(AsyncResponseHandler.stop(10000));
+        assertTrue(((AsyncResponseHandler.PendingBody) first).done());
+        assertTrue(((AsyncResponseHandler.PendingBody) second).done());
+    }
+
+    @Test
+    public void stopWaitsForQueued() throws Exception {
+        AsyncResponseHandler.start(1, 4);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ChannelPipeline pipeline = Channels.pipeline();
+        AsyncResponseHandler.defer(pipeline, new Callable<ChannelBuffer>() {
+            @Override
+            public ChannelBuffer call() throws Exception {
+                latch.await();
+                return ChannelBuffers.EMPTY_BUFFER;
+            }
+        });
+        final AsyncResponseHandler.PendingBody queued =
+                (AsyncResponseHandler.PendingBody) AsyncResponseHandler.defer(
+                        pipeline, task("[]"));
+        final Thread release = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latch.countDown();
+            }
+        });
+        release.start();
+        assertFalse(queued.done());
+        // waits for the blocked task and the one queued behind it
+        assertTrue(AsyncResponseHandler.stop(10000));
+        assertFalse(AsyncResponseHandler.running());
+        assertTrue(queued.done());
+        release.join();
+    }
+
+    @Test
+    public void wantsAsync() throws Exception {
+        assertFalse(AsyncResponseHandler.wantsAsync(
+                TestQueryResponseWriter.getResults(100, 1)));
+        AsyncResponseHandler.start(1, 1);
+        assertTrue(AsyncResponseHandler.wantsAsync(
+                TestQueryResponseWriter.getResults(100, 1)));
+        assertFalse(AsyncResponseHandler.wantsAsync(
+                TestQueryResponseWriter.getResults(1, 100)));
+        AsyncResponseHandler.stop();
+        assertFalse(AsyncResponseHandler.wantsAsync(
+                TestQueryResponseWriter.getResults(100, 1)));
+    }
+
+    /**
+     * Returns a pending body whose task returns the given body
+     */
+    private static AsyncResponseHandler.PendingBody body(
+            final AsyncResponseHandler handler, final String body) {
+        return new AsyncResponseHandler.PendingBody(task(body), handler);
+    }
+
+    /**
+     * Returns a task producing the given body
+     */
+    private static Callable<ChannelBuffer> task(final String body) {
+        return new Callable<ChannelBuffer>() {
+            @Override
+            public ChannelBuffer call() {
+                return ChannelBuffers.copiedBuffer(body, UTF8);
+            }
+        };
+    }
+
+    /**
+     * Returns a response as an RPC would send it with the given body
+     */
+    private static HttpResponse reply(final ChannelBuffer content) {
+        final HttpResponse response = new DefaultHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE,
+                "application/json");
+        response.setContent(content);
+        HttpHeaders.setContentLength(response, content.readableBytes());
+        return response;
+    }
+}
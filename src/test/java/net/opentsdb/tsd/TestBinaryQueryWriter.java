@@ -0,0 +1,247 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.utils.Config;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the binary query layout. Responses are decoded following
+ * the layout documented on {@link BinaryQueryWriter}.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestBinaryQueryWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private TSDB tsdb = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+    }
+
+    @Test
+    public void serializer() throws Exception {
+        final HttpBinarySerializer serdes = new HttpBinarySerializer();
+        assertEquals("binary", serdes.shortName());
+        assertEquals("application/x-tsdb-binary", serdes.responseContentType());
+    }
+
+    @Test
+    public void roundTripMixed() throws Exception {
+        final TSQuery data_query = TestQueryResponseWriter.getTSQuery(
+                "1356998400", "1357084800");
+        final List<DataPoints[]> results = TestQueryResponseWriter.getResults(3, 500);
+        final ChannelBuffer buf = new BinaryQueryWriter(data_query)
+                .format(results, null);
+        assertRoundTrip(data_query, results, buf);
+    }
+
+    @Test
+    public void roundTripIntegersIrregular() throws Exception {
+        final TSQuery data_query = TestQueryResponseWriter.getTSQuery(
+                "1356998400", "1388534400");
+        data_query.setMsResolution(true);
+        final Random random = new Random(42);
+        final int count = 1000;
+        final long[] timestamps = new long[count];
+        final long[] longs = new long[count];
+        final boolean[] integers = new boolean[count];
+        long ts = 1356998400000L;
+        for (int i = 0; i < count; i++) {
+            ts += 1 + random.nextInt(i % 3 == 0 ? 5000000 : 100);
+            timestamps[i] = ts;
+            longs[i] = random.nextLong() >> random.nextInt(64);
+            integers[i] = true;
+        }
+        final HashMap<String, String> tags = new HashMap<String, String>();
+        tags.put("host", "web01");
+        tags.put("dc", "lga");
+        final DataPoints dps = new MockDataPoints("sys.if.bytes", tags,
+                timestamps, longs, new double[count], integers);
+        final List<DataPoints[]> results = TestQueryResponseWriter.getResults(0, 0);
+        results.add(new DataPoints[]{dps});
+        final ChannelBuffer buf = new BinaryQueryWriter(data_query)
+                .format(results, null);
+        assertRoundTrip(data_query, results, buf);
+    }
+
+    @Test
+    public void smallerThanJSON() throws Exception {
+        final TSQuery data_query = TestQueryResponseWriter.getTSQuery(
+                "1356998400", "1357084800");
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        final int json = new QueryResponseWriter(query, data_query,
+                TestQueryResponseWriter.getResults(10, 1000), null).format()
+                .readableBytes();
+        final int binary = new BinaryQueryWriter(data_query).format(
+                TestQueryResponseWriter.getResults(10, 1000), null).readableBytes();
+        // the mock values are noisy doubles, real gauges pack far better
+        assertTrue(binary * 2 < json);
+    }
+
+    /**
+     * Decodes the response and compares it with the series it came from
+     */
+    private static void assertRoundTrip(final TSQuery data_query,
+                                        final List<DataPoints[]> results, final ChannelBuffer buf) {
+        assertEquals('T', buf.readByte());
+        assertEquals('S', buf.readByte());
+        assertEquals('D', buf.readByte());
+        assertEquals('B', buf.readByte());
+        assertEquals(BinaryQueryWriter.VERSION, buf.readByte());
+        final int flags = buf.readByte();
+        assertEquals(data_query.getMsResolution(),
+                (flags & BinaryQueryWriter.FLAG_MS_RESOLUTION) != 0);
+        if ((flags & BinaryQueryWriter.FLAG_ANNOTATIONS) != 0) {
+            assertEquals("", readString(buf));
+        }
+        int total = 0;
+        for (DataPoints[] group : results) {
+            total += group.length;
+        }
+        assertEquals(total, readVarint(buf));
+
+        for (DataPoints[] group : results) {
+            for (DataPoints dps : group) {
+                assertEquals(dps.metricName(), readString(buf));
+                final int tags = (int) readVarint(buf);
+                assertEquals(dps.getTags().size(), tags);
+                for (int i = 0; i < tags; i++) {
+                    final String tagk = readString(buf);
+                    assertEquals(dps.getTags().get(tagk), readString(buf));
+                }
+                assertEquals(0, readVarint(buf));
+                if ((flags & BinaryQueryWriter.FLAG_ANNOTATIONS) != 0) {
+                    assertEquals("", readString(buf));
+                }
+                final int count = (int) readVarint(buf);
+                assertEquals(dps.size(), count);
+                final byte encoding = buf.readByte();
+                final byte[] block = new byte[(int) readVarint(buf)];
+                buf.readBytes(block);
+                final BitReader bits = new BitReader(block);
+
+                long ts = 0;
+                long delta = 0;
+                long prev_long = 0;
+                long prev_bits = 0;
+                int leading = 0;
+                int trailing = 0;
+                for (int i = 0; i < count; i++) {
+                    if (i == 0) {
+                        ts = bits.read(64);
+                    } else {
+                        final long dod;
+                        if (bits.read(1) == 0) {
+                            dod = 0;
+                        } else if (bits.read(1) == 0) {
+                            dod = bits.readSigned(7);
+                        } else if (bits.read(1) == 0) {
+                            dod = bits.readSigned(9);
+                        } else if (bits.read(1) == 0) {
+                            dod = bits.readSigned(12);
+                        } else {
+                            dod = bits.read(64);
+                        }
+                        delta += dod;
+                        ts += delta;
+                    }
+                    assertEquals(data_query.getMsResolution() ? dps.timestamp(i)
+                            : dps.timestamp(i) / 1000, ts);
+
+                    if (encoding == BinaryQueryWriter.ENCODING_INTEGERS) {
+                        long zz = 0;
+                        int shift = 0;
+                        long b;
+                        do {
+                            b = bits.read(8);
+                            zz |= (b & 0x7F) << shift;
+                            shift += 7;
+                        } while ((b & 0x80) != 0);
+                        prev_long += (zz >>> 1) ^ -(zz & 1);
+                        assertEquals(dps.longValue(i), prev_long);
+                        continue;
+                    }
+
+                    if (i == 0) {
+                        prev_bits = bits.read(64);
+                    } else if (bits.read(1) == 1) {
+                        if (bits.read(1) == 1) {
+                            leading = (int) bits.read(5);
+                            int meaningful = (int) bits.read(6);
+                            if (meaningful == 0) {
+                                meaningful = 64;
+                            }
+                            trailing = 64 - leading - meaningful;
+                        }
+                        prev_bits ^= bits.read(64 - leading - trailing) << trailing;
+                    }
+                    final double expected = dps.isInteger(i) ? dps.longValue(i)
+                            : dps.doubleValue(i);
+                    assertEquals(expected, Double.longBitsToDouble(prev_bits), 0);
+                }
+            }
+        }
+        assertEquals(0, buf.readableBytes());
+    }
+
+    private static long readVarint(final ChannelBuffer buf) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String readString(final ChannelBuffer buf) {
+        final byte[] bytes = new byte[(int) readVarint(buf)];
+        buf.readBytes(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Reads bits most significant first
+     */
+    private static final class BitReader {
+        private final byte[] bytes;
+        private int position;
+
+        BitReader(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long read(final int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                final int bit = (bytes[position >> 3] >> (7 - (position & 7))) & 1;
+                value = (value << 1) | bit;
+                position++;
+            }
+            return value;
+        }
+
+        long readSigned(final int count) {
+            final long value = read(count);
+            return (value << (64 - count)) >> (64 - count);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.opentsdb.tsd;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the response buffer pool
+ */
+public final class TestBufferPool {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void sizeClasses() throws Exception {
+        final BufferPool pool = new BufferPool(4);
+        assertEquals(1024, pool.acquire(0).capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(2048, pool.acquire(1025).capacity());
+        assertEquals(65536, pool.acquire(65536).capacity());
+        assertEquals(4, pool.misses());
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        final BufferPool pool = new BufferPool(4);
+        final BufferPool.PooledBuffer buffer =
+                (BufferPool.PooledBuffer) pool.acquire(100);
+        assertEquals(0, buffer.readableBytes());
+        buffer.writeBytes("hello".getBytes(UTF8));
+        final byte[] array = buffer.array();
+        buffer.release();
+        // only once
+        buffer.release();
+        assertEquals(1, pool.free());
+        assertEquals(1, pool.releases());
+
+        final ChannelBuffer again = pool.acquire(1000);
+        assertTrue(array == again.array());
+        assertEquals(0, again.readableBytes());
+        assertEquals(1, pool.hits());
+        assertEquals(0, pool.free());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        final BufferPool pool = new BufferPool(1);
+        ((BufferPool.PooledBuffer) pool.acquire(10)).release();
+        ((BufferPool.PooledBuffer) pool.acquire(10)).release();
+        ((BufferPool.PooledBuffer) pool.acquire(10)).release();
+        ((BufferPool.PooledBuffer) pool.acquire(5000)).release();
+        assertEquals(2, pool.free());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void zeroBuffers() throws Exception {
+        new BufferPool(0);
+    }
+
+    @Test
+    public void releasedOnceWritten() throws Exception {
+        final BufferPool pool = new BufferPool(4);
+        final ChannelBuffer body = pool.acquire(10);
+        body.writeBytes("[]".getBytes(UTF8));
+        final HttpResponse response = new DefaultHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setContent(body);
+        final DefaultChannelFuture future =
+                new DefaultChannelFuture(mock(Channel.class), false);
+        final MessageEvent e = mock(MessageEvent.class);
+        when(e.getMessage()).thenReturn(response);
+        when(e.getFuture()).thenReturn(future);
+        final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+
+        new BufferPool.ReleaseHandler().writeRequested(ctx, e);
+        verify(ctx).sendDownstream(e);
+        assertEquals(0, pool.free());
+        future.setSuccess();
+        assertEquals(1, pool.free());
+    }
+
+    @Test
+    public void copyWithoutPool() throws Exception {
+        final ChannelBuffer source = ChannelBuffers.dynamicBuffer();
+        source.writeBytes("{\"a\":1}".getBytes(UTF8));
+        // the caller hands over its own buffer instead
+        assertNull(BufferPool.pooledCopy(null, source));
+    }
+}
@@ -0,0 +1,102 @@
+package net.opentsdb.tsd;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import net.opentsdb.utils.JSON;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for the data point writer. The output has to match what the
+ * JsonGenerator writes for the same entries byte for byte.
+ */
+public final class TestDataPointWriter {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private final DataPointWriter writer = new DataPointWriter();
+
+    @Test
+    public void writeLong() throws Exception {
+        assertEquals("0", longString(0));
+        assertEquals("1356998400", longString(1356998400L));
+        assertEquals("-42", longString(-42));
+        assertEquals("9223372036854775807", longString(Long.MAX_VALUE));
+        assertEquals("-9223372036854775808", longString(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void writeDoubleSpecialValues() throws Exception {
+        final double[] values = {0.0, -0.0, Double.NaN,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.MIN_VALUE, Double.MAX_VALUE, 1e-3, 9999999.999999999,
+                1e7, 0.1, 0.3, 100, -1.5, 42.0, 1.0E-5, 123456.789,
+                Long.MAX_VALUE, Long.MIN_VALUE};
+        for (double value : values) {
+            assertEquals(generatorString(value), doubleString(value));
+        }
+    }
+
+    @Test
+    public void writeDoubleMatchesGenerator() throws Exception {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final double value;
+            switch (i % 4) {
+                case 0:
+                    value = Double.longBitsToDouble(random.nextLong());
+                    break;
+                case 1:
+                    value = random.nextDouble() * Math.pow(10, random.nextInt(14) - 5);
+                    break;
+                case 2:
+                    value = Math.round(random.nextDouble() * 1e6)
+                            / Math.pow(10, random.nextInt(10));
+                    break;
+                default:
+                    value = random.nextLong() >> random.nextInt(64);
+                    break;
+            }
+            assertEquals(generatorString(value), doubleString(value));
+        }
+    }
+
+    @Test
+    public void writeEntries() throws Exception {
+        final ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+        writer.writeMapEntry(buf, true, 1356998400L, 6);
+        writer.writeMapEntry(buf, false, 1356998460L, 1.35);
+        assertEquals("\"1356998400\":6.0,\"1356998460\":1.35",
+                buf.toString(ASCII));
+        buf.clear();
+        writer.writeArrayEntry(buf, true, 1356998400L, 6);
+        writer.writeArrayEntry(buf, false, 1356998460L, Double.NaN);
+        assertEquals("[1356998400,6.0],[1356998460,\"NaN\"]",
+                buf.toString(ASCII));
+    }
+
+    private String longString(final long value) {
+        final ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+        writer.writeLong(buf, value);
+        return buf.toString(ASCII);
+    }
+
+    private String doubleString(final double value) {
+        final ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+        writer.writeDouble(buf, value);
+        return buf.toString(ASCII);
+    }
+
+    private static String generatorString(final double value)
+            throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonGenerator json = JSON.getFactory().createGenerator(out);
+        json.writeNumber(value);
+        json.close();
+        return new String(out.toByteArray(), ASCII);
+    }
+}
@@ -0,0 +1,88 @@
+package net.opentsdb.tsd;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the allocation free number parsing
+ */
+public final class TestDecimalParser {
+
+    @Test
+    public void longs() throws Exception {
+        assertLong("0");
+        assertLong("-42");
+        assertLong("123456789012345678");
+        assertLong("-123456789012345678");
+        assertFalse(isSimpleLong("1234567890123456789"));
+        assertFalse(isSimpleLong(""));
+        assertFalse(isSimpleLong("-"));
+        assertFalse(isSimpleLong("+1"));
+        assertFalse(isSimpleLong("1.0"));
+    }
+
+    @Test
+    public void decimals() throws Exception {
+        assertDecimal("0.1");
+        assertDecimal("-0.0");
+        assertDecimal("42");
+        assertDecimal("5.");
+        assertDecimal(".5");
+        assertDecimal("123456.789012345");
+        assertDecimal("0.00000000000001");
+        assertFalse(isSimpleDecimal("0.000000000000001"));
+        assertFalse(isSimpleDecimal("1.0E-5"));
+        assertFalse(isSimpleDecimal("1234567890.1234567"));
+        assertFalse(isSimpleDecimal("1.2.3"));
+        assertFalse(isSimpleDecimal("."));
+        assertFalse(isSimpleDecimal("NaN"));
+    }
+
+    @Test
+    public void decimalsMatchParseDouble() throws Exception {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final int digits = 1 + random.nextInt(15);
+            final StringBuilder str = new StringBuilder();
+            if (random.nextBoolean()) {
+                str.append('-');
+            }
+            final int point = random.nextInt(digits + 1);
+            for (int d = 0; d < digits; d++) {
+                if (d == point) {
+                    str.append('.');
+                }
+                str.append((char) ('0' + random.nextInt(10)));
+            }
+            assertDecimal(str.toString());
+        }
+    }
+
+    private static boolean isSimpleLong(final String str) {
+        return DecimalParser.isSimpleLong(str.toCharArray(), 0, str.length());
+    }
+
+    private static boolean isSimpleDecimal(final String str) {
+        return DecimalParser.isSimpleDecimal(str.toCharArray(), 0, str.length());
+    }
+
+    private static void assertLong(final String str) {
+        assertTrue(isSimpleLong(str));
+        assertEquals(Long.parseLong(str),
+                DecimalParser.parseLong(str.toCharArray(), 0, str.length()));
+    }
+
+    private static void assertDecimal(final String str) {
+        // parse from the middle of a buffer to cover the offsets
+        final char[] buf = ("x" + str + "x").toCharArray();
+        assertTrue(str, DecimalParser.isSimpleDecimal(buf, 1, str.length()));
+        assertEquals(str, Double.doubleToRawLongBits(Double.parseDouble(str)),
+                Double.doubleToRawLongBits(
+                        DecimalParser.parseDouble(buf, 1, str.length())));
+    }
+}
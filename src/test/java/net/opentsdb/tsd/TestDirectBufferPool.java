@@ -0,0 +1,162 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.IncomingDataPoint;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.CompositeChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the direct buffer pool of large responses
+ */
+public final class TestDirectBufferPool {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void acquireAndRelease() throws Exception {
+        final DirectBufferPool pool = new DirectBufferPool(2);
+        final ChannelBuffer chunk = pool.acquire();
+        assertTrue(chunk.isDirect());
+        assertEquals(DirectBufferPool.CHUNK_SIZE, chunk.capacity());
+        assertEquals(1, pool.allocated());
+        assertEquals(1, pool.inUse());
+
+        chunk.writeBytes("hello".getBytes(UTF8));
+        pool.release(chunk);
+        assertEquals(0, pool.inUse());
+        assertEquals(1, pool.free());
+
+        final ChannelBuffer again = pool.acquire();
+        assertSame(chunk, again);
+        assertEquals(0, again.readableBytes());
+        assertEquals(1, pool.allocated());
+    }
+
+    @Test
+    public void heapFallback() throws Exception {
+        final DirectBufferPool pool = new DirectBufferPool(1);
+        final ChannelBuffer direct = pool.acquire();
+        final ChannelBuffer heap = pool.acquire();
+        assertTrue(direct.isDirect());
+        assertFalse(heap.isDirect());
+        assertEquals(DirectBufferPool.CHUNK_SIZE, heap.capacity());
+        assertEquals(1, pool.allocated());
+        assertEquals(1, pool.heapChunks());
+
+        // heap chunks aren't pooled
+        pool.release(heap);
+        pool.release(direct);
+        assertEquals(1, pool.free());
+        assertEquals(0, pool.inUse());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void zeroBuffers() throws Exception {
+        new DirectBufferPool(0);
+    }
+
+    @Test
+    public void releasedOnceWritten() throws Exception {
+        final DirectBufferPool pool = new DirectBufferPool(4);
+        final List<ChannelBuffer> chunks = new ArrayList<ChannelBuffer>();
+        chunks.add(pool.acquire());
+        chunks.get(0).writeBytes("[]".getBytes(UTF8));
+        final HttpResponse response = new DefaultHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setContent(new DirectBufferPool.DirectResponse(pool, chunks));
+        final DefaultChannelFuture future =
+                new DefaultChannelFuture(mock(Channel.class), false);
+        final MessageEvent e = mock(MessageEvent.class);
+        when(e.getMessage()).thenReturn(response);
+        when(e.getFuture()).thenReturn(future);
+        final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+
+        new BufferPool.ReleaseHandler().writeRequested(ctx, e);
+        verify(ctx).sendDownstream(e);
+        assertEquals(1, pool.inUse());
+        future.setSuccess();
+        assertEquals(0, pool.inUse());
+        assertEquals(1, pool.free());
+    }
+
+    @Test
+    public void gatheringWrite() throws Exception {
+        final ChannelBuffer header = ChannelBuffers.wrappedBuffer(
+                "HTTP/1.1 200 OK\r\n\r\n".getBytes(UTF8));
+        final ChannelBuffer body = ChannelBuffers.directBuffer(2);
+        body.writeBytes("[]".getBytes(UTF8));
+        final ChannelBuffer encoded =
+                ChannelBuffers.wrappedBuffer(header, body);
+        assertTrue(encoded instanceof CompositeChannelBuffer);
+        assertFalse(((CompositeChannelBuffer) encoded).useGathering());
+
+        final MessageEvent e = mock(MessageEvent.class);
+        when(e.getMessage()).thenReturn(encoded);
+        final Channel channel = mock(Channel.class);
+        when(e.getFuture()).thenReturn(
+                new DefaultChannelFuture(channel, false));
+        final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        when(ctx.getChannel()).thenReturn(channel);
+        new DirectBufferPool.GatheringHandler().writeRequested(ctx, e);
+
+        final ArgumentCaptor<ChannelEvent> sent =
+                ArgumentCaptor.forClass(ChannelEvent.class);
+        verify(ctx).sendDownstream(sent.capture());
+        final CompositeChannelBuffer written = (CompositeChannelBuffer)
+                ((MessageEvent) sent.getValue()).getMessage();
+        assertTrue(written.useGathering());
+        assertEquals("HTTP/1.1 200 OK\r\n\r\n[]", written.toString(UTF8));
+    }
+
+    @Test
+    public void heapMessagesPassThrough() throws Exception {
+        final ChannelBuffer encoded = ChannelBuffers.wrappedBuffer(
+                ChannelBuffers.wrappedBuffer(new byte[4]),
+                ChannelBuffers.wrappedBuffer(new byte[4]));
+        final MessageEvent e = mock(MessageEvent.class);
+        when(e.getMessage()).thenReturn(encoded);
+        final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        new DirectBufferPool.GatheringHandler().writeRequested(ctx, e);
+        verify(ctx).sendDownstream(e);
+    }
+
+    @Test
+    public void statsLeftUntouched() throws Exception {
+        final HashMap<String, String> tags = new HashMap<String, String>();
+        tags.put("host", "web01");
+        final List<IncomingDataPoint> stats =
+                new ArrayList<IncomingDataPoint>();
+        stats.add(new IncomingDataPoint("tsd.rpc.received", 1356998400L,
+                "42", tags));
+        final List<IncomingDataPoint> all = SerializerStats.append(stats);
+        assertEquals(1, stats.size());
+        assertSame(stats.get(0), all.get(0));
+        for (IncomingDataPoint dp : all.subList(1, all.size())) {
+            assertTrue(dp.getMetric().startsWith("tsd.http.serializer."));
+            assertEquals("web01", dp.getTags().get("host"));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for the streaming put parser
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestIncomingDataPointParser {
+    private TSDB tsdb = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+    }
+
+    @Test
+    public void parseSingle() throws Exception {
+        final List<IncomingDataPoint> dps = parse(
+                "  {\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,"
+                        + "\"value\":42,\"tags\":{\"host\":\"web01\"}}  ");
+        assertEquals(1, dps.size());
+        assertEquals("sys.cpu.nice", dps.get(0).getMetric());
+        assertEquals(1365465600, dps.get(0).getTimestamp());
+        assertEquals("42", dps.get(0).getValue());
+        assertEquals("web01", dps.get(0).getTags().get("host"));
+    }
+
+    @Test
+    public void parseArray() throws Exception {
+        final List<IncomingDataPoint> dps = parse(
+                "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":\"1365465600\","
+                        + "\"value\":\"42.5\",\"tags\":{\"host\":\"web01\"},\"unknown\":[1,{}]},"
+                        + "{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465601,"
+                        + "\"value\":1.0E-5,\"tags\":{\"host\":\"web01\"}}]");
+        assertEquals(2, dps.size());
+        assertEquals(1365465600, dps.get(0).getTimestamp());
+        assertEquals("42.5", dps.get(0).getValue());
+        assertEquals("1.0E-5", dps.get(1).getValue());
+        // repeated strings are shared
+        assertSame(dps.get(0).getMetric(), dps.get(1).getMetric());
+        assertSame(dps.get(0).getTags().get("host"),
+                dps.get(1).getTags().get("host"));
+    }
+
+    @Test
+    public void parseNulls() throws Exception {
+        final List<IncomingDataPoint> dps = parse(
+                "[{\"metric\":null,\"value\":null,\"tags\":null},null]");
+        assertEquals(2, dps.size());
+        assertNull(dps.get(0).getMetric());
+        assertNull(dps.get(0).getValue());
+        assertNull(dps.get(0).getTags());
+        assertEquals(0, dps.get(0).getTimestamp());
+        assertNull(dps.get(1));
+    }
+
+    @Test
+    public void parseEmptyArray() throws Exception {
+        assertEquals(0, parse("[]").size());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseNoContent() throws Exception {
+        parse(null);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseWhitespace() throws Exception {
+        parse("   ");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseNotJSON() throws Exception {
+        parse("This is unparsable");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseTruncated() throws Exception {
+        parse("[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseBadTimestamp() throws Exception {
+        parse("{\"metric\":\"sys.cpu.nice\",\"timestamp\":\"notanumber\"}");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseBadTags() throws Exception {
+        parse("{\"metric\":\"sys.cpu.nice\",\"tags\":[\"host\"]}");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseObjectValue() throws Exception {
+        parse("{\"metric\":\"sys.cpu.nice\",\"value\":{\"metric\":\"other\"}}");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseArrayValue() throws Exception {
+        parse("[{\"metric\":\"sys.cpu.nice\",\"value\":[1,2]}]");
+    }
+
+    private List<IncomingDataPoint> parse(final String content) {
+        final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", content);
+        return IncomingDataPointParser.parse(query);
+    }
+}
@@ -0,0 +1,280 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the line protocol and NDJSON put bodies
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestLinePutParser {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private TSDB tsdb = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+    }
+
+    @Test
+    public void forQuery() throws Exception {
+        assertNull(LinePutParser.forQuery(NettyMocks.postQuery(tsdb, "/api/put",
+                "{}", "application/json")));
+        assertTrue(LinePutParser.forQuery(NettyMocks.postQuery(tsdb, "/api/put",
+                "", "text/plain; charset=UTF-8")) != null);
+        assertTrue(LinePutParser.forQuery(NettyMocks.postQuery(tsdb, "/api/put",
+                "", "Application/X-NDJSON")) != null);
+        assertTrue(LinePutParser.forQuery(NettyMocks.postQuery(tsdb, "/api/put",
+                "[]", "text/x-opentsdb-put")) != null);
+    }
+
+    @Test
+    public void forQueryPlainTextJSON() throws Exception {
+        assertNull(LinePutParser.forQuery(NettyMocks.postQuery(tsdb, "/api/put",
+                " \r\n [{\"metric\":\"a\",\"value\":1}]", "text/plain")));
+        assertNull(LinePutParser.forQuery(NettyMocks.postQuery(tsdb, "/api/put",
+                "{\"metric\":\"a\",\"value\":1}", "text/plain")));
+        assertTrue(LinePutParser.forQuery(NettyMocks.postQuery(tsdb, "/api/put",
+                "  sys.cpu.user 1365465600 42 host=web01", "text/plain")) != null);
+        final List<IncomingDataPoint> dps = new HttpSampleSerializer(
+                NettyMocks.postQuery(tsdb, "/api/put",
+                        "[{\"metric\":\"a\",\"value\":1}]", "text/plain"))
+                .parsePutV1();
+        assertEquals(1, dps.size());
+        assertEquals("a", dps.get(0).getMetric());
+    }
+
+    @Test
+    public void telnet() throws Exception {
+        final LinePutParser parser = new LinePutParser(false);
+        final List<IncomingDataPoint> dps = parse(parser,
+                "sys.cpu.user 1365465600 42 host=web01 cpu=0\r\n"
+                        + "\n"
+                        + "# a comment\n"
+                        + "put  sys.cpu.user\t1365465600.250 42.5 host=web01\n"
+                        + "sys.cpu.nice 1365465601 1e3 host=web02");
+        assertEquals(0, parser.errors().size());
+        assertEquals(3, dps.size());
+        assertEquals("sys.cpu.user", dps.get(0).getMetric());
+        assertEquals(1365465600, dps.get(0).getTimestamp());
+        assertEquals("42", dps.get(0).getValue());
+        assertEquals(2, dps.get(0).getTags().size());
+        assertEquals("0", dps.get(0).getTags().get("cpu"));
+        assertEquals(1365465600250L, dps.get(1).getTimestamp());
+        assertEquals("42.5", dps.get(1).getValue());
+        assertEquals("1e3", dps.get(2).getValue());
+        assertEquals("web02", dps.get(2).getTags().get("host"));
+        // repeated strings are shared
+        assertTrue(dps.get(0).getMetric() == dps.get(1).getMetric());
+    }
+
+    @Test
+    public void telnetNonASCII() throws Exception {
+        final LinePutParser parser = new LinePutParser(false);
+        final List<IncomingDataPoint> dps = parse(parser,
+                "sys.cpu.user 1365465600 42 host=web\u00e9");
+        assertEquals("web\u00e9", dps.get(0).getTags().get("host"));
+    }
+
+    @Test
+    public void telnetErrors() throws Exception {
+        final LinePutParser parser = new LinePutParser(false);
+        final List<IncomingDataPoint> dps = parse(parser,
+                "sys.cpu.user 1365465600\n"
+                        + "sys.cpu.user notatime 42 host=web01\n"
+                        + "sys.cpu.user 1365465600.25 42 host=web01\n"
+                        + "sys.cpu.user 1365465600 42 host\n"
+                        + "sys.cpu.user 1365465600 42 host=\n"
+                        + "sys.cpu.user 1365465600 42 host=a host=b\n"
+                        + "sys.cpu.user 1365465600 42 host=web01\n");
+        assertEquals(1, dps.size());
+        final List<HashMap<String, Object>> errors = parser.errors();
+        assertEquals(6, errors.size());
+        assertEquals("Line 1: Expected at least a metric, timestamp and value",
+                errors.get(0).get("error"));
+        assertEquals("sys.cpu.user 1365465600", errors.get(0).get("datapoint"));
+        assertEquals("Line 2: Invalid timestamp: notatime",
+                errors.get(1).get("error"));
+        assertEquals("Line 3: Invalid timestamp: 1365465600.25",
+                errors.get(2).get("error"));
+        assertEquals("Line 4: Invalid tag: host", errors.get(3).get("error"));
+        assertEquals("Line 5: Invalid tag: host=", errors.get(4).get("error"));
+        assertEquals("Line 6: Duplicate tag: host", errors.get(5).get("error"));
+    }
+
+    @Test
+    public void ndjson() throws Exception {
+        final LinePutParser parser = new LinePutParser(true);
+        final List<IncomingDataPoint> dps = parse(parser,
+                "{\"metric\":\"sys.cpu.user\",\"timestamp\":1365465600,"
+                        + "\"value\":42,\"tags\":{\"host\":\"web01\"}}\n"
+                        + "  \r\n"
+                        + "# a comment\n"
+                        + "{\"metric\":\"sys.cpu.user\",\"timestamp\":1365465601,"
+                        + "\"value\":\"42.5\",\"tags\":{\"host\":\"web\u00e9\"}}\r\n");
+        assertEquals(0, parser.errors().size());
+        assertEquals(2, dps.size());
+        assertEquals("42", dps.get(0).getValue());
+        assertEquals(1365465601, dps.get(1).getTimestamp());
+        assertEquals("web\u00e9", dps.get(1).getTags().get("host"));
+    }
+
+    @Test
+    public void ndjsonErrors() throws Exception {
+        final LinePutParser parser = new LinePutParser(true);
+        final List<IncomingDataPoint> dps = parse(parser,
+                "{\"metric\":\"sys.cpu.user\",\"timestamp\":1365465600,\n"
+                        + "[{\"metric\":\"sys.cpu.user\"}]\n"
+                        + "{\"metric\":\"sys.cpu.user\",\"timestamp\":\"x\"}\n"
+                        + "{\"metric\":\"sys.cpu.user\"} {}\n"
+                        + "{\"metric\":\"sys.cpu.user\",\"timestamp\":1365465600}\n");
+        assertEquals(1, dps.size());
+        final List<HashMap<String, Object>> errors = parser.errors();
+        assertEquals(4, errors.size());
+        assertTrue(((String) errors.get(0).get("error")).startsWith("Line 1: "));
+        assertEquals("Line 2: Expected a data point object but found START_ARRAY",
+                errors.get(1).get("error"));
+        assertEquals("Line 3: Invalid timestamp: x", errors.get(2).get("error"));
+        assertEquals("Line 4: Unexpected START_OBJECT after the data point",
+                errors.get(3).get("error"));
+        assertEquals("{\"metric\":\"sys.cpu.user\"} {}",
+                errors.get(3).get("datapoint"));
+    }
+
+    @Test
+    public void serializerReportsLineErrors() throws Exception {
+        final HttpSampleSerializer serdes = new HttpSampleSerializer(
+                NettyMocks.postQuery(tsdb, "/api/put?details",
+                        "sys.cpu.user 1365465600 42 host=web01\nbad line\n",
+                        "text/plain"));
+        assertEquals(1, serdes.parsePutV1().size());
+
+        final HashMap<String, Object> results = new HashMap<String, Object>();
+        results.put("success", 0L);
+        results.put("failed", 1L);
+        final List<Map<String, Object>> details = new ArrayList<Map<String, Object>>();
+        final HashMap<String, Object> detail = new HashMap<String, Object>();
+        detail.put("error", "Unknown metric");
+        details.add(detail);
+        results.put("errors", details);
+        final String json = serdes.formatPutV1(results).toString(UTF8);
+        assertTrue(json.contains("\"failed\":2"));
+        assertTrue(json.contains("\"error\":\"Line 2: Expected at least a metric,"
+                + " timestamp and value\""));
+        assertTrue(json.contains("\"datapoint\":\"bad line\""));
+        assertTrue(json.contains("\"error\":\"Unknown metric\""));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void serializerRejectsLineErrorsWithoutDetails() throws Exception {
+        new HttpSampleSerializer(NettyMocks.postQuery(tsdb, "/api/put",
+                "sys.cpu.user 1365465600 42 host=web01\nbad line\n",
+                "text/plain")).parsePutV1();
+    }
+
+    @Test
+    public void serializerRejectsAllLinesFailing() throws Exception {
+        try {
+            new HttpSampleSerializer(NettyMocks.postQuery(tsdb,
+                    "/api/put?details", "bad line\nsys.cpu.user\n",
+                    "text/plain")).parsePutV1();
+            fail("Expected a BadRequestException");
+        } catch (BadRequestException e) {
+            assertTrue(e.getMessage().contains("None of the 2 line(s)"));
+        }
+    }
+
+    @Test
+    public void fakeSerializerLines() throws Exception {
+        final FakeHttpSerialize serdes = new FakeHttpSerialize(
+                NettyMocks.postQuery(tsdb, "/api/put?details",
+                        "sys.cpu.user 1365465600 42 host=web01\nbad line\n",
+                        "text/x-opentsdb-put"));
+        final List<IncomingDataPoint> dps = serdes.parsePutV1();
+        assertEquals(1, dps.size());
+        assertEquals("sys.cpu.user", dps.get(0).getMetric());
+
+        final HashMap<String, Object> results = new HashMap<String, Object>();
+        results.put("success", 1L);
+        results.put("failed", 0L);
+        results.put("errors", new ArrayList<Map<String, Object>>());
+        final String json = serdes.formatPutV1(results).toString(UTF8);
+        assertTrue(json.contains("\"failed\":1"));
+        assertTrue(json.contains("\"datapoint\":\"bad line\""));
+    }
+
+    @Test
+    public void fakeSerializerNDJSON() throws Exception {
+        final List<IncomingDataPoint> dps = new FakeHttpSerialize(
+                NettyMocks.postQuery(tsdb, "/api/put",
+                        "{\"metric\":\"a\",\"value\":1}\n{\"metric\":\"b\",\"value\":2}",
+                        "application/x-ndjson")).parsePutV1();
+        assertEquals(2, dps.size());
+        assertEquals("b", dps.get(1).getMetric());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void fakeSerializerRejectsAllLinesFailing() throws Exception {
+        new FakeHttpSerialize(NettyMocks.postQuery(tsdb, "/api/put?details",
+                "bad line\n", "text/plain")).parsePutV1();
+    }
+
+    @Test
+    public void serializerNDJSON() throws Exception {
+        final List<IncomingDataPoint> dps = new HttpSampleSerializer(
+                NettyMocks.postQuery(tsdb, "/api/put",
+                        "{\"metric\":\"a\",\"value\":1}\n{\"metric\":\"b\",\"value\":2}",
+                        "application/x-ndjson")).parsePutV1();
+        assertEquals(2, dps.size());
+        assertEquals("b", dps.get(1).getMetric());
+    }
+
+    @Test
+    public void charsMatchBytes() throws Exception {
+        final String telnet = "sys.cpu.user 1365465600 42 host=web\u00e9\n"
+                + "put sys.cpu.user 1365465601.500 -1.5 host=web01 cpu=1\n";
+        final String ndjson = "{\"metric\":\"sys.cpu.user\",\"value\":42,"
+                + "\"tags\":{\"host\":\"web\u00e9\"}}\n# skipped\n";
+        for (int i = 0; i < 2; i++) {
+            final boolean json = i == 1;
+            final String content = json ? ndjson : telnet;
+            final List<IncomingDataPoint> dps = parse(new LinePutParser(json),
+                    content);
+            final char[] buf = content.toCharArray();
+            final List<IncomingDataPoint> decoded = new LinePutParser(json)
+                    .parse(buf, 0, buf.length);
+            assertEquals(dps.size(), decoded.size());
+            for (int j = 0; j < dps.size(); j++) {
+                assertEquals(dps.get(j).getMetric(), decoded.get(j).getMetric());
+                assertEquals(dps.get(j).getTimestamp(),
+                        decoded.get(j).getTimestamp());
+                assertEquals(dps.get(j).getValue(), decoded.get(j).getValue());
+                assertEquals(dps.get(j).getTags(), decoded.get(j).getTags());
+            }
+        }
+    }
+
+    private static List<IncomingDataPoint> parse(final LinePutParser parser,
+                                                 final String content) {
+        final byte[] bytes = content.getBytes(UTF8);
+        return parser.parse(bytes, 0, bytes.length, UTF8);
+    }
+}
@@ -0,0 +1,157 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.IncomingDataPoint;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the parallel parser of large put arrays
+ */
+public final class TestParallelPutParser {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void scan() throws Exception {
+        final byte[] json = " [ {\"a\":\"]}\\\"\"} ,null,\n[1,[2]] ,\"x\"]  "
+                .getBytes(UTF8);
+        final int[] bounds = ParallelPutParser.scan(json, 0, json.length);
+        assertArrayEquals(new int[] { 3, 15, 17, 21, 23, 30, 32, 35 },
+                bounds);
+        assertEquals("{\"a\":\"]}\\\"\"}",
+                new String(json, bounds[0], bounds[1] - bounds[0], UTF8));
+        assertEquals("null",
+                new String(json, bounds[2], bounds[3] - bounds[2], UTF8));
+    }
+
+    @Test
+    public void scanOffset() throws Exception {
+        final byte[] json = "xx[{}]xx".getBytes(UTF8);
+        assertArrayEquals(new int[] { 3, 5 },
+                ParallelPutParser.scan(json, 2, 6));
+    }
+
+    @Test
+    public void scanNotAnArray() throws Exception {
+        assertNull(scan("{\"metric\":\"sys.cpu.user\"}"));
+        assertNull(scan("[]"));
+        assertNull(scan("  "));
+        assertNull(scan("[{\"a\":1}"));
+        assertNull(scan("[{\"a\":\"1}]"));
+        assertNull(scan("[{\"a\":1}}]"));
+        assertNull(scan("[{\"a\":1}] x"));
+        assertNull(scan("[1 2]"));
+    }
+
+    @Test
+    public void parseMatchesSequential() throws Exception {
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0) {
+                json.append(",\n");
+            }
+            if (i % 1000 == 999) {
+                json.append("null");
+                continue;
+            }
+            json.append("{\"metric\":\"sys.cpu.user\",\"timestamp\":")
+                    .append(1365465600 + i)
+                    .append(",\"value\":").append(i)
+                    .append(".5,\"tags\":{\"host\":\"web")
+                    .append(i % 7).append("\",\"cpu\":\"0\"}}");
+        }
+        json.append("]");
+        final byte[] bytes = json.toString().getBytes(UTF8);
+
+        final List<IncomingDataPoint> expected = IncomingDataPointParser
+                .parse(new ByteArrayInputStream(bytes));
+        final List<IncomingDataPoint> dps = new ParallelPutParser(bytes,
+                ParallelPutParser.scan(bytes, 0, bytes.length)).parse();
+        assertEquals(expected.size(), dps.size());
+        for (int i = 0; i < dps.size(); i++) {
+            if (expected.get(i) == null) {
+                assertNull(dps.get(i));
+                continue;
+            }
+            assertEquals(expected.get(i).getMetric(), dps.get(i).getMetric());
+            assertEquals(expected.get(i).getTimestamp(),
+                    dps.get(i).getTimestamp());
+            assertEquals(expected.get(i).getValue(), dps.get(i).getValue());
+            assertEquals(expected.get(i).getTags(), dps.get(i).getTags());
+        }
+        assertNull(dps.get(999));
+        assertEquals("4998.5", dps.get(4998).getValue());
+    }
+
+    @Test
+    public void parseErrorIndex() throws Exception {
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 4000; i++) {
+            if (i > 0) {
+                json.append(",");
+            }
+            if (i == 2500 || i == 3500) {
+                json.append("{\"metric\":\"sys.cpu.user\",\"timestamp\":\"x\"}");
+            } else {
+                json.append("{\"metric\":\"sys.cpu.user\",\"value\":1}");
+            }
+        }
+        json.append("]");
+        final byte[] bytes = json.toString().getBytes(UTF8);
+        try {
+            new ParallelPutParser(bytes,
+                    ParallelPutParser.scan(bytes, 0, bytes.length)).parse();
+            fail("Expected a BadRequestException");
+        } catch (BadRequestException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(
+                    "data point 2500"));
+        }
+    }
+
+    @Test
+    public void parseNotAnObject() throws Exception {
+        final byte[] bytes = "[{\"value\":1},42]".getBytes(UTF8);
+        try {
+            new ParallelPutParser(bytes,
+                    ParallelPutParser.scan(bytes, 0, bytes.length)).parse();
+            fail("Expected a BadRequestException");
+        } catch (BadRequestException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(
+                    "data point 1"));
+        }
+    }
+
+    @Test
+    public void sharesQueryPool() throws Exception {
+        final ForkJoinPool pool = ParallelQueryWriter.pool();
+        final byte[] bytes = "[{\"value\":1},{\"value\":2}]".getBytes(UTF8);
+        assertEquals(2, new ParallelPutParser(bytes,
+                ParallelPutParser.scan(bytes, 0, bytes.length)).parse()
+                .size());
+        assertSame(pool, ParallelQueryWriter.pool());
+
+        // shutting down stops the one pool, the next parse starts a new one
+        ParallelQueryWriter.shutdown();
+        assertTrue(pool.isShutdown());
+        assertEquals(2, new ParallelPutParser(bytes,
+                ParallelPutParser.scan(bytes, 0, bytes.length)).parse()
+                .size());
+        assertNotSame(pool, ParallelQueryWriter.pool());
+    }
+
+    private static int[] scan(final String json) {
+        final byte[] bytes = json.getBytes(UTF8);
+        return ParallelPutParser.scan(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,154 @@
+package net.opentsdb.tsd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the streaming point reduction
+ */
+public final class TestPointDecimator {
+
+    @Test
+    public void lttbKeepsFirstLastAndPeaks() throws Exception {
+        // 1000 points at 1 second with a single spike
+        final PointDecimator decimator = new PointDecimator(
+                PointDecimator.Mode.LTTB, 10, 0, 999999);
+        final long[] ts = new long[1000];
+        final double[] values = new double[1000];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = i * 1000L;
+            values[i] = i == 437 ? 100 : i % 2;
+        }
+        final List<long[]> out = run(decimator, ts, values);
+        assertEquals(10, out.size());
+        assertEquals(0, out.get(0)[0]);
+        assertEquals(999000, out.get(out.size() - 1)[0]);
+        boolean spike = false;
+        for (int i = 0; i < out.size(); i++) {
+            spike |= out.get(i)[0] == 437000;
+            if (i > 0) {
+                assertTrue(out.get(i)[0] > out.get(i - 1)[0]);
+            }
+        }
+        assertTrue(spike);
+    }
+
+    @Test
+    public void lttbKeepsEarlySpike() throws Exception {
+        // the spike falls within the first tenth of the range, right after
+        // the first point
+        final PointDecimator decimator = new PointDecimator(
+                PointDecimator.Mode.LTTB, 10, 0, 999999);
+        final long[] ts = new long[1000];
+        final double[] values = new double[1000];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = i * 1000L;
+            values[i] = i == 3 ? -500 : i % 2;
+        }
+        final List<long[]> out = run(decimator, ts, values);
+        assertEquals(10, out.size());
+        assertPoint(out.get(0), 0, 0);
+        assertPoint(out.get(1), 3000, -500);
+        assertEquals(999000, out.get(out.size() - 1)[0]);
+    }
+
+    @Test
+    public void lttbTwoPoints() throws Exception {
+        final List<long[]> out = run(new PointDecimator(
+                PointDecimator.Mode.LTTB, 2, 0, 9999),
+                new long[] { 0, 1000, 2000, 3000 },
+                new double[] { 1, 50, -50, 4 });
+        assertEquals(2, out.size());
+        assertPoint(out.get(0), 0, 1);
+        assertPoint(out.get(1), 3000, 4);
+    }
+
+    @Test
+    public void minMax() throws Exception {
+        final PointDecimator decimator = new PointDecimator(
+                PointDecimator.Mode.MINMAX, 4, 0, 3999);
+        // two buckets of 2 seconds, max before min in the second
+        final List<long[]> out = run(decimator,
+                new long[] { 0, 500, 1000, 2000, 2500, 3000 },
+                new double[] { 5, 1, 9, 7, 8, -2 });
+        assertEquals(4, out.size());
+        assertPoint(out.get(0), 500, 1);
+        assertPoint(out.get(1), 1000, 9);
+        assertPoint(out.get(2), 2500, 8);
+        assertPoint(out.get(3), 3000, -2);
+    }
+
+    @Test
+    public void sparseSeriesUnchanged() throws Exception {
+        for (PointDecimator.Mode mode : PointDecimator.Mode.values()) {
+            final PointDecimator decimator = new PointDecimator(mode, 100, 0,
+                    99999);
+            final long[] ts = { 0, 10000, 50000, 99000 };
+            final double[] values = { 1, 2, 3, 4 };
+            final List<long[]> out = run(decimator, ts, values);
+            assertEquals(mode.toString(), 4, out.size());
+            for (int i = 0; i < ts.length; i++) {
+                assertPoint(out.get(i), ts[i], values[i]);
+            }
+        }
+    }
+
+    @Test
+    public void singlePoint() throws Exception {
+        final List<long[]> out = run(new PointDecimator(
+                PointDecimator.Mode.LTTB, 2, 0, 1000),
+                new long[] { 42 }, new double[] { 1 });
+        assertEquals(1, out.size());
+    }
+
+    @Test
+    public void reset() throws Exception {
+        final PointDecimator decimator = new PointDecimator(
+                PointDecimator.Mode.LTTB, 10, 0, 9999);
+        run(decimator, new long[] { 0, 5000 }, new double[] { 1, 2 });
+        decimator.reset();
+        final List<long[]> out = run(decimator, new long[] { 1000, 9000 },
+                new double[] { 3, 4 });
+        assertEquals(2, out.size());
+        assertPoint(out.get(0), 1000, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ctorTooFewPoints() throws Exception {
+        new PointDecimator(PointDecimator.Mode.LTTB, 1, 0, 1000);
+    }
+
+    private static void assertPoint(final long[] point, final long ts,
+                                    final double value) {
+        assertEquals(ts, point[0]);
+        assertEquals(value, Double.longBitsToDouble(point[1]), 0.0);
+    }
+
+    /**
+     * Feeds the points and collects the output as {timestamp, value bits}
+     */
+    private static List<long[]> run(final PointDecimator decimator,
+                                    final long[] ts, final double[] values) {
+        final List<long[]> out = new ArrayList<long[]>();
+        for (int i = 0; i < ts.length; i++) {
+            decimator.add(ts[i], values[i]);
+            drain(decimator, out);
+        }
+        decimator.finish();
+        drain(decimator, out);
+        return out;
+    }
+
+    private static void drain(final PointDecimator decimator,
+                              final List<long[]> out) {
+        for (int i = 0; i < decimator.ready(); i++) {
+            out.add(new long[] { decimator.readyTimestamp(i),
+                    Double.doubleToLongBits(decimator.readyValue(i)) });
+        }
+    }
+}
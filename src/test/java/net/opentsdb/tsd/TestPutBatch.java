@@ -0,0 +1,148 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for the columnar put batch and its parser
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestPutBatch {
+    private TSDB tsdb = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+    }
+
+    @Test
+    public void parseDeduplicatesSeries() throws Exception {
+        final PutBatch batch = parse("[{\"metric\":\"sys.cpu.user\","
+                + "\"timestamp\":1365465600,\"value\":42,"
+                + "\"tags\":{\"host\":\"web01\",\"cpu\":\"0\"}},"
+                + "{\"metric\":\"sys.cpu.user\",\"timestamp\":1365465601,"
+                + "\"value\":42.5,\"tags\":{\"cpu\":\"0\",\"host\":\"web01\"}},"
+                + "{\"metric\":\"sys.cpu.user\",\"timestamp\":1365465602,"
+                + "\"value\":\"24\",\"tags\":{\"host\":\"web02\",\"cpu\":\"0\"}},"
+                + "null]");
+        assertEquals(3, batch.size());
+        assertEquals(2, batch.seriesCount());
+        assertEquals(0, batch.series(0));
+        assertEquals(0, batch.series(1));
+        assertEquals(1, batch.series(2));
+        assertEquals("sys.cpu.user", batch.metric(1));
+        assertEquals("web02", batch.tags(1).get("host"));
+        assertEquals(1365465601, batch.timestamp(1));
+        assertEquals(42, batch.longValue(0));
+        assertEquals(42.5, batch.doubleValue(1), 0);
+        assertEquals(24, batch.longValue(2));
+    }
+
+    @Test
+    public void parseValueTypes() throws Exception {
+        final PutBatch batch = parse("[{\"metric\":\"m\",\"value\":1},"
+                + "{\"metric\":\"m\",\"value\":1.0E-5},"
+                + "{\"metric\":\"m\",\"value\":\"1.5\"},"
+                + "{\"metric\":\"m\",\"value\":\"abc\"},"
+                + "{\"metric\":\"m\",\"value\":null},"
+                + "{\"metric\":\"m\",\"value\":123456789012345678901234567890}]");
+        assertEquals(PutBatch.TYPE_LONG, batch.valueType(0));
+        assertEquals(PutBatch.TYPE_DOUBLE, batch.valueType(1));
+        assertEquals(PutBatch.TYPE_DOUBLE, batch.valueType(2));
+        assertEquals(PutBatch.TYPE_RAW, batch.valueType(3));
+        assertEquals("abc", batch.valueText(3));
+        assertEquals(PutBatch.TYPE_RAW, batch.valueType(4));
+        assertNull(batch.valueText(4));
+        assertEquals(PutBatch.TYPE_RAW, batch.valueType(5));
+        assertEquals("123456789012345678901234567890", batch.valueText(5));
+    }
+
+    @Test
+    public void toDataPointsMatchesParse() throws Exception {
+        final String content = "[{\"metric\":\"sys.cpu.user\","
+                + "\"timestamp\":\"1365465600\",\"value\":42,"
+                + "\"tags\":{\"host\":\"web01\"}},"
+                + "{\"metric\":null,\"value\":\"x\",\"tags\":null},"
+                + "{\"metric\":\"sys.cpu.user\",\"timestamp\":1365465601,"
+                + "\"value\":\"17\",\"tags\":{}}]";
+        final List<IncomingDataPoint> expected = IncomingDataPointParser.parse(
+                NettyMocks.postQuery(tsdb, "/api/put", content));
+        final List<IncomingDataPoint> dps = parse(content).toDataPoints();
+        assertEquals(expected.size(), dps.size());
+        for (int i = 0; i < dps.size(); i++) {
+            assertEquals(expected.get(i).getMetric(), dps.get(i).getMetric());
+            assertEquals(expected.get(i).getTimestamp(), dps.get(i).getTimestamp());
+            assertEquals(expected.get(i).getValue(), dps.get(i).getValue());
+            assertEquals(expected.get(i).getTags(), dps.get(i).getTags());
+        }
+    }
+
+    @Test
+    public void missingTagsAreNotEmptyTags() throws Exception {
+        final PutBatch batch = parse("[{\"metric\":\"m\",\"tags\":null},"
+                + "{\"metric\":\"m\",\"tags\":{}},{\"metric\":\"m\"}]");
+        assertEquals(2, batch.seriesCount());
+        assertNull(batch.tags(batch.series(0)));
+        assertEquals(0, batch.tags(batch.series(1)).size());
+        assertEquals(batch.series(0), batch.series(2));
+    }
+
+    @Test
+    public void repeatedTagKey() throws Exception {
+        final PutBatch batch = parse("{\"metric\":\"m\","
+                + "\"tags\":{\"host\":\"a\",\"dc\":\"lga\",\"host\":\"b\"}}");
+        assertEquals(2, batch.tags(0).size());
+        assertEquals("b", batch.tags(0).get("host"));
+    }
+
+    @Test
+    public void manySeries() throws Exception {
+        final PutBatch batch = new PutBatch();
+        final String[] pairs = new String[2];
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 1000; i++) {
+                pairs[0] = "host";
+                pairs[1] = "web" + i;
+                batch.addLong(batch.addSeries("sys.cpu.user", pairs, 2), i, i);
+            }
+        }
+        assertEquals(1000, batch.seriesCount());
+        assertEquals(2000, batch.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(batch.series(i), batch.series(i + 1000));
+            assertEquals("web" + i, batch.tags(batch.series(i)).get("host"));
+        }
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseNotJSON() throws Exception {
+        parse("This is unparsable");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void parseObjectValue() throws Exception {
+        parse("{\"metric\":\"m\",\"value\":{\"timestamp\":1}}");
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void longValueOfDouble() throws Exception {
+        parse("{\"metric\":\"m\",\"value\":1.5}").longValue(0);
+    }
+
+    private PutBatch parse(final String content) {
+        return new HttpSampleSerializer(NettyMocks.postQuery(tsdb,
+                "/api/put", content)).parsePutBatchV1();
+    }
+}
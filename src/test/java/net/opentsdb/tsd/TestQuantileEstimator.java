@@ -0,0 +1,83 @@
+package net.opentsdb.tsd;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the P-square quantile estimator
+ */
+public final class TestQuantileEstimator {
+
+    @Test
+    public void exactForFewValues() throws Exception {
+        final QuantileEstimator median = new QuantileEstimator(0.5);
+        assertTrue(Double.isNaN(median.estimate()));
+        median.add(3);
+        assertEquals(3, median.estimate(), 0.0);
+        median.add(1);
+        assertEquals(2, median.estimate(), 0.0);
+        median.add(2);
+        assertEquals(2, median.estimate(), 0.0);
+    }
+
+    @Test
+    public void uniform() throws Exception {
+        assertClose(new Random(42), 0.5, false);
+        assertClose(new Random(42), 0.9, false);
+        assertClose(new Random(42), 0.99, false);
+    }
+
+    @Test
+    public void gaussian() throws Exception {
+        assertClose(new Random(7), 0.5, true);
+        assertClose(new Random(7), 0.95, true);
+    }
+
+    @Test
+    public void sortedInput() throws Exception {
+        final QuantileEstimator estimator = new QuantileEstimator(0.9);
+        for (int i = 0; i < 100000; i++) {
+            estimator.add(i);
+        }
+        assertEquals(90000, estimator.estimate(), 1000);
+    }
+
+    @Test
+    public void reset() throws Exception {
+        final QuantileEstimator estimator = new QuantileEstimator(0.5);
+        for (int i = 0; i < 100; i++) {
+            estimator.add(1000);
+        }
+        estimator.reset();
+        estimator.add(1);
+        assertEquals(1, estimator.estimate(), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ctorOutOfRange() throws Exception {
+        new QuantileEstimator(1);
+    }
+
+    /**
+     * Compares the estimate over 100k values against the exact quantile,
+     * allowing one percent of the value range
+     */
+    private static void assertClose(final Random random, final double quantile,
+                                    final boolean gaussian) {
+        final QuantileEstimator estimator = new QuantileEstimator(quantile);
+        final double[] values = new double[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = gaussian ? random.nextGaussian() : random.nextDouble();
+            estimator.add(values[i]);
+        }
+        Arrays.sort(values);
+        final double exact = values[(int) (quantile * (values.length - 1))];
+        final double range = values[values.length - 1] - values[0];
+        assertEquals(exact, estimator.estimate(), range * 0.01);
+    }
+}
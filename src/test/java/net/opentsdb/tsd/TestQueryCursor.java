@@ -0,0 +1,183 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the incremental query cursor
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestQueryCursor {
+    private TSDB tsdb = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+    }
+
+    @Test
+    public void forQueryNone() throws Exception {
+        assertNull(QueryCursor.forQuery(
+                NettyMocks.getQuery(tsdb, "/api/query")));
+        assertNull(QueryCursor.forQuery(
+                NettyMocks.getQuery(tsdb, "/api/query?since=")));
+    }
+
+    @Test
+    public void forQuerySinceSeconds() throws Exception {
+        final QueryCursor cursor = QueryCursor.forQuery(
+                NettyMocks.getQuery(tsdb, "/api/query?since=1356998460"));
+        assertFalse(cursor.wantsCursor());
+        assertEquals(1356998461000L, cursor.startFor(1, 1356998400000L));
+        assertEquals(1356998520000L, cursor.startFor(1, 1356998520000L));
+    }
+
+    @Test
+    public void forQuerySinceMilliseconds() throws Exception {
+        final QueryCursor cursor = QueryCursor.forQuery(
+                NettyMocks.getQuery(tsdb, "/api/query?since=1356998460500"));
+        assertEquals(1356998460501L, cursor.startFor(1, 1356998400000L));
+    }
+
+    @Test
+    public void forQueryEmptyCursor() throws Exception {
+        final QueryCursor cursor = QueryCursor.forQuery(
+                NettyMocks.getQuery(tsdb, "/api/query?cursor="));
+        assertTrue(cursor.wantsCursor());
+        assertEquals(1356998400000L, cursor.startFor(1, 1356998400000L));
+    }
+
+    @Test
+    public void forQueryBodyCursor() throws Exception {
+        final QueryCursor last = new QueryCursor(Long.MIN_VALUE,
+                Collections.<Long, Long>emptyMap(), true);
+        last.record(1, 1356998460000L);
+        final String token = last.token();
+        final QueryCursor cursor = QueryCursor.forQuery(NettyMocks.postQuery(
+                tsdb, "/api/query", "{\"start\":1356998400,\"queries\":[{"
+                + "\"metric\":\"cursor\"}],\"cursor\":\"" + token + "\"}"));
+        assertTrue(cursor.wantsCursor());
+        assertEquals(1356998460001L, cursor.startFor(1, 1356998400000L));
+        assertEquals(1356998400000L, cursor.startFor(2, 1356998400000L));
+    }
+
+    @Test
+    public void forQueryBodyEmptyCursor() throws Exception {
+        final QueryCursor cursor = QueryCursor.forQuery(NettyMocks.postQuery(
+                tsdb, "/api/query", "{\"start\":1356998400,\"cursor\":null}"));
+        assertTrue(cursor.wantsCursor());
+        assertNull(QueryCursor.forQuery(NettyMocks.postQuery(tsdb,
+                "/api/query", "{\"queries\":[{\"metric\":\"cursor\"}]}")));
+    }
+
+    @Test (expected = BadRequestException.class)
+    public void forQueryBodyBadCursor() throws Exception {
+        QueryCursor.forQuery(NettyMocks.postQuery(tsdb, "/api/query",
+                "{\"cursor\":\"AQ\"}"));
+    }
+
+    @Test
+    public void withoutCursor() throws Exception {
+        final String body = "{\"start\":1356998400,\"queries\":[]}";
+        assertTrue(body == QueryCursor.withoutCursor(body));
+        assertEquals(body, QueryCursor.withoutCursor(
+                "{\"start\":1356998400,\"cursor\":\"AQA\",\"queries\":[]}"));
+        final String nested = "{\"queries\":[{\"cursor\":1}]}";
+        assertEquals(nested, QueryCursor.withoutCursor(nested));
+    }
+
+    @Test (expected = BadRequestException.class)
+    public void forQueryBadSince() throws Exception {
+        QueryCursor.forQuery(NettyMocks.getQuery(tsdb, "/api/query?since=now"));
+    }
+
+    @Test (expected = BadRequestException.class)
+    public void forQueryBadCursor() throws Exception {
+        QueryCursor.forQuery(NettyMocks.getQuery(tsdb, "/api/query?cursor=AQ"));
+    }
+
+    @Test
+    public void tokenRoundTrip() throws Exception {
+        final QueryCursor cursor = new QueryCursor(Long.MIN_VALUE,
+                Collections.<Long, Long>emptyMap(), true);
+        cursor.record(0xFFFFFFFFL, 1356998520000L);
+        cursor.record(42, 1356998400000L);
+        cursor.record(7, Long.MIN_VALUE);
+        final String token = cursor.token();
+        assertFalse(token.contains("="));
+
+        final Map<Long, Long> expected = new HashMap<Long, Long>();
+        expected.put(0xFFFFFFFFL, 1356998520000L);
+        expected.put(42L, 1356998400000L);
+        assertEquals(expected, QueryCursor.decode(token));
+    }
+
+    @Test
+    public void tokenEmpty() throws Exception {
+        final QueryCursor cursor = new QueryCursor(Long.MIN_VALUE,
+                Collections.<Long, Long>emptyMap(), true);
+        assertTrue(QueryCursor.decode(cursor.token()).isEmpty());
+    }
+
+    @Test
+    public void recordKeepsPrevious() throws Exception {
+        final Map<Long, Long> previous = new HashMap<Long, Long>();
+        previous.put(42L, 1356998460000L);
+        final QueryCursor cursor = new QueryCursor(1356998400999L, previous,
+                true);
+        assertEquals(1356998460001L, cursor.startFor(42, 1356998400000L));
+        // series not in the cursor fall back to since
+        assertEquals(1356998401000L, cursor.startFor(7, 1356998400000L));
+
+        cursor.record(42, Long.MIN_VALUE);
+        assertEquals(previous, QueryCursor.decode(cursor.token()));
+    }
+
+    @Test
+    public void recordCollisionKeepsOldest() throws Exception {
+        final QueryCursor cursor = new QueryCursor(Long.MIN_VALUE,
+                Collections.<Long, Long>emptyMap(), true);
+        cursor.record(42, 1356998520000L);
+        cursor.record(42, 1356998460000L);
+        cursor.record(42, 1356998580000L);
+        assertEquals(Collections.singletonMap(42L, 1356998460000L),
+                QueryCursor.decode(cursor.token()));
+    }
+
+    @Test
+    public void identity() throws Exception {
+        final MockDataPoints web00 = MockDataPoints.generate("sys.cpu.user",
+                "web00", 1356998400000L, 60000, 1);
+        final MockDataPoints web01 = MockDataPoints.generate("sys.cpu.user",
+                "web01", 1356998400000L, 60000, 1);
+        assertEquals(QueryCursor.identity(web00), QueryCursor.identity(
+                MockDataPoints.generate("sys.cpu.user", "web00", 0, 1, 1)));
+        assertFalse(QueryCursor.identity(web00) == QueryCursor.identity(web01));
+        assertTrue(QueryCursor.identity(web00) <= 0xFFFFFFFFL);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void decodeTrailingBytes() throws Exception {
+        QueryCursor.decode("AQAA");
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void decodeUnknownVersion() throws Exception {
+        QueryCursor.decode("AgA");
+    }
+}
@@ -0,0 +1,814 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.JSON;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the query response writer shared by the serializers
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestQueryResponseWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private TSDB tsdb = null;
+    private TSQuery data_query = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+        data_query = getTSQuery("1356998400", "1356998520");
+    }
+
+    @Test
+    public void format() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        final QueryResponseWriter writer = new QueryResponseWriter(query,
+                data_query, getResults(1, 3), null);
+        assertEquals("[{\"metric\":\"sys.cpu.user\",\"tags\":{\"host\":\"web00\"},"
+                        + "\"aggregateTags\":[],\"dps\":{\"1356998400\":0.0,"
+                        + "\"1356998460\":1.35,\"1356998520\":6.0}}]",
+                writer.format().toString(UTF8));
+        assertTrue(writer.isFinished());
+    }
+
+    @Test
+    public void formatArraysJSONP() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?arrays&jsonp=func");
+        final QueryResponseWriter writer = new QueryResponseWriter(query,
+                data_query, getResults(1, 2), null);
+        assertEquals("func([{\"metric\":\"sys.cpu.user\",\"tags\":{\"host\":\"web00\"},"
+                        + "\"aggregateTags\":[],\"dps\":[[1356998400,0.0],"
+                        + "[1356998460,1.35]]}])",
+                writer.format().toString(UTF8));
+    }
+
+    @Test
+    public void formatSkipsPointsOutsideRange() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        data_query = getTSQuery("1356998460", "1356998460");
+        final QueryResponseWriter writer = new QueryResponseWriter(query,
+                data_query, getResults(1, 5), null);
+        assertEquals("[{\"metric\":\"sys.cpu.user\",\"tags\":{\"host\":\"web00\"},"
+                        + "\"aggregateTags\":[],\"dps\":{\"1356998460\":1.35}}]",
+                writer.format().toString(UTF8));
+    }
+
+    @Test
+    public void formatSeeksToRange() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        data_query = getTSQuery("1356998460", "1356998520");
+        final List<DataPoints[]> results = getResults(1, 1000);
+        final String response = new QueryResponseWriter(query, data_query,
+                results, null).format().toString(UTF8);
+        assertTrue(response.endsWith("\"dps\":{\"1356998460\":1.35,"
+                + "\"1356998520\":6.0}}]"));
+        // two points in range plus the first one past the end
+        assertEquals(3, ((MockDataPoints) results.get(0)[0]).nextCalls());
+    }
+
+    @Test
+    public void formatWithAnnotations() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        final List<DataPoints[]> results = getResults(1, 1);
+        final Annotation note = new Annotation();
+        note.setTSUID("000001000001000001");
+        note.setStartTime(1356998400);
+        note.setDescription("reboot");
+        final List<Annotation> notes = new ArrayList<Annotation>();
+        notes.add(note);
+        ((MockDataPoints) results.get(0)[0]).setAnnotations(notes);
+        final QueryResponseWriter writer = new QueryResponseWriter(query,
+                data_query, results, notes);
+        final String response = writer.format().toString(UTF8);
+        final String json = net.opentsdb.utils.JSON.serializeToString(note);
+        assertTrue(response.contains("\"annotations\":[" + json + "]"));
+        assertTrue(response.contains("\"globalAnnotations\":[" + json + "]"));
+    }
+
+    @Test
+    public void streamMatchesFormat() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final String expected = new QueryResponseWriter(query, data_query,
+                getResults(5, 500), null).format().toString(UTF8);
+
+        final QueryResponseStream stream = new QueryResponseStream(
+                new QueryResponseWriter(query, data_query, getResults(5, 500), null),
+                1024);
+        final ChannelBuffer streamed = ChannelBuffers.dynamicBuffer();
+        int chunks = 0;
+        while (stream.hasNextChunk()) {
+            final HttpChunk chunk = (HttpChunk) stream.nextChunk();
+            if (chunk.isLast()) {
+                break;
+            }
+            // each chunk stays near the limit no matter how large the response
+            assertTrue(chunk.getContent().readableBytes() < 2048);
+            streamed.writeBytes(chunk.getContent());
+            chunks++;
+        }
+        assertTrue(stream.isEndOfInput());
+        assertNull(stream.nextChunk());
+        assertTrue(chunks > 10);
+        assertEquals(expected, streamed.toString(UTF8));
+    }
+
+    @Test
+    public void parallelMatchesFormat() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?arrays&jsonp=func");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final Annotation note = new Annotation();
+        note.setTSUID("000001000001000001");
+        note.setStartTime(1356998400);
+        final List<Annotation> globals = new ArrayList<Annotation>();
+        globals.add(note);
+        final List<DataPoints[]> results = getResults(50, 100);
+        results.add(getResults(30, 10).get(0));
+        final String expected = new QueryResponseWriter(query, data_query,
+                results, globals).format().toString(UTF8);
+
+        assertEquals(expected, parallel(query, results, globals));
+    }
+
+    @Test
+    public void globalsInEachSeries() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        final String json = new QueryResponseWriter(query, data_query,
+                getResults(2, 1), getGlobals()).format().toString(UTF8);
+        // sorted by start time, spliced into both series
+        final List<Annotation> sorted = getGlobals();
+        Collections.sort(sorted);
+        final String notes = "\"globalAnnotations\":"
+                + new String(JSON.serializeToBytes(sorted), UTF8);
+        assertTrue(notes.indexOf("1356998460") > notes.indexOf("1356998400"));
+        final int first = json.indexOf(notes);
+        assertTrue(first > 0);
+        assertTrue(json.indexOf(notes, first + 1) > first);
+        assertTrue(json.contains(notes + ",\"dps\":{"));
+    }
+
+    @Test
+    public void wrapped() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?wrapped&jsonp=func");
+        final String json = new QueryResponseWriter(query, data_query,
+                getResults(2, 1), getGlobals()).format().toString(UTF8);
+        assertTrue(json.startsWith("func({\"globalAnnotations\":[{"));
+        assertTrue(json.contains("}],\"results\":[{\"metric\""));
+        assertTrue(json.endsWith("}]})"));
+        // written once at the top only
+        assertEquals(json.indexOf("globalAnnotations"),
+                json.lastIndexOf("globalAnnotations"));
+    }
+
+    @Test
+    public void wrappedNoGlobals() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?wrapped");
+        assertEquals("{\"results\":[]}", new QueryResponseWriter(query,
+                data_query, new ArrayList<DataPoints[]>(), null).format()
+                .toString(UTF8));
+    }
+
+    @Test
+    public void wrappedParallelMatchesFormat() throws Exception {
+        for (String uri : new String[] { "/api/query?wrapped",
+                "/api/query?wrapped&arrays" }) {
+            final HttpQuery query = NettyMocks.getQuery(tsdb, uri);
+            final List<Annotation> globals = uri.contains("arrays") ?
+                    null : getGlobals();
+            final String expected = new QueryResponseWriter(query, data_query,
+                    getResults(20, 3), globals).format().toString(UTF8);
+            assertEquals(expected, parallel(query, getResults(20, 3), globals));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void dictionary() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?dictionary&show_tsuids");
+        data_query.setShowTSUIDs(true);
+        final List<DataPoints[]> results = getResults(3, 1);
+        ((MockDataPoints) results.get(0)[1]).addAggregatedTag("cpu");
+        final String json = new QueryResponseWriter(query, data_query,
+                results, getGlobals()).format().toString(UTF8);
+        assertTrue(json.startsWith("{\"strings\":[\"sys.cpu.user\",\"host\","
+                + "\"web00\",\"web01\",\"cpu\",\"web02\"],"
+                + "\"globalAnnotations\":[{"));
+        assertTrue(json.contains("\"results\":[{\"metric\":0,\"tags\":[1,2],"
+                + "\"aggregateTags\":[],\"tsuids\":[\"000001000001"));
+
+        // the same series as the plain response once the indexes are resolved
+        final Map<String, Object> response =
+                JSON.parseToObject(json, Map.class);
+        final List<String> strings = (List<String>) response.get("strings");
+        final List<Map<String, Object>> series =
+                (List<Map<String, Object>>) response.get("results");
+        final List<Map<String, Object>> expected = JSON.parseToObject(
+                new QueryResponseWriter(NettyMocks.getQuery(tsdb, "/api/query"),
+                        data_query, results, null).format().toString(UTF8),
+                List.class);
+        assertEquals(expected.size(), series.size());
+        for (int i = 0; i < series.size(); i++) {
+            final Map<String, Object> resolved =
+                    new HashMap<String, Object>(series.get(i));
+            resolved.put("metric",
+                    strings.get((Integer) resolved.get("metric")));
+            final Map<String, String> tags = new HashMap<String, String>();
+            final List<Integer> pairs = (List<Integer>) resolved.get("tags");
+            for (int j = 0; j < pairs.size(); j += 2) {
+                tags.put(strings.get(pairs.get(j)),
+                        strings.get(pairs.get(j + 1)));
+            }
+            resolved.put("tags", tags);
+            final List<String> atags = new ArrayList<String>();
+            for (Integer index : (List<Integer>) resolved.get("aggregateTags")) {
+                atags.add(strings.get(index));
+            }
+            resolved.put("aggregateTags", atags);
+            assertEquals(expected.get(i), resolved);
+        }
+    }
+
+    @Test
+    public void dictionaryParallelMatchesFormat() throws Exception {
+        for (String uri : new String[] { "/api/query?dictionary",
+                "/api/query?dictionary&arrays&jsonp=func" }) {
+            final HttpQuery query = NettyMocks.getQuery(tsdb, uri);
+            final List<Annotation> globals = uri.contains("arrays") ?
+                    null : getGlobals();
+            final String expected = new QueryResponseWriter(query, data_query,
+                    getResults(20, 3), globals).format().toString(UTF8);
+            assertTrue(expected.contains("\"strings\":[\"sys.cpu.user\""));
+            assertEquals(expected, parallel(query, getResults(20, 3), globals));
+        }
+    }
+
+    @Test
+    public void serializeGlobalsNoAnnotations() throws Exception {
+        assertNull(QueryResponseWriter.serializeGlobals(data_query, null));
+        data_query.setNoAnnotations(true);
+        assertNull(QueryResponseWriter.serializeGlobals(data_query,
+                getGlobals()));
+    }
+
+    @Test
+    public void parallelSingleSeries() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        final String expected = new QueryResponseWriter(query, data_query,
+                getResults(1, 3), null).format().toString(UTF8);
+        assertEquals(expected, parallel(query, getResults(1, 3), null));
+    }
+
+    @Test
+    public void headerCache() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?arrays");
+        final List<DataPoints[]> results = getResults(3, 2);
+        ((MockDataPoints) results.get(0)[1]).addAggregatedTag("cpu");
+        data_query.setShowTSUIDs(true);
+        final String expected = new QueryResponseWriter(query, data_query,
+                results, getGlobals(), null).format().toString(UTF8);
+
+        final SeriesHeaderCache cache = new SeriesHeaderCache(1024 * 1024);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(expected, new QueryResponseWriter(query, data_query,
+                    results, getGlobals(), cache).format().toString(UTF8));
+        }
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.misses());
+        assertEquals(3, cache.hits());
+
+        // the TSUIDs aren't part of the header without show_tsuids
+        data_query.setShowTSUIDs(false);
+        assertEquals(new QueryResponseWriter(query, data_query, results,
+                        null, null).format().toString(UTF8),
+                new QueryResponseWriter(query, data_query, results, null,
+                        cache).format().toString(UTF8));
+        assertEquals(6, cache.size());
+    }
+
+    @Test
+    public void decimated() throws Exception {
+        data_query = getTSQuery("1356998400", "1357084800");
+        for (String mode : new String[] { "lttb", "minmax" }) {
+            final HttpQuery query = NettyMocks.getQuery(tsdb,
+                    "/api/query?arrays&maxPoints=100&decimate=" + mode);
+            final List<DataPoints[]> results = getResults(70, 1440);
+            final String json = new QueryResponseWriter(query, data_query,
+                    results, null).format().toString(UTF8);
+            // count the [ts,value] entries of the first series
+            final String first = json.substring(0, json.indexOf("]]") + 2);
+            final int points = first.split("\\],\\[").length;
+            assertTrue(mode + " " + points, points > 50 && points <= 100);
+            assertTrue(first.contains("[1356998400,0.0]"));
+
+            assertEquals(json, parallel(query, getResults(70, 1440), null));
+        }
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void decimatedBadMaxPoints() throws Exception {
+        new QueryResponseWriter(NettyMocks.getQuery(tsdb,
+                "/api/query?maxPoints=1"), data_query, getResults(1, 1), null);
+    }
+
+    @Test
+    public void summary() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?summary&percentiles=50,%2099.9");
+        final List<DataPoints[]> results = getResults(1, 3);
+        final String json = new QueryResponseWriter(query, data_query,
+                results, null).format().toString(UTF8);
+        // points are 0, 1.35 and 6
+        assertEquals("[{\"metric\":\"sys.cpu.user\",\"tags\":{\"host\":\"web00\"},"
+                        + "\"aggregateTags\":[],\"summary\":{\"count\":3,\"sum\":7.35,"
+                        + "\"min\":0.0,\"max\":6.0,\"avg\":2.4499999999999997,"
+                        + "\"first\":{\"timestamp\":1356998400,\"value\":0.0},"
+                        + "\"last\":{\"timestamp\":1356998520,\"value\":6.0},"
+                        + "\"percentiles\":{\"50\":1.35,\"99.9\":5.990700000000002}}}]",
+                json);
+        assertFalse(json.contains("dps"));
+        assertEquals(json, parallel(query, results, null));
+    }
+
+    @Test
+    public void summaryEmptySeries() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?summary");
+        final String json = new QueryResponseWriter(query, data_query,
+                getResults(1, 0), null).format().toString(UTF8);
+        assertTrue(json.contains("\"summary\":{\"count\":0,\"sum\":0.0,"
+                + "\"min\":null,\"max\":null,\"avg\":null,\"first\":null,"
+                + "\"last\":null,\"percentiles\":{\"50\":null,\"90\":null,"
+                + "\"95\":null,\"99\":null}}"));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void summaryBadPercentiles() throws Exception {
+        new QueryResponseWriter(NettyMocks.getQuery(tsdb,
+                "/api/query?summary&percentiles=100"), data_query,
+                getResults(1, 1), null);
+    }
+
+    @Test
+    public void dense() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?dense");
+        final List<DataPoints[]> results = getResults(2, 3);
+        // a gap in the second series, a single point and an irregular one
+        results.get(0)[1] = series(new long[] { 1356998400000L,
+                1356998520000L, 1356998640000L, 1356998700000L });
+        results.add(new DataPoints[] {
+                series(new long[] { 1356998400000L }),
+                series(new long[] { 1356998400000L, 1356998401000L,
+                        1356998700000L }) });
+        final String json = new QueryResponseWriter(query,
+                getTSQuery("1356998400", "1356998700"), results, null)
+                .format().toString(UTF8);
+        assertEquals("[{\"metric\":\"sys.cpu.user\",\"tags\":{\"host\":\"web00\"},"
+                + "\"aggregateTags\":[],\"start\":1356998400,\"step\":60,"
+                + "\"values\":[0.0,1.35,6.0]},"
+                + "{\"metric\":\"sys.cpu.user\",\"tags\":{},\"aggregateTags\":[],"
+                + "\"start\":1356998400,\"step\":60,"
+                + "\"values\":[1.0,null,2.0,null,3.0,4.0]},"
+                + "{\"metric\":\"sys.cpu.user\",\"tags\":{},\"aggregateTags\":[],"
+                + "\"dps\":{\"1356998400\":1.0}},"
+                + "{\"metric\":\"sys.cpu.user\",\"tags\":{},\"aggregateTags\":[],"
+                + "\"dps\":{\"1356998400\":1.0,\"1356998401\":2.0,"
+                + "\"1356998700\":3.0}}]", json);
+    }
+
+    @Test
+    public void denseReadsOnce() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?dense");
+        final MockDataPoints dps = MockDataPoints.generate("sys.cpu.user",
+                "web01", 1356998400000L, 60000, 100);
+        final List<DataPoints[]> results = new ArrayList<DataPoints[]>();
+        results.add(new DataPoints[] { dps });
+        final String json = new QueryResponseWriter(query,
+                getTSQuery("1356998400", "1357084800"), results, null)
+                .format().toString(UTF8);
+        assertTrue(json.contains("\"start\":1356998400,\"step\":60,"));
+        // decided from the buffered points, not a second pass
+        assertEquals(100, dps.nextCalls());
+    }
+
+    @Test
+    public void denseLongerThanProbe() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?dense");
+        final int count = SerializerConfig.denseProbePoints() + 100;
+        final List<DataPoints[]> results = new ArrayList<DataPoints[]>();
+        results.add(new DataPoints[] { MockDataPoints.generate("sys.cpu.user",
+                "web01", 1356998400000L, 1000, count) });
+        // off the grid past the buffered points
+        final long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = 1356998400000L + i * 1000L;
+        }
+        timestamps[count - 1] += 7;
+        results.add(new DataPoints[] { series(timestamps) });
+        final TSQuery data_query = getTSQuery("1356998400", "1357084800");
+        data_query.setMsResolution(true);
+        final String json = new QueryResponseWriter(query, data_query, results,
+                null).format().toString(UTF8);
+        final int second = json.indexOf("},{");
+        assertTrue(json.substring(0, second).contains("\"step\":1000,"));
+        assertTrue(json.substring(second).contains("\"dps\":{"));
+        assertTrue(json.endsWith(",\"" + timestamps[count - 1] + "\":"
+                + count + ".0}}]"));
+    }
+
+    @Test
+    public void denseParallelMatchesFormat() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?dense&stream=false");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final String expected = new QueryResponseWriter(query, data_query,
+                getResults(20, 100), null).format().toString(UTF8);
+        assertTrue(expected.contains("\"step\":60,"));
+        assertEquals(expected, parallel(query, getResults(20, 100), null));
+    }
+
+    @Test
+    public void since() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?since=1356998460");
+        assertEquals("[{\"metric\":\"sys.cpu.user\",\"tags\":{\"host\":\"web00\"},"
+                        + "\"aggregateTags\":[],\"dps\":{\"1356998520\":6.0}}]",
+                new QueryResponseWriter(query, data_query, getResults(1, 3),
+                        null).format().toString(UTF8));
+    }
+
+    @Test
+    public void cursor() throws Exception {
+        String json = new QueryResponseWriter(NettyMocks.getQuery(tsdb,
+                "/api/query?cursor"), data_query, getResults(2, 2), null)
+                .format().toString(UTF8);
+        assertTrue(json.startsWith("{\"results\":[{\"metric\":\"sys.cpu.user\""));
+        assertTrue(json.contains("\"dps\":{\"1356998400\":0.0,"
+                + "\"1356998460\":1.35}}"));
+        final String token = json.substring(json.indexOf("\"cursor\":\"") + 10,
+                json.length() - 2);
+
+        // the next poll only gets the new point, series without new points
+        // keep their place in the cursor
+        final List<DataPoints[]> results = getResults(2, 2);
+        results.get(0)[0] = getResults(1, 3).get(0)[0];
+        json = new QueryResponseWriter(NettyMocks.getQuery(tsdb,
+                "/api/query?cursor=" + token), data_query, results, null)
+                .format().toString(UTF8);
+        assertEquals("{\"results\":[{\"metric\":\"sys.cpu.user\","
+                + "\"tags\":{\"host\":\"web00\"},\"aggregateTags\":[],"
+                + "\"dps\":{\"1356998520\":6.0}},{\"metric\":\"sys.cpu.user\","
+                + "\"tags\":{\"host\":\"web01\"},\"aggregateTags\":[],"
+                + "\"dps\":{}}],\"cursor\":\"", json.substring(0,
+                json.indexOf("\"cursor\":\"") + 10));
+
+        final Map<Long, Long> latest = QueryCursor.decode(json.substring(
+                json.indexOf("\"cursor\":\"") + 10, json.length() - 2));
+        assertEquals(2, latest.size());
+        assertEquals(1356998520000L, (long) latest.get(
+                QueryCursor.identity(results.get(0)[0])));
+        assertEquals(1356998460000L, (long) latest.get(
+                QueryCursor.identity(results.get(0)[1])));
+    }
+
+    @Test
+    public void cursorParallelMatchesFormat() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?cursor&since=1357000000&stream=false");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final String expected = new QueryResponseWriter(query, data_query,
+                getResults(20, 100), null).format().toString(UTF8);
+        assertTrue(expected.contains("\"cursor\":\""));
+        assertEquals(expected, parallel(query, getResults(20, 100), null));
+    }
+
+    @Test
+    public void directChunks() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final String expected = new QueryResponseWriter(query, data_query,
+                getResults(20, 1000), null).format().toString(UTF8);
+
+        final DirectBufferPool pool = new DirectBufferPool(64);
+        final QueryResponseWriter writer = new QueryResponseWriter(query,
+                data_query, getResults(20, 1000), null);
+        final ChannelBuffer scratch = ChannelBuffers.dynamicBuffer();
+        assertFalse(writer.writeTo(scratch, 1000));
+        final DirectBufferPool.DirectResponse response =
+                (DirectBufferPool.DirectResponse) pool.write(writer, scratch);
+        assertTrue(writer.isFinished());
+        assertEquals(expected, response.toString(UTF8));
+        assertTrue(response.useGathering());
+        assertTrue(pool.allocated() > 1);
+        assertEquals(pool.allocated(), pool.inUse());
+
+        response.release();
+        assertEquals(0, pool.inUse());
+        assertEquals(pool.allocated(), pool.free());
+        assertEquals(1, pool.responses());
+    }
+
+    @Test
+    public void compressedChunks() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final String expected = new QueryResponseWriter(query, data_query,
+                getResults(20, 1000), null).format().toString(UTF8);
+
+        final QueryResponseWriter writer = new QueryResponseWriter(query,
+                data_query, getResults(20, 1000), null);
+        final ChannelBuffer scratch = ChannelBuffers.dynamicBuffer();
+        assertFalse(writer.writeTo(scratch, 1000));
+        final ResponseCompressor.CompressedResponse response =
+                ResponseCompressor.compress(writer, scratch,
+                        ResponseCompressor.GZIP);
+        assertTrue(writer.isFinished());
+        assertEquals(0, scratch.readableBytes());
+        assertEquals("gzip", response.encoding());
+        assertTrue(response.readableBytes() < expected.length());
+        assertEquals(expected, gunzip(response));
+    }
+
+    @Test
+    public void compressedParallel() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final String expected = parallel(query, getResults(20, 1000), null);
+
+        final ChannelBuffer response = ParallelQueryWriter.format(query,
+                new QueryResponseWriter(query, data_query,
+                        getResults(20, 1000), null),
+                getResults(20, 1000), ResponseCompressor.GZIP);
+        assertTrue(response instanceof ResponseCompressor.CompressedResponse);
+        assertTrue(response.readableBytes() < expected.length());
+        assertEquals(expected, gunzip(response));
+
+        // below the threshold the pieces are joined as is
+        assertEquals(parallel(query, getResults(1, 3), null),
+                ParallelQueryWriter.format(query, new QueryResponseWriter(
+                        query, data_query, getResults(1, 3), null),
+                        getResults(1, 3), ResponseCompressor.GZIP)
+                        .toString(UTF8));
+    }
+
+    @Test
+    public void compressedStream() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final String expected = new QueryResponseWriter(query, data_query,
+                getResults(5, 1000), null).format().toString(UTF8);
+
+        final QueryResponseStream stream = new QueryResponseStream(
+                new QueryResponseWriter(query, data_query,
+                        getResults(5, 1000), null), 4096,
+                new ResponseCompressor(ResponseCompressor.GZIP));
+        final ChannelBuffer body = ChannelBuffers.dynamicBuffer();
+        int chunks = 0;
+        while (stream.hasNextChunk()) {
+            final HttpChunk chunk = (HttpChunk) stream.nextChunk();
+            if (chunk.isLast()) {
+                break;
+            }
+            assertTrue(chunk.getContent().readable());
+            body.writeBytes(chunk.getContent());
+            chunks++;
+        }
+        assertTrue(stream.isEndOfInput());
+        assertTrue(chunks > 1);
+        stream.close();
+        assertEquals(expected, gunzip(body));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void budgetBytes() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?maxBytes=1000");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final QueryResponseWriter writer = new QueryResponseWriter(query,
+                data_query, getResults(5, 100), null);
+        // a budget implies the wrapped shape, the marker has nowhere else to go
+        final Map<String, Object> response = JSON.parseToObject(
+                writer.format().toString(UTF8), Map.class);
+        assertTrue(writer.truncated());
+
+        // the budget is checked every 64 points
+        final List<Map<String, Object>> results =
+                (List<Map<String, Object>>) response.get("results");
+        assertEquals(1, results.size());
+        assertEquals(63, ((Map<String, Object>) results.get(0).get("dps"))
+                .size());
+        assertEquals(Boolean.TRUE, results.get(0).get("truncated"));
+        final Map<String, Object> marker =
+                (Map<String, Object>) response.get("truncated");
+        assertEquals("bytes", marker.get("reason"));
+        assertEquals(1, marker.get("writtenSeries"));
+        assertEquals(4, marker.get("omittedSeries"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void budgetBytesWrapped() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?wrapped&maxBytes=3000");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final Map<String, Object> response = JSON.parseToObject(
+                new QueryResponseWriter(query, data_query, getResults(5, 100),
+                        null).format().toString(UTF8), Map.class);
+        assertEquals(2, ((List<Object>) response.get("results")).size());
+        final Map<String, Object> marker =
+                (Map<String, Object>) response.get("truncated");
+        assertEquals(2, marker.get("writtenSeries"));
+        assertEquals(3, marker.get("omittedSeries"));
+    }
+
+    @Test
+    public void budgetNotExceeded() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?maxBytes=100000&maxTime=60000");
+        final QueryResponseWriter writer = new QueryResponseWriter(query,
+                data_query, getResults(2, 3), null);
+        final String json = writer.format().toString(UTF8);
+        assertFalse(writer.truncated());
+        assertFalse(json.contains("truncated"));
+        // the same shape whether or not the budget ran out
+        assertTrue(json.startsWith("{\"results\":["));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void budgetParallel() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?maxBytes=20000&stream=false");
+        data_query = getTSQuery("1356998400", "1357084800");
+        final Map<String, Object> response = JSON.parseToObject(
+                parallel(query, getResults(40, 100), null), Map.class);
+        final Map<String, Object> marker =
+                (Map<String, Object>) response.get("truncated");
+        final int written = (Integer) marker.get("writtenSeries");
+        final List<Map<String, Object>> results =
+                (List<Map<String, Object>>) response.get("results");
+        assertEquals(written, results.size());
+        assertEquals(40, written + (Integer) marker.get("omittedSeries"));
+        assertTrue(written < 40);
+
+        // the series left out are a tail and only the last one written may
+        // have been cut short, as in the sequential path
+        for (int i = 0; i < written; i++) {
+            assertEquals(String.format("web%02d", i),
+                    ((Map<String, Object>) results.get(i).get("tags"))
+                            .get("host"));
+            if (i < written - 1) {
+                assertNull(results.get(i).get("truncated"));
+            }
+        }
+    }
+
+    @Test
+    public void budgetParallelDropsAfterGap() throws Exception {
+        final ChannelBuffer piece = ChannelBuffers.wrappedBuffer(
+                new byte[] { '{', '}' });
+        // a later task finished a series after an earlier one stopped
+        final ChannelBuffer[] pieces = { piece, null, piece, piece };
+        ParallelQueryWriter.dropAfterBudget(pieces, new boolean[4]);
+        assertArrayEquals(new ChannelBuffer[] { piece, null, null, null },
+                pieces);
+
+        // a series cut short is kept, the ones after it are not
+        final ChannelBuffer[] cut = { piece, piece, piece, null };
+        ParallelQueryWriter.dropAfterBudget(cut,
+                new boolean[] { false, true, false, false });
+        assertArrayEquals(new ChannelBuffer[] { piece, piece, null, null },
+                cut);
+    }
+
+    @Test
+    public void wantsStreaming() throws Exception {
+        assertTrue(QueryResponseWriter.wantsStreaming(
+                NettyMocks.getQuery(tsdb, "/api/query?stream")));
+        assertFalse(QueryResponseWriter.wantsStreaming(
+                NettyMocks.getQuery(tsdb, "/api/query?stream=false")));
+        assertFalse(QueryResponseWriter.wantsStreaming(
+                NettyMocks.getQuery(tsdb, "/api/query")));
+    }
+
+    /**
+     * Returns a series without tags and integer values 1, 2, 3... at the
+     * given timestamps
+     */
+    private static MockDataPoints series(final long[] timestamps) {
+        final long[] longs = new long[timestamps.length];
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] = i + 1;
+        }
+        final boolean[] integers = new boolean[timestamps.length];
+        Arrays.fill(integers, true);
+        return new MockDataPoints("sys.cpu.user",
+                new HashMap<String, String>(), timestamps, longs,
+                new double[timestamps.length], integers);
+    }
+
+    /**
+     * Formats the results with the parallel writer
+     */
+    private String parallel(final HttpQuery query,
+                            final List<DataPoints[]> results,
+                            final List<Annotation> globals) {
+        return ParallelQueryWriter.format(query, new QueryResponseWriter(query,
+                data_query, results, globals), results).toString(UTF8);
+    }
+
+    /**
+     * Returns two global annotations, out of order
+     */
+    private static List<Annotation> getGlobals() {
+        final List<Annotation> globals = new ArrayList<Annotation>();
+        for (long start : new long[] { 1356998460, 1356998400 }) {
+            final Annotation note = new Annotation();
+            note.setStartTime(start);
+            note.setDescription("Deploy " + start);
+            globals.add(note);
+        }
+        return globals;
+    }
+
+    /**
+     * Returns a validated query over the given range with a single sub query
+     */
+    static TSQuery getTSQuery(final String start, final String end) {
+        final TSSubQuery sub = new TSSubQuery();
+        sub.setAggregator("sum");
+        sub.setMetric("sys.cpu.user");
+        final ArrayList<TSSubQuery> subs = new ArrayList<TSSubQuery>(1);
+        subs.add(sub);
+        final TSQuery data_query = new TSQuery();
+        data_query.setStart(start);
+        data_query.setEnd(end);
+        data_query.setQueries(subs);
+        data_query.validateAndSetQuery();
+        return data_query;
+    }
+
+    /**
+     * Returns a single sub query result with the given number of series, each
+     * with a point every minute starting at the beginning of the test range
+     */
+    static List<DataPoints[]> getResults(final int series, final int points) {
+        final DataPoints[] dps = new DataPoints[series];
+        for (int i = 0; i < series; i++) {
+            dps[i] = MockDataPoints.generate("sys.cpu.user",
+                    String.format("web%02d", i), 1356998400000L, 60000, points);
+        }
+        final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+        results.add(dps);
+        return results;
+    }
+
+    private static String gunzip(final ChannelBuffer buffer) throws Exception {
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        final InputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(bytes));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            out.write(buf, 0, read);
+        }
+        in.close();
+        return new String(out.toByteArray(), UTF8);
+    }
+}
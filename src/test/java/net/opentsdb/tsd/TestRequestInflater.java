@@ -0,0 +1,264 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the decompression of compressed put requests
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestRequestInflater {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String BODY = "[{\"metric\":\"sys.cpu.nice\","
+            + "\"timestamp\":1365465600,\"value\":42,"
+            + "\"tags\":{\"host\":\"web01\"}},null]";
+    private TSDB tsdb = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+    }
+
+    @Test
+    public void gzip() throws Exception {
+        assertEquals(BODY, inflate(gzip(BODY), true, 0));
+    }
+
+    @Test
+    public void gzipMembers() throws Exception {
+        final byte[] first = gzip("[1,");
+        final byte[] second = gzip("2]");
+        final byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        assertEquals("[1,2]", inflate(both, true, 0));
+    }
+
+    @Test
+    public void gzipHeaderFields() throws Exception {
+        final byte[] plain = gzip(BODY);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(plain, 0, 3);
+        // FEXTRA, FNAME and FCOMMENT
+        output.write(4 | 8 | 16);
+        output.write(plain, 4, 6);
+        output.write(new byte[] { 2, 0, 'a', 'b' });
+        output.write("put.json\0a comment\0".getBytes(UTF8));
+        output.write(plain, 10, plain.length - 10);
+        assertEquals(BODY, inflate(output.toByteArray(), true, 0));
+    }
+
+    @Test
+    public void deflate() throws Exception {
+        assertEquals(BODY, inflate(deflate(BODY, false), false, 0));
+    }
+
+    @Test
+    public void rawDeflate() throws Exception {
+        assertEquals(BODY, inflate(deflate(BODY, true), false, 0));
+    }
+
+    @Test (expected = ZipException.class)
+    public void gzipBadChecksum() throws Exception {
+        final byte[] gzip = gzip(BODY);
+        gzip[gzip.length - 6] ^= 1;
+        inflate(gzip, true, 0);
+    }
+
+    @Test (expected = ZipException.class)
+    public void deflateBadChecksum() throws Exception {
+        final byte[] deflate = deflate(BODY, false);
+        deflate[deflate.length - 1] ^= 1;
+        inflate(deflate, false, 0);
+    }
+
+    @Test (expected = IOException.class)
+    public void truncated() throws Exception {
+        final byte[] gzip = gzip(BODY);
+        inflate(Arrays.copyOf(gzip, gzip.length - 12), true, 0);
+    }
+
+    @Test (expected = ZipException.class)
+    public void notGzip() throws Exception {
+        inflate(BODY.getBytes(UTF8), true, 0);
+    }
+
+    @Test
+    public void maxSize() throws Exception {
+        assertEquals(BODY, inflate(gzip(BODY), true, BODY.length()));
+        try {
+            inflate(gzip(BODY), true, BODY.length() - 1);
+            fail("Expected a BadRequestException");
+        } catch (BadRequestException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void singleBytes() throws Exception {
+        final byte[] gzip = gzip(BODY);
+        final RequestInflater inflater =
+                new RequestInflater(gzip, 0, gzip.length, true, 0);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int b;
+        while ((b = inflater.read()) >= 0) {
+            output.write(b);
+        }
+        inflater.close();
+        assertEquals(BODY, new String(output.toByteArray(), UTF8));
+        assertEquals(BODY.length(), inflater.total());
+    }
+
+    @Test
+    public void encoding() throws Exception {
+        assertNull(RequestInflater.encoding(query(BODY.getBytes(UTF8), null)));
+        assertNull(RequestInflater.encoding(
+                query(BODY.getBytes(UTF8), "identity")));
+        assertEquals(RequestInflater.GZIP,
+                RequestInflater.encoding(query(gzip(BODY), " GZip ")));
+        assertEquals(RequestInflater.GZIP,
+                RequestInflater.encoding(query(gzip(BODY), "x-gzip")));
+        assertEquals(RequestInflater.DEFLATE,
+                RequestInflater.encoding(query(gzip(BODY), "deflate")));
+    }
+
+    @Test (expected = BadRequestException.class)
+    public void unsupportedEncoding() throws Exception {
+        RequestInflater.encoding(query(BODY.getBytes(UTF8), "br"));
+    }
+
+    @Test
+    public void parsePut() throws Exception {
+        final List<IncomingDataPoint> dps = IncomingDataPointParser.parse(
+                query(gzip(BODY), "gzip"));
+        assertEquals(2, dps.size());
+        assertEquals("sys.cpu.nice", dps.get(0).getMetric());
+        assertEquals("42", dps.get(0).getValue());
+        assertNull(dps.get(1));
+    }
+
+    @Test
+    public void parsePutBatch() throws Exception {
+        final PutBatch batch = IncomingDataPointParser.parseBatch(
+                query(deflate(BODY, false), "deflate"));
+        assertEquals(1, batch.size());
+    }
+
+    @Test (expected = BadRequestException.class)
+    public void parsePutCorrupt() throws Exception {
+        final byte[] gzip = gzip(BODY);
+        gzip[gzip.length - 6] ^= 1;
+        IncomingDataPointParser.parse(query(gzip, "gzip"));
+    }
+
+    @Test
+    public void parseLines() throws Exception {
+        // spans several windows, with a bad line past the first one
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            if (i == 2500) {
+                body.append("put sys.cpu.user bad 1 host=web01\n\n");
+            }
+            body.append("put sys.cpu.user ").append(1365465600 + i)
+                    .append(" ").append(i).append(" host=web01 cpu=0\n");
+        }
+        final byte[] plain = body.toString().getBytes(UTF8);
+        final LinePutParser expected = new LinePutParser(false);
+        final List<IncomingDataPoint> expected_dps =
+                expected.parse(plain, 0, plain.length, UTF8);
+
+        final HttpQuery query = query(gzip(body.toString()), "gzip");
+        query.request().headers().set(HttpHeaders.Names.CONTENT_TYPE,
+                "text/plain");
+        final LinePutParser lines = LinePutParser.forQuery(query);
+        final List<IncomingDataPoint> dps = lines.parse(query);
+        assertEquals(3000, dps.size());
+        assertEquals(expected_dps.size(), dps.size());
+        assertEquals(expected_dps.get(2999).getValue(),
+                dps.get(2999).getValue());
+        assertEquals(expected.errors(), lines.errors());
+        assertEquals(1, lines.errors().size());
+    }
+
+    @Test
+    public void sniffCompressedPlainText() throws Exception {
+        final HttpQuery json = query(gzip("\n" + BODY), "gzip");
+        json.request().headers().set(HttpHeaders.Names.CONTENT_TYPE,
+                "text/plain");
+        assertNull(LinePutParser.forQuery(json));
+        final HttpQuery lines = query(
+                deflate("sys.cpu.user 1365465600 42 host=web01\n", false),
+                "deflate");
+        lines.request().headers().set(HttpHeaders.Names.CONTENT_TYPE,
+                "text/plain");
+        assertNotNull(LinePutParser.forQuery(lines));
+    }
+
+    private String inflate(final byte[] compressed, final boolean gzip,
+                           final long max_size) throws IOException {
+        final RequestInflater inflater = new RequestInflater(compressed, 0,
+                compressed.length, gzip, max_size);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buf = new byte[7];
+        int read;
+        try {
+            while ((read = inflater.read(buf, 0, buf.length)) >= 0) {
+                output.write(buf, 0, read);
+            }
+        } finally {
+            inflater.close();
+        }
+        return new String(output.toByteArray(), UTF8);
+    }
+
+    private HttpQuery query(final byte[] content, final String encoding) {
+        final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", "");
+        query.request().setContent(ChannelBuffers.wrappedBuffer(content));
+        if (encoding != null) {
+            query.request().headers().set(HttpHeaders.Names.CONTENT_ENCODING,
+                    encoding);
+        }
+        return query;
+    }
+
+    private static byte[] gzip(final String content) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(output);
+        gzip.write(content.getBytes(UTF8));
+        gzip.close();
+        return output.toByteArray();
+    }
+
+    private static byte[] deflate(final String content, final boolean raw)
+            throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final DeflaterOutputStream deflate = new DeflaterOutputStream(output,
+                new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+        deflate.write(content.getBytes(UTF8));
+        deflate.close();
+        return output.toByteArray();
+    }
+}
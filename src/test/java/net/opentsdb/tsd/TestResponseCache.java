@@ -0,0 +1,167 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.utils.Config;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the query response cache
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestResponseCache {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private TSDB tsdb = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+    }
+
+    @Test
+    public void keyAlignsRange() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/query?start=1356998401&m=sum:sys.cpu.user");
+        final String key = ResponseCache.key(query,
+                getTSQuery("1356998401", "1356998509"), 10000);
+        assertEquals(key, ResponseCache.key(NettyMocks.getQuery(tsdb,
+                        "/api/query?start=1356998409&m=sum:sys.cpu.user&stream"),
+                getTSQuery("1356998409", "1356998501"), 10000));
+        assertFalse(key.equals(ResponseCache.key(query,
+                getTSQuery("1356998410", "1356998509"), 10000)));
+    }
+
+    @Test
+    public void keyNormalizesSubQueries() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        final TSQuery first = getTSQuery("1356998400", "1356998520");
+        final HashMap<String, String> tags = new HashMap<String, String>();
+        tags.put("host", "*");
+        tags.put("dc", "lga");
+        first.getQueries().get(0).setTags(tags);
+        first.getQueries().get(0).setTsuids(Arrays.asList("000002", "000001"));
+        final TSQuery second = getTSQuery("1356998400", "1356998520");
+        second.getQueries().get(0).setTags(new HashMap<String, String>(tags));
+        second.getQueries().get(0).setTsuids(Arrays.asList("000001", "000002"));
+        assertEquals(ResponseCache.key(query, first, 1000),
+                ResponseCache.key(query, second, 1000));
+        // the query's own list is left alone
+        assertEquals("000002", first.getQueries().get(0).getTsuids().get(0));
+
+        second.getQueries().get(0).setRate(true);
+        assertFalse(ResponseCache.key(query, first, 1000).equals(
+                ResponseCache.key(query, second, 1000)));
+    }
+
+    @Test
+    public void keyShapeParams() throws Exception {
+        final TSQuery data_query = getTSQuery("1356998400", "1356998520");
+        final String plain = ResponseCache.key(
+                NettyMocks.getQuery(tsdb, "/api/query"), data_query, 1000);
+        assertFalse(plain.equals(ResponseCache.key(
+                NettyMocks.getQuery(tsdb, "/api/query?arrays"), data_query, 1000)));
+        assertFalse(ResponseCache.key(NettyMocks.getQuery(tsdb,
+                "/api/query?jsonp=a"), data_query, 1000).equals(
+                ResponseCache.key(NettyMocks.getQuery(tsdb,
+                        "/api/query?jsonp=b"), data_query, 1000)));
+    }
+
+    @Test
+    public void expires() throws Exception {
+        final ResponseCache cache = new ResponseCache(1024, 100);
+        cache.put("a", new byte[] { 1 }, 1000);
+        assertArrayEquals(new byte[] { 1 }, cache.get("a", 1099));
+        assertNull(cache.get("a", 1100));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+        assertEquals(1, cache.expirations());
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(0.5, cache.hitRatio(), 0.0001);
+    }
+
+    @Test
+    public void evicts() throws Exception {
+        final ResponseCache cache = new ResponseCache(2 * (96 + 2 + 100), 1000);
+        cache.put("a", new byte[100], 0);
+        cache.put("b", new byte[100], 0);
+        cache.get("a", 0);
+        cache.put("c", new byte[100], 0);
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get("b", 0));
+        assertEquals(100, cache.get("a", 0).length);
+        cache.put("d", new byte[4096], 0);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void formatQuery() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+        final TSQuery data_query = getTSQuery("1356998400", "1356998520");
+        final ResponseCache cache = new ResponseCache(1024 * 1024, 60000);
+        final ChannelBuffer first = QueryResponseWriter.formatQuery(query,
+                data_query, TestQueryResponseWriter.getResults(2, 3), null, cache);
+        final String expected = first.toString(UTF8);
+        assertEquals(1, cache.size());
+
+        // served from the cache without looking at the results
+        final List<DataPoints[]> other = TestQueryResponseWriter.getResults(5, 1);
+        assertEquals(expected, QueryResponseWriter.formatQuery(query,
+                data_query, other, null, cache).toString(UTF8));
+        assertEquals(1, cache.hits());
+        assertEquals(0, ((MockDataPoints) other.get(0)[0]).nextCalls());
+    }
+
+    @Test
+    public void formatQueryBodyCursor() throws Exception {
+        final TSQuery data_query = getTSQuery("1356998400", "1356998520");
+        final ResponseCache cache = new ResponseCache(1024 * 1024, 60000);
+        final String body = "{\"start\":1356998400,\"queries\":[{"
+                + "\"metric\":\"sys.cpu.user\"}],\"cursor\":";
+        final String first = QueryResponseWriter.formatQuery(
+                NettyMocks.postQuery(tsdb, "/api/query", body + "null}"),
+                data_query, TestQueryResponseWriter.getResults(1, 3), null,
+                cache).toString(UTF8);
+
+        // a later poll with the cursor of the first one only gets new points
+        final String token = first.substring(
+                first.indexOf("\"cursor\":\"") + 10, first.length() - 2);
+        final HttpQuery poll = NettyMocks.postQuery(tsdb, "/api/query",
+                body + "\"" + token + "\"}");
+        final String second = QueryResponseWriter.formatQuery(poll,
+                data_query, TestQueryResponseWriter.getResults(1, 3), null,
+                cache).toString(UTF8);
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.size());
+        assertFalse(first.equals(second));
+        assertTrue(second.contains("\"dps\":{}"));
+
+        // the same poll again is served from the cache
+        assertEquals(second, QueryResponseWriter.formatQuery(poll, data_query,
+                TestQueryResponseWriter.getResults(1, 3), null, cache)
+                .toString(UTF8));
+        assertEquals(1, cache.hits());
+    }
+
+    private static TSQuery getTSQuery(final String start, final String end) {
+        return TestQueryResponseWriter.getTSQuery(start, end);
+    }
+}
@@ -0,0 +1,204 @@
+package net.opentsdb.tsd;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the gzip and deflate compression of responses
+ */
+public final class TestResponseCompressor {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void accepted() throws Exception {
+        assertNull(ResponseCompressor.accepted(null));
+        assertNull(ResponseCompressor.accepted(""));
+        assertNull(ResponseCompressor.accepted("br, identity"));
+        assertEquals("gzip", ResponseCompressor.accepted("gzip"));
+        assertEquals("gzip", ResponseCompressor.accepted("x-gzip"));
+        assertEquals("deflate", ResponseCompressor.accepted("deflate"));
+        assertEquals("gzip", ResponseCompressor.accepted("deflate, gzip"));
+        assertEquals("gzip", ResponseCompressor.accepted("GZIP;q=1.0, br"));
+        assertEquals("deflate",
+                ResponseCompressor.accepted("gzip;q=0.5, deflate"));
+        assertEquals("deflate",
+                ResponseCompressor.accepted("gzip;q=0, deflate;q=0.1"));
+        assertNull(ResponseCompressor.accepted("gzip;q=0"));
+        assertNull(ResponseCompressor.accepted("gzip;q=bad"));
+        assertEquals("gzip", ResponseCompressor.accepted("*"));
+        assertEquals("deflate", ResponseCompressor.accepted("gzip;q=0, *"));
+        assertNull(ResponseCompressor.accepted("*;q=0"));
+    }
+
+    @Test
+    public void gzip() throws Exception {
+        final byte[] body = body(100000);
+        final ChannelBuffer source = ChannelBuffers.wrappedBuffer(body);
+        final ResponseCompressor.CompressedResponse response =
+                ResponseCompressor.compress(source, ResponseCompressor.GZIP);
+        assertEquals("gzip", response.encoding());
+        assertTrue(response.readableBytes() < body.length);
+        // the source is left untouched
+        assertEquals(body.length, source.readableBytes());
+        assertArrayEquals(body, read(new GZIPInputStream(
+                new ByteArrayInputStream(bytes(response)))));
+    }
+
+    @Test
+    public void deflate() throws Exception {
+        final byte[] body = body(100000);
+        final ResponseCompressor.CompressedResponse response =
+                ResponseCompressor.compress(ChannelBuffers.wrappedBuffer(body),
+                        ResponseCompressor.DEFLATE);
+        assertEquals("deflate", response.encoding());
+        // zlib wrapped, checked by a non raw inflater
+        assertArrayEquals(body, read(new InflaterInputStream(
+                new ByteArrayInputStream(bytes(response)))));
+    }
+
+    @Test
+    public void empty() throws Exception {
+        final ResponseCompressor.CompressedResponse response =
+                ResponseCompressor.compress(ChannelBuffers.EMPTY_BUFFER,
+                        ResponseCompressor.GZIP);
+        assertEquals(0, read(new GZIPInputStream(
+                new ByteArrayInputStream(bytes(response)))).length);
+    }
+
+    @Test
+    public void composite() throws Exception {
+        final byte[] body = body(30000);
+        final ChannelBuffer direct = ChannelBuffers.directBuffer(10000);
+        direct.writeBytes(body, 10000, 10000);
+        final ChannelBuffer source = ChannelBuffers.wrappedBuffer(
+                ChannelBuffers.wrappedBuffer(body, 0, 10000), direct,
+                ChannelBuffers.wrappedBuffer(body, 20000, 10000));
+        final ResponseCompressor.CompressedResponse response =
+                ResponseCompressor.compress(source, ResponseCompressor.GZIP);
+        assertArrayEquals(body, read(new GZIPInputStream(
+                new ByteArrayInputStream(bytes(response)))));
+    }
+
+    @Test
+    public void flushedPieces() throws Exception {
+        final byte[] body = body(50000);
+        final ResponseCompressor compressor =
+                new ResponseCompressor(ResponseCompressor.DEFLATE);
+        final Inflater inflater = new Inflater();
+        final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        final byte[] out = new byte[body.length];
+        for (int offset = 0; offset < body.length; offset += 10000) {
+            final ChannelBuffer piece = ChannelBuffers.dynamicBuffer();
+            compressor.write(piece, ChannelBuffers.wrappedBuffer(body, offset,
+                    10000));
+            compressor.flush(piece);
+            // each flushed piece decompresses fully on its own
+            inflater.setInput(bytes(piece));
+            final int length = inflater.inflate(out);
+            assertEquals(10000, length);
+            decompressed.write(out, 0, length);
+        }
+        final ChannelBuffer last = ChannelBuffers.dynamicBuffer();
+        compressor.finish(last);
+        inflater.setInput(bytes(last));
+        assertEquals(0, inflater.inflate(out));
+        assertTrue(inflater.finished());
+        assertArrayEquals(body, decompressed.toByteArray());
+        inflater.end();
+    }
+
+    @Test
+    public void releaseTwice() throws Exception {
+        final ResponseCompressor compressor =
+                new ResponseCompressor(ResponseCompressor.GZIP);
+        compressor.release();
+        compressor.release();
+    }
+
+    @Test
+    public void encodingHandler() throws Exception {
+        final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        final MessageEvent e = mock(MessageEvent.class);
+        final HttpResponse response = new DefaultHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setContent(ResponseCompressor.compress(
+                ChannelBuffers.wrappedBuffer(body(1000)),
+                ResponseCompressor.DEFLATE));
+        when(e.getMessage()).thenReturn(response);
+        new ResponseCompressor.EncodingHandler().writeRequested(ctx, e);
+        assertEquals("deflate",
+                response.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+        assertEquals(HttpHeaders.Names.ACCEPT_ENCODING,
+                response.headers().get(HttpHeaders.Names.VARY));
+        verify(ctx).sendDownstream((ChannelEvent) e);
+    }
+
+    @Test
+    public void encodingHandlerPlain() throws Exception {
+        final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        final MessageEvent e = mock(MessageEvent.class);
+        final HttpResponse response = new DefaultHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setContent(ChannelBuffers.wrappedBuffer(body(1000)));
+        when(e.getMessage()).thenReturn(response);
+        new ResponseCompressor.EncodingHandler().writeRequested(ctx, e);
+        assertNull(response.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+        assertNull(response.headers().get(HttpHeaders.Names.VARY));
+        verify(ctx).sendDownstream((ChannelEvent) e);
+    }
+
+    /** @return JSON-ish text that compresses but not trivially */
+    private static byte[] body(final int length) {
+        final Random random = new Random(42);
+        final StringBuilder buf = new StringBuilder(length + 64);
+        while (buf.length() < length) {
+            buf.append("{\"metric\":\"sys.cpu.user\",\"value\":")
+                .append(random.nextInt(100000)).append("},");
+        }
+        buf.setLength(length);
+        return buf.toString().getBytes(UTF8);
+    }
+
+    private static byte[] bytes(final ChannelBuffer buffer) {
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+    private static byte[] read(final InputStream in) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            out.write(buf, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,189 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.JSON;
+import net.opentsdb.utils.JSONException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the per thread response scratch space
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestResponseScratch {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private TSDB tsdb = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+    }
+
+    @Test
+    public void serializeMatchesMapper() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/version");
+        final HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("version", "2.0.0");
+        map.put("list", Arrays.asList(1, 2, 3));
+        // the generator is reused without a separator between responses
+        for (int i = 0; i < 3; i++) {
+            assertEquals(new String(JSON.serializeToBytes(map), UTF8),
+                    ResponseScratch.serialize(query, map).toString(UTF8));
+        }
+        assertEquals("[\"a\",\"b\"]", ResponseScratch.serialize(query,
+                Arrays.asList("a", "b")).toString(UTF8));
+    }
+
+    @Test
+    public void serializeJSONP() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/suggest?jsonp=func");
+        assertEquals("func([\"sys.cpu.user\"])", ResponseScratch.serialize(
+                query, Arrays.asList("sys.cpu.user")).toString(UTF8));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void serializeNull() throws Exception {
+        ResponseScratch.serialize(NettyMocks.getQuery(tsdb, "/api/version"),
+                null);
+    }
+
+    @Test
+    public void serializeAfterFailure() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/version");
+        try {
+            ResponseScratch.serialize(query, Arrays.asList(new Broken()));
+            fail("Expected a JSONException");
+        } catch (JSONException e) {
+        }
+        // the generator left in the middle of the array was dropped
+        assertEquals("{\"a\":1}", ResponseScratch.serialize(query,
+                Collections.singletonMap("a", 1)).toString(UTF8));
+    }
+
+    @Test
+    public void acquireNested() throws Exception {
+        final ResponseScratch outer = ResponseScratch.acquire();
+        outer.buffer().writeByte('x');
+        final ResponseScratch inner = ResponseScratch.acquire();
+        assertTrue(outer != inner);
+        assertEquals(0, inner.buffer().readableBytes());
+        inner.release();
+        outer.release();
+        assertTrue(outer == ResponseScratch.acquire());
+        assertEquals(0, outer.buffer().readableBytes());
+        outer.release();
+    }
+
+    @Test
+    public void serializeEmptyJSONP() throws Exception {
+        final HttpQuery query = NettyMocks.getQuery(tsdb,
+                "/api/suggest?jsonp=");
+        assertEquals("[\"sys.cpu.user\"]", ResponseScratch.serialize(
+                query, Arrays.asList("sys.cpu.user")).toString(UTF8));
+    }
+
+    @Test
+    public void responseHandsOverBuffer() throws Exception {
+        final ResponseScratch scratch = ResponseScratch.acquire();
+        final ChannelBuffer written = scratch.buffer();
+        written.writeBytes("{\"a\":1}".getBytes(UTF8));
+        // without a buffer pool the scratch buffer itself is the response
+        final ChannelBuffer response = scratch.response(
+                NettyMocks.getQuery(tsdb, "/api/version"));
+        assertSame(written, response);
+        assertNotSame(written, scratch.buffer());
+        scratch.release();
+
+        assertSame(scratch, ResponseScratch.acquire());
+        assertEquals(0, scratch.buffer().readableBytes());
+        assertEquals("{\"a\":1}", response.toString(UTF8));
+        scratch.release();
+    }
+
+    @Test
+    public void fakeSerializer() throws Exception {
+        final FakeHttpSerialize serdes = new FakeHttpSerialize(
+                NettyMocks.getQuery(tsdb, "/api/suggest?jsonp=func"));
+        assertEquals("func([\"sys.cpu.user\"])", serdes.formatSuggestV1(
+                Arrays.asList("sys.cpu.user")).toString(UTF8));
+    }
+
+    @Test
+    public void fakeSerializerCompresses() throws Exception {
+        final Channel chan = NettyMocks.fakeChannel();
+        when(chan.getPipeline()).thenReturn(Channels.pipeline());
+        final HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+                HttpMethod.GET, "/api/suggest");
+        req.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, "gzip");
+        final List<String> suggestions = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            suggestions.add("sys.cpu.user." + i);
+        }
+
+        Whitebox.setInternalState(SerializerConfig.class,
+                "compression_enabled", true);
+        try {
+            final ChannelBuffer response = new FakeHttpSerialize(
+                    new HttpQuery(tsdb, req, chan))
+                    .formatSuggestV1(suggestions);
+            assertTrue(response
+                    instanceof ResponseCompressor.CompressedResponse);
+            final byte[] bytes = new byte[response.readableBytes()];
+            response.getBytes(response.readerIndex(), bytes);
+            final InputStream in = new GZIPInputStream(
+                    new ByteArrayInputStream(bytes));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) >= 0) {
+                out.write(buf, 0, read);
+            }
+            in.close();
+            assertEquals(JSON.serializeToString(suggestions),
+                    new String(out.toByteArray(), UTF8));
+        } finally {
+            Whitebox.setInternalState(SerializerConfig.class,
+                    "compression_enabled", false);
+        }
+    }
+
+    /** A bean that can't be serialized */
+    public static final class Broken {
+        public String getValue() {
+            throw new IllegalStateException("Boom");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package net.opentsdb.tsd;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the serialization time and byte budget
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+public final class TestSerializationBudget {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private TSDB tsdb = null;
+
+    @Before
+    public void before() throws Exception {
+        tsdb = NettyMocks.getMockedHTTPTSDB();
+    }
+
+    @Test
+    public void forQueryNone() throws Exception {
+        assertNull(SerializationBudget.forQuery(
+                NettyMocks.getQuery(tsdb, "/api/query")));
+    }
+
+    @Test
+    public void forQueryBytes() throws Exception {
+        final SerializationBudget budget = SerializationBudget.forQuery(
+                NettyMocks.getQuery(tsdb, "/api/query?maxBytes=100"));
+        assertNotNull(budget);
+        budget.charge(100);
+        assertFalse(budget.exceeded());
+        budget.charge(1);
+        assertTrue(budget.exceeded());
+        assertEquals(SerializationBudget.BYTES, budget.reason());
+    }
+
+    @Test (expected = BadRequestException.class)
+    public void forQueryBadTime() throws Exception {
+        SerializationBudget.forQuery(
+                NettyMocks.getQuery(tsdb, "/api/query?maxTime=soon"));
+    }
+
+    @Test (expected = BadRequestException.class)
+    public void forQueryZeroBytes() throws Exception {
+        SerializationBudget.forQuery(
+                NettyMocks.getQuery(tsdb, "/api/query?maxBytes=0"));
+    }
+
+    @Test
+    public void time() throws Exception {
+        final SerializationBudget budget = new SerializationBudget(1, 0);
+        Thread.sleep(10);
+        assertTrue(budget.exceeded());
+        assertEquals(SerializationBudget.TIME, budget.reason());
+    }
+
+    @Test
+    public void exceededSticks() throws Exception {
+        final SerializationBudget budget = new SerializationBudget(60000, 10);
+        assertFalse(budget.exceeded());
+        assertNull(budget.reason());
+        budget.charge(11);
+        assertTrue(budget.exceeded());
+        budget.charge(-11);
+        assertTrue(budget.exceeded());
+        assertEquals("{\"reason\":\"bytes\",\"writtenSeries\":2,"
+                + "\"omittedSeries\":3}", new String(budget.marker(2, 3), UTF8));
+    }
+}
@@ -0,0 +1,85 @@
+package net.opentsdb.tsd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for the LRU cache of encoded series headers
+ */
+public final class TestSeriesHeaderCache {
+
+    @Test
+    public void key() throws Exception {
+        final List<String> tsuids = new ArrayList<String>(
+                Arrays.asList("000002", "000001"));
+        assertEquals("T000001,000002,", SeriesHeaderCache.key(tsuids, true));
+        assertEquals("000001", tsuids.get(0));
+        assertEquals("F000001,000002,", SeriesHeaderCache.key(tsuids, false));
+        assertNull(SeriesHeaderCache.key(new ArrayList<String>(), true));
+        assertNull(SeriesHeaderCache.key(null, true));
+    }
+
+    @Test
+    public void getPut() throws Exception {
+        final SeriesHeaderCache cache = new SeriesHeaderCache(1024);
+        assertNull(cache.get("a"));
+        cache.put("a", new byte[] { 1, 2 });
+        assertArrayEquals(new byte[] { 1, 2 }, cache.get("a"));
+        cache.put("a", new byte[] { 3 });
+        assertArrayEquals(new byte[] { 3 }, cache.get("a"));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(2.0 / 3, cache.hitRatio(), 0.0001);
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    public void hitRatioEmpty() throws Exception {
+        assertEquals(0, new SeriesHeaderCache(1024).hitRatio(), 0.0001);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        // room for three entries of 100 bytes plus overhead
+        final SeriesHeaderCache cache = new SeriesHeaderCache(3 * (96 + 2 + 100));
+        cache.put("a", new byte[100]);
+        cache.put("b", new byte[100]);
+        cache.put("c", new byte[100]);
+        cache.get("a");
+        cache.put("d", new byte[100]);
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get("b"));
+        assertEquals(100, cache.get("a").length);
+
+        // a large entry pushes out several small ones
+        cache.put("e", new byte[250]);
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.evictions());
+        assertNull(cache.get("d"));
+        assertEquals(100, cache.get("a").length);
+        assertEquals(2 * (96 + 2) + 350, cache.bytes());
+    }
+
+    @Test
+    public void dropsOversizedEntries() throws Exception {
+        final SeriesHeaderCache cache = new SeriesHeaderCache(128);
+        cache.put("a", new byte[8]);
+        cache.put("b", new byte[1024]);
+        assertEquals(1, cache.size());
+        assertNull(cache.get("b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ctorZero() throws Exception {
+        new SeriesHeaderCache(0);
+    }
+}
@@ -0,0 +1,125 @@
+package net.opentsdb.tsd;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.stream.ChunkedStream;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the handler streaming chunked query responses
+ */
+public final class TestStreamingResponseHandler {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void streamsSentinelResponse() throws Exception {
+        final EncoderEmbedder<Object> embedder = embedder();
+        final HttpResponse response = reply(body("[1,2,3]", "gzip"));
+        embedder.offer(response);
+
+        assertSame(response, embedder.poll());
+        assertTrue(response.isChunked());
+        assertEquals(0, response.getContent().readableBytes());
+        assertFalse(response.headers().contains(
+                HttpHeaders.Names.CONTENT_LENGTH));
+        assertEquals("gzip",
+                response.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+        assertEquals("[1,2,3]", drain(embedder));
+    }
+
+    @Test
+    public void otherResponsesPassThrough() throws Exception {
+        final EncoderEmbedder<Object> embedder = embedder();
+        final HttpResponse streamed = reply(body("[1]", null));
+        final HttpResponse other = reply(
+                ChannelBuffers.copiedBuffer("{}", UTF8));
+        embedder.offer(other);
+        embedder.offer(streamed);
+
+        // a plain reply on the same connection keeps its body and length
+        assertSame(other, embedder.poll());
+        assertFalse(other.isChunked());
+        assertEquals("{}", other.getContent().toString(UTF8));
+        assertEquals(2, HttpHeaders.getContentLength(other));
+        assertNull(other.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+
+        assertSame(streamed, embedder.poll());
+        assertTrue(streamed.isChunked());
+        assertEquals("[1]", drain(embedder));
+    }
+
+    @Test
+    public void installOnce() throws Exception {
+        final ChannelPipeline pipeline = Channels.pipeline();
+        StreamingResponseHandler.install(pipeline);
+        StreamingResponseHandler.install(pipeline);
+        assertEquals(2, pipeline.getNames().size());
+        assertNotNull(pipeline.get(ChunkedWriteHandler.class));
+        // the handler is last so the body it writes reaches the writer
+        assertSame(pipeline.getLast(),
+                pipeline.get(StreamingResponseHandler.class));
+    }
+
+    @Test
+    public void uniqueBodies() throws Exception {
+        final ChannelBuffer first = body("[]", null);
+        final ChannelBuffer second = body("[]", null);
+        assertNotSame(first, second);
+        assertEquals(0, first.readableBytes());
+    }
+
+    private static EncoderEmbedder<Object> embedder() {
+        final ChannelPipeline pipeline = Channels.pipeline();
+        StreamingResponseHandler.install(pipeline);
+        return new EncoderEmbedder<Object>(
+                pipeline.get(ChunkedWriteHandler.class),
+                pipeline.get(StreamingResponseHandler.class));
+    }
+
+    private static ChannelBuffer body(final String body,
+            final String encoding) {
+        return new StreamingResponseHandler.StreamingBody(new ChunkedStream(
+                new ByteArrayInputStream(body.getBytes(UTF8)), 2), encoding);
+    }
+
+    /**
+     * Returns a response as an RPC would send it with the given body
+     */
+    private static HttpResponse reply(final ChannelBuffer content) {
+        final HttpResponse response = new DefaultHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setContent(content);
+        HttpHeaders.setContentLength(response, content.readableBytes());
+        return response;
+    }
+
+    /** @return the chunks written after the response joined as a string */
+    private static String drain(final EncoderEmbedder<Object> embedder) {
+        final StringBuilder body = new StringBuilder();
+        Object chunk;
+        while ((chunk = embedder.poll()) != null) {
+            body.append(((ChannelBuffer) chunk).toString(UTF8));
+        }
+        return body.toString();
+    }
+}
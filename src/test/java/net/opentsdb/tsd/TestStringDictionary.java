@@ -0,0 +1,127 @@
+package net.opentsdb.tsd;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.utils.JSON;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for the string table of dictionary encoded responses
+ */
+public final class TestStringDictionary {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void intern() throws Exception {
+        final StringDictionary dictionary = new StringDictionary();
+        assertEquals(0, dictionary.intern("host"));
+        assertEquals(1, dictionary.intern("web01"));
+        assertEquals(0, dictionary.intern("host"));
+        assertEquals(0, dictionary.intern(new String("host")));
+        assertEquals(2, dictionary.size());
+        assertEquals("web01", dictionary.get(1));
+        assertEquals(1, dictionary.indexOf("web01"));
+        assertEquals(-1, dictionary.indexOf("web02"));
+    }
+
+    @Test
+    public void internNull() throws Exception {
+        final StringDictionary dictionary = new StringDictionary();
+        assertEquals(0, dictionary.intern(null));
+        assertEquals(0, dictionary.intern(""));
+        assertEquals("", dictionary.get(0));
+    }
+
+    @Test
+    public void hashCollisions() throws Exception {
+        // all of these hash to the same value
+        final String[] values = { "AaAa", "AaBB", "BBAa", "BBBB" };
+        assertEquals(values[0].hashCode(), values[3].hashCode());
+        final StringDictionary dictionary = new StringDictionary();
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(i, dictionary.intern(values[i]));
+        }
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(i, dictionary.indexOf(values[i]));
+        }
+    }
+
+    @Test
+    public void grows() throws Exception {
+        final StringDictionary dictionary = new StringDictionary();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, dictionary.intern("web" + i));
+        }
+        assertEquals(10000, dictionary.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, dictionary.indexOf("web" + i));
+            assertEquals(i, dictionary.intern("web" + i));
+        }
+        assertEquals(10000, dictionary.size());
+    }
+
+    @Test
+    public void build() throws Exception {
+        final Map<String, String> tags = new LinkedHashMap<String, String>();
+        tags.put("host", "web01");
+        tags.put("dc", "lga");
+        final MockDataPoints first = new MockDataPoints("sys.cpu.user", tags,
+                new long[0], new long[0], new double[0], new boolean[0]);
+        first.addAggregatedTag("cpu");
+        final Map<String, String> other = new LinkedHashMap<String, String>();
+        other.put("host", "web02");
+        other.put("dc", "lga");
+        final MockDataPoints second = new MockDataPoints("sys.cpu.user", other,
+                new long[0], new long[0], new double[0], new boolean[0]);
+        final List<DataPoints[]> results = new ArrayList<DataPoints[]>();
+        results.add(new DataPoints[] { first, second });
+
+        final StringDictionary dictionary = StringDictionary.build(results);
+        assertEquals("[\"sys.cpu.user\",\"host\",\"web01\",\"dc\",\"lga\","
+                + "\"cpu\",\"web02\"]", new String(dictionary.table(), UTF8));
+        assertEquals("{\"metric\":0,\"tags\":[1,2,3,4],\"aggregateTags\":[5]}",
+                header(dictionary, first));
+        assertEquals("{\"metric\":0,\"tags\":[1,6,3,4],\"aggregateTags\":[]}",
+                header(dictionary, second));
+    }
+
+    @Test
+    public void buildEscapes() throws Exception {
+        final HashMap<String, String> tags = new HashMap<String, String>();
+        tags.put("path", "/var/\"log\"");
+        final List<DataPoints[]> results = new ArrayList<DataPoints[]>();
+        results.add(new DataPoints[] { new MockDataPoints("disk.used", tags,
+                new long[0], new long[0], new double[0], new boolean[0]) });
+        assertEquals("[\"disk.used\",\"path\",\"/var/\\\"log\\\"\"]",
+                new String(StringDictionary.build(results).table(), UTF8));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void writeHeaderUnknownSeries() throws Exception {
+        final StringDictionary dictionary =
+                StringDictionary.build(new ArrayList<DataPoints[]>());
+        header(dictionary, MockDataPoints.generate("sys.cpu.user", "web01",
+                0, 1000, 1));
+    }
+
+    private static String header(final StringDictionary dictionary,
+                                 final DataPoints dps) throws Exception {
+        final StringWriter output = new StringWriter();
+        final JsonGenerator json = JSON.getFactory().createGenerator(output);
+        json.writeStartObject();
+        dictionary.writeHeader(json, dps);
+        json.writeEndObject();
+        json.close();
+        return output.toString();
+    }
+}